@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ *
+ * This file is part of Rumble.
+ *
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.database;
+
+import org.disrupted.rumble.util.HashUtil;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Measures the deduplication of the attached files on a synthetic corpus: pictures received
+ * many times from many peers, the most popular ones much more often than the others.
+ *
+ * @author Lucien Loiseau
+ */
+public class AttachmentStoreBenchmark {
+
+    private static final int NB_PICTURES   = 200;
+    private static final int NB_RECEPTIONS = 2000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File write(byte[] content) throws IOException {
+        File file = folder.newFile();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    // the pictures are received with a frequency close to 1/rank
+    private static int zipf(int size, Random random) {
+        int rank = (int)Math.pow(size, random.nextDouble());
+        return Math.min(size, rank) - 1;
+    }
+
+    @Test
+    public void deduplication() throws IOException {
+        Random random = new Random(42);
+        byte[][] pictures = new byte[NB_PICTURES][];
+        for(int p = 0; p < NB_PICTURES; p++) {
+            pictures[p] = new byte[20 * 1024 + random.nextInt(180 * 1024)];
+            random.nextBytes(pictures[p]);
+        }
+
+        File album = folder.newFolder("album");
+        Set<Integer> received = new HashSet<Integer>();
+        long receivedBytes = 0;
+        long hashTime = 0;
+        int stored = 0;
+        for(int r = 0; r < NB_RECEPTIONS; r++) {
+            int p = zipf(NB_PICTURES, random);
+            received.add(p);
+            receivedBytes += pictures[p].length;
+            File file = write(pictures[p]);
+
+            long start = System.nanoTime();
+            String sha256 = HashUtil.computeFileSha256(file);
+            hashTime += System.nanoTime() - start;
+
+            if(AttachmentStore.moveToAlbum(file, album, AttachmentStore.getFileName(sha256)))
+                stored++;
+        }
+
+        long albumBytes = 0;
+        for(File file : album.listFiles())
+            albumBytes += file.length();
+        long distinctBytes = 0;
+        for(int p : received)
+            distinctBytes += pictures[p].length;
+        assertEquals(received.size(), stored);
+        assertEquals(received.size(), album.list().length);
+        assertEquals(distinctBytes, albumBytes);
+
+        System.out.println(NB_RECEPTIONS + " pictures received (" + received.size() + " distinct): "
+                + (receivedBytes / 1024) + "KB written before, " + (albumBytes / 1024) + "KB in the album now ("
+                + (100 - 100 * albumBytes / receivedBytes) + "% saved), SHA-256 at "
+                + (receivedBytes * 1000 / hashTime) + "MB/s");
+    }
+}
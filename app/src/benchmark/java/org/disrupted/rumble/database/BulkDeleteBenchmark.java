@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ *
+ * This file is part of Rumble.
+ *
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.database;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares a group purge with the set-based statements of PushStatusDatabase.deleteStatusesWhere
+ * on the 50k statuses of BulkDeleteTest with the deletion one status at a time that wipe and
+ * deleteGroupStatus used before, and times a wipe of what is left.
+ *
+ * @author Lucien Loiseau
+ */
+public class BulkDeleteBenchmark {
+
+    private BulkDeleteTest bulk;
+    private Connection connection;
+
+    @Before
+    public void setUp() throws Exception {
+        bulk = new BulkDeleteTest();
+        bulk.folder.create();
+        bulk.setUp();
+        connection = bulk.connection;
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        bulk.tearDown();
+        bulk.folder.delete();
+    }
+
+    /*
+     * how a group was purged before: every status deleted on its own by its uuid
+     */
+    private void deleteOneByOne(long groupDBID) throws SQLException {
+        List<String> uuids = new ArrayList<String>();
+        PreparedStatement select = connection.prepareStatement("SELECT " + PushStatusDatabase.UUID + " FROM "
+                + PushStatusDatabase.TABLE_NAME + " WHERE " + PushStatusDatabase.GROUP_DBID + " = ?");
+        select.setLong(1, groupDBID);
+        ResultSet result = select.executeQuery();
+        while(result.next())
+            uuids.add(result.getString(1));
+        result.close();
+        select.close();
+
+        PreparedStatement status = connection.prepareStatement("SELECT " + PushStatusDatabase.ID + ", "
+                + PushStatusDatabase.FILE_NAME + " FROM " + PushStatusDatabase.TABLE_NAME + " WHERE "
+                + PushStatusDatabase.UUID + " = ?");
+        PreparedStatement delete = connection.prepareStatement("DELETE FROM " + PushStatusDatabase.TABLE_NAME
+                + " WHERE " + PushStatusDatabase.ID + " = ?");
+        PreparedStatement deleteTags = connection.prepareStatement("DELETE FROM " + StatusTagDatabase.TABLE_NAME
+                + " WHERE " + StatusTagDatabase.SDBID + " = ?");
+        for(String uuid : uuids) {
+            status.setString(1, uuid);
+            result = status.executeQuery();
+            if(!result.next()) {
+                result.close();
+                continue;
+            }
+            long dbid = result.getLong(1);
+            result.close();
+            delete.setLong(1, dbid);
+            if(delete.executeUpdate() > 0) {
+                deleteTags.setLong(1, dbid);
+                deleteTags.executeUpdate();
+            }
+        }
+        status.close();
+        delete.close();
+        deleteTags.close();
+    }
+
+    @Test
+    public void benchmark() throws SQLException {
+        long statuses = bulk.count(BulkDeleteTest.countOf(PushStatusDatabase.TABLE_NAME) + " WHERE " + PushStatusDatabase.GROUP_DBID + " = 1");
+
+        long start = System.nanoTime();
+        deleteOneByOne(1);
+        long oneByOne = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        bulk.deleteWhere(PushStatusDatabase.GROUP_DBID + " = ?", new String[]{"2"});
+        long setBased = System.nanoTime() - start;
+
+        long left = bulk.count(BulkDeleteTest.countOf(PushStatusDatabase.TABLE_NAME));
+        start = System.nanoTime();
+        bulk.deleteWhere(null, new String[0]);
+        long wipe = System.nanoTime() - start;
+
+        assertEquals(BulkDeleteTest.NB_STATUSES - 2 * statuses, left);
+        assertTrue(setBased < oneByOne);
+        System.out.println("purge of a group of " + statuses + " statuses (out of " + BulkDeleteTest.NB_STATUSES + "): one by one "
+                + (oneByOne / 1000000) + "ms, set-based " + (setBased / 1000000) + "ms; wipe of the "
+                + left + " left " + (wipe / 1000000) + "ms");
+    }
+}
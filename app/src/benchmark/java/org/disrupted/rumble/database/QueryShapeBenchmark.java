@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ *
+ * This file is part of Rumble.
+ *
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.database;
+
+import org.disrupted.rumble.database.PushStatusDatabase.StatusQueryOption;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares repeated dispatcher and UI queries with the values inlined in a fresh SQL (as
+ * getStatuses did before) and with the cached SQL of their shape and a prepared statement
+ * per shape, on the database of QueryShapeTest.
+ *
+ * @author Lucien Loiseau
+ */
+public class QueryShapeBenchmark {
+
+    private static final int NB_QUERIES = 5000;
+
+    private QueryShapeTest shapes;
+    private Connection connection;
+
+    @Before
+    public void setUp() throws SQLException {
+        shapes = new QueryShapeTest();
+        shapes.setUp();
+        connection = shapes.connection;
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        shapes.tearDown();
+    }
+
+    @Test
+    public void benchmark() throws SQLException {
+        PushStatusDatabase database = new PushStatusDatabase(null, null);
+        Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+        long before = 0;
+        long after = 0;
+        for(int round = 0; round < 2; round++) {  // the first round is a warm up
+            int rows = 0;
+            long start = System.nanoTime();
+            for(int i = 0; i < NB_QUERIES; i++) {
+                StatusQueryOption options = QueryShapeTest.query(i);
+                PushStatusDatabase.QueryShape shape = new PushStatusDatabase.QueryShape(options);
+                PreparedStatement statement = connection.prepareStatement(
+                        QueryShapeTest.inline(PushStatusDatabase.buildQuery(shape), PushStatusDatabase.getArguments(options, shape)));
+                rows += QueryShapeTest.consume(statement);
+                statement.close();
+            }
+            before = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for(int i = 0; i < NB_QUERIES; i++) {
+                StatusQueryOption options = QueryShapeTest.query(i);
+                PushStatusDatabase.QueryShape shape = new PushStatusDatabase.QueryShape(options);
+                String sql = database.getQuery(shape);
+                PreparedStatement statement = statements.get(sql);
+                if(statement == null) {
+                    statement = connection.prepareStatement(sql);
+                    statements.put(sql, statement);
+                }
+                String[] arguments = PushStatusDatabase.getArguments(options, shape);
+                for(int a = 0; a < arguments.length; a++)
+                    statement.setString(a + 1, arguments[a]);
+                rows -= QueryShapeTest.consume(statement);
+            }
+            after = System.nanoTime() - start;
+            assertEquals(0, rows);
+        }
+        // the part that the cache saves: building and compiling the SQL
+        long start = System.nanoTime();
+        for(int i = 0; i < NB_QUERIES; i++) {
+            StatusQueryOption options = QueryShapeTest.query(i);
+            PushStatusDatabase.QueryShape shape = new PushStatusDatabase.QueryShape(options);
+            connection.prepareStatement(QueryShapeTest.inline(PushStatusDatabase.buildQuery(shape),
+                    PushStatusDatabase.getArguments(options, shape))).close();
+        }
+        long compile = System.nanoTime() - start;
+
+        for(PreparedStatement statement : statements.values())
+            statement.close();
+        assertEquals(2, statements.size());
+        assertEquals(2, database.getShapeCacheMisses());
+
+        System.out.println(NB_QUERIES + " dispatcher and list queries: inlined values "
+                + (before / NB_QUERIES / 1000) + "us/query, cached shape "
+                + (after / NB_QUERIES / 1000) + "us/query, building and compiling the SQL alone "
+                + (compile / NB_QUERIES / 1000) + "us/query");
+    }
+}
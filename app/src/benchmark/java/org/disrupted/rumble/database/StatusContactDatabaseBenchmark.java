@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ *
+ * This file is part of Rumble.
+ *
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.database;
+
+import org.disrupted.rumble.util.CompressedBitmap;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the legacy status_contact table (one row per status and per contact) with the
+ * bitmaps of StatusContactDatabase for 50k statuses and 500 contacts, each contact having
+ * received a tenth of the statuses: the size on disk and the latency of the anti-join
+ * (the statuses a contact does not have yet).
+ *
+ * @author Lucien Loiseau
+ */
+public class StatusContactDatabaseBenchmark {
+
+    private static final int NB_STATUSES  = 50000;
+    private static final int NB_CONTACTS  = 500;
+    private static final int DELIVERED_PERCENT = 10;
+    private static final int NB_QUERIES   = 50;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File legacyFile;
+    private File bitmapFile;
+    private Connection statuses;
+
+    @Before
+    public void setUp() throws Exception {
+        Class.forName("org.sqlite.JDBC");
+        File statusFile = folder.newFile("status.db");
+        legacyFile = folder.newFile("legacy.db");
+        bitmapFile = folder.newFile("bitmap.db");
+
+        statuses = DriverManager.getConnection("jdbc:sqlite:" + statusFile.getPath());
+        statuses.setAutoCommit(false);
+        Statement statement = statuses.createStatement();
+        statement.execute(PushStatusDatabase.CREATE_TABLE);
+        statement.close();
+        PreparedStatement insert = statuses.prepareStatement("INSERT INTO " + PushStatusDatabase.TABLE_NAME
+                + " (" + PushStatusDatabase.ID + ", " + PushStatusDatabase.UUID + ") VALUES (?, ?)");
+        for(int i = 1; i <= NB_STATUSES; i++) {
+            insert.setInt(1, i);
+            insert.setString(2, "status-" + i);
+            insert.addBatch();
+        }
+        insert.executeBatch();
+        insert.close();
+        statuses.commit();
+
+        Connection legacy = DriverManager.getConnection("jdbc:sqlite:" + legacyFile.getPath());
+        Connection bitmap = DriverManager.getConnection("jdbc:sqlite:" + bitmapFile.getPath());
+        for(Connection connection : new Connection[]{legacy, bitmap}) {
+            // it is only a benchmark database
+            statement = connection.createStatement();
+            statement.execute("PRAGMA synchronous = OFF");
+            statement.execute("PRAGMA journal_mode = OFF");
+            statement.close();
+            connection.setAutoCommit(false);
+        }
+        statement = legacy.createStatement();
+        statement.execute(StatusContactDatabase.CREATE_LEGACY_TABLE);
+        statement.close();
+        statement = bitmap.createStatement();
+        statement.execute(StatusContactDatabase.CREATE_TABLE);
+        statement.close();
+
+        PreparedStatement insertRow = legacy.prepareStatement("INSERT INTO " + StatusContactDatabase.LEGACY_TABLE_NAME
+                + " (" + StatusContactDatabase.LEGACY_STATUS_DBID + ", " + StatusContactDatabase.LEGACY_CONTACT_DBID + ") VALUES (?, ?)");
+        PreparedStatement insertBitmap = bitmap.prepareStatement("INSERT INTO " + StatusContactDatabase.TABLE_NAME
+                + " (" + StatusContactDatabase.CONTACT_DBID + ", " + StatusContactDatabase.STATUSES + ") VALUES (?, ?)");
+        Random random = new Random(42);
+        for(int c = 1; c <= NB_CONTACTS; c++) {
+            CompressedBitmap delivered = new CompressedBitmap();
+            for(int s = 1; s <= NB_STATUSES; s++) {
+                if(random.nextInt(100) >= DELIVERED_PERCENT)
+                    continue;
+                delivered.add(s);
+                insertRow.setInt(1, s);
+                insertRow.setInt(2, c);
+                insertRow.addBatch();
+            }
+            insertRow.executeBatch();
+            insertBitmap.setInt(1, c);
+            insertBitmap.setBytes(2, delivered.toByteArray());
+            insertBitmap.executeUpdate();
+        }
+        insertRow.close();
+        insertBitmap.close();
+        statement = legacy.createStatement();
+        for(String index : StatusContactDatabase.CREATE_LEGACY_INDEXS)
+            statement.execute(index);
+        statement.close();
+        legacy.commit();
+        bitmap.commit();
+        legacy.close();
+        bitmap.close();
+
+        Statement attach = statuses.createStatement();
+        statuses.commit();
+        statuses.setAutoCommit(true);
+        attach.execute("ATTACH DATABASE '" + legacyFile.getPath() + "' AS legacy");
+        attach.execute("ATTACH DATABASE '" + bitmapFile.getPath() + "' AS bitmap");
+        attach.close();
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        statuses.close();
+    }
+
+    private int legacyUndelivered(PreparedStatement query, int contact) throws SQLException {
+        query.setInt(1, contact);
+        ResultSet result = query.executeQuery();
+        int count = 0;
+        while(result.next())
+            count++;
+        result.close();
+        return count;
+    }
+
+    private int bitmapUndelivered(PreparedStatement candidates, PreparedStatement delivered, int contact) throws SQLException {
+        CompressedBitmap undelivered = new CompressedBitmap();
+        ResultSet result = candidates.executeQuery();
+        while(result.next())
+            undelivered.add(result.getInt(1));
+        result.close();
+        delivered.setInt(1, contact);
+        result = delivered.executeQuery();
+        if(result.next())
+            undelivered.andNot(CompressedBitmap.fromByteArray(result.getBytes(1)));
+        result.close();
+        return undelivered.cardinality();
+    }
+
+    @Test
+    public void sizeAndAntiJoin() throws SQLException {
+        long legacySize = legacyFile.length();
+        long bitmapSize = bitmapFile.length();
+        System.out.println("status_contact for " + NB_STATUSES + " statuses x " + NB_CONTACTS + " contacts: "
+                + "rows " + (legacySize / 1024) + "KB, bitmaps " + (bitmapSize / 1024) + "KB");
+        assertTrue(bitmapSize * 4 < legacySize);
+
+        PreparedStatement legacy = statuses.prepareStatement("SELECT ps." + PushStatusDatabase.ID
+                + " FROM " + PushStatusDatabase.TABLE_NAME + " ps WHERE ps." + PushStatusDatabase.ID + " NOT IN ("
+                + " SELECT sc." + StatusContactDatabase.LEGACY_STATUS_DBID + " FROM legacy." + StatusContactDatabase.LEGACY_TABLE_NAME + " sc"
+                + " WHERE sc." + StatusContactDatabase.LEGACY_CONTACT_DBID + " = ? )");
+        PreparedStatement candidates = statuses.prepareStatement("SELECT " + PushStatusDatabase.ID
+                + " FROM " + PushStatusDatabase.TABLE_NAME);
+        PreparedStatement delivered = statuses.prepareStatement("SELECT " + StatusContactDatabase.STATUSES
+                + " FROM bitmap." + StatusContactDatabase.TABLE_NAME + " WHERE " + StatusContactDatabase.CONTACT_DBID + " = ?");
+
+        // warm up, and both give the same answer
+        for(int c = 1; c <= 5; c++)
+            assertEquals(legacyUndelivered(legacy, c), bitmapUndelivered(candidates, delivered, c));
+
+        long start = System.nanoTime();
+        for(int q = 0; q < NB_QUERIES; q++)
+            legacyUndelivered(legacy, 1 + (q * 7) % NB_CONTACTS);
+        long legacyTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for(int q = 0; q < NB_QUERIES; q++)
+            bitmapUndelivered(candidates, delivered, 1 + (q * 7) % NB_CONTACTS);
+        long bitmapTime = System.nanoTime() - start;
+
+        System.out.println("anti-join per contact: rows " + (legacyTime / NB_QUERIES / 1000) + "us, bitmaps "
+                + (bitmapTime / NB_QUERIES / 1000) + "us");
+        legacy.close();
+        candidates.close();
+        delivered.close();
+    }
+}
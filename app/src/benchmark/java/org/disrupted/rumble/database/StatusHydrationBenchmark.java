@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ *
+ * This file is part of Rumble.
+ *
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.database;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Measures the time it takes to hydrate pages of 10, 100 and 1000 statuses once per row and
+ * once per page, on the database of StatusHydrationTest.
+ *
+ * @author Lucien Loiseau
+ */
+public class StatusHydrationBenchmark {
+
+    private StatusHydrationTest hydration;
+
+    @Before
+    public void setUp() throws SQLException {
+        hydration = new StatusHydrationTest();
+        hydration.setUp();
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        hydration.tearDown();
+    }
+
+    @Test
+    public void benchmark() throws SQLException {
+        hydration.perRow(100);   // warm up
+        hydration.perPage(100);
+        for(int size : new int[]{10, 100, 1000}) {
+            hydration.queries = 0;
+            long start = System.nanoTime();
+            List<StatusHydrationTest.Hydrated> expected = hydration.perRow(size);
+            long perRowTime = System.nanoTime() - start;
+            int perRowQueries = hydration.queries;
+
+            hydration.queries = 0;
+            start = System.nanoTime();
+            List<StatusHydrationTest.Hydrated> actual = hydration.perPage(size);
+            long perPageTime = System.nanoTime() - start;
+            int perPageQueries = hydration.queries;
+
+            assertEquals(expected, actual);
+            System.out.println("page of " + size + ": per row " + perRowQueries + " queries "
+                    + (perRowTime / 1000) + "us, per page " + perPageQueries + " queries "
+                    + (perPageTime / 1000) + "us");
+        }
+    }
+}
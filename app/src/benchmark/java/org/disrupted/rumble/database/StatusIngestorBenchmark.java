@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ *
+ * This file is part of Rumble.
+ *
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.database;
+
+import org.disrupted.rumble.database.objects.Contact;
+import org.disrupted.rumble.database.objects.Group;
+import org.disrupted.rumble.database.objects.PushStatus;
+import org.disrupted.rumble.network.protocols.events.PushStatusReceived;
+import org.disrupted.rumble.util.CompressedBitmap;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds the StatusIngestor with statuses received in bursts, as from a channel, and stores
+ * them in a desktop SQLite on disk, one commit per batch. The time it takes until every status
+ * is committed is compared with a commit per status, as it was before the batches. With bursts
+ * of a single status, the rate is the one of the sender (a status per ms).
+ *
+ * @author Lucien Loiseau
+ */
+public class StatusIngestorBenchmark {
+
+    private static final int NB_STATUSES = 2000;
+    private static final Group   GROUP  = new Group("group", "gid", null);
+    private static final Contact AUTHOR = new Contact("author", "author-uid", false);
+
+    /*
+     * inserts the statuses in push_status, a transaction per batch
+     */
+    private static class SQLiteStore implements StatusIngestor.Store {
+        private final Connection database;
+        private final PreparedStatement insert;
+        final Semaphore done = new Semaphore(0);
+
+        SQLiteStore(Connection database) throws SQLException {
+            this.database = database;
+            this.insert = database.prepareStatement("INSERT INTO " + PushStatusDatabase.TABLE_NAME
+                    + " (" + PushStatusDatabase.UUID + ", " + PushStatusDatabase.POST + ", "
+                    + PushStatusDatabase.TIME_OF_ARRIVAL + ") VALUES (?, ?, ?)");
+        }
+
+        void insert(PushStatus status) throws SQLException {
+            insert.setString(1, status.getPost());
+            insert.setString(2, status.getPost());
+            insert.setLong(3, status.getTimeOfCreation());
+            insert.executeUpdate();
+        }
+
+        @Override
+        public String storeAttachedFile(PushStatusReceived event) {
+            return null;
+        }
+
+        @Override
+        public void beginTransaction() {
+            try {
+                database.setAutoCommit(false);
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public PushStatus storeStatus(PushStatusReceived event, String attachment,
+                                      Map<Long, CompressedBitmap> delivered, Set<String> updated) {
+            try {
+                insert(event.status);
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+            return event.status;
+        }
+
+        @Override
+        public void addStatuses(Map<Long, CompressedBitmap> delivered) {
+        }
+
+        @Override
+        public void setTransactionSuccessful() {
+        }
+
+        @Override
+        public List<Object> endTransaction() {
+            try {
+                database.commit();
+                database.setAutoCommit(true);
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+            return new LinkedList<Object>();
+        }
+
+        @Override
+        public void invalidateContact(String uid) {
+        }
+
+        @Override
+        public void invalidateCaches() {
+        }
+
+        @Override
+        public void releaseAttachedFile(String filename) {
+        }
+
+        @Override
+        public void cleanUp(PushStatusReceived event) {
+            done.release();
+        }
+
+        @Override
+        public void post(Object event) {
+        }
+    }
+
+    private static PushStatusReceived received(int i) {
+        PushStatus status = new PushStatus(AUTHOR, GROUP, "status " + i, i, "sender");
+        return new PushStatusReceived(status, GROUP.getGid(), "sender", "", "protocol", "link");
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        for(int burst : new int[]{1, 16, 256}) {
+            File file = File.createTempFile("ingest", ".db");
+            Connection database = TestDatabase.open(file);
+            SQLiteStore store = new SQLiteStore(database);
+
+            // a commit per status
+            long start = System.nanoTime();
+            for(int i = 0; i < NB_STATUSES; i++)
+                store.insert(received(i).status);
+            long perStatus = System.nanoTime() - start;
+
+            StatusIngestor ingestor = new StatusIngestor(store);
+            ingestor.start();
+            start = System.nanoTime();
+            for(int i = 0; i < NB_STATUSES; i++) {
+                ingestor.add(received(NB_STATUSES + i));
+                if((i % burst) == (burst - 1))
+                    Thread.sleep(1);  // the next burst
+            }
+            assertTrue(store.done.tryAcquire(NB_STATUSES, 60, TimeUnit.SECONDS));
+            long batched = System.nanoTime() - start;
+            ingestor.stop();
+
+            System.out.println("bursts of " + burst + ": " + NB_STATUSES + " statuses in "
+                    + ingestor.getNbBatchCommitted() + " batches, "
+                    + (NB_STATUSES * 1000000000L / batched) + " statuses/s (a commit per status "
+                    + (NB_STATUSES * 1000000000L / perStatus) + " statuses/s)");
+            database.close();
+            if(!file.delete())
+                throw new IOException("cannot delete " + file);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ *
+ * This file is part of Rumble.
+ *
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.database;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures the latency of the ranked full-text search of StatusSearchTest on a synthetic
+ * corpus, against a LIKE scan of the posts.
+ *
+ * @author Lucien Loiseau
+ */
+public class StatusSearchBenchmark {
+
+    private static final int NB_STATUSES = 50000;
+    private static final int VOCABULARY  = 5000;
+    private static final int NB_QUERIES  = 200;
+
+    private StatusSearchTest search;
+    private Connection connection;
+
+    @Before
+    public void setUp() throws SQLException {
+        search = new StatusSearchTest();
+        search.setUp();
+        connection = search.connection;
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        search.tearDown();
+    }
+
+    @Test
+    public void latency() throws SQLException {
+        Random random = new Random(42);
+        String[] words = new String[VOCABULARY];
+        for(int i = 0; i < VOCABULARY; i++)
+            words[i] = "w" + Integer.toString(i, 36) + "x";
+        connection.setAutoCommit(false);
+        for(int s = 1; s <= NB_STATUSES; s++) {
+            StringBuilder post = new StringBuilder();
+            for(int w = 5 + random.nextInt(20); w > 0; w--)
+                post.append(zipf(words, random)).append(' ');
+            search.insert(s, post.toString(), "#" + zipf(words, random), "#" + zipf(words, random));
+        }
+        connection.commit();
+        connection.setAutoCommit(true);
+
+        long matches = 0;
+        long start = System.nanoTime();
+        for(int q = 0; q < NB_QUERIES; q++) {
+            String text = (q % 2 == 0) ? zipf(words, random) : zipf(words, random) + " " + zipf(words, random).substring(0, 2);
+            matches += search.search(text).size();
+        }
+        long searchTime = System.nanoTime() - start;
+
+        // what a search would cost without the index
+        PreparedStatement like = connection.prepareStatement("SELECT " + PushStatusDatabase.ID + " FROM "
+                + PushStatusDatabase.TABLE_NAME + " WHERE " + PushStatusDatabase.POST + " LIKE ?");
+        start = System.nanoTime();
+        for(int q = 0; q < NB_QUERIES / 10; q++) {
+            like.setString(1, "%" + zipf(words, random) + "%");
+            ResultSet result = like.executeQuery();
+            while(result.next())
+                matches++;
+            result.close();
+        }
+        long likeTime = (System.nanoTime() - start) * 10;
+        like.close();
+
+        assertTrue(matches > 0);
+        System.out.println("search over " + NB_STATUSES + " statuses: " + (searchTime / NB_QUERIES / 1000)
+                + "us/query ranked (at most " + PushStatusDatabase.MAX_SEARCH_CANDIDATES + " candidates), LIKE scan "
+                + (likeTime / NB_QUERIES / 1000) + "us/query");
+    }
+
+    // the words are drawn with a frequency close to 1/rank, as in a natural language
+    private static String zipf(String[] words, Random random) {
+        double u = random.nextDouble();
+        int rank = (int)Math.pow(words.length, u);
+        return words[Math.min(words.length - 1, rank - 1)];
+    }
+}
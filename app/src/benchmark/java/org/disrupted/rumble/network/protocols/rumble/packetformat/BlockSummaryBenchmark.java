@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ *
+ * This file is part of Rumble.
+ *
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.network.protocols.rumble.packetformat;
+
+import org.disrupted.rumble.network.protocols.command.CommandSendStatusSummary;
+import org.disrupted.rumble.util.BloomFilter;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Two nodes that hold NB_STATUSES statuses each, a part of which they have in common, meet and
+ * push each other every status they hold. It measures the share of the statuses received that
+ * were duplicates, without and with the exchange of a BlockSummary (written to and read from a
+ * stream as on a channel), and what the summary costs: its size on the wire and the statuses
+ * that were not pushed because of a false positive.
+ *
+ * @author Lucien Loiseau
+ */
+public class BlockSummaryBenchmark {
+
+    private static final int    NB_STATUSES         = 5000;
+    private static final int    STATUS_SIZE         = 300;   // average BlockPushStatus, in bytes
+    private static final double FALSE_POSITIVE_RATE = 0.01;
+
+    private static BlockSummary sendSummary(Set<String> held) throws Exception {
+        BloomFilter filter = new BloomFilter(held.size(), FALSE_POSITIVE_RATE, BlockSummary.MAX_FILTER_SIZE);
+        for(String uuid : held)
+            filter.add(uuid);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new BlockSummary(new CommandSendStatusSummary(filter)).writeBlock(out, null);
+
+        ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+        BlockSummary received = new BlockSummary(BlockHeader.readBlockHeader(in));
+        received.readBlock(in);
+        return received;
+    }
+
+    /*
+     * returns {pushed, duplicates, missed}, what "from" pushes to "to"
+     */
+    private static int[] push(Set<String> from, Set<String> to, BloomFilter peerSummary) {
+        int pushed = 0, duplicates = 0, missed = 0;
+        for(String uuid : from) {
+            if((peerSummary != null) && peerSummary.mightContain(uuid)) {
+                if(!to.contains(uuid))
+                    missed++;
+                continue;
+            }
+            pushed++;
+            if(to.contains(uuid))
+                duplicates++;
+        }
+        return new int[]{pushed, duplicates, missed};
+    }
+
+    private static void meet(int overlapPercent, Random random) throws Exception {
+        List<String> uuids = new ArrayList<String>();
+        int common = NB_STATUSES * overlapPercent / 100;
+        for(int i = 0; i < 2 * NB_STATUSES - common; i++)
+            uuids.add(Long.toHexString(random.nextLong()) + Long.toHexString(random.nextLong()));
+        Collections.shuffle(uuids, random);
+        Set<String> a = new HashSet<String>(uuids.subList(0, NB_STATUSES));
+        Set<String> b = new HashSet<String>(uuids.subList(NB_STATUSES - common, 2 * NB_STATUSES - common));
+
+        int[] blindAB = push(a, b, null);
+        int[] blindBA = push(b, a, null);
+
+        BlockSummary summaryA = sendSummary(a);
+        BlockSummary summaryB = sendSummary(b);
+        int[] summaryAB = push(a, b, summaryB.summary);
+        int[] summaryBA = push(b, a, summaryA.summary);
+
+        int blindPushed     = blindAB[0] + blindBA[0];
+        int blindDuplicates = blindAB[1] + blindBA[1];
+        int pushed          = summaryAB[0] + summaryBA[0];
+        int duplicates      = summaryAB[1] + summaryBA[1];
+        int missed          = summaryAB[2] + summaryBA[2];
+        long summaryBytes   = 2 * (BlockHeader.BLOCK_HEADER_LENGTH + summaryA.header.getBlockLength());
+
+        // no false negative: nothing the peer holds is pushed once the summary is known
+        assertEquals(0, duplicates);
+        assertEquals(2 * common, blindDuplicates);
+
+        System.out.println(overlapPercent + "% in common: blind push "
+                + String.format("%.1f", 100.0 * blindDuplicates / blindPushed) + "% duplicates ("
+                + (blindPushed * STATUS_SIZE / 1024) + "KB), with summaries "
+                + String.format("%.1f", (pushed == 0) ? 0.0 : 100.0 * duplicates / pushed) + "% duplicates ("
+                + ((pushed * STATUS_SIZE + summaryBytes) / 1024) + "KB of which "
+                + (summaryBytes / 1024) + "KB of summaries), " + missed + " statuses not pushed (false positives)");
+
+        // a false positive only delays a status to the next encounter
+        assertTrue(missed <= 2 * (NB_STATUSES - common) * FALSE_POSITIVE_RATE * 3);
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        Random random = new Random(6);
+        for(int overlap : new int[]{0, 25, 50, 75, 90, 99})
+            meet(overlap, random);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ *
+ * This file is part of Rumble.
+ *
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.network.services.push;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares a whole rescoring of 1k, 10k and 100k candidates held in arrays with the
+ * per-object scoring PushService used to do (a status object per candidate, walking its
+ * hashtags and reading the clock for every score).
+ *
+ * @author Lucien Loiseau
+ */
+public class DefaultScoringPolicyBenchmark {
+
+    private static final int NB_ROUNDS = 20;
+
+    /*
+     * what a candidate looked like before: the status and the hashtags it carries
+     */
+    private static class Status {
+        String group;
+        Set<String> hashtags = new HashSet<String>();
+        float density;
+        int like;
+        int duplicate;
+        int replication;
+        long toc;
+        long ttl;
+    }
+
+    private static float perObject(ScoringPolicy policy, Status status, Set<String> joinedGroups,
+                                   Map<String, Integer> interests) {
+        boolean match = joinedGroups.contains(status.group);
+        int totalInterest = 0;
+        int totalHashtag  = 0;
+        for(String hashtag : status.hashtags) {
+            Integer value = interests.get(hashtag);
+            if(value != null) {
+                totalInterest += value;
+                totalHashtag++;
+            }
+        }
+        float relevance = (totalHashtag > 0) ? (float)totalInterest/(totalHashtag*255) : 0;
+        return policy.score(match, relevance, status.density, status.like, status.duplicate,
+                status.replication, status.toc, status.ttl, System.currentTimeMillis());
+    }
+
+    @Test
+    public void benchmark() {
+        ScoringPolicy policy = new DefaultScoringPolicy();
+        Random random = new Random(3);
+        Set<String> joinedGroups = new HashSet<String>();
+        Map<String, Integer> interests = new HashMap<String, Integer>();
+        for(int g = 0; g < 10; g++)
+            joinedGroups.add("group-" + g);
+        for(int h = 0; h < 50; h++)
+            interests.put("#tag" + h, random.nextInt(256));
+
+        for(int size : new int[]{1000, 10000, 100000}) {
+            long now = System.currentTimeMillis();
+            DefaultScoringPolicyTest.Candidates batch = new DefaultScoringPolicyTest.Candidates(size, now, random);
+            Status[] statuses = new Status[size];
+            for(int i = 0; i < size; i++) {
+                Status status = new Status();
+                status.group = "group-" + random.nextInt(11);
+                for(int h = random.nextInt(4); h > 0; h--)
+                    status.hashtags.add("#tag" + random.nextInt(100));
+                status.density = batch.densities[i];
+                status.like = batch.likes[i];
+                status.duplicate = batch.duplicates[i];
+                status.replication = batch.replications[i];
+                status.toc = batch.tocs[i];
+                status.ttl = batch.ttls[i];
+                statuses[i] = status;
+            }
+
+            float checksum = 0;
+            for(int round = 0; round < NB_ROUNDS; round++) {  // warm up
+                for(Status status : statuses)
+                    checksum += perObject(policy, status, joinedGroups, interests);
+                policy.score(size, batch.matches, batch.relevances, batch.densities, batch.likes,
+                        batch.duplicates, batch.replications, batch.tocs, batch.ttls, now, batch.scores);
+            }
+
+            long start = System.nanoTime();
+            for(int round = 0; round < NB_ROUNDS; round++) {
+                for(Status status : statuses)
+                    checksum += perObject(policy, status, joinedGroups, interests);
+            }
+            long perObjectTime = (System.nanoTime() - start) / NB_ROUNDS;
+
+            start = System.nanoTime();
+            for(int round = 0; round < NB_ROUNDS; round++) {
+                policy.score(size, batch.matches, batch.relevances, batch.densities, batch.likes,
+                        batch.duplicates, batch.replications, batch.tocs, batch.ttls,
+                        System.currentTimeMillis(), batch.scores);
+                checksum += batch.scores[round % size];
+            }
+            long batchTime = (System.nanoTime() - start) / NB_ROUNDS;
+
+            System.out.println(size + " candidates: per object " + (perObjectTime / 1000) + "us, batch "
+                    + (batchTime / 1000) + "us per rescoring" + ((checksum == 42) ? " " : ""));
+            assertTrue(batchTime < perObjectTime);
+        }
+    }
+}
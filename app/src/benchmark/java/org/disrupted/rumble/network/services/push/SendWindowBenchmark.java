@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ *
+ * This file is part of Rumble.
+ *
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.network.services.push;
+
+import org.disrupted.rumble.database.objects.Contact;
+import org.disrupted.rumble.database.objects.Group;
+import org.disrupted.rumble.database.objects.PushStatus;
+import org.disrupted.rumble.network.protocols.command.Command;
+import org.disrupted.rumble.network.protocols.command.CommandSendPushStatus;
+import org.disrupted.rumble.network.protocols.command.CommandSendPushStatusBundle;
+import org.junit.Test;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures the statuses sent per second over a loopback socket for a SendWindow of 1 to 32
+ * statuses. The dispatcher hands the statuses to the channel as long as the window is not full
+ * and waits for a completion otherwise, the channel coalesces its queue into bundles (as
+ * ProtocolChannel does) and writes them to the socket, a reader drains the other end.
+ *
+ * @author Lucien Loiseau
+ */
+public class SendWindowBenchmark {
+
+    private static final int NB_STATUSES  = 50000;
+    private static final int PAYLOAD_SIZE = 512;     // bytes written per status
+    private static final Contact AUTHOR   = new Contact("author", "author-uid", false);
+    private static final Group   GROUP    = new Group("group", "gid", null);
+
+    private static final Command STOP = new Command() {
+        @Override
+        public CommandID getCommandID() {
+            return CommandID.SEND_KEEP_ALIVE;
+        }
+    };
+
+    private final Object lock = new Object();
+    private SendWindow window;
+    private long commandsWritten;
+
+    /*
+     * the CommandThread of the channel: coalesces what is queued, writes it, then notifies
+     * every status written
+     */
+    private Thread channel(final BlockingQueue<Command> queue, final DataOutputStream out) {
+        return new Thread("loopback channel") {
+            @Override
+            public void run() {
+                byte[] payload = new byte[PAYLOAD_SIZE];
+                try {
+                    while(true) {
+                        Command command = queue.take();
+                        if(command == STOP)
+                            return;
+                        Command next;
+                        while(((next = queue.peek()) != null) && (next != STOP)) {
+                            Command merged = CommandSendPushStatusBundle.coalesce(command, next);
+                            if(merged == null)
+                                break;
+                            queue.poll();
+                            command = merged;
+                        }
+
+                        List<CommandSendPushStatus> sent;
+                        if(command instanceof CommandSendPushStatusBundle)
+                            sent = ((CommandSendPushStatusBundle)command).getCommands();
+                        else
+                            sent = Collections.singletonList((CommandSendPushStatus)command);
+                        for(int i = 0; i < sent.size(); i++) {
+                            out.writeInt(payload.length);
+                            out.write(payload);
+                        }
+                        out.flush();
+
+                        synchronized (lock) {
+                            long now = System.currentTimeMillis();
+                            for(CommandSendPushStatus sub : sent)
+                                window.complete(sub, true, now);
+                            commandsWritten++;
+                            lock.notifyAll();
+                        }
+                    }
+                } catch(InterruptedException ignore) {
+                } catch(IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+    }
+
+    private Thread reader(final Socket socket, final long[] received) {
+        return new Thread("loopback reader") {
+            @Override
+            public void run() {
+                try {
+                    DataInputStream in = new DataInputStream(socket.getInputStream());
+                    byte[] buffer = new byte[PAYLOAD_SIZE];
+                    while(true) {
+                        int length = in.readInt();
+                        in.readFully(buffer, 0, length);
+                        received[0]++;
+                    }
+                } catch(IOException ignore) {
+                    // the socket has been closed
+                }
+            }
+        };
+    }
+
+    // returns the statuses per second
+    private double run(int windowSize, int nbStatuses) throws Exception {
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        Socket sender = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+        Socket receiver = server.accept();
+        long[] received = new long[1];
+        Thread reader = reader(receiver, received);
+        reader.start();
+
+        window = new SendWindow(windowSize);
+        commandsWritten = 0;
+        BlockingQueue<Command> queue = new LinkedBlockingQueue<Command>();
+        Thread channel = channel(queue, new DataOutputStream(new BufferedOutputStream(sender.getOutputStream(), 64 * 1024)));
+        channel.start();
+
+        PushStatus status = new PushStatus(AUTHOR, GROUP, "status", 0, "sender");
+        long start = System.nanoTime();
+        for(int i = 0; i < nbStatuses; i++) {
+            CommandSendPushStatus command = new CommandSendPushStatus(status);
+            synchronized (lock) {
+                // COST_BLOCKED, the scheduler waits for a completion
+                while(!window.put(command, status, null, PAYLOAD_SIZE, System.currentTimeMillis()))
+                    lock.wait();
+            }
+            queue.offer(command);
+        }
+        synchronized (lock) {
+            while(window.size() > 0)
+                lock.wait();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        queue.offer(STOP);
+        channel.join();
+        sender.shutdownOutput();
+        reader.join();
+        sender.close();
+        receiver.close();
+        server.close();
+        assertEquals(nbStatuses, received[0]);
+
+        double perSecond = nbStatuses * 1e9 / elapsed;
+        if(nbStatuses == NB_STATUSES)
+            System.out.println("window " + windowSize + ": " + (long)perSecond + " statuses/s, "
+                    + String.format("%.1f", (double)nbStatuses / commandsWritten) + " statuses per write");
+        return perSecond;
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        run(8, NB_STATUSES / 10);  // warm up
+        double single = run(1, NB_STATUSES);
+        double best = single;
+        for(int windowSize : new int[]{2, 4, 8, 16, 32})
+            best = Math.max(best, run(windowSize, NB_STATUSES));
+        // a window of one cannot coalesce anything
+        assertTrue(best > single);
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ *
+ * This file is part of Rumble.
+ *
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.network.services.push;
+
+import org.disrupted.rumble.database.ContactDatabase;
+import org.disrupted.rumble.database.DatabaseExecutor;
+import org.disrupted.rumble.database.StatusContactDatabase;
+import org.disrupted.rumble.database.TestDatabase;
+import org.disrupted.rumble.database.events.StatusInsertedEvent;
+import org.disrupted.rumble.database.objects.Contact;
+import org.disrupted.rumble.database.objects.Group;
+import org.disrupted.rumble.database.objects.PushStatus;
+import org.disrupted.rumble.util.CompressedBitmap;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the time a reconnecting contact waits for its candidates with a warm start (its
+ * snapshot is restored) and with a cold start (the statuses it already has are read from the
+ * status_contact table, in a desktop SQLite, then the candidates are computed from its groups),
+ * for a catalog of 10k and 100k statuses. 100 statuses arrive between the two encounters.
+ *
+ * Only the candidates are measured: on a device, a cold start also waits for the
+ * DatabaseExecutor and, right after the start, for the catalog to be loaded.
+ *
+ * @author Lucien Loiseau
+ */
+public class StatusCatalogBenchmark {
+
+    private static final int NB_GROUPS   = 20;
+    private static final int NB_CONTACTS = 50;
+    private static final int NB_ARRIVALS = 100;
+    private static final Contact AUTHOR  = new Contact("author", "author-uid", false);
+
+    private static class SQLiteSource implements StatusCatalog.Source {
+        private final PreparedStatement contact;
+        private final PreparedStatement statuses;
+
+        SQLiteSource(Connection database) throws SQLException {
+            contact = database.prepareStatement("SELECT " + ContactDatabase.ID + " FROM "
+                    + ContactDatabase.TABLE_NAME + " WHERE " + ContactDatabase.UID + " = ?");
+            statuses = database.prepareStatement("SELECT " + StatusContactDatabase.STATUSES + " FROM "
+                    + StatusContactDatabase.TABLE_NAME + " WHERE " + StatusContactDatabase.CONTACT_DBID + " = ?");
+        }
+
+        @Override
+        public void loadStatuses(DatabaseExecutor.ReadableQueryCallback callback) {
+        }
+
+        @Override
+        public CompressedBitmap loadDelivered(String uid) {
+            try {
+                contact.setString(1, uid);
+                ResultSet result = contact.executeQuery();
+                if(!result.next())
+                    return null;
+                long dbid = result.getLong(1);
+                result.close();
+                statuses.setLong(1, dbid);
+                result = statuses.executeQuery();
+                CompressedBitmap ret = result.next()
+                        ? CompressedBitmap.fromByteArray(result.getBytes(1)) : new CompressedBitmap();
+                result.close();
+                return ret;
+            } catch(SQLException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public boolean read(DatabaseExecutor.ReadableQuery query, DatabaseExecutor.ReadableQueryCallback callback) {
+            callback.onReadableQueryFinished(query.read());
+            return true;
+        }
+    }
+
+    private static Group group(int g) {
+        return new Group("group-" + g, "gid-" + g, null);
+    }
+
+    private static PushStatus status(long dbid, Group group) {
+        PushStatus status = new PushStatus(AUTHOR, group, "status " + dbid, dbid, "sender");
+        status.setdbId(dbid);
+        status.setTimeOfArrival(dbid);
+        return status;
+    }
+
+    private static long median(long[] times) {
+        long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    private static void compare(int nbStatuses, Random random) throws Exception {
+        Connection database = TestDatabase.open();
+        StatusCatalog catalog = new StatusCatalog(new SQLiteSource(database));
+        catalog.start();
+        try {
+            List<PushStatus> statuses = new ArrayList<PushStatus>();
+            for(int dbid = 1; dbid <= nbStatuses; dbid++)
+                statuses.add(status(dbid, group(random.nextInt(NB_GROUPS))));
+            catalog.onStatusLoaded.onReadableQueryFinished(statuses);
+
+            // every contact joined 5 groups and already has half of the statuses
+            PreparedStatement insertContact = database.prepareStatement("INSERT INTO " + ContactDatabase.TABLE_NAME
+                    + " (" + ContactDatabase.ID + ", " + ContactDatabase.UID + ", " + ContactDatabase.NAME + ") VALUES (?, ?, ?)");
+            PreparedStatement insertDelivered = database.prepareStatement("INSERT INTO " + StatusContactDatabase.TABLE_NAME
+                    + " (" + StatusContactDatabase.CONTACT_DBID + ", " + StatusContactDatabase.STATUSES + ") VALUES (?, ?)");
+            List<Contact> contacts = new ArrayList<Contact>();
+            for(int c = 1; c <= NB_CONTACTS; c++) {
+                Contact contact = new Contact("contact-" + c, "contact-uid-" + c, false);
+                for(int g = 0; g < 5; g++)
+                    contact.addGroup(group(random.nextInt(NB_GROUPS)).getGid());
+                CompressedBitmap delivered = new CompressedBitmap();
+                for(int dbid = 1; dbid <= nbStatuses; dbid++)
+                    if(random.nextBoolean())
+                        delivered.add(dbid);
+                insertContact.setLong(1, c);
+                insertContact.setString(2, contact.getUid());
+                insertContact.setString(3, contact.getName());
+                insertContact.executeUpdate();
+                insertDelivered.setLong(1, c);
+                insertDelivered.setBytes(2, delivered.toByteArray());
+                insertDelivered.executeUpdate();
+                contacts.add(contact);
+            }
+
+            long[] cold = new long[NB_CONTACTS];
+            long[] warm = new long[NB_CONTACTS];
+            long nextDbid = nbStatuses + 1;
+            for(int c = 0; c < NB_CONTACTS; c++) {
+                Contact contact = contacts.get(c);
+                long start = System.nanoTime();
+                CompressedBitmap candidates = catalog.getCandidates(contact);
+                cold[c] = System.nanoTime() - start;
+
+                // a tenth is sent before the contact leaves, then new statuses arrive
+                CompressedBitmap left = new CompressedBitmap();
+                for(int dbid : candidates.toArray())
+                    if(random.nextInt(10) != 0)
+                        left.add(dbid);
+                catalog.saveSnapshot(contact, left);
+                for(int i = 0; i < NB_ARRIVALS; i++)
+                    catalog.onEvent(new StatusInsertedEvent(status(nextDbid++, group(random.nextInt(NB_GROUPS)))));
+
+                start = System.nanoTime();
+                CompressedBitmap restored = catalog.restoreSnapshot(contact);
+                warm[c] = System.nanoTime() - start;
+                assertEquals(true, restored != null);
+            }
+
+            System.out.println(nbStatuses + " statuses: cold start " + (median(cold) / 1000) + "us, warm start "
+                    + (median(warm) / 1000) + "us (median over " + NB_CONTACTS + " contacts)");
+        } finally {
+            catalog.stop();
+            database.close();
+        }
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        Random random = new Random(10);
+        compare(10000, random);    // warm up
+        compare(10000, random);
+        compare(100000, random);
+    }
+}
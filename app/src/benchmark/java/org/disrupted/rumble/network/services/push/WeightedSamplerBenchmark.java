@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ *
+ * This file is part of Rumble.
+ *
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.network.services.push;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the WeightedSampler with the stochastic acceptance that pickMessage used before
+ * (pick an index uniformly and accept it with probability weight/max) on a uniform and on a
+ * skewed distribution of 1k and 100k weights.
+ *
+ * @author Lucien Loiseau
+ */
+public class WeightedSamplerBenchmark {
+
+    private static final int NB_SAMPLES = 200000;
+
+    /*
+     * the loop pickMessage was running before the sampler, returns the number of draws
+     */
+    private static int stochasticAcceptance(float[] weights, float max, Random random) {
+        int draws = 0;
+        while(true) {
+            draws++;
+            int index = random.nextInt(weights.length);
+            if(random.nextFloat() < weights[index] / max)
+                return draws;
+        }
+    }
+
+    // returns the time taken by the sampler and by the stochastic acceptance
+    private static long[] compare(String name, float[] weights) {
+        WeightedSampler sampler = new WeightedSampler();
+        sampler.assign(weights, weights.length);
+        float max = 0;
+        for(float weight : weights)
+            max = Math.max(max, weight);
+
+        Random random = new Random(4);
+        int checksum = 0;
+        for(int i = 0; i < 10000; i++) {  // warm up
+            checksum += sampler.sample(random);
+            checksum += stochasticAcceptance(weights, max, random);
+        }
+
+        long start = System.nanoTime();
+        for(int i = 0; i < NB_SAMPLES; i++)
+            checksum += sampler.sample(random);
+        long fenwick = System.nanoTime() - start;
+
+        long draws = 0;
+        start = System.nanoTime();
+        for(int i = 0; i < NB_SAMPLES; i++)
+            draws += stochasticAcceptance(weights, max, random);
+        long acceptance = System.nanoTime() - start;
+
+        System.out.println(name + " (" + weights.length + " weights): fenwick "
+                + (fenwick / NB_SAMPLES) + "ns/sample, stochastic acceptance "
+                + (acceptance / NB_SAMPLES) + "ns/sample (" + (draws / NB_SAMPLES) + " draws/sample)"
+                + ((checksum == 42) ? " " : ""));
+        return new long[]{fenwick, acceptance};
+    }
+
+    @Test
+    public void benchmark() {
+        Random random = new Random(5);
+        for(int n : new int[]{1000, 100000}) {
+            float[] uniform = new float[n];
+            for(int i = 0; i < n; i++)
+                uniform[i] = 0.5f + random.nextFloat();
+            compare("uniform", uniform);
+
+            // one fresh status dominates, the rest scores near zero
+            float[] skewed = new float[n];
+            for(int i = 0; i < n; i++)
+                skewed[i] = 0.001f * random.nextFloat();
+            skewed[random.nextInt(n)] = 1;
+            long[] times = compare("skewed", skewed);
+            assertTrue(times[0] < times[1]);
+        }
+    }
+}
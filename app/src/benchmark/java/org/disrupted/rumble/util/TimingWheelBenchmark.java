@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ *
+ * This file is part of Rumble.
+ *
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.util;
+
+import org.junit.Test;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Expires one million timers spread over a week with the TimingWheel and with a priority
+ * queue ordered by expiration, advancing the time by one minute.
+ *
+ * @author Lucien Loiseau
+ */
+public class TimingWheelBenchmark {
+
+    /*
+     * one million timers, against a priority queue ordered by expiration
+     */
+    @Test
+    public void benchmark() {
+        final int nbTimers = 1000000;
+        final long horizon = 7L * 24 * 3600 * 1000;   // a week, ticks of a second
+        Random random = new Random(7);
+        long[] expirations = new long[nbTimers];
+        for(int i = 0; i < nbTimers; i++)
+            expirations[i] = 1 + (long)(random.nextDouble() * horizon);
+
+        final long[] count = new long[1];
+        TimingWheel.ExpiryListener listener = new TimingWheel.ExpiryListener() {
+            @Override
+            public void onExpired(long id) {
+                count[0]++;
+            }
+        };
+
+        long begin = System.nanoTime();
+        TimingWheel wheel = new TimingWheel(1000, 0);
+        for(int i = 0; i < nbTimers; i++)
+            wheel.add(i, expirations[i]);
+        for(long now = 0; now <= horizon + 1000; now += 60000)
+            wheel.advance(now, listener);
+        long wheelTime = System.nanoTime() - begin;
+        assertEquals(nbTimers, count[0]);
+
+        begin = System.nanoTime();
+        PriorityQueue<long[]> queue = new PriorityQueue<long[]>(nbTimers, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                return (a[1] < b[1]) ? -1 : ((a[1] == b[1]) ? 0 : 1);
+            }
+        });
+        for(int i = 0; i < nbTimers; i++)
+            queue.add(new long[]{i, expirations[i]});
+        count[0] = 0;
+        for(long now = 0; now <= horizon + 1000; now += 60000) {
+            while(!queue.isEmpty() && (queue.peek()[1] <= now)) {
+                queue.poll();
+                count[0]++;
+            }
+        }
+        long queueTime = System.nanoTime() - begin;
+        assertEquals(nbTimers, count[0]);
+
+        System.out.println(nbTimers + " timers over a week: timing wheel " + (wheelTime / 1000000)
+                + "ms, priority queue " + (queueTime / 1000000) + "ms");
+    }
+}
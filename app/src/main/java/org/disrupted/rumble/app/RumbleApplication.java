@@ -23,7 +23,11 @@ import android.app.Application;
 import android.content.Context;
 import android.content.Intent;
 
+import org.disrupted.rumble.database.ChangeFeed;
 import org.disrupted.rumble.database.DatabaseFactory;
+import org.disrupted.rumble.database.FileGarbageCollector;
+import org.disrupted.rumble.database.StatusExpiryManager;
+import org.disrupted.rumble.database.StorageQuotaEvictor;
 import org.disrupted.rumble.database.events.ContactInsertedEvent;
 import org.disrupted.rumble.database.statistics.StatisticManager;
 import org.disrupted.rumble.network.NetworkCoordinator;
@@ -65,6 +69,10 @@ public class RumbleApplication extends Application{
 
         DatabaseFactory.getInstance(this);
         CacheManager.getInstance().start();
+        ChangeFeed.getInstance().start();
+        StatusExpiryManager.getInstance().start();
+        StorageQuotaEvictor.getInstance().start();
+        FileGarbageCollector.getInstance().start();
         StatisticManager.getInstance().start();
 
         if(DatabaseFactory.getContactDatabase(this).getLocalContact() != null) {
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ *
+ * This file is part of Rumble.
+ *
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.database;
+
+import android.content.Intent;
+import android.net.Uri;
+
+import org.disrupted.rumble.app.RumbleApplication;
+import org.disrupted.rumble.util.FileUtil;
+import org.disrupted.rumble.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The AttachmentStore keeps the attached files in the album under the SHA-256 of their content
+ * so that a picture attached to many statuses, or received from many peers, is stored once.
+ *
+ * A file is referenced by the statuses whose filename is its name: it is unlinked by release()
+ * once no status references it anymore. A file stored for a status that is not committed yet
+ * is pinned until the commit so that it is not released in the meantime.
+ *
+ * @author Lucien Loiseau
+ */
+public class AttachmentStore {
+
+    private static final String TAG = "AttachmentStore";
+
+    private static final String PREFIX = "SHA256_";
+    private static final String SUFFIX = ".jpg";
+
+    private static final Object lock = new Object();
+    private static AttachmentStore instance;
+
+    private final Map<String, Integer> pinned;
+
+    private long filesStored;
+    private long filesDeduplicated;
+    private long bytesStored;
+    private long bytesDeduplicated;  // the bytes that were not written thanks to deduplication
+
+    public static AttachmentStore getInstance() {
+        synchronized (lock) {
+            if (instance == null)
+                instance = new AttachmentStore();
+
+            return instance;
+        }
+    }
+
+    private AttachmentStore() {
+        pinned = new HashMap<String, Integer>();
+        filesStored = 0;
+        filesDeduplicated = 0;
+        bytesStored = 0;
+        bytesDeduplicated = 0;
+    }
+
+    public static String getFileName(String sha256) {
+        return PREFIX + sha256 + SUFFIX;
+    }
+
+    /*
+     * moves a file of the album (whose content hash is sha256) to its content-addressed name,
+     * or deletes it if the same content is already stored. returns the name of the stored file,
+     * pinned until unpin is called.
+     */
+    public String store(File file, String sha256) throws IOException {
+        String name = getFileName(sha256);
+        synchronized (lock) {
+            File album = FileUtil.getWritableAlbumStorageDir();
+            long length = file.length();
+            if(!moveToAlbum(file, album, name)) {
+                filesDeduplicated++;
+                bytesDeduplicated += length;
+            } else {
+                filesStored++;
+                bytesStored += length;
+
+                // we add the saved image to the library
+                Intent mediaScanIntent = new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE);
+                mediaScanIntent.setData(Uri.fromFile(new File(album, name)));
+                RumbleApplication.getContext().sendBroadcast(mediaScanIntent);
+            }
+            Integer count = pinned.get(name);
+            pinned.put(name, (count == null) ? 1 : count + 1);
+        }
+        return name;
+    }
+
+    /*
+     * moves the file to the album under name, or deletes it if the album already has a file
+     * of that name (that is, the same content). returns true if the file has been moved
+     */
+    static boolean moveToAlbum(File file, File album, String name) throws IOException {
+        File stored = new File(album, name);
+        if(stored.exists()) {
+            file.delete();
+            return false;
+        }
+        if(!file.renameTo(stored))
+            throw new IOException("cannot rename the file");
+        return true;
+    }
+
+    public void unpin(String name) {
+        synchronized (lock) {
+            Integer count = pinned.get(name);
+            if(count == null)
+                return;
+            if(count <= 1)
+                pinned.remove(name);
+            else
+                pinned.put(name, count - 1);
+        }
+    }
+
+    /*
+     * unlinks the file unless a status still references it (or it is pinned), to be called
+     * once the rows of the statuses that referenced it are deleted.
+     * returns the number of bytes unlinked, 0 if the file has been kept
+     */
+    public long release(String name) {
+        // file that starts with "/" are not in our album (the user attached a file he already had)
+        if((name == null) || name.equals("") || name.startsWith("/"))
+            return 0;
+        synchronized (lock) {
+            if(pinned.containsKey(name))
+                return 0;
+            if(DatabaseFactory.getPushStatusDatabase(RumbleApplication.getContext()).getFileReferences(name) > 0)
+                return 0;
+            try {
+                File file = new File(FileUtil.getWritableAlbumStorageDir(), name);
+                if(!file.isFile())
+                    return 0;
+                long length = file.length();
+                return file.delete() ? length : 0;
+            } catch (IOException e) {
+                Log.d(TAG, "[!] cannot release " + name + ": " + e.getMessage());
+                return 0;
+            }
+        }
+    }
+
+    public long getFilesStored() {
+        synchronized (lock) {
+            return filesStored;
+        }
+    }
+
+    public long getFilesDeduplicated() {
+        synchronized (lock) {
+            return filesDeduplicated;
+        }
+    }
+
+    public long getBytesStored() {
+        synchronized (lock) {
+            return bytesStored;
+        }
+    }
+
+    public long getBytesDeduplicated() {
+        synchronized (lock) {
+            return bytesDeduplicated;
+        }
+    }
+}
@@ -19,10 +19,8 @@
 
 package org.disrupted.rumble.database;
 
-import android.content.Intent;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.net.Uri;
 
 import org.disrupted.rumble.userinterface.events.UserLeaveGroup;
 import org.disrupted.rumble.util.Log;
@@ -30,15 +28,17 @@ import org.disrupted.rumble.util.Log;
 import org.disrupted.rumble.app.RumbleApplication;
 import org.disrupted.rumble.database.events.ChatMessageInsertedEvent;
 import org.disrupted.rumble.database.events.ChatMessageUpdatedEvent;
+import org.disrupted.rumble.database.events.ContactDeletedEvent;
 import org.disrupted.rumble.database.events.ContactGroupListUpdated;
+import org.disrupted.rumble.database.events.ContactInsertedEvent;
 import org.disrupted.rumble.database.events.ContactInterfaceInserted;
 import org.disrupted.rumble.database.events.ContactTagInterestUpdatedEvent;
-import org.disrupted.rumble.database.events.FileInsertedEvent;
+import org.disrupted.rumble.database.events.ContactUpdatedEvent;
+import org.disrupted.rumble.database.events.GroupDeletedEvent;
+import org.disrupted.rumble.database.events.GroupInsertedEvent;
 import org.disrupted.rumble.database.events.StatusDeletedEvent;
-import org.disrupted.rumble.database.events.StatusDuplicate;
 import org.disrupted.rumble.database.objects.ChatMessage;
 import org.disrupted.rumble.database.objects.Contact;
-import org.disrupted.rumble.database.objects.Group;
 import org.disrupted.rumble.database.objects.PushStatus;
 import org.disrupted.rumble.network.events.ContactConnected;
 import org.disrupted.rumble.network.protocols.events.ChatMessageReceived;
@@ -62,13 +62,16 @@ import org.disrupted.rumble.userinterface.events.UserWipeData;
 import org.disrupted.rumble.userinterface.events.UserWipeFiles;
 import org.disrupted.rumble.userinterface.events.UserWipeStatuses;
 import org.disrupted.rumble.util.FileUtil;
+import org.disrupted.rumble.util.HashUtil;
 import org.disrupted.rumble.util.NetUtil;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.Map;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 import de.greenrobot.event.EventBus;
 
@@ -83,11 +86,13 @@ public class CacheManager {
 
     private static final int MAX_IMAGE_SIZE_ON_DISK = 500000;
     private static final int MAX_IMAGE_BORDER_PX = 1000;
+    private static final long LAST_MET_RESOLUTION = 60000; // ms
 
     private static final Object globalQueuelock = new Object();
     private static CacheManager instance;
 
     private boolean started;
+    private final StatusIngestor ingestor = new StatusIngestor();
 
     public static CacheManager getInstance() {
         synchronized (globalQueuelock) {
@@ -102,6 +107,7 @@ public class CacheManager {
         if(!started) {
             Log.d(TAG, "[+] Starting Cache Manager");
             started = true;
+            ingestor.start();
             EventBus.getDefault().register(this);
         }
     }
@@ -112,105 +118,47 @@ public class CacheManager {
             started = false;
             if(EventBus.getDefault().isRegistered(this))
                 EventBus.getDefault().unregister(this);
+            ingestor.stop();
         }
     }
 
-
     /*
-     * Managing Network Interaction, onEventAsync to avoid slowing down network
+     * Keeping the contact and group caches coherent, onEvent so that the cache is
+     * invalidated before anyone else is notified
      */
-    public void onEventAsync(PushStatusReceived event) {
-        try {
-            if (event.status == null)
-                return;
-            if ((event.status.getAuthor() == null) || (event.status.getGroup() == null) || (event.status.receivedBy() == null))
-                return;
-
-            Group group = DatabaseFactory.getGroupDatabase(RumbleApplication.getContext()).getGroup(event.gid);
-            if(group == null) {
-                // we do not belong to the group
-                Log.d(TAG, "[!] unknow group: refusing the message");
-                return;
-            }
-            event.status.setGroup(group);
-
-            Contact sender = DatabaseFactory.getContactDatabase(RumbleApplication.getContext()).getContact(event.status.receivedBy());
-            if (sender == null) {
-                // we do not accept message from unknown sender, that should never happen as the protocol starts by exchange
-                // ContactInformation blocks
-                Log.d(TAG, "[!] unknown sender: refusing the message");
-                return;
-            }
-
-            // we update the sender statistics
-            sender.setStatusReceived(sender.nbStatusReceived() + 1);
-            DatabaseFactory.getContactDatabase(RumbleApplication.getContext()).insertOrUpdateContact(sender);
-
-            // we insert/update the status author
-            Contact author = DatabaseFactory.getContactDatabase(RumbleApplication.getContext()).getContact(event.status.getAuthor().getUid());
-            if (author == null) {
-                author = event.status.getAuthor();
-                DatabaseFactory.getContactDatabase(RumbleApplication.getContext()).insertOrUpdateContact(author);
-            } else if (!author.getName().equals(event.status.getAuthor().getName())) {
-                // we do not accept message if the author has changed since we last known of (UID/name)
-                Log.d(TAG, "[!] AuthorID: " + author.getUid() + " CONFLICT: db=" + author.getName() + " status=" + event.status.getAuthor().getName());
-                return;
-            }
-            // we add the author to the group if it doesn't already belong
-            long authorDBID = DatabaseFactory.getContactDatabase(RumbleApplication.getContext()).getContactDBID(author.getUid());
-            long groupDBID = DatabaseFactory.getGroupDatabase(RumbleApplication.getContext()).getGroupDBID(event.status.getGroup().getGid());
-            if (DatabaseFactory.getContactJoinGroupDatabase(RumbleApplication.getContext()).insertContactGroup(authorDBID, groupDBID) >= 0)
-                EventBus.getDefault().post(new ContactGroupListUpdated(author));
-
-            // we add the status to the database
-            PushStatus exists = DatabaseFactory.getPushStatusDatabase(RumbleApplication.getContext()).getStatus(event.status.getUuid());
-            if (exists == null) {
-                exists = new PushStatus(event.status);
-                exists.addDuplicate(1);
-                DatabaseFactory.getPushStatusDatabase(RumbleApplication.getContext()).insertStatus(exists);
-            } else {
-                exists.addDuplicate(1);
-                if (event.status.getLike() > 0)
-                    exists.addLike();
-                DatabaseFactory.getPushStatusDatabase(RumbleApplication.getContext()).updateStatus(exists);
-                EventBus.getDefault().post(new StatusDuplicate());
-            }
-
-            // then the StatusContact database
-            if (exists.getdbId() > 0) {
-                long senderDBID = DatabaseFactory.getContactDatabase(RumbleApplication.getContext()).getContactDBID(event.senderID);
-                if (senderDBID > 0)
-                    DatabaseFactory.getStatusContactDatabase(RumbleApplication.getContext()).insertStatusContact(exists.getdbId(), senderDBID);
-            }
-
-            // now we take care of the attached file, if any
-            if (event.tempfile.equals(""))
-                return;
-
-            if (!FileUtil.isFileNameClean(exists.getFileName()))
-                throw new Exception("filename is suspicious");
-
-            /*
-             * we check if we already received the attached file. We don't want to overwrite as
-             * it would enable an attack that would overwrite every status
-             */
-            File attached = new File(FileUtil.getWritableAlbumStorageDir(), exists.getFileName());
-            if (attached.exists())
-                throw new Exception("file already exists");
+    public void onEvent(ContactInsertedEvent event) {
+        DatabaseFactory.getContactDatabase(RumbleApplication.getContext()).invalidate(event.contact.getUid());
+    }
+    public void onEvent(ContactUpdatedEvent event) {
+        DatabaseFactory.getContactDatabase(RumbleApplication.getContext()).invalidate(event.contact.getUid());
+    }
+    public void onEvent(ContactDeletedEvent event) {
+        DatabaseFactory.getContactDatabase(RumbleApplication.getContext()).invalidate(event.contact.getUid());
+    }
+    public void onEvent(ContactGroupListUpdated event) {
+        DatabaseFactory.getContactDatabase(RumbleApplication.getContext()).invalidate(event.contact.getUid());
+    }
+    public void onEvent(ContactTagInterestUpdatedEvent event) {
+        DatabaseFactory.getContactDatabase(RumbleApplication.getContext()).invalidate(event.contact.getUid());
+    }
+    public void onEvent(ContactInterfaceInserted event) {
+        DatabaseFactory.getContactDatabase(RumbleApplication.getContext()).invalidate(event.contact.getUid());
+    }
+    public void onEvent(GroupInsertedEvent event) {
+        DatabaseFactory.getGroupDatabase(RumbleApplication.getContext()).invalidate(event.group.getGid());
+    }
+    public void onEvent(GroupDeletedEvent event) {
+        DatabaseFactory.getGroupDatabase(RumbleApplication.getContext()).invalidate(event.gid);
+        DatabaseFactory.getContactDatabase(RumbleApplication.getContext()).invalidateAll();
+    }
 
-            if (saveImageOnDisk(event.tempfile, exists.getFileName()))
-                EventBus.getDefault().post(new FileInsertedEvent(attached.getName(), exists.getUuid()));
 
-        } catch (Exception ignore ) {
-            ignore.getMessage();
-        } finally {
-            if (!event.tempfile.equals("")) {
-                try {
-                    File toDelete = new File(FileUtil.getWritableAlbumStorageDir(), event.tempfile);
-                    toDelete.delete();
-                } catch (IOException ignore) {
-                }
-            }
+    /*
+     * Managing Network Interaction, onEventAsync to avoid slowing down network
+     */
+    public void onEvent(PushStatusReceived event) {
+        // the statuses are stored in batches by a single thread, see StatusIngestor
+        if(!ingestor.add(event)) {
             if(event.status != null)
                 event.status.discard();
         }
@@ -239,35 +187,28 @@ public class CacheManager {
                 return;
             }
 
-            contact.lastMet(event.contact.lastMet());
+            // the time we met is only kept to the minute so that a contact met again and again
+            // is not rewritten every time
+            if(event.contact.lastMet() - contact.lastMet() >= LAST_MET_RESOLUTION)
+                contact.lastMet(event.contact.lastMet());
             DatabaseFactory.getContactDatabase(RumbleApplication.getContext()).insertOrUpdateContact(contact);
         }
 
         long contactDBID = DatabaseFactory.getContactDatabase(RumbleApplication.getContext())
                 .getContactDBID(contact.getUid());
 
-        // We only update the affected attributes
+        // We only update the affected attributes, and only what differs from the database
         if ((event.flags & Contact.FLAG_GROUP_LIST) == Contact.FLAG_GROUP_LIST) {
             contact.setJoinedGroupIDs(event.contact.getJoinedGroupIDs());
-            DatabaseFactory.getContactJoinGroupDatabase(RumbleApplication.getContext())
-                    .deleteEntriesMatchingContactID(contactDBID);
-            for(String group : contact.getJoinedGroupIDs()) {
-                long groupDBID   = DatabaseFactory.getGroupDatabase(RumbleApplication.getContext()).getGroupDBID(group);
-                if(groupDBID > 0)
-                    DatabaseFactory.getContactJoinGroupDatabase(RumbleApplication.getContext()).insertContactGroup(contactDBID, groupDBID);
-            }
-            EventBus.getDefault().post(new ContactGroupListUpdated(contact));
+            if(DatabaseFactory.getContactDatabase(RumbleApplication.getContext())
+                    .updateJoinedGroups(contactDBID, contact.getJoinedGroupIDs()))
+                EventBus.getDefault().post(new ContactGroupListUpdated(contact));
         }
         if ((event.flags & Contact.FLAG_TAG_INTEREST) == Contact.FLAG_TAG_INTEREST) {
             contact.setHashtagInterests(event.contact.getHashtagInterests());
-            DatabaseFactory.getContactHashTagInterestDatabase(RumbleApplication.getContext())
-                    .deleteEntriesMatchingContactID(contactDBID);
-            for(Map.Entry<String, Integer> entry : contact.getHashtagInterests().entrySet()) {
-                long hashtagDBID  = DatabaseFactory.getHashtagDatabase(RumbleApplication.getContext()).getHashtagDBID(entry.getKey());
-                if(hashtagDBID > 0)
-                    DatabaseFactory.getContactHashTagInterestDatabase(RumbleApplication.getContext()).insertContactTagInterest(contactDBID, hashtagDBID, entry.getValue());
-            }
-            EventBus.getDefault().post(new ContactTagInterestUpdatedEvent(contact));
+            if(DatabaseFactory.getContactDatabase(RumbleApplication.getContext())
+                    .updateHashtagInterests(contactDBID, contact.getHashtagInterests()))
+                EventBus.getDefault().post(new ContactTagInterestUpdatedEvent(contact));
         }
 
         // We also keep track of the interface and protocol this contact was discovered on
@@ -387,20 +328,8 @@ public class CacheManager {
     public void onEventAsync(UserDeleteStatus event) {
         if(event.status == null)
             return;
+        // the attached file (if no other status uses it) is deleted along with the status
         if(DatabaseFactory.getPushStatusDatabase(RumbleApplication.getContext()).deleteStatus(event.status.getUuid())) {
-            if(event.status.hasAttachedFile()) {
-                // if filename starts with a '/' it means that the file is from another album
-                // we do not delete the file in that case
-                if(!event.status.getFileName().startsWith("/")) {
-                    try {
-                        File attached = new File(FileUtil.getWritableAlbumStorageDir(), event.status.getFileName());
-                        if (attached.exists() && attached.isFile()) {
-                            attached.delete();
-                        }
-                    } catch (IOException e) {
-                    }
-                }
-            }
             EventBus.getDefault().post(new StatusDeletedEvent(event.status.getUuid(), event.status.getdbId()));
         }
     }
@@ -408,14 +337,18 @@ public class CacheManager {
         try {
             if(event.status == null)
                 return;
+            String filename = null;
             if(!event.tempfile.equals("")) {
-                String cleanedUuid = FileUtil.cleanBase64(event.status.getUuid());
-                String filename = "JPEG_" + cleanedUuid + ".jpg";
-                if (saveImageOnDisk(event.tempfile, filename))
+                filename = saveImageOnDisk(event.tempfile, null);
+                if (filename != null)
                     event.status.setFileName(filename);
             }
             PushStatus status = new PushStatus(event.status);
             DatabaseFactory.getPushStatusDatabase(RumbleApplication.getContext()).insertStatus(status);
+            if(filename != null) {
+                AttachmentStore.getInstance().unpin(filename);
+                AttachmentStore.getInstance().release(filename); // unless the status is stored
+            }
 
             // we subscribe the user to every hashtag he used in his message
             if(status.getHashtagSet().size() > 0) {
@@ -506,20 +439,25 @@ public class CacheManager {
         this.onEventAsync(new UserWipeStatuses());
         this.onEventAsync(new UserWipeChatMessages());
         this.onEventAsync(new UserWipeFiles());
+        DatabaseFactory.getContactDatabase(RumbleApplication.getContext()).invalidateAll();
     }
 
-    private boolean saveImageOnDisk(String from, String to) {
-        File toDelete = null;
-        File savedImage = null;
+    /*
+     * stores an image of the album in the AttachmentStore, scaled down if it is too big.
+     * returns the name of the stored file (pinned, see AttachmentStore) or null. The file
+     * "from" is left for the caller to delete.
+     */
+    String saveImageOnDisk(String from, String sha256) {
+        File fromFile = null;
+        File scaledFile = null;
         try {
-            toDelete = new File(FileUtil.getWritableAlbumStorageDir(), from);
-            savedImage   = new File(FileUtil.getWritableAlbumStorageDir(), to);
-            if(toDelete.exists() && toDelete.isFile() && (toDelete.length() > MAX_IMAGE_SIZE_ON_DISK)) {
+            fromFile = new File(FileUtil.getWritableAlbumStorageDir(), from);
+            if(fromFile.exists() && fromFile.isFile() && (fromFile.length() > MAX_IMAGE_SIZE_ON_DISK)) {
 
                 // first we extrat the width and height of the image
                 BitmapFactory.Options options = new BitmapFactory.Options();
                 options.inJustDecodeBounds = true;
-                BitmapFactory.decodeFile(toDelete.getAbsolutePath(), options);
+                BitmapFactory.decodeFile(fromFile.getAbsolutePath(), options);
                 final int height = options.outHeight;
                 final int width = options.outWidth;
 
@@ -537,7 +475,7 @@ public class CacheManager {
                     options.inJustDecodeBounds = false;
                     options.inSampleSize = (int) Math.floor(factor);
                     options.inPurgeable = true;
-                    Bitmap original = BitmapFactory.decodeFile(toDelete.getAbsolutePath(), options);
+                    Bitmap original = BitmapFactory.decodeFile(fromFile.getAbsolutePath(), options);
                     scaled = Bitmap.createScaledBitmap(original, reqWidth, reqHeight, false);
                     original.recycle();
                 } else {
@@ -545,32 +483,33 @@ public class CacheManager {
                     options.inJustDecodeBounds = false;
                     options.inSampleSize = 1;
                     options.inPurgeable = true;
-                    scaled = BitmapFactory.decodeFile(toDelete.getAbsolutePath(), options);
+                    scaled = BitmapFactory.decodeFile(fromFile.getAbsolutePath(), options);
                 }
 
-                // we compress 80% JPEG quality and save it to the file
-                OutputStream outputStream = new FileOutputStream(savedImage);
+                // we compress 80% JPEG quality and save it to a new file, hashing it on the way
+                MessageDigest md;
+                try {
+                    md = MessageDigest.getInstance("SHA-256");
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IOException("SHA-256 is not available");
+                }
+                scaledFile = File.createTempFile("JPEG_", ".jpg", FileUtil.getWritableAlbumStorageDir());
+                OutputStream outputStream = new DigestOutputStream(new FileOutputStream(scaledFile), md);
                 scaled.compress(Bitmap.CompressFormat.JPEG, 80, outputStream);
                 outputStream.close();
 
                 scaled.recycle();
+                return AttachmentStore.getInstance().store(scaledFile, HashUtil.toHex(md.digest()));
             } else {
-                // we rename the file
-                File fromFile = new File(FileUtil.getWritableAlbumStorageDir(), from);
-                if(!fromFile.renameTo(savedImage))
-                    throw new IOException("cannot rename the file");
+                if(sha256 == null)
+                    sha256 = HashUtil.computeFileSha256(fromFile);
+                return AttachmentStore.getInstance().store(fromFile, sha256);
             }
-
-            // we add the saved image to the library
-            Uri contentUri = Uri.fromFile(savedImage);
-            Intent mediaScanIntent = new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE);
-            mediaScanIntent.setData(contentUri);
-            RumbleApplication.getContext().sendBroadcast(mediaScanIntent);
-
-            return true;
         } catch(IOException e) {
             Log.d(TAG, "there was an error resizing the image: "+e.getMessage());
+            if(scaledFile != null)
+                scaledFile.delete();
         }
-        return false;
+        return null;
     }
 }
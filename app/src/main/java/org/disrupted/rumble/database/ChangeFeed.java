@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ *
+ * This file is part of Rumble.
+ *
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.database;
+
+import org.disrupted.rumble.database.events.ChatMessageInsertedEvent;
+import org.disrupted.rumble.database.events.ChatMessageUpdatedEvent;
+import org.disrupted.rumble.database.events.ChatWipedEvent;
+import org.disrupted.rumble.database.events.ContactDeletedEvent;
+import org.disrupted.rumble.database.events.ContactGroupListUpdated;
+import org.disrupted.rumble.database.events.ContactInsertedEvent;
+import org.disrupted.rumble.database.events.ContactInterfaceInserted;
+import org.disrupted.rumble.database.events.ContactTagInterestUpdatedEvent;
+import org.disrupted.rumble.database.events.ContactUpdatedEvent;
+import org.disrupted.rumble.database.events.DatabaseChangeSet;
+import org.disrupted.rumble.database.events.GroupDeletedEvent;
+import org.disrupted.rumble.database.events.GroupInsertedEvent;
+import org.disrupted.rumble.database.events.StatusDeletedEvent;
+import org.disrupted.rumble.database.events.StatusInsertedEvent;
+import org.disrupted.rumble.database.events.StatusUpdatedEvent;
+import org.disrupted.rumble.database.events.StatusWipedEvent;
+import org.disrupted.rumble.util.Log;
+
+import de.greenrobot.event.EventBus;
+
+/**
+ * The ChangeFeed turns the events of the databases into DatabaseChangeSet for the user
+ * interface. The changes are coalesced per table and delivered at most once per frame, so
+ * a burst of statuses received from a neighbour costs the lists a single (targeted) update
+ * instead of one query and one refresh per status.
+ *
+ * The events are only posted once their transaction is committed (see Database.postEvent)
+ * so a change set never refers to a row that may be rolled back.
+ *
+ * @author Lucien Loiseau
+ */
+public class ChangeFeed {
+
+    private static final String TAG = "ChangeFeed";
+
+    private static final long FRAME_DELAY = 16; // in ms
+
+    private static final Object lock = new Object();
+    private static ChangeFeed instance;
+
+    private Thread worker;
+
+    private DatabaseChangeSet.TableChanges<Long>   statuses;
+    private DatabaseChangeSet.TableChanges<String> contacts;
+    private DatabaseChangeSet.TableChanges<String> groups;
+    private DatabaseChangeSet.TableChanges<String> chatMessages;
+    private int pendingEvents;
+
+    private volatile long nbEvents;
+    private volatile long nbChangeSets;
+
+    public static ChangeFeed getInstance() {
+        synchronized (lock) {
+            if (instance == null)
+                instance = new ChangeFeed();
+
+            return instance;
+        }
+    }
+
+    private ChangeFeed() {
+        worker = null;
+        nbEvents = 0;
+        nbChangeSets = 0;
+        clear();
+    }
+
+    public void start() {
+        synchronized (lock) {
+            if(worker != null)
+                return;
+            Log.d(TAG, "[+] Starting Change Feed");
+            worker = new Thread(deliver, TAG);
+            worker.start();
+            EventBus.getDefault().register(this);
+        }
+    }
+
+    public void stop() {
+        synchronized (lock) {
+            if(worker == null)
+                return;
+            Log.d(TAG, "[-] Stopping Change Feed");
+            if(EventBus.getDefault().isRegistered(this))
+                EventBus.getDefault().unregister(this);
+            worker.interrupt();
+            worker = null;
+        }
+    }
+
+    public long getNbEvents() {
+        return nbEvents;
+    }
+
+    public long getNbChangeSets() {
+        return nbChangeSets;
+    }
+
+    // /!\  carefull, it does not lock
+    private void clear() {
+        statuses      = new DatabaseChangeSet.TableChanges<Long>();
+        contacts      = new DatabaseChangeSet.TableChanges<String>();
+        groups        = new DatabaseChangeSet.TableChanges<String>();
+        chatMessages  = new DatabaseChangeSet.TableChanges<String>();
+        pendingEvents = 0;
+    }
+
+    // /!\  carefull, it does not lock
+    private void changed() {
+        pendingEvents++;
+        nbEvents++;
+        lock.notifyAll();
+    }
+
+    private Runnable deliver = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                while(true) {
+                    synchronized (lock) {
+                        while(pendingEvents == 0)
+                            lock.wait();
+                    }
+
+                    // the changes made during the frame are delivered together
+                    Thread.sleep(FRAME_DELAY);
+
+                    DatabaseChangeSet changeSet;
+                    synchronized (lock) {
+                        changeSet = new DatabaseChangeSet(statuses, contacts, groups, chatMessages, pendingEvents);
+                        clear();
+                    }
+                    nbChangeSets++;
+                    if(changeSet.nbEvents > 1)
+                        Log.d(TAG, "[+] " + changeSet.nbEvents + " events coalesced: " + changeSet.shortDescription());
+                    EventBus.getDefault().post(changeSet);
+                }
+            } catch (InterruptedException ignore) {
+            }
+        }
+    };
+
+    /*
+     * Statuses
+     */
+    public void onEvent(StatusInsertedEvent event) {
+        synchronized (lock) {
+            statuses.insert(event.status.getdbId());
+            changed();
+        }
+    }
+    public void onEvent(StatusUpdatedEvent event) {
+        synchronized (lock) {
+            statuses.update(event.status.getdbId());
+            changed();
+        }
+    }
+    public void onEvent(StatusDeletedEvent event) {
+        synchronized (lock) {
+            statuses.delete(event.dbid);
+            changed();
+        }
+    }
+    public void onEvent(StatusWipedEvent event) {
+        synchronized (lock) {
+            statuses.wipe();
+            changed();
+        }
+    }
+
+    /*
+     * Contacts
+     */
+    public void onEvent(ContactInsertedEvent event) {
+        synchronized (lock) {
+            contacts.insert(event.contact.getUid());
+            changed();
+        }
+    }
+    public void onEvent(ContactUpdatedEvent event) {
+        synchronized (lock) {
+            contacts.update(event.contact.getUid());
+            changed();
+        }
+    }
+    public void onEvent(ContactGroupListUpdated event) {
+        synchronized (lock) {
+            contacts.update(event.contact.getUid());
+            changed();
+        }
+    }
+    public void onEvent(ContactTagInterestUpdatedEvent event) {
+        synchronized (lock) {
+            contacts.update(event.contact.getUid());
+            changed();
+        }
+    }
+    public void onEvent(ContactInterfaceInserted event) {
+        synchronized (lock) {
+            contacts.update(event.contact.getUid());
+            changed();
+        }
+    }
+    public void onEvent(ContactDeletedEvent event) {
+        synchronized (lock) {
+            contacts.delete(event.contact.getUid());
+            changed();
+        }
+    }
+
+    /*
+     * Groups, the statuses of a deleted group are deleted as well
+     */
+    public void onEvent(GroupInsertedEvent event) {
+        synchronized (lock) {
+            groups.insert(event.group.getGid());
+            changed();
+        }
+    }
+    public void onEvent(GroupDeletedEvent event) {
+        synchronized (lock) {
+            groups.delete(event.gid);
+            changed();
+        }
+    }
+
+    /*
+     * Chat Messages
+     */
+    public void onEvent(ChatMessageInsertedEvent event) {
+        synchronized (lock) {
+            chatMessages.insert(event.chatMessage.getUUID());
+            changed();
+        }
+    }
+    public void onEvent(ChatMessageUpdatedEvent event) {
+        synchronized (lock) {
+            chatMessages.update(event.chatMessage.getUUID());
+            changed();
+        }
+    }
+    public void onEvent(ChatWipedEvent event) {
+        synchronized (lock) {
+            chatMessages.wipe();
+            changed();
+        }
+    }
+}
@@ -32,14 +32,13 @@ import org.disrupted.rumble.database.objects.Contact;
 import org.disrupted.rumble.database.objects.Interface;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-import de.greenrobot.event.EventBus;
-
 /**
  * @author Lucien Loiseau
  */
@@ -106,12 +105,44 @@ public class ContactDatabase extends Database  {
         }
     }
 
+    private static final int CACHE_SIZE = 256;
+
     // caching the localContact as it is accessed very often
     private Contact localContact;
 
+    // the other contacts are cached by uid and dbid, the cache holds private copies
+    private final IdentityCache<Contact> cache;
+
+    // the rows left untouched and the events not posted because nothing had changed
+    private long avoidedWrites = 0;
+    private long avoidedEvents = 0;
+
     public ContactDatabase(Context context, SQLiteOpenHelper databaseHelper) {
         super(context, databaseHelper);
         localContact = null;
+        cache = new IdentityCache<Contact>(CACHE_SIZE);
+    }
+
+    @Override
+    public void reset(SQLiteOpenHelper databaseHelper) {
+        super.reset(databaseHelper);
+        invalidateAll();
+    }
+
+    public IdentityCache<Contact> getCache() {
+        return cache;
+    }
+
+    /*
+     * to be called whenever the contact, its groups, its interests or its interfaces change
+     */
+    public void invalidate(String uid) {
+        cache.invalidate(uid);
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+        localContact = null;
     }
 
     @Override
@@ -119,6 +150,19 @@ public class ContactDatabase extends Database  {
         return TABLE_NAME;
     }
 
+    public synchronized long getAvoidedWrites() {
+        return avoidedWrites;
+    }
+
+    public synchronized long getAvoidedEvents() {
+        return avoidedEvents;
+    }
+
+    private synchronized void countAvoided(long writes, long events) {
+        avoidedWrites += writes;
+        avoidedEvents += events;
+    }
+
     public Contact getLocalContact() {
         if(localContact != null)
             return localContact;
@@ -257,15 +301,22 @@ public class ContactDatabase extends Database  {
     }
 
     public Contact getContact(long contact_dbid) {
+        Contact cached = cache.getByDbid(contact_dbid);
+        if(cached != null)
+            return new Contact(cached);
+
+        long generation = cache.getGeneration();
         Cursor cursor = null;
         try {
             SQLiteDatabase database = databaseHelper.getReadableDatabase();
             cursor = database.query(TABLE_NAME, null, ID+ " = ?", new String[] {Long.toString(contact_dbid)}, null, null, null);
             if(cursor == null)
                 return null;
-            if(cursor.moveToFirst() && !cursor.isAfterLast())
-                return cursorToContact(cursor);
-            else
+            if(cursor.moveToFirst() && !cursor.isAfterLast()) {
+                Contact contact = cursorToContact(cursor);
+                cache.put(generation, contact.getUid(), contact_dbid, new Contact(contact));
+                return contact;
+            } else
                 return null;
         } finally {
             if(cursor != null)
@@ -274,15 +325,22 @@ public class ContactDatabase extends Database  {
     }
 
     public Contact getContact(String uid) {
+        Contact cached = cache.getByKey(uid);
+        if(cached != null)
+            return new Contact(cached);
+
+        long generation = cache.getGeneration();
         Cursor cursor = null;
         try {
             SQLiteDatabase database = databaseHelper.getReadableDatabase();
             cursor = database.query(TABLE_NAME, null, UID+ " = ?", new String[] {uid }, null, null, null);
             if(cursor == null)
                 return null;
-            if(cursor.moveToFirst() && !cursor.isAfterLast())
-                return cursorToContact(cursor);
-            else
+            if(cursor.moveToFirst() && !cursor.isAfterLast()) {
+                Contact contact = cursorToContact(cursor);
+                cache.put(generation, uid, cursor.getLong(cursor.getColumnIndexOrThrow(ID)), new Contact(contact));
+                return contact;
+            } else
                 return null;
         } finally {
             if(cursor != null)
@@ -291,16 +349,22 @@ public class ContactDatabase extends Database  {
     }
 
     public long getContactDBID(String uid) {
-        long ret = -1;
+        long ret = cache.getDbid(uid);
+        if(ret >= 0)
+            return ret;
+
+        long generation = cache.getGeneration();
         Cursor cursor = null;
         try {
             SQLiteDatabase database = databaseHelper.getReadableDatabase();
             cursor = database.query(TABLE_NAME, new String[] {ID}, UID+ " = ?", new String[] {uid}, null, null, null);
             if(cursor == null)
+                return -1;
+            if(cursor.moveToFirst() && !cursor.isAfterLast()) {
+                ret = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
+                cache.put(generation, uid, ret, null);
                 return ret;
-            if(cursor.moveToFirst() && !cursor.isAfterLast())
-                return cursor.getLong(cursor.getColumnIndexOrThrow(ID));
-            else
+            } else
                 return -1;
         } finally {
             if(cursor != null)
@@ -319,14 +383,20 @@ public class ContactDatabase extends Database  {
         contentValues.put(NB_STATUS_RCVD, contact.nbStatusReceived());
 
         long contactDBID = getContactDBID(contact.getUid());
+        if((contactDBID >= 0) && isRowUnchanged(contactDBID, contentValues)) {
+            countAvoided(1, 1);
+            return contactDBID;
+        }
 
         if(contactDBID < 0) {
             contactDBID = databaseHelper.getWritableDatabase().insert(TABLE_NAME, null, contentValues);
-            EventBus.getDefault().post(new ContactInsertedEvent(contact));
+            postEvent(new ContactInsertedEvent(contact));
         } else {
             databaseHelper.getWritableDatabase().update(TABLE_NAME, contentValues, UID + " = ?", new String[]{contact.getUid()});
-            EventBus.getDefault().post(new ContactUpdatedEvent(contact));
+            postEvent(new ContactUpdatedEvent(contact));
         }
+        // after the write, or a reader could cache the old row under the new generation
+        cache.invalidate(contact.getUid());
 
         // if we update the local contact, we delete the cache
         if(contact.isLocal())
@@ -335,6 +405,146 @@ public class ContactDatabase extends Database  {
         return contactDBID;
     }
 
+    /*
+     * compares the values with the stored row, as strings (like SQLite would bind them)
+     */
+    private boolean isRowUnchanged(long contactDBID, ContentValues values) {
+        String[] columns = values.keySet().toArray(new String[values.size()]);
+        Map<String, String> stored   = new HashMap<String, String>();
+        Map<String, String> received = new HashMap<String, String>();
+        Cursor cursor = null;
+        try {
+            SQLiteDatabase database = databaseHelper.getReadableDatabase();
+            cursor = database.query(TABLE_NAME, columns, ID_WHERE, new String[]{Long.toString(contactDBID)}, null, null, null);
+            if((cursor == null) || !cursor.moveToFirst())
+                return false;
+            for(int i = 0; i < columns.length; i++) {
+                stored.put(columns[i], cursor.getString(i));
+                received.put(columns[i], values.getAsString(columns[i]));
+            }
+        } finally {
+            if(cursor != null)
+                cursor.close();
+        }
+        return Diff.of(stored, received).isEmpty();
+    }
+
+    /*
+     * The entries to write and to delete so that the stored entries of a contact become the
+     * received ones, and the number of entries left as they are.
+     */
+    static class Diff<K> {
+        final List<K> written = new ArrayList<K>();
+        final List<K> deleted = new ArrayList<K>();
+        int kept = 0;
+
+        boolean isEmpty() {
+            return written.isEmpty() && deleted.isEmpty();
+        }
+
+        static <K> Diff<K> of(Set<K> stored, Set<K> received) {
+            Diff<K> diff = new Diff<K>();
+            for(K key : stored) {
+                if(!received.contains(key))
+                    diff.deleted.add(key);
+            }
+            for(K key : received) {
+                if(stored.contains(key))
+                    diff.kept++;
+                else
+                    diff.written.add(key);
+            }
+            return diff;
+        }
+
+        static <K, V> Diff<K> of(Map<K, V> stored, Map<K, V> received) {
+            Diff<K> diff = new Diff<K>();
+            for(K key : stored.keySet()) {
+                if(!received.containsKey(key))
+                    diff.deleted.add(key);
+            }
+            for(Map.Entry<K, V> entry : received.entrySet()) {
+                V value = stored.get(entry.getKey());
+                boolean same = (entry.getValue() == null) ? (value == null) : entry.getValue().equals(value);
+                if(same && stored.containsKey(entry.getKey()))
+                    diff.kept++;
+                else
+                    diff.written.add(entry.getKey());
+            }
+            return diff;
+        }
+    }
+
+    /*
+     * sets the groups joined by a contact, only the entries that differ from the stored
+     * ones are deleted or inserted. returns true if anything was written.
+     */
+    public boolean updateJoinedGroups(long contactDBID, Set<String> gids) {
+        Diff<String> diff = Diff.of(getJoinedGroupIDs(contactDBID), gids);
+        int changes = 0;
+        if(!diff.isEmpty()) {
+            ContactGroupDatabase contactGroups = DatabaseFactory.getContactJoinGroupDatabase(context);
+            GroupDatabase groups = DatabaseFactory.getGroupDatabase(context);
+            SQLiteDatabase wd = databaseHelper.getWritableDatabase();
+            wd.beginTransaction();
+            try {
+                for(String gid : diff.deleted) {
+                    long groupDBID = groups.getGroupDBID(gid);
+                    if(groupDBID > 0) {
+                        contactGroups.deleteContactGroup(contactDBID, groupDBID);
+                        changes++;
+                    }
+                }
+                for(String gid : diff.written) {
+                    long groupDBID = groups.getGroupDBID(gid);
+                    if((groupDBID > 0) && (contactGroups.insertContactGroup(contactDBID, groupDBID) >= 0))
+                        changes++;
+                }
+                wd.setTransactionSuccessful();
+            } finally {
+                wd.endTransaction();
+            }
+        }
+
+        countAvoided(diff.kept, (changes == 0) ? 1 : 0);
+        return (changes > 0);
+    }
+
+    /*
+     * sets the hashtag interests of a contact, only the entries that differ from the stored
+     * ones are deleted or written. returns true if anything was written.
+     */
+    public boolean updateHashtagInterests(long contactDBID, Map<String, Integer> interests) {
+        Diff<String> diff = Diff.of(getHashtagsOfInterest(contactDBID), interests);
+        int changes = 0;
+        if(!diff.isEmpty()) {
+            ContactHashTagInterestDatabase contactInterests = DatabaseFactory.getContactHashTagInterestDatabase(context);
+            HashtagDatabase hashtags = DatabaseFactory.getHashtagDatabase(context);
+            SQLiteDatabase wd = databaseHelper.getWritableDatabase();
+            wd.beginTransaction();
+            try {
+                for(String hashtag : diff.deleted) {
+                    long hashtagDBID = hashtags.getHashtagDBID(hashtag);
+                    if(hashtagDBID > 0) {
+                        contactInterests.deleteContactTagInterest(contactDBID, hashtagDBID);
+                        changes++;
+                    }
+                }
+                for(String hashtag : diff.written) {
+                    long hashtagDBID = hashtags.getHashtagDBID(hashtag);
+                    if((hashtagDBID > 0) && (contactInterests.insertContactTagInterest(contactDBID, hashtagDBID, interests.get(hashtag)) >= 0))
+                        changes++;
+                }
+                wd.setTransactionSuccessful();
+            } finally {
+                wd.endTransaction();
+            }
+        }
+
+        countAvoided(diff.kept, (changes == 0) ? 1 : 0);
+        return (changes > 0);
+    }
+
     private Contact cursorToContact(final Cursor cursor) {
         if(cursor == null)
             return null;
@@ -356,6 +566,100 @@ public class ContactDatabase extends Database  {
         return contact;
     }
 
+    /*
+     * the queries of getContacts, to be completed with the list of contact dbids (see inList)
+     */
+    static final String CONTACTS_IN = "SELECT * FROM " + TABLE_NAME + " WHERE " + ID + " IN ";
+    static final String INTERESTS_IN =
+            "SELECT i." + ContactHashTagInterestDatabase.CDBID + ", h." + HashtagDatabase.HASHTAG + ", i." + ContactHashTagInterestDatabase.INTEREST +
+                    " FROM " + HashtagDatabase.TABLE_NAME + " h" +
+                    " JOIN " + ContactHashTagInterestDatabase.TABLE_NAME + " i" +
+                    " ON h." + HashtagDatabase.ID + " = i." + ContactHashTagInterestDatabase.HDBID +
+                    " WHERE i." + ContactHashTagInterestDatabase.CDBID + " IN ";
+    static final String JOINED_GROUPS_IN =
+            "SELECT c." + ContactGroupDatabase.UDBID + ", g." + GroupDatabase.GID +
+                    " FROM " + GroupDatabase.TABLE_NAME + " g" +
+                    " JOIN " + ContactGroupDatabase.TABLE_NAME + " c" +
+                    " ON g." + GroupDatabase.ID + " = c." + ContactGroupDatabase.GDBID +
+                    " WHERE c." + ContactGroupDatabase.UDBID + " IN ";
+    static final String INTERFACES_IN =
+            "SELECT ci." + ContactInterfaceDatabase.CONTACT_DBID + " AS contact_dbid, i.*" +
+                    " FROM " + InterfaceDatabase.TABLE_NAME + " i" +
+                    " JOIN " + ContactInterfaceDatabase.TABLE_NAME + " ci" +
+                    " ON i." + InterfaceDatabase.ID + " = ci." + ContactInterfaceDatabase.INTERFACE_DBID +
+                    " WHERE ci." + ContactInterfaceDatabase.CONTACT_DBID + " IN ";
+
+    /*
+     * resolves many contacts at once, returns a map from contact dbid to contact.
+     * it costs four queries whatever the number of contacts.
+     */
+    public Map<Long, Contact> getContacts(Collection<Long> contactDBIDs) {
+        Map<Long, Contact> ret = new HashMap<Long, Contact>();
+        if(contactDBIDs.isEmpty())
+            return ret;
+        String in = inList(contactDBIDs);
+        SQLiteDatabase database = databaseHelper.getReadableDatabase();
+
+        Cursor cursor = database.rawQuery(CONTACTS_IN + in, null);
+        if(cursor == null)
+            return ret;
+        try {
+            for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+                long contactDBID   = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
+                String author      = cursor.getString(cursor.getColumnIndexOrThrow(NAME));
+                String uid         = cursor.getString(cursor.getColumnIndexOrThrow(UID));
+                boolean local      = (cursor.getInt(cursor.getColumnIndexOrThrow(LOCALUSER)) == 1);
+                Contact contact  = new Contact(author, uid, local);
+                contact.lastMet(cursor.getLong(cursor.getColumnIndexOrThrow(LAST_MET)));
+                contact.setStatusSent(cursor.getInt(cursor.getColumnIndexOrThrow(NB_STATUS_SENT)));
+                contact.setStatusReceived(cursor.getInt(cursor.getColumnIndexOrThrow(NB_STATUS_RCVD)));
+                ret.put(contactDBID, contact);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        cursor = database.rawQuery(INTERESTS_IN + in, null);
+        if(cursor != null) {
+            try {
+                for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+                    Contact contact = ret.get(cursor.getLong(0));
+                    if(contact != null)
+                        contact.getHashtagInterests().put(cursor.getString(1), cursor.getInt(2));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        cursor = database.rawQuery(JOINED_GROUPS_IN + in, null);
+        if(cursor != null) {
+            try {
+                for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+                    Contact contact = ret.get(cursor.getLong(0));
+                    if(contact != null)
+                        contact.getJoinedGroupIDs().add(cursor.getString(1));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        cursor = database.rawQuery(INTERFACES_IN + in, null);
+        if(cursor != null) {
+            try {
+                for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+                    Contact contact = ret.get(cursor.getLong(0));
+                    if(contact != null)
+                        contact.getInterfaces().add(InterfaceDatabase.cursorToInterface(cursor));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return ret;
+    }
+
     private Map<String, Integer> getHashtagsOfInterest(long contactDBID) {
         Cursor cursor = null;
         try {
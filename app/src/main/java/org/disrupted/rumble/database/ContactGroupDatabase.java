@@ -58,6 +58,12 @@ public class ContactGroupDatabase extends Database {
         db.delete(TABLE_NAME, UDBID + " = ?" , new String[] {Long.toString(contactID)});
     }
 
+    public void deleteContactGroup(long contactID, long groupID){
+        SQLiteDatabase db = databaseHelper.getWritableDatabase();
+        db.delete(TABLE_NAME, UDBID + " = ? AND " + GDBID + " = ?" ,
+                new String[] {Long.toString(contactID), Long.toString(groupID)});
+    }
+
     public void deleteEntriesMatchingGroupID(long groupID){
         SQLiteDatabase db = databaseHelper.getWritableDatabase();
         db.delete(TABLE_NAME, GDBID + " = ?" , new String[] {Long.toString(groupID)});
@@ -24,6 +24,12 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+
+import de.greenrobot.event.EventBus;
+
 /**
  * @author Lucien Loiseau
  */
@@ -43,10 +49,62 @@ public abstract class Database {
 
     abstract public String getTableName();
 
+    /*
+     * the events posted by a thread inside a transaction started with beginTransaction are
+     * held until the end of the transaction so that nobody reads rows that are not committed
+     */
+    private static final ThreadLocal<List<Object>> deferredEvents = new ThreadLocal<List<Object>>();
+
+    protected static void postEvent(Object event) {
+        List<Object> deferred = deferredEvents.get();
+        if(deferred != null)
+            deferred.add(event);
+        else
+            EventBus.getDefault().post(event);
+    }
+
+    public void beginTransaction() {
+        databaseHelper.getWritableDatabase().beginTransaction();
+        if(deferredEvents.get() == null)
+            deferredEvents.set(new LinkedList<Object>());
+    }
+
+    public void setTransactionSuccessful() {
+        databaseHelper.getWritableDatabase().setTransactionSuccessful();
+    }
+
+    /*
+     * returns the events held during the transaction, it is up to the caller to post them
+     * once the transaction is committed (or to drop them if it was rolled back)
+     */
+    public List<Object> endTransaction() {
+        List<Object> events = deferredEvents.get();
+        deferredEvents.remove();
+        databaseHelper.getWritableDatabase().endTransaction();
+        return (events == null) ? new LinkedList<Object>() : events;
+    }
+
     public void reset(SQLiteOpenHelper databaseHelper) {
         this.databaseHelper = databaseHelper;
     }
 
+    /*
+     * returns "( id1 , id2 , ... )" to be used with IN. The ids are numbers so they can be
+     * inlined safely, which avoids the limit on the number of bound arguments.
+     */
+    protected static String inList(Collection<Long> ids) {
+        StringBuilder ret = new StringBuilder("( ");
+        boolean first = true;
+        for(Long id : ids) {
+            if(!first)
+                ret.append(" , ");
+            ret.append(id.longValue());
+            first = false;
+        }
+        ret.append(" )");
+        return ret.toString();
+    }
+
     public int getCount() {
         SQLiteDatabase database = databaseHelper.getReadableDatabase();
         Cursor cursor = database.query(getTableName(), null, null, null, null, null, null);
@@ -21,27 +21,37 @@ package org.disrupted.rumble.database;
 
 import org.disrupted.rumble.util.Log;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * DatabaseExecutor
  *
- * Every I/O operation on the Database are done by one thread only: the executorThread
- * This ensures that the database will not be accessed by multiple thread concurently
- * Also each operation are done asynchronously and a QueryEvent is thrown when the query
- * is done
+ * Every I/O operation on the Database are done asynchronously by the executor threads and a
+ * callback is called when the query is done. The database is in WAL mode, so the queries are
+ * served by two kinds of lanes:
+ *    - one writer lane, so that the write operations are serialized
+ *    - a small pool of reader lanes, that run concurrently with each other and with the writer
  *
  * Operation on the database are classified into "write" operation and "read" operation.
  *    - Write operation results in a callback being called with a boolean as parameter
  *      To request a write operation, one must call
  *
- *              addWritableTask(WritableQuery query, WritableQueryFinished callback)
+ *              addQuery(WritableQuery query, WritableQueryCallback callback, Priority priority)
  *
  *    - Read operation results a ReadableQueryCallback to be called
  *      To request a read operation, one must call
  *
- *               addReadableTask(ReadableQuery query, ReadableQueryFinished callback)
+ *              addQuery(ReadableQuery query, ReadableQueryCallback callback, Priority priority)
+ *
+ * Within a lane, the queries are served by priority (UI first, then NETWORK, then BACKGROUND)
+ * and in FIFO order for the same priority. Every query returns a QueryHandle that can cancel
+ * the query as long as it has not started and that exposes its queue and execution time.
+ *
+ * There is no ordering between the lanes: a read may overtake a write queued before it and
+ * then not see it, and a write may overtake the writes of a lower priority. A caller that
+ * needs to read what it wrote must queue the read from the callback of the write.
  *
  * @author Lucien Loiseau
  */
@@ -49,11 +59,25 @@ public class DatabaseExecutor {
 
     private static final String TAG = "DatabaseExecutor";
 
-    private BlockingQueue<Runnable> queryQueue;
-    private Thread executorThread;
+    public static final int DEFAULT_NB_READERS = 2;
+
+    private static final long SLOW_QUERY_THRESHOLD = 200; // milliseconds
+
+    public enum Priority {
+        UI, NETWORK, BACKGROUND
+    }
+
+    private PriorityBlockingQueue<QueryHandle> writeQueue;
+    private PriorityBlockingQueue<QueryHandle> readQueue;
+    private Thread   writerThread;
+    private Thread[] readerThreads;
+    private int      nbReaders;
 
     private static final Object lock = new Object();
-    private boolean running;
+    private volatile boolean running;
+
+    private final AtomicLong sequence = new AtomicLong(0);
+    private final QueryStatistics[] statistics;
 
     public interface WritableQuery {
         public boolean write();
@@ -68,9 +92,129 @@ public class DatabaseExecutor {
         public void onReadableQueryFinished(Object object);
     }
 
+    /*
+     * A QueryHandle is returned for every query added to the executor.
+     * A query that is cancelled before it starts is never run and its callback is never called.
+     */
+    public static abstract class QueryHandle implements Comparable<QueryHandle> {
+
+        private static final int QUEUED    = 0;
+        private static final int RUNNING   = 1;
+        private static final int DONE      = 2;
+        private static final int CANCELLED = 3;
+
+        private final Priority priority;
+        private final long     sequence;
+        private final long     queuedAt;
+        private volatile long  startedAt;
+        private volatile long  finishedAt;
+        private final AtomicInteger state;
+        private PriorityBlockingQueue<QueryHandle> queue;
+
+        private QueryHandle(Priority priority, long sequence) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.queuedAt = System.nanoTime();
+            this.startedAt = -1;
+            this.finishedAt = -1;
+            this.state = new AtomicInteger(QUEUED);
+            this.queue = null;
+        }
+
+        protected abstract void execute();
+
+        public Priority getPriority() {
+            return priority;
+        }
+
+        /*
+         * returns true if the query was cancelled before it started
+         */
+        public boolean cancel() {
+            if(!state.compareAndSet(QUEUED, CANCELLED))
+                return false;
+            PriorityBlockingQueue<QueryHandle> q = queue;
+            if(q != null)
+                q.remove(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        public boolean isDone() {
+            return state.get() == DONE;
+        }
+
+        /*
+         * the time spent in the queue in milliseconds, so far if the query has not started yet
+         */
+        public long getQueueTime() {
+            long end = (startedAt < 0) ? System.nanoTime() : startedAt;
+            return (end - queuedAt) / 1000000L;
+        }
+
+        /*
+         * the execution time in milliseconds (including the callback), -1 if not done
+         */
+        public long getExecutionTime() {
+            if((startedAt < 0) || (finishedAt < 0))
+                return -1;
+            return (finishedAt - startedAt) / 1000000L;
+        }
+
+        @Override
+        public int compareTo(QueryHandle other) {
+            if(priority != other.priority)
+                return priority.ordinal() - other.priority.ordinal();
+            return (sequence < other.sequence) ? -1 : ((sequence == other.sequence) ? 0 : 1);
+        }
+    }
+
+    /*
+     * cumulated queue and execution time of the queries of a given priority
+     */
+    public static class QueryStatistics {
+        private long count = 0;
+        private long totalQueueTime = 0;
+        private long totalExecutionTime = 0;
+        private long maxQueueTime = 0;
+
+        private synchronized void add(long queueTime, long executionTime) {
+            count++;
+            totalQueueTime += queueTime;
+            totalExecutionTime += executionTime;
+            maxQueueTime = Math.max(maxQueueTime, queueTime);
+        }
+
+        public synchronized long getCount() {
+            return count;
+        }
+        public synchronized long getAverageQueueTime() {
+            return (count == 0) ? 0 : totalQueueTime / count;
+        }
+        public synchronized long getAverageExecutionTime() {
+            return (count == 0) ? 0 : totalExecutionTime / count;
+        }
+        public synchronized long getMaxQueueTime() {
+            return maxQueueTime;
+        }
+    }
+
     public DatabaseExecutor() {
-        executorThread = null;
-        queryQueue = new LinkedBlockingQueue<Runnable>();
+        this(DEFAULT_NB_READERS);
+    }
+
+    public DatabaseExecutor(int nbReaders) {
+        this.nbReaders = Math.max(1, nbReaders);
+        writerThread = null;
+        readerThreads = null;
+        writeQueue = new PriorityBlockingQueue<QueryHandle>();
+        readQueue  = new PriorityBlockingQueue<QueryHandle>();
+        statistics = new QueryStatistics[Priority.values().length];
+        for(int i = 0; i < statistics.length; i++)
+            statistics[i] = new QueryStatistics();
         startExecutor();
     }
 
@@ -81,69 +225,137 @@ public class DatabaseExecutor {
     }
 
     private void startExecutor() {
-        if(running)
-            return;
-        running = true;
+        synchronized (lock) {
+            if (running)
+                return;
+            running = true;
 
-        executorThread = new Thread() {
-            @Override
-            public synchronized void run() {
-                Log.d(TAG, "[+] Database executor started");
-                try {
-                    while (true) {
-                        Runnable task = queryQueue.take();
-                        task.run();
-                    }
-                } catch (InterruptedException e) {
-                    Log.d(TAG, "[!] Executor thread has stopped");
-                }
+            Log.d(TAG, "[+] Database executor started with " + nbReaders + " reader lanes");
+            writerThread = new Thread(new Lane(writeQueue), TAG + " writer");
+            writerThread.start();
+            readerThreads = new Thread[nbReaders];
+            for (int i = 0; i < nbReaders; i++) {
+                readerThreads[i] = new Thread(new Lane(readQueue), TAG + " reader " + i);
+                readerThreads[i].start();
             }
-        };
-        executorThread.start();
+        }
     }
 
     public void stopExecutor() {
-        if(!running)
-            return;
-        running = false;
+        synchronized (lock) {
+            if (!running)
+                return;
+            running = false;
 
-        if (executorThread != null)
-            executorThread.interrupt();
-        executorThread = null;
-        queryQueue.clear();
+            // before the interruption, a lane that is running a query may not see it
+            cancelAll(writeQueue);
+            cancelAll(readQueue);
+            if (writerThread != null)
+                writerThread.interrupt();
+            writerThread = null;
+            if (readerThreads != null) {
+                for (Thread reader : readerThreads)
+                    reader.interrupt();
+            }
+            readerThreads = null;
+        }
+    }
+
+    public QueryStatistics getStatistics(Priority priority) {
+        return statistics[priority.ordinal()];
     }
 
     public boolean addQuery(final WritableQuery query, final WritableQueryCallback callback) {
-        if(!running)
-            return false;
-        synchronized (lock) {
-            queryQueue.add(new Runnable() {
-                @Override
-                public void run() {
-                    boolean success = query.write();
-                    if(callback != null)
-                        callback.onWritableQueryFinished(success);
-                }
-            });
-        }
-        return true;
+        return (addQuery(query, callback, Priority.NETWORK) != null);
     }
 
     public boolean addQuery(final ReadableQuery query, final ReadableQueryCallback callback) {
-        if(!running)
-            return false;
+        return (addQuery(query, callback, Priority.UI) != null);
+    }
+
+    /*
+     * returns null if the executor is not running
+     */
+    public QueryHandle addQuery(final WritableQuery query, final WritableQueryCallback callback, Priority priority) {
+        QueryHandle handle = new QueryHandle(priority, sequence.getAndIncrement()) {
+            @Override
+            protected void execute() {
+                boolean success = query.write();
+                if(callback != null)
+                    callback.onWritableQueryFinished(success);
+            }
+        };
+        return enqueue(writeQueue, handle);
+    }
+
+    /*
+     * returns null if the executor is not running
+     */
+    public QueryHandle addQuery(final ReadableQuery query, final ReadableQueryCallback callback, Priority priority) {
+        QueryHandle handle = new QueryHandle(priority, sequence.getAndIncrement()) {
+            @Override
+            protected void execute() {
+                Object object = query.read();
+                if(callback != null)
+                    callback.onReadableQueryFinished(object);
+            }
+        };
+        return enqueue(readQueue, handle);
+    }
+
+    private QueryHandle enqueue(PriorityBlockingQueue<QueryHandle> queue, QueryHandle handle) {
         synchronized (lock) {
-            queryQueue.add(new Runnable() {
-                @Override
-                public void run() {
-                    Object object = query.read();
-                    if(callback != null)
-                        callback.onReadableQueryFinished(object);
+            if(!running)
+                return null;
+            handle.queue = queue;
+            queue.add(handle);
+        }
+        return handle;
+    }
 
+    // /!\  carefull, it does not lock
+    private void cancelAll(PriorityBlockingQueue<QueryHandle> queue) {
+        QueryHandle handle;
+        while((handle = queue.poll()) != null)
+            handle.state.compareAndSet(QueryHandle.QUEUED, QueryHandle.CANCELLED);
+    }
+
+    private class Lane implements Runnable {
+
+        private final PriorityBlockingQueue<QueryHandle> queue;
+
+        Lane(PriorityBlockingQueue<QueryHandle> queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    QueryHandle handle = queue.take();
+                    if(!handle.state.compareAndSet(QueryHandle.QUEUED, QueryHandle.RUNNING))
+                        continue;
+                    handle.startedAt = System.nanoTime();
+                    try {
+                        handle.execute();
+                    } catch (Exception e) {
+                        Log.e(TAG, "[!] query failed", e);
+                    } finally {
+                        handle.finishedAt = System.nanoTime();
+                        handle.state.set(QueryHandle.DONE);
+                    }
+
+                    long queueTime = handle.getQueueTime();
+                    long executionTime = handle.getExecutionTime();
+                    statistics[handle.priority.ordinal()].add(queueTime, executionTime);
+                    if (queueTime + executionTime > SLOW_QUERY_THRESHOLD)
+                        Log.d(TAG, "[-] slow " + handle.priority + " query: waited " + queueTime
+                                + "ms, executed in " + executionTime + "ms");
                 }
-            });
+            } catch (InterruptedException ignore) {
+            }
+            Log.d(TAG, "[!] Executor lane has stopped");
         }
-        return true;
     }
 
 }
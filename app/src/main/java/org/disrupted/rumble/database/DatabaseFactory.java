@@ -37,7 +37,7 @@ public class DatabaseFactory {
 
     private static final String TAG = "DatabaseFactory";
 
-    private static final int DATABASE_VERSION  = 1;
+    static final int DATABASE_VERSION          = 6;
     private static final String MAIN_DB_NAME   = "rumble.db";
 
     private static final int STATISTIC_VERSION  = 1;
@@ -61,6 +61,7 @@ public class DatabaseFactory {
     private final InterfaceDatabase              interfaceDatabase;
     private final ContactInterfaceDatabase       contactInterfaceDatabase;
     private final StatusContactDatabase          statusContactDatabase;
+    private final DeletedFileDatabase            deletedFileDatabase;
     private DatabaseExecutor                     databaseExecutor;
 
     private final StatReachabilityDatabase statReachabilityDatabase;
@@ -115,6 +116,9 @@ public class DatabaseFactory {
     public static StatusContactDatabase getStatusContactDatabase(Context context) {
         return getInstance(context).statusContactDatabase;
     }
+    public static DeletedFileDatabase getDeletedFileDatabase(Context context) {
+        return getInstance(context).deletedFileDatabase;
+    }
     public static DatabaseExecutor getDatabaseExecutor(Context context) {
         return getInstance(context).databaseExecutor;
     }
@@ -151,6 +155,7 @@ public class DatabaseFactory {
         this.contactHashTagInterestDatabase = new ContactHashTagInterestDatabase(context, databaseHelper);
         this.contactInterfaceDatabase       = new ContactInterfaceDatabase(context, databaseHelper);
         this.statusContactDatabase          = new StatusContactDatabase(context, databaseHelper);
+        this.deletedFileDatabase            = new DeletedFileDatabase(context, databaseHelper);
         this.databaseExecutor               = new DatabaseExecutor();
 
         // statistic tables
@@ -177,6 +182,7 @@ public class DatabaseFactory {
         this.contactHashTagInterestDatabase.reset(databaseHelper);
         this.contactInterfaceDatabase.reset(databaseHelper);
         this.statusContactDatabase.reset(databaseHelper);
+        this.deletedFileDatabase.reset(databaseHelper);
         olddb.close();
 
         StatisticHelper oldstat = this.statisticHelper;
@@ -189,6 +195,67 @@ public class DatabaseFactory {
         oldstat.close();
     }
 
+    /*
+     * the migrations of the main database, ordered by version
+     */
+    static final DatabaseMigration[] MIGRATIONS = {
+            // version 2: indexes for the filters of PushStatusDatabase.getStatuses
+            new DatabaseMigration(2) {
+                @Override
+                protected void migrate(Connection db) {
+                    executeStatements(db, PushStatusDatabase.CREATE_INDEXS);
+                    executeStatements(db, StatusContactDatabase.CREATE_LEGACY_INDEXS);
+                }
+            },
+            // version 3: full-text index of the statuses, see PushStatusDatabase.searchStatuses
+            new DatabaseMigration(3) {
+                @Override
+                protected void migrate(Connection db) {
+                    executeStatements(db, PushStatusDatabase.CREATE_FTS);
+                }
+            },
+            // version 4: the files waiting to be unlinked, see FileGarbageCollector
+            new DatabaseMigration(4) {
+                @Override
+                protected void migrate(Connection db) {
+                    db.execSQL(DeletedFileDatabase.CREATE_TABLE);
+                }
+            },
+            // version 5: the references to the attached files, see AttachmentStore
+            new DatabaseMigration(5) {
+                @Override
+                protected void migrate(Connection db) {
+                    db.execSQL(PushStatusDatabase.CREATE_FILE_INDEX);
+                }
+            },
+            // version 6: one bitmap of statuses per contact, see StatusContactDatabase
+            new DatabaseMigration(6) {
+                @Override
+                protected void migrate(Connection db) {
+                    StatusContactDatabase.migrateLegacyTable(db);
+                }
+            }
+    };
+
+    /*
+     * the schema of the version 1 of the main database, it must never change
+     */
+    static void createVersion1(DatabaseMigration.Connection db) {
+        db.execSQL(ContactDatabase.CREATE_TABLE);
+        db.execSQL(GroupDatabase.CREATE_TABLE);
+        db.execSQL(PushStatusDatabase.CREATE_TABLE);
+        db.execSQL(HashtagDatabase.CREATE_TABLE);
+        db.execSQL(StatusTagDatabase.CREATE_TABLE);
+        db.execSQL(ChatMessageDatabase.CREATE_TABLE);
+        db.execSQL(InterfaceDatabase.CREATE_TABLE);
+        db.execSQL(ContactGroupDatabase.CREATE_TABLE);
+        db.execSQL(ContactHashTagInterestDatabase.CREATE_TABLE);
+        db.execSQL(ContactInterfaceDatabase.CREATE_TABLE);
+        db.execSQL(StatusContactDatabase.CREATE_LEGACY_TABLE);
+
+        DatabaseMigration.executeStatements(db, StatusTagDatabase.CREATE_INDEXS);
+    }
+
     private static class DatabaseHelper extends SQLiteOpenHelper {
 
         public DatabaseHelper(Context context, String name, CursorFactory factory, int version) {
@@ -197,29 +264,28 @@ public class DatabaseFactory {
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-            //nothing for the moment
+            DatabaseMigration.upgrade(DatabaseMigration.wrap(db), MIGRATIONS, oldVersion, newVersion);
         }
 
+        /*
+         * WAL lets the reader lanes of the DatabaseExecutor run while the writer lane commits.
+         * The queries of getStatuses have a few stable shapes (see PushStatusDatabase) so their
+         * compiled statements can stay in the statement cache of every connection.
+         */
         @Override
-        public void onCreate(SQLiteDatabase db) {
-            db.execSQL(ContactDatabase.CREATE_TABLE);
-            db.execSQL(GroupDatabase.CREATE_TABLE);
-            db.execSQL(PushStatusDatabase.CREATE_TABLE);
-            db.execSQL(HashtagDatabase.CREATE_TABLE);
-            db.execSQL(StatusTagDatabase.CREATE_TABLE);
-            db.execSQL(ChatMessageDatabase.CREATE_TABLE);
-            db.execSQL(InterfaceDatabase.CREATE_TABLE);
-            db.execSQL(ContactGroupDatabase.CREATE_TABLE);
-            db.execSQL(ContactHashTagInterestDatabase.CREATE_TABLE);
-            db.execSQL(ContactInterfaceDatabase.CREATE_TABLE);
-            db.execSQL(StatusContactDatabase.CREATE_TABLE);
-
-            executeStatements(db, StatusTagDatabase.CREATE_INDEXS);
+        public void onOpen(SQLiteDatabase db) {
+            super.onOpen(db);
+            if(!db.isReadOnly())
+                db.enableWriteAheadLogging();
+            db.setMaxSqlCacheSize(SQLiteDatabase.MAX_SQL_CACHE_SIZE);
         }
 
-        private void executeStatements(SQLiteDatabase db, String[] statements) {
-            for (String statement : statements)
-                db.execSQL(statement);
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            DatabaseMigration.Connection connection = DatabaseMigration.wrap(db);
+            createVersion1(connection);
+            // version 1 is created, the rest of the schema is brought by the migrations
+            DatabaseMigration.upgrade(connection, MIGRATIONS, 1, DATABASE_VERSION);
         }
     }
 
@@ -234,6 +300,16 @@ public class DatabaseFactory {
             // nothing for the moment
         }
 
+        /*
+         * WAL lets the reader lanes of the DatabaseExecutor run while the writer lane commits
+         */
+        @Override
+        public void onOpen(SQLiteDatabase db) {
+            super.onOpen(db);
+            if(!db.isReadOnly())
+                db.enableWriteAheadLogging();
+        }
+
         @Override
         public void onCreate(SQLiteDatabase db) {
             db.execSQL(StatInterfaceDatabase.CREATE_TABLE);
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ *
+ * This file is part of Rumble.
+ *
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.database;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.disrupted.rumble.util.Log;
+
+/**
+ * A DatabaseMigration upgrades the schema from version (getVersion() - 1) to getVersion().
+ * The migrations are run in order from onUpgrade. The SQLiteOpenHelper wraps onUpgrade (and
+ * onCreate) in a single transaction along with the new version number, so if a step fails
+ * every step of the upgrade is rolled back and the database stays at its former version.
+ *
+ * A fresh database is created at version 1 and goes through every migration as well, so
+ * that there is only one way to end up with a given schema.
+ *
+ * The migrations only see a Connection, which is a SQLiteDatabase on the device and a
+ * desktop SQLite in the unit tests, so the very same migrations build the test databases.
+ *
+ * @author Lucien Loiseau
+ */
+public abstract class DatabaseMigration {
+
+    private static final String TAG = "DatabaseMigration";
+
+    private final int version;
+
+    /*
+     * the operations available to a migration
+     */
+    public interface Connection {
+        void execSQL(String sql);
+        void execSQL(String sql, Object[] bindArgs);
+        Cursor rawQuery(String sql, String[] selectionArgs);
+    }
+
+    public static Connection wrap(final SQLiteDatabase db) {
+        return new Connection() {
+            @Override
+            public void execSQL(String sql) {
+                db.execSQL(sql);
+            }
+
+            @Override
+            public void execSQL(String sql, Object[] bindArgs) {
+                db.execSQL(sql, bindArgs);
+            }
+
+            @Override
+            public Cursor rawQuery(String sql, String[] selectionArgs) {
+                return db.rawQuery(sql, selectionArgs);
+            }
+        };
+    }
+
+    public DatabaseMigration(int version) {
+        this.version = version;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    protected abstract void migrate(Connection db);
+
+    /*
+     * run every migration whose version is in ]oldVersion, newVersion]
+     */
+    public static void upgrade(Connection db, DatabaseMigration[] migrations, int oldVersion, int newVersion) {
+        for(DatabaseMigration migration : migrations) {
+            if((migration.getVersion() <= oldVersion) || (migration.getVersion() > newVersion))
+                continue;
+            Log.d(TAG, "[+] migrating database to version "+migration.getVersion());
+            migration.migrate(db);
+        }
+    }
+
+    protected static void executeStatements(Connection db, String[] statements) {
+        for (String statement : statements)
+            db.execSQL(statement);
+    }
+}
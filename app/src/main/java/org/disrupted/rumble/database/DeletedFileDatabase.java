@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ * This file is part of Rumble.
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.database;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * DeletedFileDatabase is the queue of the attached files whose status has been deleted in bulk
+ * and that are waiting to be unlinked by the FileGarbageCollector. The files are queued in the
+ * same transaction as the deletion of their statuses so that none is leaked if the application
+ * stops before they are unlinked.
+ *
+ * @author Lucien Loiseau
+ */
+public class DeletedFileDatabase extends Database {
+
+    private static final String TAG = "DeletedFileDatabase";
+
+    public static final String TABLE_NAME = "deleted_files";
+    public static final String ID         = "_id";
+    public static final String FILE_NAME  = "filename";
+
+    public static final String CREATE_TABLE = "CREATE TABLE IF NOT EXISTS " + TABLE_NAME +
+            " (" + ID        + " INTEGER PRIMARY KEY, "
+            + FILE_NAME      + " TEXT "
+            + " );";
+
+    public DeletedFileDatabase(Context context, SQLiteOpenHelper databaseHelper) {
+        super(context, databaseHelper);
+    }
+
+    @Override
+    public String getTableName() {
+        return TABLE_NAME;
+    }
+
+    /*
+     * queues the files attached to the statuses selected by the query (that returns the file
+     * names as f), the files outside of our album are not ours to delete
+     */
+    // /!\  carefull, it must be called within the transaction deleting the statuses
+    public void queueFiles(String selectFileNames, String[] args) {
+        databaseHelper.getWritableDatabase().execSQL(queueFilesStatement(selectFileNames),
+                (args == null) ? new String[0] : args);
+    }
+
+    static String queueFilesStatement(String selectFileNames) {
+        return "INSERT INTO " + TABLE_NAME + " (" + FILE_NAME + ")"
+                + " SELECT f FROM (" + selectFileNames + ") WHERE f IS NOT NULL AND f != '' AND f NOT LIKE '/%'";
+    }
+
+    /*
+     * returns at most limit queued files, as a map from entry id to file name
+     */
+    public Map<Long, String> getQueuedFiles(int limit) {
+        Map<Long, String> ret = new LinkedHashMap<Long, String>();
+        SQLiteDatabase database = databaseHelper.getReadableDatabase();
+        Cursor cursor = database.query(TABLE_NAME, new String[]{ID, FILE_NAME}, null, null,
+                null, null, ID + " ASC", Integer.toString(limit));
+        if(cursor == null)
+            return ret;
+        try {
+            for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext())
+                ret.put(cursor.getLong(0), cursor.getString(1));
+        } finally {
+            cursor.close();
+        }
+        return ret;
+    }
+
+    public int removeQueuedFiles(Collection<Long> ids) {
+        if(ids.isEmpty())
+            return 0;
+        return databaseHelper.getWritableDatabase().delete(TABLE_NAME, ID + " IN " + inList(ids), null);
+    }
+}
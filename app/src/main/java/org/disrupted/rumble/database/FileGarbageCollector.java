@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ *
+ * This file is part of Rumble.
+ *
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.database;
+
+import org.disrupted.rumble.app.RumbleApplication;
+import org.disrupted.rumble.util.FileUtil;
+import org.disrupted.rumble.util.Log;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * The FileGarbageCollector unlinks the attached files of the statuses deleted in bulk (see
+ * DeletedFileDatabase) on its own thread, so that wiping the statuses or purging a group only
+ * costs a few set-based deletes on the DatabaseExecutor whatever the number of files.
+ *
+ * The queue is persistent: whatever was not collected before the application stopped is
+ * collected when it starts again.
+ *
+ * @author Lucien Loiseau
+ */
+public class FileGarbageCollector {
+
+    private static final String TAG = "FileGarbageCollector";
+
+    private static final int  BATCH_SIZE  = 256;
+    private static final long RETRY_DELAY = 60000; // in ms, when the storage is not writable
+
+    private static final Object lock = new Object();
+    private static FileGarbageCollector instance;
+
+    private Thread  worker;
+    private boolean pending;
+
+    private volatile long collectedFiles;
+
+    public static FileGarbageCollector getInstance() {
+        synchronized (lock) {
+            if (instance == null)
+                instance = new FileGarbageCollector();
+
+            return instance;
+        }
+    }
+
+    private FileGarbageCollector() {
+        worker = null;
+        pending = false;
+        collectedFiles = 0;
+    }
+
+    public void start() {
+        synchronized (lock) {
+            if(worker != null)
+                return;
+            Log.d(TAG, "[+] Starting File Garbage Collector");
+            pending = true; // the files left by the previous run
+            worker = new Thread(collect, TAG);
+            worker.start();
+        }
+    }
+
+    public void stop() {
+        synchronized (lock) {
+            if(worker == null)
+                return;
+            Log.d(TAG, "[-] Stopping File Garbage Collector");
+            worker.interrupt();
+            worker = null;
+        }
+    }
+
+    /*
+     * to be called once files have been queued (and the transaction committed)
+     */
+    public void wakeUp() {
+        synchronized (lock) {
+            pending = true;
+            lock.notifyAll();
+        }
+    }
+
+    public long getCollectedFiles() {
+        return collectedFiles;
+    }
+
+    private Runnable collect = new Runnable() {
+        @Override
+        public void run() {
+            DeletedFileDatabase database = DatabaseFactory.getDeletedFileDatabase(RumbleApplication.getContext());
+            try {
+                while(true) {
+                    synchronized (lock) {
+                        while(!pending)
+                            lock.wait();
+                        pending = false;
+                    }
+
+                    Map<Long, String> batch = database.getQueuedFiles(BATCH_SIZE);
+                    while(!batch.isEmpty()) {
+                        try {
+                            FileUtil.getWritableAlbumStorageDir();
+                        } catch (IOException e) {
+                            Log.d(TAG, "[!] storage not writable, "+e.getMessage());
+                            Thread.sleep(RETRY_DELAY);
+                            continue;
+                        }
+                        // a file still used by another status is kept, see AttachmentStore
+                        for (String filename : batch.values())
+                            AttachmentStore.getInstance().release(filename);
+                        database.removeQueuedFiles(batch.keySet());
+                        collectedFiles += batch.size();
+                        Log.d(TAG, "[-] " + batch.size() + " files collected");
+
+                        if(Thread.interrupted())
+                            throw new InterruptedException();
+                        batch = database.getQueuedFiles(BATCH_SIZE);
+                    }
+                }
+            } catch (InterruptedException ignore) {
+            }
+        }
+    };
+}
@@ -13,13 +13,12 @@ import org.disrupted.rumble.database.objects.Group;
 import org.disrupted.rumble.util.CryptoUtil;
 
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 
 import javax.crypto.SecretKey;
 
-import de.greenrobot.event.EventBus;
-
-
 /**
  * @author Lucien Loiseau
  */
@@ -45,8 +44,28 @@ public class GroupDatabase  extends  Database{
                  + "UNIQUE( " + GID +" ) "
            + " ); ";
 
+    private static final int CACHE_SIZE = 64;
+
+    // the groups are cached by gid and dbid, the cache holds private copies
+    private final IdentityCache<Group> cache;
+
     public GroupDatabase(Context context, SQLiteOpenHelper databaseHelper) {
         super(context, databaseHelper);
+        cache = new IdentityCache<Group>(CACHE_SIZE);
+    }
+
+    @Override
+    public void reset(SQLiteOpenHelper databaseHelper) {
+        super.reset(databaseHelper);
+        cache.invalidateAll();
+    }
+
+    public IdentityCache<Group> getCache() {
+        return cache;
+    }
+
+    public void invalidate(String gid) {
+        cache.invalidate(gid);
     }
 
     @Override
@@ -80,15 +99,22 @@ public class GroupDatabase  extends  Database{
     }
 
     public Group getGroup(long group_dbid) {
+        Group cached = cache.getByDbid(group_dbid);
+        if(cached != null)
+            return copy(cached);
+
+        long generation = cache.getGeneration();
         Cursor cursor = null;
         try {
             SQLiteDatabase database = databaseHelper.getReadableDatabase();
             cursor = database.query(TABLE_NAME, null, ID+ " = ?", new String[] {Long.toString(group_dbid)}, null, null, null);
             if(cursor == null)
                 return null;
-            if(cursor.moveToFirst() && !cursor.isAfterLast())
-                return cursorToGroup(cursor);
-            else
+            if(cursor.moveToFirst() && !cursor.isAfterLast()) {
+                Group group = cursorToGroup(cursor);
+                cache.put(generation, group.getGid(), group_dbid, copy(group));
+                return group;
+            } else
                 return null;
         } finally {
             if(cursor != null)
@@ -96,16 +122,48 @@ public class GroupDatabase  extends  Database{
         }
     }
 
+    // to be completed with the list of group dbids (see inList)
+    static final String GROUPS_IN = "SELECT * FROM " + TABLE_NAME + " WHERE " + ID + " IN ";
+
+    /*
+     * resolves many groups at once, returns a map from group dbid to group
+     */
+    public Map<Long, Group> getGroups(Collection<Long> groupDBIDs) {
+        Map<Long, Group> ret = new HashMap<Long, Group>();
+        if(groupDBIDs.isEmpty())
+            return ret;
+        Cursor cursor = null;
+        try {
+            SQLiteDatabase database = databaseHelper.getReadableDatabase();
+            cursor = database.rawQuery(GROUPS_IN + inList(groupDBIDs), null);
+            if(cursor == null)
+                return ret;
+            for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext())
+                ret.put(cursor.getLong(cursor.getColumnIndexOrThrow(ID)), cursorToGroup(cursor));
+            return ret;
+        } finally {
+            if(cursor != null)
+                cursor.close();
+        }
+    }
+
     public Group getGroup(String gid) {
+        Group cached = cache.getByKey(gid);
+        if(cached != null)
+            return copy(cached);
+
+        long generation = cache.getGeneration();
         Cursor cursor = null;
         try {
             SQLiteDatabase database = databaseHelper.getReadableDatabase();
             cursor = database.query(TABLE_NAME, null, GID+ " = ?", new String[] {gid}, null, null, null);
             if(cursor == null)
                 return null;
-            if(cursor.moveToFirst() && !cursor.isAfterLast())
-                return cursorToGroup(cursor);
-            else
+            if(cursor.moveToFirst() && !cursor.isAfterLast()) {
+                Group group = cursorToGroup(cursor);
+                cache.put(generation, gid, cursor.getLong(cursor.getColumnIndexOrThrow(ID)), copy(group));
+                return group;
+            } else
                 return null;
         } finally {
             if(cursor != null)
@@ -114,12 +172,20 @@ public class GroupDatabase  extends  Database{
     }
 
     public long getGroupDBID(String group_id) {
+        long ret = cache.getDbid(group_id);
+        if(ret >= 0)
+            return ret;
+
+        long generation = cache.getGeneration();
         Cursor cursor = null;
         try {
             SQLiteDatabase database = databaseHelper.getReadableDatabase();
             cursor = database.query(TABLE_NAME, new String[] { ID }, GID+ " = ?", new String[] {group_id}, null, null, null);
-            if((cursor != null) && cursor.moveToFirst() && !cursor.isAfterLast())
-                return cursor.getLong(cursor.getColumnIndexOrThrow(ID));
+            if((cursor != null) && cursor.moveToFirst() && !cursor.isAfterLast()) {
+                ret = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
+                cache.put(generation, group_id, ret, null);
+                return ret;
+            }
         } finally {
             if(cursor != null)
                 cursor.close();
@@ -144,33 +210,18 @@ public class GroupDatabase  extends  Database{
         contentValues.put(DESC, group.getDesc());
 
         long count = databaseHelper.getWritableDatabase().insertWithOnConflict(TABLE_NAME, null, contentValues,SQLiteDatabase.CONFLICT_IGNORE);
-        if(count > 0)
-            EventBus.getDefault().post(new GroupInsertedEvent(group));
+        if(count > 0) {
+            cache.invalidate(group.getGid());
+            postEvent(new GroupInsertedEvent(group));
+        }
         return (count > 0);
     }
 
     public void deleteGroupStatus(String gid) {
         if(gid == null)
             return;
-
-        PushStatusDatabase.StatusQueryOption options = new PushStatusDatabase.StatusQueryOption();
-        options.filterFlags |= PushStatusDatabase.StatusQueryOption.FILTER_GROUP;
-        options.groupIDFilters = new HashSet<String>();
-        options.groupIDFilters.add(gid);
-        options.query_result = PushStatusDatabase.StatusQueryOption.QUERY_RESULT.LIST_OF_UUIDS;
-        DatabaseFactory.getPushStatusDatabase(context).getStatuses(options, deleteGroupStatusCallback);
-    }
-    DatabaseExecutor.ReadableQueryCallback deleteGroupStatusCallback = new DatabaseExecutor.ReadableQueryCallback() {
-        @Override
-        public void onReadableQueryFinished(Object object) {
-            if(object != null) {
-                ArrayList<String> statuses = (ArrayList<String>) object;
-                for(String uuid : statuses) {
-                    DatabaseFactory.getPushStatusDatabase(context).deleteStatus(uuid);
-                }
-            }
-        }
-    };
+        DatabaseFactory.getPushStatusDatabase(context).deleteGroupStatuses(getGroupDBID(gid));
+    }
 
     public void leaveGroup(String gid) {
         if(gid == null)
@@ -178,8 +229,17 @@ public class GroupDatabase  extends  Database{
         deleteGroupStatus(gid);
         long groupDBID = getGroupDBID(gid);
         DatabaseFactory.getContactJoinGroupDatabase(context).deleteEntriesMatchingGroupID(groupDBID);
+        // every contact that had joined this group is now stale
+        DatabaseFactory.getContactDatabase(context).invalidateAll();
         if(databaseHelper.getWritableDatabase().delete(TABLE_NAME, ID+" = ?",new String[] {Long.toString(groupDBID)}) > 0)
-            EventBus.getDefault().post(new GroupDeletedEvent(gid));
+            postEvent(new GroupDeletedEvent(gid));
+        cache.invalidate(gid);
+    }
+
+    private static Group copy(Group group) {
+        Group ret = new Group(group.getName(), group.getGid(), group.getGroupKey());
+        ret.setDesc(group.getDesc());
+        return ret;
     }
 
     private Group cursorToGroup(Cursor cursor) {
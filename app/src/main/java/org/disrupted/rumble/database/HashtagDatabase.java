@@ -30,8 +30,6 @@ import org.disrupted.rumble.database.events.HashtagInsertedEvent;
 
 import java.util.ArrayList;
 
-import de.greenrobot.event.EventBus;
-
 /**
  * @author Lucien Loiseau
  */
@@ -107,10 +105,22 @@ public class HashtagDatabase extends  Database{
             ContentValues contentValues = new ContentValues();
             contentValues.put(HASHTAG, hashtag.toLowerCase());
             rowid = databaseHelper.getWritableDatabase().insert(TABLE_NAME, null, contentValues);
-            EventBus.getDefault().post(new HashtagInsertedEvent(hashtag));
+            postEvent(new HashtagInsertedEvent(hashtag));
         }
 
         return rowid;
     }
 
+    /*
+     * deletes the hashtags that are neither used by a status nor followed by a contact
+     */
+    static final String UNUSED_WHERE =
+            ID + " NOT IN (SELECT " + StatusTagDatabase.HDBID + " FROM " + StatusTagDatabase.TABLE_NAME + ")"
+                    + " AND " + ID + " NOT IN (SELECT " + ContactHashTagInterestDatabase.HDBID
+                    + " FROM " + ContactHashTagInterestDatabase.TABLE_NAME + ")";
+
+    public int deleteUnusedHashtags() {
+        return databaseHelper.getWritableDatabase().delete(TABLE_NAME, UNUSED_WHERE, null);
+    }
+
 }
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ *
+ * This file is part of Rumble.
+ *
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.database;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * IdentityCache is a bounded LRU cache of database objects that can be looked up either by
+ * their key (uid, gid) or by their database ID.
+ *
+ * To avoid caching a value read before an invalidation and stored after it, the loaders take
+ * the generation of the cache before querying the database and put() drops the value if the
+ * cache has been invalidated in the meantime. This only holds if the writers invalidate once
+ * their write is visible to the readers: after the write, and after the commit when it is
+ * part of a transaction (the readers do not see it before with the write-ahead log).
+ *
+ * An entry may only know the database ID of a key (its value is null) when only the ID
+ * was queried, such an entry counts as a miss for getByKey() and getByDbid().
+ *
+ * The cache keeps its own instances, the caller must copy the values if they are mutable.
+ *
+ * @author Lucien Loiseau
+ */
+public class IdentityCache<V> {
+
+    private static final String TAG = "IdentityCache";
+
+    private static class Entry<V> {
+        final String key;
+        final long   dbid;
+        final V      value;
+
+        Entry(String key, long dbid, V value) {
+            this.key = key;
+            this.dbid = dbid;
+            this.value = value;
+        }
+    }
+
+    private final int maxSize;
+    private final LinkedHashMap<String, Entry<V>> byKey;
+    private final Map<Long, Entry<V>>             byDbid;
+    private long generation;
+    private long hits;
+    private long misses;
+
+    public IdentityCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.byDbid = new HashMap<Long, Entry<V>>();
+        this.byKey = new LinkedHashMap<String, Entry<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry<V>> eldest) {
+                if(size() <= IdentityCache.this.maxSize)
+                    return false;
+                byDbid.remove(eldest.getValue().dbid);
+                return true;
+            }
+        };
+        this.generation = 0;
+        this.hits = 0;
+        this.misses = 0;
+    }
+
+    public synchronized V getByKey(String key) {
+        Entry<V> entry = byKey.get(key);
+        return found((entry == null) ? null : entry.value);
+    }
+
+    public synchronized V getByDbid(long dbid) {
+        Entry<V> entry = byDbid.get(dbid);
+        if(entry != null)
+            byKey.get(entry.key); // refresh the LRU order
+        return found((entry == null) ? null : entry.value);
+    }
+
+    /*
+     * returns the database ID of the key or -1 if it is not in the cache
+     */
+    public synchronized long getDbid(String key) {
+        Entry<V> entry = byKey.get(key);
+        if(entry == null) {
+            misses++;
+            return -1;
+        }
+        hits++;
+        return entry.dbid;
+    }
+
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /*
+     * caches a value loaded from the database, unless the cache was invalidated after
+     * the generation was read
+     */
+    public synchronized void put(long generation, String key, long dbid, V value) {
+        if((key == null) || (dbid < 0))
+            return;
+        if(generation != this.generation)
+            return;
+        Entry<V> old = byKey.get(key);
+        if((value == null) && (old != null) && (old.dbid == dbid))
+            return;
+        remove(key);
+        Entry<V> entry = new Entry<V>(key, dbid, value);
+        byDbid.put(dbid, entry);
+        byKey.put(key, entry);
+    }
+
+    public synchronized void invalidate(String key) {
+        generation++;
+        remove(key);
+    }
+
+    public synchronized void invalidateAll() {
+        generation++;
+        byKey.clear();
+        byDbid.clear();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized int size() {
+        return byKey.size();
+    }
+
+    // /!\  carefull, it does not lock
+    private V found(V value) {
+        if(value == null)
+            misses++;
+        else
+            hits++;
+        return value;
+    }
+
+    // /!\  carefull, it does not lock
+    private void remove(String key) {
+        Entry<V> old = byKey.remove(key);
+        if(old != null)
+            byDbid.remove(old.dbid);
+    }
+}
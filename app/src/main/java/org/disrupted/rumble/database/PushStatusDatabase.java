@@ -22,24 +22,33 @@ package org.disrupted.rumble.database;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import org.disrupted.rumble.util.Log;
 
+import org.disrupted.rumble.database.events.StatusDeletedEvent;
 import org.disrupted.rumble.database.events.StatusInsertedEvent;
 import org.disrupted.rumble.database.events.StatusUpdatedEvent;
 import org.disrupted.rumble.database.events.StatusWipedEvent;
 import org.disrupted.rumble.database.objects.Contact;
 import org.disrupted.rumble.database.objects.Group;
 import org.disrupted.rumble.database.objects.PushStatus;
-import org.disrupted.rumble.util.FileUtil;
+import org.disrupted.rumble.database.objects.StatusListItem;
+import org.disrupted.rumble.util.CompressedBitmap;
 
-import java.io.File;
-import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import de.greenrobot.event.EventBus;
@@ -96,6 +105,68 @@ public class PushStatusDatabase extends Database {
                  + "FOREIGN KEY ( "+ GROUP_DBID  + " ) REFERENCES " + GroupDatabase.TABLE_NAME   + " ( " + GroupDatabase.ID   + " ) "
           + " );";
 
+    /*
+     * every filter of getStatuses (and the expiry) can be served by an index, the time of
+     * arrival is appended to the equality filters since it is the usual ordering.
+     */
+    public static final String[] CREATE_INDEXS = {
+            "CREATE INDEX IF NOT EXISTS push_status_toa_index ON " + TABLE_NAME + " (" + TIME_OF_ARRIVAL + ");",
+            "CREATE INDEX IF NOT EXISTS push_status_toc_index ON " + TABLE_NAME + " (" + TIME_OF_CREATION + ");",
+            "CREATE INDEX IF NOT EXISTS push_status_group_index ON " + TABLE_NAME + " (" + GROUP_DBID + " , " + TIME_OF_ARRIVAL + ");",
+            "CREATE INDEX IF NOT EXISTS push_status_author_index ON " + TABLE_NAME + " (" + AUTHOR_DBID + " , " + TIME_OF_ARRIVAL + ");",
+            "CREATE INDEX IF NOT EXISTS push_status_liked_index ON " + TABLE_NAME + " (" + USERLIKED + " , " + TIME_OF_ARRIVAL + ");",
+            "CREATE INDEX IF NOT EXISTS push_status_read_index ON " + TABLE_NAME + " (" + USERREAD + " , " + TIME_OF_ARRIVAL + ");",
+            "CREATE INDEX IF NOT EXISTS push_status_hoplimit_index ON " + TABLE_NAME + " (" + HOP_LIMIT + ");",
+            "CREATE INDEX IF NOT EXISTS push_status_expiry_index ON " + TABLE_NAME + " (" + TIME_TO_LIVE + " , " + TIME_OF_CREATION + ");"
+    };
+
+    // the references to the attached files, see AttachmentStore
+    public static final String CREATE_FILE_INDEX = "CREATE INDEX IF NOT EXISTS push_status_file_index ON "
+            + TABLE_NAME + " (" + FILE_NAME + ");";
+
+    /*
+     * full-text index of the posts and hashtags, the docid of a row is the _id of its status.
+     * It is maintained by triggers: a row is added with the status, the hashtags are set as
+     * they are tagged and the row is removed with the status (the post never changes).
+     */
+    public static final String FTS_TABLE_NAME = "push_status_fts";
+    public static final String FTS_POST       = "post";
+    public static final String FTS_HASHTAGS   = "hashtags";
+
+    private static final String HASHTAGS_OF = "SELECT group_concat(h." + HashtagDatabase.HASHTAG + ", ' ')"
+            + " FROM " + StatusTagDatabase.TABLE_NAME + " st"
+            + " JOIN " + HashtagDatabase.TABLE_NAME + " h ON h." + HashtagDatabase.ID + " = st." + StatusTagDatabase.HDBID
+            + " WHERE st." + StatusTagDatabase.SDBID + " = ";
+
+    public static final String[] CREATE_FTS = {
+            "CREATE VIRTUAL TABLE IF NOT EXISTS " + FTS_TABLE_NAME + " USING fts4(" + FTS_POST + ", " + FTS_HASHTAGS + ");",
+            "CREATE TRIGGER IF NOT EXISTS push_status_fts_insert AFTER INSERT ON " + TABLE_NAME + " BEGIN"
+                    + " INSERT INTO " + FTS_TABLE_NAME + " (docid, " + FTS_POST + ", " + FTS_HASHTAGS + ")"
+                    + " VALUES (new." + ID + ", new." + POST + ", ''); END;",
+            "CREATE TRIGGER IF NOT EXISTS push_status_fts_delete AFTER DELETE ON " + TABLE_NAME + " BEGIN"
+                    + " DELETE FROM " + FTS_TABLE_NAME + " WHERE docid = old." + ID + "; END;",
+            "CREATE TRIGGER IF NOT EXISTS push_status_fts_tag AFTER INSERT ON " + StatusTagDatabase.TABLE_NAME + " BEGIN"
+                    + " UPDATE " + FTS_TABLE_NAME + " SET " + FTS_HASHTAGS + " = (" + HASHTAGS_OF + "new." + StatusTagDatabase.SDBID + ")"
+                    + " WHERE docid = new." + StatusTagDatabase.SDBID + "; END;",
+            "INSERT INTO " + FTS_TABLE_NAME + " (docid, " + FTS_POST + ", " + FTS_HASHTAGS + ")"
+                    + " SELECT ps." + ID + ", ps." + POST + ", ifnull((" + HASHTAGS_OF + "ps." + ID + "), '')"
+                    + " FROM " + TABLE_NAME + " ps;"
+    };
+
+    /*
+     * the columns and joins of a LIST_OF_ITEMS query (see StatusListItem), the preview is
+     * one character longer than needed so that StatusListItem knows the post is truncated
+     */
+    private static final String LIST_ITEM_COLUMNS = " ps."+ID+", ps."+UUID+", ps."+FILE_NAME+", ps."+TIME_OF_CREATION
+            +", ps."+TIME_OF_ARRIVAL+", ps."+USERREAD+", ps."+USERLIKED+", ps."+USERSAVED
+            +", substr(ps."+POST+", 1, "+(StatusListItem.POST_PREVIEW_SIZE+1)+") AS "+POST
+            +", ia."+ContactDatabase.UID+" AS author_uid, ia."+ContactDatabase.NAME+" AS author_name"
+            +", ig."+GroupDatabase.GID+" AS group_gid, ig."+GroupDatabase.NAME+" AS group_name ";
+    private static final String LIST_ITEM_JOINS =
+            " JOIN " + ContactDatabase.TABLE_NAME + " ia" +
+            " ON ps." + AUTHOR_DBID + " = ia." + ContactDatabase.ID +
+            " JOIN " + GroupDatabase.TABLE_NAME + " ig" +
+            " ON ps." + GROUP_DBID + " = ig." + GroupDatabase.ID;
 
     public static class StatusQueryOption {
         public static final long FILTER_READ               = 0x0001;
@@ -108,14 +179,16 @@ public class PushStatusDatabase extends Database {
         public static final long FILTER_AFTER_TOA          = 0x0080;
         public static final long FILTER_BEFORE_TOC         = 0x0100;
         public static final long FILTER_BEFORE_TOA         = 0x0200;
-        public static final long FILTER_NEVER_SEND_TO_USER = 0x0400;
         public static final long FILTER_NOT_EXPIRED        = 0x0800;
+        public static final long FILTER_BEFORE_KEY         = 0x1000;
+        public static final long FILTER_AFTER_KEY          = 0x2000;
 
         public enum QUERY_RESULT {
             COUNT,
             LIST_OF_MESSAGE,
             LIST_OF_DBIDS,
-            LIST_OF_UUIDS
+            LIST_OF_UUIDS,
+            LIST_OF_ITEMS
         }
 
         public enum ORDER_BY {
@@ -136,6 +209,10 @@ public class PushStatusDatabase extends Database {
         public long         before_toc;
         public long         before_toa;
         public String       uid;
+        public long         before_key_toa;   // (toa, dbid) of the keyset cursors
+        public long         before_key_dbid;
+        public long         after_key_toa;
+        public long         after_key_dbid;
         public int          answerLimit;
         public ORDER_BY     order_by;
         public QUERY_RESULT query_result;
@@ -151,6 +228,10 @@ public class PushStatusDatabase extends Database {
             before_toc = 0;
             after_toa = 0;
             before_toa = 0;
+            before_key_toa = 0;
+            before_key_dbid = 0;
+            after_key_toa = 0;
+            after_key_dbid = 0;
             answerLimit = 0;
             order_by = ORDER_BY.NO_ORDERING;
             query_result = QUERY_RESULT.LIST_OF_MESSAGE;
@@ -170,21 +251,164 @@ public class PushStatusDatabase extends Database {
          * General querying with options
          */
     public boolean getStatuses(final StatusQueryOption options, DatabaseExecutor.ReadableQueryCallback callback){
+        return (getStatuses(options, DatabaseExecutor.Priority.UI, callback) != null);
+    }
+    public DatabaseExecutor.QueryHandle getStatuses(final StatusQueryOption options,
+                                                    DatabaseExecutor.Priority priority,
+                                                    DatabaseExecutor.ReadableQueryCallback callback){
         return DatabaseFactory.getDatabaseExecutor(context).addQuery(
                 new DatabaseExecutor.ReadableQuery() {
                     @Override
                     public Object read() {
                         return getStatuses(options);
                     }
-                }, callback);
+                }, callback, priority);
     }
     private Object getStatuses(StatusQueryOption options) {
         if(options == null)
             options = new StatusQueryOption();
 
+        QueryShape shape = new QueryShape(options);
+        String query = getQuery(shape);
+        String[] arguments = getArguments(options, shape);
+
+        SQLiteDatabase database = databaseHelper.getReadableDatabase();
+        Cursor cursor = database.rawQuery(query, arguments);
+        if(cursor == null)
+            return null;
+
+        try {
+            switch (shape.result) {
+                case COUNT:
+                    cursor.moveToFirst();
+                    return cursor.getInt(0);
+                case LIST_OF_DBIDS:
+                    ArrayList<Integer> listMessagesID = new ArrayList<Integer>();
+                    for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+                        listMessagesID.add(cursor.getInt(cursor.getColumnIndexOrThrow(ID)));
+                    }
+                    return listMessagesID;
+                case LIST_OF_UUIDS:
+                    ArrayList<String> listMessagesUUID = new ArrayList<String>();
+                    for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+                        listMessagesUUID.add(cursor.getString(cursor.getColumnIndexOrThrow(UUID)));
+                    }
+                    return listMessagesUUID;
+                case LIST_OF_MESSAGE:
+                    ArrayList<PushStatus> statuses = cursorToStatuses(cursor);
+                    if(shape.reversed)
+                        Collections.reverse(statuses);
+                    return statuses;
+                case LIST_OF_ITEMS:
+                    ArrayList<StatusListItem> items = new ArrayList<StatusListItem>(cursor.getCount());
+                    for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext())
+                        items.add(cursorToListItem(cursor));
+                    if(shape.reversed)
+                        Collections.reverse(items);
+                    return items;
+                default:
+                    return null;
+            }
+        }finally {
+            cursor.close();
+        }
+    }
+
+    /*
+     * The SQL of getStatuses only depends on the shape of the query: the filters that are
+     * effectively applied, the size of the IN lists (rounded up to a power of two), the
+     * ordering and whether there is a limit. Every value is bound as a parameter so that a
+     * shape always gives the very same SQL: it is built once and its compiled statement is
+     * reused from the statement cache of the connection instead of being parsed again.
+     */
+    static class QueryShape {
+        final StatusQueryOption.QUERY_RESULT result;
+        final long    filters;
+        final int     nbHashtags;
+        final int     nbGroups;
+        final StatusQueryOption.ORDER_BY order;
+        final boolean reversed;
+        final boolean limited;
+        final String  key;
+
+        QueryShape(StatusQueryOption options) {
+            long flags = options.filterFlags;
+            if ((options.hashtagFilters == null) || (options.hashtagFilters.size() == 0))
+                flags &= ~StatusQueryOption.FILTER_TAG;
+            if ((options.groupIDFilters == null) || (options.groupIDFilters.size() == 0))
+                flags &= ~StatusQueryOption.FILTER_GROUP;
+            if (options.uid == null)
+                flags &= ~StatusQueryOption.FILTER_AUTHOR;
+
+            this.result     = options.query_result;
+            this.filters    = flags;
+            this.nbHashtags = ((flags & StatusQueryOption.FILTER_TAG) != 0) ? padding(options.hashtagFilters.size()) : 0;
+            this.nbGroups   = ((flags & StatusQueryOption.FILTER_GROUP) != 0) ? padding(options.groupIDFilters.size()) : 0;
+            this.order      = options.order_by;
+            this.reversed   = ((flags & StatusQueryOption.FILTER_AFTER_KEY) != 0)
+                    && (options.order_by == StatusQueryOption.ORDER_BY.TIME_OF_ARRIVAL);
+            this.limited    = (options.answerLimit > 0);
+            this.key        = result + ":" + Long.toHexString(filters) + ":" + nbHashtags + ":"
+                    + nbGroups + ":" + order + ":" + limited;
+        }
+
+        boolean has(long filter) {
+            return ((filters & filter) == filter);
+        }
+
+        // the IN lists are padded by repeating their last value, which does not change the result
+        private static int padding(int size) {
+            int ret = 1;
+            while (ret < size)
+                ret <<= 1;
+            return ret;
+        }
+    }
+
+    private static final int SHAPE_CACHE_SIZE = 32;
+
+    private final Map<String, String> shapeCache = new LinkedHashMap<String, String>(SHAPE_CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > SHAPE_CACHE_SIZE;
+        }
+    };
+    private long shapeHits   = 0;
+    private long shapeMisses = 0;
+
+    public long getShapeCacheHits() {
+        synchronized (shapeCache) {
+            return shapeHits;
+        }
+    }
+
+    public long getShapeCacheMisses() {
+        synchronized (shapeCache) {
+            return shapeMisses;
+        }
+    }
+
+    String getQuery(QueryShape shape) {
+        synchronized (shapeCache) {
+            String query = shapeCache.get(shape.key);
+            if (query != null) {
+                shapeHits++;
+                return query;
+            }
+            shapeMisses++;
+            query = buildQuery(shape);
+            shapeCache.put(shape.key, query);
+            return query;
+        }
+    }
+
+    /*
+     * builds the SQL of a shape, the arguments are given by getArguments in the same order
+     */
+    static String buildQuery(QueryShape shape) {
         /* 1st:  configure what the query will return */
         String select = " * ";
-        switch (options.query_result) {
+        switch (shape.result) {
             case COUNT:
                 select = " COUNT(*) ";
                 break;
@@ -197,229 +421,410 @@ public class PushStatusDatabase extends Database {
             case LIST_OF_MESSAGE:
                 select = " ps.* ";
                 break;
+            case LIST_OF_ITEMS:
+                select = LIST_ITEM_COLUMNS;
+                break;
         }
 
         StringBuilder query = new StringBuilder(
                 "SELECT "+select+" FROM "+ PushStatusDatabase.TABLE_NAME+" ps"
         );
 
-        boolean groupby = false;
-        boolean firstwhere = true;
-        List<String> argumentList = new ArrayList<String>();
-
         /* 2nd:  Join The tables as needed */
-        boolean hashtagJoined = false;
-        if (((options.filterFlags & StatusQueryOption.FILTER_TAG) == StatusQueryOption.FILTER_TAG) && (options.hashtagFilters != null) && (options.hashtagFilters.size() > 0)) {
+        if (shape.has(StatusQueryOption.FILTER_TAG)) {
             query.append(
                     " JOIN " + StatusTagDatabase.TABLE_NAME + " st" +
                     " ON ps." + PushStatusDatabase.ID + " = st." + StatusTagDatabase.SDBID +
                     " JOIN " + HashtagDatabase.TABLE_NAME + " h" +
                     " ON h." + HashtagDatabase.ID + " = st." + StatusTagDatabase.HDBID);
-            hashtagJoined = true;
         }
-        boolean contactJoined = false;
-        if (((options.filterFlags & StatusQueryOption.FILTER_AUTHOR) == StatusQueryOption.FILTER_AUTHOR) && (options.uid != null)) {
+        if (shape.has(StatusQueryOption.FILTER_AUTHOR)) {
             query.append(
                     " JOIN " + ContactDatabase.TABLE_NAME + " c" +
                     " ON ps." + PushStatusDatabase.AUTHOR_DBID + " = c." + ContactDatabase.ID);
-            contactJoined = true;
         }
-        boolean groupJoined = false;
-        if (((options.filterFlags & StatusQueryOption.FILTER_GROUP) == StatusQueryOption.FILTER_GROUP) && (options.groupIDFilters != null) && (options.groupIDFilters.size() > 0)) {
+        if (shape.has(StatusQueryOption.FILTER_GROUP)) {
             query.append(
                     " JOIN " + GroupDatabase.TABLE_NAME + " g" +
                     " ON ps." + PushStatusDatabase.GROUP_DBID + " = g." + GroupDatabase.ID);
-            groupJoined = true;
         }
+        if (shape.result == StatusQueryOption.QUERY_RESULT.LIST_OF_ITEMS)
+            query.append(LIST_ITEM_JOINS);
 
-        /* 3rd:  Add the constraints */
-        if (options.filterFlags > 0)
-            query.append(" WHERE ( ");
+        /* 3rd:  Add the constraints
+         * the keyset constraint is written as a range on toa (toa <= key AND (toa < key OR _id < dbid)
+         * is (toa, _id) < (key, dbid)) so that it is a search on the toa index and not a scan.
+         */
+        List<String> constraints = new ArrayList<String>();
+        if (shape.has(StatusQueryOption.FILTER_TAG))
+            constraints.add(" h." + HashtagDatabase.HASHTAG + " IN " + parameters(shape.nbHashtags));
+        if (shape.has(StatusQueryOption.FILTER_AUTHOR))
+            constraints.add(" c." + ContactDatabase.UID + " = ? ");
+        if (shape.has(StatusQueryOption.FILTER_GROUP))
+            constraints.add(" g." + GroupDatabase.GID + " IN " + parameters(shape.nbGroups));
+        if (shape.has(StatusQueryOption.FILTER_AFTER_TOC))
+            constraints.add(" ps." + PushStatusDatabase.TIME_OF_CREATION + " >= ? ");
+        if (shape.has(StatusQueryOption.FILTER_AFTER_TOA))
+            constraints.add(" ps." + PushStatusDatabase.TIME_OF_ARRIVAL + " >= ? ");
+        if (shape.has(StatusQueryOption.FILTER_BEFORE_TOC))
+            constraints.add(" ps." + PushStatusDatabase.TIME_OF_CREATION + " <= ? ");
+        if (shape.has(StatusQueryOption.FILTER_BEFORE_TOA))
+            constraints.add(" ps." + PushStatusDatabase.TIME_OF_ARRIVAL + " <= ? ");
+        if (shape.has(StatusQueryOption.FILTER_BEFORE_KEY))
+            constraints.add(" ps." + PushStatusDatabase.TIME_OF_ARRIVAL + " <= ? AND ( ps." + PushStatusDatabase.TIME_OF_ARRIVAL
+                    + " < ? OR ps." + PushStatusDatabase.ID + " < ? ) ");
+        if (shape.has(StatusQueryOption.FILTER_AFTER_KEY))
+            constraints.add(" ps." + PushStatusDatabase.TIME_OF_ARRIVAL + " >= ? AND ( ps." + PushStatusDatabase.TIME_OF_ARRIVAL
+                    + " > ? OR ps." + PushStatusDatabase.ID + " > ? ) ");
+        if (shape.has(StatusQueryOption.FILTER_HOPS))
+            constraints.add(" ps." + PushStatusDatabase.HOP_LIMIT + " = ? ");
+        if (shape.has(StatusQueryOption.FILTER_READ))
+            constraints.add(" ps." + PushStatusDatabase.USERREAD + " = ? ");
+        if (shape.has(StatusQueryOption.FILTER_LIKE))
+            constraints.add(" ps." + PushStatusDatabase.USERLIKED + " = ? ");
+        if (shape.has(StatusQueryOption.FILTER_NOT_EXPIRED))
+            constraints.add("( " +
+                    " ps." + PushStatusDatabase.TIME_TO_LIVE + " < 0 " +
+                    " OR  ? - ps." + PushStatusDatabase.TIME_OF_CREATION +
+                    " < ps." + PushStatusDatabase.TIME_TO_LIVE +
+                    " ) ");
 
-        if(hashtagJoined) {
-            firstwhere = false;
-            query.append(" h."+HashtagDatabase.HASHTAG +" IN ( ? ");
-            Iterator<String> it = options.hashtagFilters.iterator();
-            argumentList.add(it.next().toLowerCase());
-            while (it.hasNext()) {
-                argumentList.add(it.next().toLowerCase());
-                query.append(" , ? ");
+        if (constraints.size() > 0) {
+            query.append(" WHERE ( ");
+            for (int i = 0; i < constraints.size(); i++) {
+                if (i > 0)
+                    query.append(" AND ");
+                query.append(constraints.get(i));
             }
             query.append(" ) ");
-            groupby = true;
-        }
-        if (contactJoined && (((options.filterFlags & StatusQueryOption.FILTER_AUTHOR) == StatusQueryOption.FILTER_AUTHOR)
-                && (options.uid != null)) ) {
-            if(!firstwhere)
-                query.append(" AND ");
-            firstwhere = false;
-            query.append(" c." + ContactDatabase.UID + " = ? ");
-            argumentList.add(options.uid);
         }
-        if(groupJoined && ((options.filterFlags & StatusQueryOption.FILTER_GROUP) == StatusQueryOption.FILTER_GROUP)
-                && (options.groupIDFilters != null)
-                && (options.groupIDFilters.size() > 0) ) {
-            if(!firstwhere)
-                query.append(" AND ");
-            firstwhere = false;
-            query.append(" g."+GroupDatabase.GID +" IN ( ? ");
-            Iterator<String> it = options.groupIDFilters.iterator();
-            argumentList.add(it.next());
-            while (it.hasNext()) {
-                argumentList.add(it.next());
-                query.append(" , ? ");
+
+        /* 4th: group by if necessary */
+        boolean groupby = shape.has(StatusQueryOption.FILTER_TAG)
+                || shape.has(StatusQueryOption.FILTER_GROUP);
+        if (groupby && (shape.result != StatusQueryOption.QUERY_RESULT.COUNT))
+            query.append(" GROUP BY ps." + PushStatusDatabase.ID);
+
+        /* 5th: ordering as requested
+         * the statuses are ordered by (toa, _id) so that the keyset cursor is a total order. When
+         * paging towards the newer statuses, we need the closest ones to the key so the order is
+         * reversed in the query and the result is put back in descending order afterward.
+         *
+         * If the only bound is on the other time, SQLite would rather walk the whole index of the
+         * ordering time than sort the range, the unary + keeps it from using that index to order.
+         */
+        boolean tocBounded = shape.has(StatusQueryOption.FILTER_AFTER_TOC)
+                || shape.has(StatusQueryOption.FILTER_BEFORE_TOC);
+        boolean toaBounded = shape.has(StatusQueryOption.FILTER_AFTER_TOA)
+                || shape.has(StatusQueryOption.FILTER_BEFORE_TOA)
+                || shape.has(StatusQueryOption.FILTER_BEFORE_KEY)
+                || shape.has(StatusQueryOption.FILTER_AFTER_KEY);
+        switch (shape.order) {
+            case TIME_OF_CREATION:
+                String toc = (toaBounded && !tocBounded) ? "+ps." : "ps.";
+                query.append(" ORDER BY " + toc + PushStatusDatabase.TIME_OF_CREATION + " DESC ");
+                break;
+            case TIME_OF_ARRIVAL:
+                String toa = (tocBounded && !toaBounded) ? "+ps." : "ps.";
+                if(shape.reversed)
+                    query.append(" ORDER BY " + toa + PushStatusDatabase.TIME_OF_ARRIVAL + " ASC , ps." + PushStatusDatabase.ID + " ASC ");
+                else
+                    query.append(" ORDER BY " + toa + PushStatusDatabase.TIME_OF_ARRIVAL + " DESC , ps." + PushStatusDatabase.ID + " DESC ");
+                break;
+            default:
+                break;
+        }
+
+        /* 6th: limiting the number of answer */
+        if (shape.limited)
+            query.append(" LIMIT ? ");
+
+        return query.toString();
+    }
+
+    private static String parameters(int size) {
+        StringBuilder ret = new StringBuilder("( ?");
+        for (int i = 1; i < size; i++)
+            ret.append(" , ?");
+        ret.append(" ) ");
+        return ret.toString();
+    }
+
+    /*
+     * the arguments of the query, in the order of the parameters of buildQuery
+     */
+    static String[] getArguments(StatusQueryOption options, QueryShape shape) {
+        List<String> argumentList = new ArrayList<String>();
+        if (shape.has(StatusQueryOption.FILTER_TAG)) {
+            String last = null;
+            for (String hashtag : options.hashtagFilters) {
+                last = hashtag.toLowerCase();
+                argumentList.add(last);
             }
-            query.append(" ) ");
-            groupby = true;
+            for (int i = options.hashtagFilters.size(); i < shape.nbHashtags; i++)
+                argumentList.add(last);
         }
-        if(((options.filterFlags & StatusQueryOption.FILTER_NEVER_SEND_TO_USER) == StatusQueryOption.FILTER_NEVER_SEND_TO_USER)
-                && (options.uid != null) ) {
-            if(!firstwhere)
-                query.append(" AND ");
-            firstwhere = false;
-            query.append(
-                    " ps." + PushStatusDatabase.ID + "  NOT IN ( "
-                            + " SELECT sc." + StatusContactDatabase.STATUS_DBID
-                            + " FROM " + StatusContactDatabase.TABLE_NAME + " sc "
-                            + " JOIN " + ContactDatabase.TABLE_NAME + " c "
-                            + " ON sc." + StatusContactDatabase.CONTACT_DBID + " = c." + ContactDatabase.ID
-                            + " WHERE c." + ContactDatabase.UID + " = ? )");
+        if (shape.has(StatusQueryOption.FILTER_AUTHOR))
             argumentList.add(options.uid);
-            groupby = true;
+        if (shape.has(StatusQueryOption.FILTER_GROUP)) {
+            String last = null;
+            for (String gid : options.groupIDFilters) {
+                last = gid;
+                argumentList.add(last);
+            }
+            for (int i = options.groupIDFilters.size(); i < shape.nbGroups; i++)
+                argumentList.add(last);
         }
-        if ((options.filterFlags & StatusQueryOption.FILTER_AFTER_TOC) == StatusQueryOption.FILTER_AFTER_TOC) {
-            if(!firstwhere)
-                query.append(" AND ");
-            firstwhere = false;
-            query.append(" ps." + PushStatusDatabase.TIME_OF_CREATION + " >= ? ");
+        if (shape.has(StatusQueryOption.FILTER_AFTER_TOC))
             argumentList.add(Long.toString(options.after_toc));
-        }
-        if ((options.filterFlags & StatusQueryOption.FILTER_AFTER_TOA) == StatusQueryOption.FILTER_AFTER_TOA) {
-            if(!firstwhere)
-                query.append(" AND ");
-            firstwhere = false;
-            query.append(" ps." + PushStatusDatabase.TIME_OF_ARRIVAL + " >= ? ");
+        if (shape.has(StatusQueryOption.FILTER_AFTER_TOA))
             argumentList.add(Long.toString(options.after_toa));
-        }
-        if ((options.filterFlags & StatusQueryOption.FILTER_BEFORE_TOC) == StatusQueryOption.FILTER_BEFORE_TOC) {
-            if(!firstwhere)
-                query.append(" AND ");
-            firstwhere = false;
-            query.append(" ps." + PushStatusDatabase.TIME_OF_CREATION + " <= ? ");
+        if (shape.has(StatusQueryOption.FILTER_BEFORE_TOC))
             argumentList.add(Long.toString(options.before_toc));
-        }
-        if ((options.filterFlags & StatusQueryOption.FILTER_BEFORE_TOA) == StatusQueryOption.FILTER_BEFORE_TOA) {
-            if(!firstwhere)
-                query.append(" AND ");
-            firstwhere = false;
-            query.append(" ps." + PushStatusDatabase.TIME_OF_ARRIVAL + " <= ? ");
+        if (shape.has(StatusQueryOption.FILTER_BEFORE_TOA))
             argumentList.add(Long.toString(options.before_toa));
+        if (shape.has(StatusQueryOption.FILTER_BEFORE_KEY)) {
+            argumentList.add(Long.toString(options.before_key_toa));
+            argumentList.add(Long.toString(options.before_key_toa));
+            argumentList.add(Long.toString(options.before_key_dbid));
         }
-        if ((options.filterFlags & StatusQueryOption.FILTER_HOPS) == StatusQueryOption.FILTER_HOPS) {
-            if(!firstwhere)
-                query.append(" AND ");
-            firstwhere = false;
-            query.append(" ps." + PushStatusDatabase.HOP_LIMIT + " = ? ");
-            argumentList.add(Integer.toString(options.hopLimit));
-        }
-        if ((options.filterFlags & StatusQueryOption.FILTER_READ) == StatusQueryOption.FILTER_READ) {
-            if(!firstwhere)
-                query.append(" AND ");
-            firstwhere = false;
-            if(options.read)
-                query.append(" ps." + PushStatusDatabase.USERREAD + " = 1 ");
-            else
-                query.append(" ps." + PushStatusDatabase.USERREAD + " = 0 ");
+        if (shape.has(StatusQueryOption.FILTER_AFTER_KEY)) {
+            argumentList.add(Long.toString(options.after_key_toa));
+            argumentList.add(Long.toString(options.after_key_toa));
+            argumentList.add(Long.toString(options.after_key_dbid));
         }
-        if ((options.filterFlags & StatusQueryOption.FILTER_LIKE) == StatusQueryOption.FILTER_LIKE) {
-            if(!firstwhere)
-                query.append(" AND ");
-            if(options.like)
-                query.append(" ps." + PushStatusDatabase.USERLIKED + " = 1 ");
-            else
-                query.append(" ps." + PushStatusDatabase.USERLIKED + " = 0 ");
-        }
-        if ((options.filterFlags & StatusQueryOption.FILTER_NOT_EXPIRED) == StatusQueryOption.FILTER_NOT_EXPIRED) {
-            if(!firstwhere)
-                query.append(" AND ");
-            long now = System.currentTimeMillis();
-            query.append("( " +
-                    " ps." + PushStatusDatabase.TIME_TO_LIVE + " < 0 " +
-                    " OR  ? - ps." + PushStatusDatabase.TIME_OF_CREATION +
-                    " < ps." + PushStatusDatabase.TIME_TO_LIVE +
-                         " ) ");
-            argumentList.add(Long.toString(now));
-        }
-        if (options.filterFlags > 0)
-            query.append(" ) ");
+        if (shape.has(StatusQueryOption.FILTER_HOPS))
+            argumentList.add(Integer.toString(options.hopLimit));
+        if (shape.has(StatusQueryOption.FILTER_READ))
+            argumentList.add(options.read ? "1" : "0");
+        if (shape.has(StatusQueryOption.FILTER_LIKE))
+            argumentList.add(options.like ? "1" : "0");
+        if (shape.has(StatusQueryOption.FILTER_NOT_EXPIRED))
+            argumentList.add(Long.toString(System.currentTimeMillis()));
+        if (shape.limited)
+            argumentList.add(Integer.toString(options.answerLimit));
+        return argumentList.toArray(new String[argumentList.size()]);
+    }
 
-        /* 4th: group by if necessary */
-        if (groupby && (options.query_result != StatusQueryOption.QUERY_RESULT.COUNT))
-            query.append(" GROUP BY ps." + PushStatusDatabase.ID);
+    /*
+     * Full-text search over the posts and hashtags, the result is a page of StatusListItem
+     * ordered by relevance. Every word of the text must match, the last one as a prefix.
+     *
+     * SQLite has no ranking function so the matching statuses are ranked here with a
+     * BM25-like score computed from matchinfo, the hashtags weighting more than the post.
+     * Only the requested page is then loaded.
+     *
+     * Only the MAX_SEARCH_CANDIDATES most recent matches are ranked: when a search matches
+     * more statuses, the older ones are never returned however relevant they are, and no
+     * page goes beyond MAX_SEARCH_CANDIDATES results.
+     */
+    public static final int MAX_SEARCH_CANDIDATES = 1000;
+
+    private static final float[] SEARCH_COLUMN_WEIGHTS = {1.0f, 2.0f}; // post, hashtags
+    private static final float   SEARCH_K1 = 1.2f;
 
-        /* 5th: ordering as requested */
-        if(options.order_by != StatusQueryOption.ORDER_BY.NO_ORDERING) {
-            switch (options.order_by) {
-                case TIME_OF_CREATION:
-                    query.append(" ORDER BY " + PushStatusDatabase.TIME_OF_CREATION + " DESC ");
-                    break;
-                case TIME_OF_ARRIVAL:
-                    query.append(" ORDER BY " + PushStatusDatabase.TIME_OF_ARRIVAL + " DESC ");
-                    break;
+    // arguments: the FTS query (see toMatchQuery), the limit
+    static final String SEARCH_CANDIDATES = "SELECT docid, matchinfo(" + FTS_TABLE_NAME + ", 'pcnx') FROM "
+            + FTS_TABLE_NAME + " WHERE " + FTS_TABLE_NAME + " MATCH ? ORDER BY docid DESC LIMIT ?";
+
+    public DatabaseExecutor.QueryHandle searchStatuses(final String text, final int offset, final int limit,
+                                                       DatabaseExecutor.Priority priority,
+                                                       DatabaseExecutor.ReadableQueryCallback callback) {
+        return DatabaseFactory.getDatabaseExecutor(context).addQuery(
+                new DatabaseExecutor.ReadableQuery() {
+                    @Override
+                    public Object read() {
+                        return searchStatuses(text, offset, limit);
+                    }
+                }, callback, priority);
+    }
+    private ArrayList<StatusListItem> searchStatuses(String text, int offset, int limit) {
+        ArrayList<StatusListItem> ret = new ArrayList<StatusListItem>();
+        String match = toMatchQuery(text);
+        if((match == null) || (limit <= 0))
+            return ret;
+
+        long start = System.currentTimeMillis();
+        SQLiteDatabase database = databaseHelper.getReadableDatabase();
+
+        /* 1st: rank the candidates */
+        List<long[]> ranked = new ArrayList<long[]>(); // {dbid, score}
+        Cursor cursor = database.rawQuery(SEARCH_CANDIDATES,
+                new String[]{match, Integer.toString(MAX_SEARCH_CANDIDATES)});
+        if(cursor == null)
+            return ret;
+        try {
+            for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+                float score = score(cursor.getBlob(1));
+                ranked.add(new long[]{cursor.getLong(0), Float.floatToIntBits(score)});
             }
+        } finally {
+            cursor.close();
         }
+        Collections.sort(ranked, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                int byScore = Float.compare(Float.intBitsToFloat((int) b[1]), Float.intBitsToFloat((int) a[1]));
+                if(byScore != 0)
+                    return byScore;
+                return (a[0] < b[0]) ? 1 : ((a[0] == b[0]) ? 0 : -1);
+            }
+        });
+        if(offset >= ranked.size())
+            return ret;
 
-        /* 6th: limiting the number of answer */
-        if(options.answerLimit > 0) {
-            query.append(" LIMIT ? ");
-            argumentList.add(Integer.toString(options.answerLimit));
+        /* 2nd: load the page */
+        List<Long> page = new ArrayList<Long>();
+        for(int i = offset; (i < ranked.size()) && (i < offset + limit); i++)
+            page.add(ranked.get(i)[0]);
+        Map<Long, StatusListItem> items = getListItems(page);
+        for(Long dbid : page) {
+            StatusListItem item = items.get(dbid);
+            if(item != null)
+                ret.add(item);
         }
 
-        /* perform the query
-        Log.d(TAG, "[Q] query: "+query.toString());
-        for(String argument : argumentList) {
-            Log.d(TAG, argument+" ");
-        }*/
+        Log.d(TAG, "[+] search \"" + match + "\": " + ranked.size() + " matches, page loaded in "
+                + (System.currentTimeMillis() - start) + "ms");
+        return ret;
+    }
 
+    /*
+     * the StatusListItem of the given statuses (the ones that still exist), in no particular
+     * order, to refresh the items of a list after a DatabaseChangeSet
+     */
+    public DatabaseExecutor.QueryHandle getStatusListItems(final Collection<Long> dbids,
+                                                           DatabaseExecutor.Priority priority,
+                                                           DatabaseExecutor.ReadableQueryCallback callback) {
+        return DatabaseFactory.getDatabaseExecutor(context).addQuery(
+                new DatabaseExecutor.ReadableQuery() {
+                    @Override
+                    public Object read() {
+                        return new ArrayList<StatusListItem>(getListItems(dbids).values());
+                    }
+                }, callback, priority);
+    }
+    private Map<Long, StatusListItem> getListItems(Collection<Long> dbids) {
+        Map<Long, StatusListItem> ret = new HashMap<Long, StatusListItem>();
+        if(dbids.isEmpty())
+            return ret;
         SQLiteDatabase database = databaseHelper.getReadableDatabase();
-        Cursor cursor = database.rawQuery(query.toString(),argumentList.toArray(new String[argumentList.size()]));
+        Cursor cursor = database.rawQuery(
+                "SELECT " + LIST_ITEM_COLUMNS + " FROM " + TABLE_NAME + " ps" + LIST_ITEM_JOINS
+                        + " WHERE ps." + ID + " IN " + inList(dbids), null);
         if(cursor == null)
-            return null;
-
+            return ret;
         try {
-            switch (options.query_result) {
-                case COUNT:
-                    cursor.moveToFirst();
-                    return cursor.getInt(0);
-                case LIST_OF_DBIDS:
-                    ArrayList<Integer> listMessagesID = new ArrayList<Integer>();
-                    for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
-                        listMessagesID.add(cursor.getInt(cursor.getColumnIndexOrThrow(ID)));
-                    }
-                    return listMessagesID;
-                case LIST_OF_UUIDS:
-                    ArrayList<String> listMessagesUUID = new ArrayList<String>();
-                    for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
-                        listMessagesUUID.add(cursor.getString(cursor.getColumnIndexOrThrow(UUID)));
-                    }
-                    return listMessagesUUID;
-                case LIST_OF_MESSAGE:
-                    ArrayList<PushStatus> listIds = new ArrayList<PushStatus>();
-                    for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
-                        listIds.add(cursorToStatus(cursor));
-                    }
-                    return listIds;
-                default:
-                    return null;
+            for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+                StatusListItem item = cursorToListItem(cursor);
+                ret.put(item.getdbId(), item);
             }
-        }finally {
+        } finally {
+            cursor.close();
+        }
+        return ret;
+    }
+
+    /*
+     * the number of unread statuses of every group (that has any) as a map from gid to count,
+     * in a single query rather than one count per group
+     */
+    public DatabaseExecutor.QueryHandle getUnreadCountPerGroup(DatabaseExecutor.Priority priority,
+                                                               DatabaseExecutor.ReadableQueryCallback callback) {
+        return DatabaseFactory.getDatabaseExecutor(context).addQuery(
+                new DatabaseExecutor.ReadableQuery() {
+                    @Override
+                    public Object read() {
+                        return getUnreadCountPerGroup();
+                    }
+                }, callback, priority);
+    }
+    private Map<String, Integer> getUnreadCountPerGroup() {
+        Map<String, Integer> ret = new HashMap<String, Integer>();
+        SQLiteDatabase database = databaseHelper.getReadableDatabase();
+        Cursor cursor = database.rawQuery(
+                "SELECT g." + GroupDatabase.GID + ", COUNT(*) FROM " + TABLE_NAME + " ps"
+                        + " JOIN " + GroupDatabase.TABLE_NAME + " g"
+                        + " ON ps." + GROUP_DBID + " = g." + GroupDatabase.ID
+                        + " WHERE ps." + USERREAD + " = 0"
+                        + " GROUP BY ps." + GROUP_DBID, null);
+        if(cursor == null)
+            return ret;
+        try {
+            for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext())
+                ret.put(cursor.getString(0), cursor.getInt(1));
+        } finally {
             cursor.close();
         }
+        return ret;
+    }
+
+    /*
+     * turns the text typed by the user into an FTS query, the operators are not exposed
+     */
+    static String toMatchQuery(String text) {
+        if(text == null)
+            return null;
+        StringBuilder match = new StringBuilder();
+        for(String word : text.trim().split("\\s+")) {
+            StringBuilder term = new StringBuilder();
+            for(int i = 0; i < word.length(); i++) {
+                char c = word.charAt(i);
+                if(Character.isLetterOrDigit(c))
+                    term.append(Character.toLowerCase(c));
+            }
+            if(term.length() == 0)
+                continue;
+            if(match.length() > 0)
+                match.append(' ');
+            match.append(term);
+        }
+        if(match.length() == 0)
+            return null;
+        return match.append('*').toString();
+    }
+
+    /*
+     * matchinfo 'pcnx': nb of phrases, nb of columns, nb of rows, then for every phrase and
+     * column: hits in this row, hits in every row, nb of rows with a hit
+     */
+    static float score(byte[] matchinfo) {
+        if(matchinfo == null)
+            return 0;
+        IntBuffer info = ByteBuffer.wrap(matchinfo).order(ByteOrder.nativeOrder()).asIntBuffer();
+        int phrases = info.get(0);
+        int columns = info.get(1);
+        int rows    = info.get(2);
+        float score = 0;
+        for(int p = 0; p < phrases; p++) {
+            for(int c = 0; c < columns; c++) {
+                int base = 3 + 3 * (p * columns + c);
+                int hits = info.get(base);
+                int docs = info.get(base + 2);
+                if(hits == 0)
+                    continue;
+                double idf = Math.log(1 + (rows - docs + 0.5) / (docs + 0.5));
+                float weight = (c < SEARCH_COLUMN_WEIGHTS.length) ? SEARCH_COLUMN_WEIGHTS[c] : 1.0f;
+                score += weight * idf * (hits * (SEARCH_K1 + 1)) / (hits + SEARCH_K1);
+            }
+        }
+        return score;
     }
 
     /*
      * Query only one status per UUID or per Index
      */
+    public DatabaseExecutor.QueryHandle getStatus(final String uuid,
+                                                  DatabaseExecutor.Priority priority,
+                                                  DatabaseExecutor.ReadableQueryCallback callback) {
+        return DatabaseFactory.getDatabaseExecutor(context).addQuery(
+                new DatabaseExecutor.ReadableQuery() {
+                    @Override
+                    public Object read() {
+                        return getStatus(uuid);
+                    }
+                }, callback, priority);
+    }
     public PushStatus getStatus(String  uuid) {
         SQLiteDatabase database = databaseHelper.getReadableDatabase();
         Cursor cursor = database.query(TABLE_NAME, null, UUID + " = ?", new String[]{ uuid }, null, null, null);
@@ -474,12 +879,7 @@ public class PushStatusDatabase extends Database {
                     DatabaseFactory.getStatusTagDatabase(context).deleteEntriesMatchingStatusID(id);
                     DatabaseFactory.getStatusContactDatabase(context).deleteEntriesMatchingStatusDBID(id);
                 }
-                try {
-                    File attachedFile = new File(FileUtil.getWritableAlbumStorageDir(), filename);
-                    if (attachedFile.exists() && attachedFile.isFile())
-                        attachedFile.delete();
-                } catch (IOException ignore) {
-                }
+                AttachmentStore.getInstance().release(filename);
                 return true;
 
             } else {
@@ -490,6 +890,182 @@ public class PushStatusDatabase extends Database {
         }
     }
 
+    /*
+     * Returns the expiration date (toc + ttl) of every status that has a time to live,
+     * as a map from status dbid to expiration date
+     */
+    public boolean getStatusExpirations(DatabaseExecutor.ReadableQueryCallback callback) {
+        return (DatabaseFactory.getDatabaseExecutor(context).addQuery(
+                new DatabaseExecutor.ReadableQuery() {
+                    @Override
+                    public Object read() {
+                        return getStatusExpirations();
+                    }
+                }, callback, DatabaseExecutor.Priority.BACKGROUND) != null);
+    }
+    private Map<Long, Long> getStatusExpirations() {
+        SQLiteDatabase database = databaseHelper.getReadableDatabase();
+        Cursor cursor = database.query(TABLE_NAME,
+                new String[]{ID, TIME_OF_CREATION, TIME_TO_LIVE},
+                TIME_TO_LIVE + " >= 0", null, null, null, null);
+        if(cursor == null)
+            return null;
+        try {
+            Map<Long, Long> ret = new HashMap<Long, Long>();
+            for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+                long toc = cursor.getLong(1);
+                long ttl = cursor.getLong(2);
+                ret.put(cursor.getLong(0), toc + ttl);
+            }
+            return ret;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /*
+     * Delete every status of the list that has expired (toc + ttl <= now) in a single
+     * transaction, as well as their attached files. The dbids that are not expired anymore
+     * (or that do not exist) are simply ignored.
+     * returns the number of statuses deleted
+     */
+    public int deleteExpiredStatuses(List<Long> dbids, long now) {
+        return deleteStatuses(dbids, null,
+                TIME_TO_LIVE + " >= 0 AND " + TIME_OF_CREATION + " + " + TIME_TO_LIVE + " <= ?",
+                Long.toString(now));
+    }
+
+    /*
+     * Delete every status of the list in a single transaction, as well as their attached files.
+     * The statuses saved in the meantime are kept. Used by the StorageQuotaEvictor.
+     * The files actually unlinked (those no other status references) are put in released
+     * with their size.
+     * returns the number of statuses deleted
+     */
+    public int evictStatuses(List<Long> dbids, Map<String, Long> released) {
+        return deleteStatuses(dbids, released, USERSAVED + " = 0");
+    }
+
+    // the statuses of the list that match the condition are deleted, it is their last arguments
+    private int deleteStatuses(List<Long> dbids, Map<String, Long> released, String condition, String... conditionArgs) {
+        if(dbids.isEmpty())
+            return 0;
+
+        ArrayList<String>  deletedUuids = new ArrayList<String>();
+        ArrayList<Long>    deletedDbids = new ArrayList<Long>();
+        ArrayList<String>  files        = new ArrayList<String>();
+        CompressedBitmap   deleted      = new CompressedBitmap();
+
+        SQLiteDatabase wd = databaseHelper.getWritableDatabase();
+        wd.beginTransaction();
+        try {
+            for(Long dbid : dbids) {
+                String[] args = new String[conditionArgs.length + 1];
+                args[0] = Long.toString(dbid);
+                System.arraycopy(conditionArgs, 0, args, 1, conditionArgs.length);
+                Cursor cursor = wd.query(TABLE_NAME, new String[]{UUID, FILE_NAME},
+                        ID_WHERE + " AND " + condition, args, null, null, null);
+                if(cursor == null)
+                    continue;
+                try {
+                    if(!cursor.moveToFirst())
+                        continue;
+                    deletedUuids.add(cursor.getString(0));
+                    deletedDbids.add(dbid);
+                    String filename = cursor.getString(1);
+                    if((filename != null) && !filename.equals(""))
+                        files.add(filename);
+                } finally {
+                    cursor.close();
+                }
+                wd.delete(TABLE_NAME, ID_WHERE, new String[]{Long.toString(dbid)});
+                DatabaseFactory.getStatusTagDatabase(context).deleteEntriesMatchingStatusID(dbid);
+                deleted.add(dbid.intValue());
+            }
+            DatabaseFactory.getStatusContactDatabase(context).forgetStatuses(deleted);
+            wd.setTransactionSuccessful();
+        } finally {
+            wd.endTransaction();
+        }
+
+        // files are only removed once the rows are gone for good (and if no other status uses them)
+        for(String filename : files) {
+            long bytes = AttachmentStore.getInstance().release(filename);
+            if((released != null) && (bytes > 0))
+                released.put(filename, bytes);
+        }
+
+        for(int i = 0; i < deletedDbids.size(); i++)
+            EventBus.getDefault().post(new StatusDeletedEvent(deletedUuids.get(i), deletedDbids.get(i)));
+        return deletedDbids.size();
+    }
+
+    /*
+     * The statuses that may be evicted when the storage budget is exceeded, the least useful
+     * first, as a map from status dbid to attached file name. The utility of a status grows
+     * with its likes and decreases with its age and with the number of copies received (the
+     * more copies around, the less it needs us to be relayed). A status that was saved by the
+     * user or that was authored locally is never evicted.
+     */
+    private static final int UTILITY_LIKE      = 10;  // per like in the path
+    private static final int UTILITY_USERLIKED = 50;
+    private static final int UTILITY_DUPLICATE = 2;   // per copy received
+    private static final int UTILITY_AGE       = 1;   // per hour since arrival
+
+    // arguments: now, limit
+    static final String EVICTION_CANDIDATES =
+            "SELECT ps." + ID + ", ps." + FILE_NAME + " FROM " + TABLE_NAME + " ps"
+                    + " WHERE ps." + USERSAVED + " = 0"
+                    + " AND ps." + AUTHOR_DBID + " NOT IN (SELECT " + ContactDatabase.ID
+                    + " FROM " + ContactDatabase.TABLE_NAME + " WHERE " + ContactDatabase.LOCALUSER + " = 1)"
+                    + " ORDER BY (" + UTILITY_LIKE + " * ps." + LIKE
+                    + " + " + UTILITY_USERLIKED + " * ps." + USERLIKED
+                    + " - " + UTILITY_DUPLICATE + " * ps." + DUPLICATE
+                    + " - " + UTILITY_AGE + " * ((? - ps." + TIME_OF_ARRIVAL + ") / 3600000)) ASC,"
+                    + " ps." + TIME_OF_ARRIVAL + " ASC"
+                    + " LIMIT ?";
+
+    public Map<Long, String> getEvictionCandidates(long now, int limit) {
+        Map<Long, String> ret = new LinkedHashMap<Long, String>();
+        SQLiteDatabase database = databaseHelper.getReadableDatabase();
+        Cursor cursor = database.rawQuery(EVICTION_CANDIDATES,
+                new String[]{Long.toString(now), Integer.toString(limit)});
+        if(cursor == null)
+            return ret;
+        try {
+            for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext())
+                ret.put(cursor.getLong(0), cursor.getString(1));
+        } finally {
+            cursor.close();
+        }
+        return ret;
+    }
+
+    /*
+     * The number of statuses referencing an attached file, see AttachmentStore
+     */
+    public long getFileReferences(String filename) {
+        SQLiteDatabase database = databaseHelper.getReadableDatabase();
+        return DatabaseUtils.longForQuery(database,
+                "SELECT count(*) FROM " + TABLE_NAME + " WHERE " + FILE_NAME + " = ?", new String[]{filename});
+    }
+
+    /*
+     * The storage used by the statuses: the number of rows and the bytes actually used by the
+     * database file (the free pages left by the deleted rows are not counted)
+     */
+    public long getStatusCount() {
+        SQLiteDatabase database = databaseHelper.getReadableDatabase();
+        return DatabaseUtils.queryNumEntries(database, TABLE_NAME);
+    }
+    public long getDatabaseSize() {
+        SQLiteDatabase database = databaseHelper.getReadableDatabase();
+        long pageSize  = DatabaseUtils.longForQuery(database, "PRAGMA page_size", null);
+        long pageCount = DatabaseUtils.longForQuery(database, "PRAGMA page_count", null);
+        long freePages = DatabaseUtils.longForQuery(database, "PRAGMA freelist_count", null);
+        return (pageCount - freePages) * pageSize;
+    }
+
     /*
      * Update a single status or insert it if it doesn't exist
      */
@@ -509,7 +1085,7 @@ public class PushStatusDatabase extends Database {
 
         int count = databaseHelper.getWritableDatabase().update(TABLE_NAME, contentValues, ID + " = " + status.getdbId(), null);
         if(count > 0)
-            EventBus.getDefault().post(new StatusUpdatedEvent(status));
+            postEvent(new StatusUpdatedEvent(status));
         return count;
     }
 
@@ -552,29 +1128,101 @@ public class PushStatusDatabase extends Database {
                 if(tagID >=0 )
                     DatabaseFactory.getStatusTagDatabase(context).insertStatusTag(tagID, statusID);
             }
-            EventBus.getDefault().post(new StatusInsertedEvent(status));
+            postEvent(new StatusInsertedEvent(status));
         }
 
         return statusID;
     }
 
+    /*
+     * Bulk deletions: the statuses are deleted by a few set-based statements in a single
+     * transaction, along with their tags, their statuscontact entries and the hashtags that
+     * are not used anymore. Their attached files are queued for the FileGarbageCollector.
+     */
     public void wipe() {
-        PushStatusDatabase.StatusQueryOption options = new PushStatusDatabase.StatusQueryOption();
-        options.query_result = PushStatusDatabase.StatusQueryOption.QUERY_RESULT.LIST_OF_UUIDS;
-        DatabaseFactory.getPushStatusDatabase(context).getStatuses(options, onWipeCallback);
+        DatabaseFactory.getDatabaseExecutor(context).addQuery(
+                new DatabaseExecutor.WritableQuery() {
+                    @Override
+                    public boolean write() {
+                        long start = System.currentTimeMillis();
+                        int count = deleteStatusesWhere(null, null, null);
+                        Log.d(TAG, "[-] " + count + " statuses wiped in " + (System.currentTimeMillis() - start) + "ms");
+                        EventBus.getDefault().post(new StatusWipedEvent());
+                        return (count > 0);
+                    }
+                }, null, DatabaseExecutor.Priority.BACKGROUND);
     }
-    DatabaseExecutor.ReadableQueryCallback onWipeCallback = new DatabaseExecutor.ReadableQueryCallback() {
-        @Override
-        public void onReadableQueryFinished(Object object) {
-            if(object != null) {
-                ArrayList<String> statuses = (ArrayList<String>) object;
-                for(String uuid : statuses) {
-                    deleteStatus(uuid);
+
+    public void deleteGroupStatuses(final long groupDBID) {
+        if(groupDBID < 0)
+            return;
+        DatabaseFactory.getDatabaseExecutor(context).addQuery(
+                new DatabaseExecutor.WritableQuery() {
+                    @Override
+                    public boolean write() {
+                        long start = System.currentTimeMillis();
+                        List<Object> events = new ArrayList<Object>();
+                        int count = deleteStatusesWhere(GROUP_DBID + " = ?",
+                                new String[]{Long.toString(groupDBID)}, events);
+                        Log.d(TAG, "[-] " + count + " statuses of group " + groupDBID + " deleted in "
+                                + (System.currentTimeMillis() - start) + "ms");
+                        for(Object event : events)
+                            EventBus.getDefault().post(event);
+                        return (count > 0);
+                    }
+                }, null, DatabaseExecutor.Priority.BACKGROUND);
+    }
+
+    /*
+     * deletes the statuses matching the selection (every status if null), the StatusDeletedEvent
+     * of the deleted statuses are added to events (unless it is null) to be posted after commit
+     * returns the number of statuses deleted
+     */
+    private int deleteStatusesWhere(String selection, String[] selectionArgs, List<Object> events) {
+        String where = (selection == null) ? "" : " WHERE " + selection;
+        String[] args = (selectionArgs == null) ? new String[0] : selectionArgs;
+        int count;
+
+        SQLiteDatabase wd = databaseHelper.getWritableDatabase();
+        wd.beginTransaction();
+        try {
+            CompressedBitmap deleted = new CompressedBitmap();
+            if((events != null) || (selection != null)) {
+                Cursor cursor = wd.rawQuery("SELECT " + ID + ", " + UUID + " FROM " + TABLE_NAME + where, args);
+                if(cursor != null) {
+                    try {
+                        for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+                            deleted.add(cursor.getInt(0));
+                            if(events != null)
+                                events.add(new StatusDeletedEvent(cursor.getString(1), cursor.getLong(0)));
+                        }
+                    } finally {
+                        cursor.close();
+                    }
                 }
             }
-            EventBus.getDefault().post(new StatusWipedEvent());
+
+            DatabaseFactory.getDeletedFileDatabase(context).queueFiles(
+                    "SELECT " + FILE_NAME + " AS f FROM " + TABLE_NAME + where, args);
+            if(selection == null) {
+                wd.delete(StatusTagDatabase.TABLE_NAME, null, null);
+                DatabaseFactory.getStatusContactDatabase(context).forgetAllStatuses();
+            } else {
+                String statuses = "SELECT " + ID + " FROM " + TABLE_NAME + where;
+                wd.delete(StatusTagDatabase.TABLE_NAME,
+                        StatusTagDatabase.SDBID + " IN (" + statuses + ")", args);
+                DatabaseFactory.getStatusContactDatabase(context).forgetStatuses(deleted);
+            }
+            count = wd.delete(TABLE_NAME, selection, args);
+            DatabaseFactory.getHashtagDatabase(context).deleteUnusedHashtags();
+            wd.setTransactionSuccessful();
+        } finally {
+            wd.endTransaction();
         }
-    };
+
+        FileGarbageCollector.getInstance().wakeUp();
+        return count;
+    }
 
     /*
      * utility function to transform a row into a StatusMessage
@@ -591,6 +1239,69 @@ public class PushStatusDatabase extends Database {
         Contact contact    = DatabaseFactory.getContactDatabase(context).getContact(author_dbid);
         long group_dbid    = cursor.getLong(cursor.getColumnIndexOrThrow(GROUP_DBID));
         Group group        = DatabaseFactory.getGroupDatabase(context).getGroup(group_dbid);
+        return cursorToStatus(cursor, contact, group, getHashTagList(statusDBID));
+    }
+
+    /*
+     * utility function to transform a row of a LIST_OF_ITEMS query into a StatusListItem
+     * ! this method does not close the cursor
+     */
+    private StatusListItem cursorToListItem(final Cursor cursor) {
+        String post = cursor.getString(cursor.getColumnIndexOrThrow(POST));
+        return new StatusListItem(
+                cursor.getLong(cursor.getColumnIndexOrThrow(ID)),
+                cursor.getString(cursor.getColumnIndexOrThrow(UUID)),
+                cursor.getString(cursor.getColumnIndexOrThrow("author_uid")),
+                cursor.getString(cursor.getColumnIndexOrThrow("author_name")),
+                cursor.getString(cursor.getColumnIndexOrThrow("group_gid")),
+                cursor.getString(cursor.getColumnIndexOrThrow("group_name")),
+                (post == null) ? "" : post,
+                cursor.getString(cursor.getColumnIndexOrThrow(FILE_NAME)),
+                cursor.getLong(cursor.getColumnIndexOrThrow(TIME_OF_CREATION)),
+                cursor.getLong(cursor.getColumnIndexOrThrow(TIME_OF_ARRIVAL)),
+                (cursor.getInt(cursor.getColumnIndexOrThrow(USERREAD)) == 1),
+                (cursor.getInt(cursor.getColumnIndexOrThrow(USERLIKED)) == 1),
+                (cursor.getInt(cursor.getColumnIndexOrThrow(USERSAVED)) == 1));
+    }
+
+    /*
+     * Hydrates every status of the cursor at once: the authors, groups and hashtags of the
+     * whole page are resolved with one query per table instead of a few queries per status.
+     */
+    private ArrayList<PushStatus> cursorToStatuses(final Cursor cursor) {
+        ArrayList<PushStatus> ret = new ArrayList<PushStatus>();
+        if((cursor == null) || !cursor.moveToFirst())
+            return ret;
+
+        int idColumn     = cursor.getColumnIndexOrThrow(ID);
+        int authorColumn = cursor.getColumnIndexOrThrow(AUTHOR_DBID);
+        int groupColumn  = cursor.getColumnIndexOrThrow(GROUP_DBID);
+
+        Set<Long> statusDBIDs = new HashSet<Long>();
+        Set<Long> authorDBIDs = new HashSet<Long>();
+        Set<Long> groupDBIDs  = new HashSet<Long>();
+        for (; !cursor.isAfterLast(); cursor.moveToNext()) {
+            statusDBIDs.add(cursor.getLong(idColumn));
+            authorDBIDs.add(cursor.getLong(authorColumn));
+            groupDBIDs.add(cursor.getLong(groupColumn));
+        }
+
+        Map<Long, Contact>     authors  = DatabaseFactory.getContactDatabase(context).getContacts(authorDBIDs);
+        Map<Long, Group>       groups   = DatabaseFactory.getGroupDatabase(context).getGroups(groupDBIDs);
+        Map<Long, Set<String>> hashtags = getHashTagLists(statusDBIDs);
+
+        for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+            Set<String> hashtagSet = hashtags.get(cursor.getLong(idColumn));
+            ret.add(cursorToStatus(cursor,
+                    authors.get(cursor.getLong(authorColumn)),
+                    groups.get(cursor.getLong(groupColumn)),
+                    (hashtagSet == null) ? new HashSet<String>() : hashtagSet));
+        }
+        return ret;
+    }
+
+    private PushStatus cursorToStatus(final Cursor cursor, Contact contact, Group group, Set<String> hashtags) {
+        long statusDBID    = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
         long toc           = cursor.getLong(cursor.getColumnIndexOrThrow(TIME_OF_CREATION));
         String post        = cursor.getString(cursor.getColumnIndexOrThrow(POST));
         String sender_dbid = cursor.getString(cursor.getColumnIndexOrThrow(SENDER_DBID));
@@ -607,11 +1318,45 @@ public class PushStatusDatabase extends Database {
         message.setUserRead((cursor.getInt(cursor.getColumnIndexOrThrow(USERREAD)) == 1));
         message.setUserLike((cursor.getInt(cursor.getColumnIndexOrThrow(USERLIKED)) == 1));
         message.setUserSaved((cursor.getInt(cursor.getColumnIndexOrThrow(USERSAVED)) == 1));
-        message.setHashtagSet(getHashTagList(statusDBID));
+        message.setHashtagSet(hashtags);
 
         return message;
     }
 
+    // to be completed with the list of status dbids (see inList)
+    static final String HASHTAGS_IN =
+            "SELECT st." + StatusTagDatabase.SDBID + ", h." + HashtagDatabase.HASHTAG
+                    + " FROM " + HashtagDatabase.TABLE_NAME + " h"
+                    + " JOIN " + StatusTagDatabase.TABLE_NAME + " st"
+                    + " ON st." + StatusTagDatabase.HDBID + " = h." + HashtagDatabase.ID
+                    + " WHERE st." + StatusTagDatabase.SDBID + " IN ";
+
+    private Map<Long, Set<String>> getHashTagLists(Collection<Long> statusIDs) {
+        Map<Long, Set<String>> ret = new HashMap<Long, Set<String>>();
+        if(statusIDs.isEmpty())
+            return ret;
+        Cursor hashsetCursor = null;
+        try {
+            SQLiteDatabase database = databaseHelper.getReadableDatabase();
+            hashsetCursor = database.rawQuery(HASHTAGS_IN + inList(statusIDs), null);
+            if (hashsetCursor != null) {
+                for (hashsetCursor.moveToFirst(); !hashsetCursor.isAfterLast(); hashsetCursor.moveToNext()) {
+                    long statusID = hashsetCursor.getLong(0);
+                    Set<String> hashtagSet = ret.get(statusID);
+                    if(hashtagSet == null) {
+                        hashtagSet = new HashSet<String>();
+                        ret.put(statusID, hashtagSet);
+                    }
+                    hashtagSet.add(hashsetCursor.getString(1));
+                }
+            }
+            return ret;
+        } finally {
+            if(hashsetCursor != null)
+                hashsetCursor.close();
+        }
+    }
+
     private Set<String> getHashTagList(long statusID) {
         Cursor hashsetCursor = null;
         try {
@@ -621,7 +1366,7 @@ public class PushStatusDatabase extends Database {
                             + " FROM " + HashtagDatabase.TABLE_NAME + " h"
                             + " JOIN " + StatusTagDatabase.TABLE_NAME + " st"
                             + " ON st." + StatusTagDatabase.HDBID + " = h." + HashtagDatabase.ID
-                            + " WHERE st." + StatusTagDatabase.HDBID + " = ?");
+                            + " WHERE st." + StatusTagDatabase.SDBID + " = ?");
             hashsetCursor = database.rawQuery(query.toString(), new String[]{Long.toString(statusID)});
             Set<String> hashtagSet = new HashSet<String>();
             if (hashsetCursor != null) {
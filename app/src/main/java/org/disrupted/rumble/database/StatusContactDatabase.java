@@ -19,34 +19,73 @@ package org.disrupted.rumble.database;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
+import org.disrupted.rumble.util.CompressedBitmap;
+import org.disrupted.rumble.util.Log;
+
+import java.util.Map;
+
 /**
  * ContactStatusDatabase keeps track of the status sent to the peers. This is to avoid
  * sending the same status twice to a contact.
  *
+ * Every contact has a single row holding the dbids of the statuses exchanged with it as a
+ * serialized CompressedBitmap, instead of one row per status and per contact. Statuses
+ * dbids are never recycled while the status exists but a deleted dbid may be reused by
+ * a new status, so the dbids of the deleted statuses must be forgotten as well.
+ *
+ * Forgetting a status rewrites every bitmap that holds it, so the deleted dbids are only
+ * kept aside and forgotten by batches of FORGET_BATCH_SIZE. Until then they are masked out
+ * of the reads, and they are forgotten at once before a reused dbid is added to a contact.
+ * A status whose deletion is rolled back may thus be offered once more to a contact.
+ *
  * @author Lucien Loiseau
  */
 public class StatusContactDatabase extends Database {
 
     private static final String TAG = "ContactStatusDatabase";
 
-    public static final String TABLE_NAME     = "statuscontact";
-    public static final String STATUS_DBID    = "_sdbid";
+    public static final String TABLE_NAME     = "status_contact_bitmap";
     public static final String CONTACT_DBID   = "_cdbid";
+    public static final String STATUSES       = "statuses";
 
-
-    public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME +
-            " (" + STATUS_DBID     + " INTEGER, "
-            + CONTACT_DBID  + " INTEGER, "
-            + " UNIQUE( " + STATUS_DBID + " , " + CONTACT_DBID + "), "
-            + " FOREIGN KEY ( "+ STATUS_DBID    + " ) REFERENCES " + PushStatusDatabase.TABLE_NAME  + " ( " + PushStatusDatabase.ID  + " ), "
+    public static final String CREATE_TABLE = "CREATE TABLE IF NOT EXISTS " + TABLE_NAME +
+            " (" + CONTACT_DBID  + " INTEGER PRIMARY KEY, "
+            + STATUSES + " BLOB, "
             + " FOREIGN KEY ( "+ CONTACT_DBID + " ) REFERENCES " + ContactDatabase.TABLE_NAME   + " ( " + ContactDatabase.ID   + " ) "
             + " );";
 
+    /*
+     * the version 1 table (one row per status per contact), it is converted to the bitmaps
+     * and dropped by migrateLegacyTable
+     */
+    public static final String LEGACY_TABLE_NAME   = "statuscontact";
+    public static final String LEGACY_STATUS_DBID  = "_sdbid";
+    public static final String LEGACY_CONTACT_DBID = "_cdbid";
+
+    public static final String CREATE_LEGACY_TABLE = "CREATE TABLE " + LEGACY_TABLE_NAME +
+            " (" + LEGACY_STATUS_DBID     + " INTEGER, "
+            + LEGACY_CONTACT_DBID  + " INTEGER, "
+            + " UNIQUE( " + LEGACY_STATUS_DBID + " , " + LEGACY_CONTACT_DBID + "), "
+            + " FOREIGN KEY ( "+ LEGACY_STATUS_DBID    + " ) REFERENCES " + PushStatusDatabase.TABLE_NAME  + " ( " + PushStatusDatabase.ID  + " ), "
+            + " FOREIGN KEY ( "+ LEGACY_CONTACT_DBID + " ) REFERENCES " + ContactDatabase.TABLE_NAME   + " ( " + ContactDatabase.ID   + " ) "
+            + " );";
+
+    public static final String[] CREATE_LEGACY_INDEXS = {
+            "CREATE INDEX IF NOT EXISTS status_contact_contact_index ON " + LEGACY_TABLE_NAME + " (" + LEGACY_CONTACT_DBID + " , " + LEGACY_STATUS_DBID + ");"
+    };
+
+    static final int FORGET_BATCH_SIZE = 256;
+
+    // the dbids of the deleted statuses not yet removed from the bitmaps
+    private final CompressedBitmap forgotten;
+
     public StatusContactDatabase(Context context, SQLiteOpenHelper databaseHelper) {
         super(context, databaseHelper);
+        forgotten = new CompressedBitmap();
     }
 
     @Override
@@ -54,15 +93,218 @@ public class StatusContactDatabase extends Database {
         return TABLE_NAME;
     }
 
+    /*
+     * converts the rows of the legacy table into one bitmap per contact and drops it.
+     * It is called from the migrations, within the upgrade transaction.
+     */
+    public static void migrateLegacyTable(DatabaseMigration.Connection db) {
+        db.execSQL(CREATE_TABLE);
+        Cursor cursor = db.rawQuery("SELECT " + LEGACY_CONTACT_DBID + ", " + LEGACY_STATUS_DBID
+                + " FROM " + LEGACY_TABLE_NAME + " ORDER BY " + LEGACY_CONTACT_DBID, null);
+        int rows = 0;
+        int contacts = 0;
+        try {
+            long contactDBID = -1;
+            CompressedBitmap statuses = new CompressedBitmap();
+            for(cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+                if(cursor.getLong(0) != contactDBID) {
+                    if(contactDBID >= 0)
+                        insertStatuses(db, contactDBID, statuses);
+                    contactDBID = cursor.getLong(0);
+                    statuses.clear();
+                    contacts++;
+                }
+                statuses.add(cursor.getInt(1));
+                rows++;
+            }
+            if(contactDBID >= 0)
+                insertStatuses(db, contactDBID, statuses);
+        } finally {
+            cursor.close();
+        }
+        db.execSQL("DROP TABLE IF EXISTS " + LEGACY_TABLE_NAME);
+        Log.d(TAG, "[+] "+rows+" status_contact rows migrated into "+contacts+" bitmaps");
+    }
+    private static void insertStatuses(DatabaseMigration.Connection db, long contactDBID, CompressedBitmap statuses) {
+        db.execSQL("INSERT OR REPLACE INTO " + TABLE_NAME + " (" + CONTACT_DBID + ", " + STATUSES + ") VALUES (?, ?)",
+                new Object[]{contactDBID, statuses.toByteArray()});
+    }
+
+    /*
+     * returns the dbids of every status that has been exchanged with a contact
+     */
+    public CompressedBitmap getStatusDBIDs(long contactDBID) {
+        // the mask is taken first, a batch forgotten meanwhile is already out of the row
+        CompressedBitmap mask = getForgotten();
+        CompressedBitmap ret = readStatuses(databaseHelper.getReadableDatabase(), contactDBID);
+        ret.andNot(mask);
+        return ret;
+    }
+
+    public boolean hasStatus(long contactDBID, long statusDBID) {
+        return getStatusDBIDs(contactDBID).contains((int)statusDBID);
+    }
+
+    /*
+     * returns the statuses among candidates that have not been exchanged with the contact yet
+     */
+    public CompressedBitmap getUndelivered(long contactDBID, CompressedBitmap candidates) {
+        CompressedBitmap ret = new CompressedBitmap(candidates);
+        ret.andNot(getStatusDBIDs(contactDBID));
+        return ret;
+    }
+
+    public boolean insertStatusContact(long statusDBID, long contactDBID){
+        CompressedBitmap statuses = new CompressedBitmap();
+        statuses.add((int)statusDBID);
+        return addStatuses(contactDBID, statuses) > 0;
+    }
+
+    /*
+     * merges the statuses into the set of the contact, returns the number of statuses
+     * that were not already part of it
+     */
+    public int addStatuses(long contactDBID, CompressedBitmap statuses) {
+        if(statuses.isEmpty())
+            return 0;
+        // a dbid that is reused must be forgotten by every contact before it is added
+        CompressedBitmap mask = getForgotten();
+        CompressedBitmap reused = new CompressedBitmap(statuses);
+        reused.andNot(mask);
+        boolean flush = (reused.cardinality() != statuses.cardinality());
+        int added;
+        SQLiteDatabase wd = databaseHelper.getWritableDatabase();
+        wd.beginTransaction();
+        try {
+            if(flush)
+                flushForgotten(wd, mask);
+            CompressedBitmap current = readStatuses(wd, contactDBID);
+            current.andNot(mask);
+            int before = current.cardinality();
+            current.or(statuses);
+            added = current.cardinality() - before;
+            if(added > 0)
+                writeStatuses(wd, contactDBID, current);
+            wd.setTransactionSuccessful();
+        } finally {
+            wd.endTransaction();
+        }
+        if(flush)
+            forgot(mask);
+        return added;
+    }
+
+    public int addStatuses(Map<Long, CompressedBitmap> statusesPerContact) {
+        int added = 0;
+        SQLiteDatabase wd = databaseHelper.getWritableDatabase();
+        wd.beginTransaction();
+        try {
+            for(Map.Entry<Long, CompressedBitmap> entry : statusesPerContact.entrySet())
+                added += addStatuses(entry.getKey(), entry.getValue());
+            wd.setTransactionSuccessful();
+            return added;
+        } finally {
+            wd.endTransaction();
+        }
+    }
+
     public void deleteEntriesMatchingStatusDBID(long statusDBID){
-        SQLiteDatabase db = databaseHelper.getWritableDatabase();
-        db.delete(TABLE_NAME, STATUS_DBID + " = ?" , new String[] {statusDBID + ""});
+        CompressedBitmap statuses = new CompressedBitmap();
+        statuses.add((int)statusDBID);
+        forgetStatuses(statuses);
+    }
+
+    /*
+     * removes the statuses from the set of every contact. They are masked out right away but
+     * the bitmaps are only rewritten once FORGET_BATCH_SIZE statuses have been deleted.
+     */
+    public void forgetStatuses(CompressedBitmap statuses) {
+        if(statuses.isEmpty())
+            return;
+        CompressedBitmap batch;
+        synchronized (forgotten) {
+            forgotten.or(statuses);
+            if(forgotten.cardinality() < FORGET_BATCH_SIZE)
+                return;
+            batch = new CompressedBitmap(forgotten);
+        }
+        SQLiteDatabase wd = databaseHelper.getWritableDatabase();
+        wd.beginTransaction();
+        try {
+            flushForgotten(wd, batch);
+            wd.setTransactionSuccessful();
+        } finally {
+            wd.endTransaction();
+        }
+        forgot(batch);
+    }
+
+    private CompressedBitmap getForgotten() {
+        synchronized (forgotten) {
+            return new CompressedBitmap(forgotten);
+        }
+    }
+
+    /*
+     * removes the batch from the set of every contact, only the rows that actually contain
+     * one of them are rewritten. The batch is taken out of forgotten once committed, the
+     * lock is never held while writing as a writer may be waiting for it.
+     */
+    private void flushForgotten(SQLiteDatabase wd, CompressedBitmap batch) {
+        if(batch.isEmpty())
+            return;
+        Cursor cursor = wd.query(TABLE_NAME, new String[]{CONTACT_DBID, STATUSES}, null, null, null, null, null);
+        if(cursor == null)
+            return;
+        try {
+            for(cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+                CompressedBitmap current = CompressedBitmap.fromByteArray(cursor.getBlob(1));
+                int before = current.cardinality();
+                current.andNot(batch);
+                if(current.cardinality() != before)
+                    writeStatuses(wd, cursor.getLong(0), current);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void forgot(CompressedBitmap batch) {
+        synchronized (forgotten) {
+            forgotten.andNot(batch);
+        }
+    }
+
+    public void forgetAllStatuses() {
+        databaseHelper.getWritableDatabase().delete(TABLE_NAME, null, null);
+        synchronized (forgotten) {
+            forgotten.clear();
+        }
+    }
+
+    private static CompressedBitmap readStatuses(SQLiteDatabase db, long contactDBID) {
+        Cursor cursor = null;
+        try {
+            cursor = db.query(TABLE_NAME, new String[]{STATUSES}, CONTACT_DBID + " = ?",
+                    new String[]{Long.toString(contactDBID)}, null, null, null);
+            if((cursor == null) || !cursor.moveToFirst())
+                return new CompressedBitmap();
+            return CompressedBitmap.fromByteArray(cursor.getBlob(0));
+        } finally {
+            if(cursor != null)
+                cursor.close();
+        }
     }
 
-    public long insertStatusContact(long statusDBID, long contactDBID){
+    // /!\  carefull, it does not lock
+    private static void writeStatuses(SQLiteDatabase db, long contactDBID, CompressedBitmap statuses) {
+        if(statuses.isEmpty()) {
+            db.delete(TABLE_NAME, CONTACT_DBID + " = ?", new String[]{Long.toString(contactDBID)});
+            return;
+        }
         ContentValues contentValues = new ContentValues();
-        contentValues.put(STATUS_DBID, statusDBID);
         contentValues.put(CONTACT_DBID, contactDBID);
-        return databaseHelper.getWritableDatabase().insertWithOnConflict(TABLE_NAME, null, contentValues,SQLiteDatabase.CONFLICT_IGNORE);
+        contentValues.put(STATUSES, statuses.toByteArray());
+        db.insertWithOnConflict(TABLE_NAME, null, contentValues, SQLiteDatabase.CONFLICT_REPLACE);
     }
 }
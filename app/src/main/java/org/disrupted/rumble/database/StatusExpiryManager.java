@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ *
+ * This file is part of Rumble.
+ *
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.database;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import org.disrupted.rumble.app.RumbleApplication;
+import org.disrupted.rumble.database.events.StatusInsertedEvent;
+import org.disrupted.rumble.database.events.StatusWipedEvent;
+import org.disrupted.rumble.util.Log;
+import org.disrupted.rumble.util.TimingWheel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import de.greenrobot.event.EventBus;
+
+/**
+ * The StatusExpiryManager deletes the statuses whose time to live has elapsed.
+ *
+ * Every status with a TTL is scheduled in a hierarchical TimingWheel at toc + ttl. The wheel
+ * is seeded from the database when the manager starts and kept up-to-date with the inserted
+ * statuses. At every tick, the statuses that expired are deleted (along with their attached
+ * files) in a single transaction; the StatusDeletedEvent posted for each of them removes it
+ * from the push candidates.
+ *
+ * @author Lucien Loiseau
+ */
+public class StatusExpiryManager {
+
+    private static final String TAG = "StatusExpiryManager";
+
+    private static final long TICK_DURATION = 5000; // in ms
+
+    private static final Object lock = new Object();
+    private static StatusExpiryManager instance;
+
+    private boolean     started;
+    private boolean     ticking;
+    private TimingWheel wheel;
+    private List<Long>  expired;
+    private Handler     handler;
+
+    public static StatusExpiryManager getInstance() {
+        synchronized (lock) {
+            if (instance == null)
+                instance = new StatusExpiryManager();
+
+            return instance;
+        }
+    }
+
+    private StatusExpiryManager() {
+        started = false;
+        ticking = false;
+        wheel = new TimingWheel(TICK_DURATION, System.currentTimeMillis());
+        expired = new ArrayList<Long>();
+        handler = new Handler(Looper.getMainLooper());
+    }
+
+    public void start() {
+        synchronized (lock) {
+            if(started)
+                return;
+            started = true;
+            Log.d(TAG, "[+] Starting Status Expiry Manager");
+            wheel = new TimingWheel(TICK_DURATION, System.currentTimeMillis());
+            EventBus.getDefault().register(this);
+        }
+        DatabaseFactory.getPushStatusDatabase(RumbleApplication.getContext()).getStatusExpirations(onExpirationsLoaded);
+    }
+    DatabaseExecutor.ReadableQueryCallback onExpirationsLoaded = new DatabaseExecutor.ReadableQueryCallback() {
+        @Override
+        public void onReadableQueryFinished(Object result) {
+            if(result == null)
+                return;
+            synchronized (lock) {
+                if(!started)
+                    return;
+                for(Map.Entry<Long, Long> entry : ((Map<Long, Long>) result).entrySet())
+                    schedule(entry.getKey(), entry.getValue());
+                Log.d(TAG, "[+] "+wheel.size()+" statuses scheduled for expiry");
+            }
+        }
+    };
+
+    public void stop() {
+        synchronized (lock) {
+            if(!started)
+                return;
+            started = false;
+            Log.d(TAG, "[-] Stopping Status Expiry Manager");
+            if(EventBus.getDefault().isRegistered(this))
+                EventBus.getDefault().unregister(this);
+            handler.removeCallbacks(tick);
+            ticking = false;
+            wheel.clear();
+            expired.clear();
+        }
+    }
+
+    // /!\  carefull, it does not lock
+    private void schedule(long dbid, long expiration) {
+        if(!wheel.add(dbid, expiration))
+            expired.add(dbid);
+        if(!ticking) {
+            ticking = true;
+            handler.postDelayed(tick, expired.isEmpty() ? TICK_DURATION : 0);
+        }
+    }
+
+    /*
+     * the wheel only ticks while there is something to expire
+     */
+    private Runnable tick = new Runnable() {
+        @Override
+        public void run() {
+            final List<Long> batch;
+            synchronized (lock) {
+                if(!started)
+                    return;
+                wheel.advance(System.currentTimeMillis(), onExpired);
+                batch = expired;
+                expired = new ArrayList<Long>();
+                ticking = (wheel.size() > 0);
+                if(ticking)
+                    handler.postDelayed(tick, TICK_DURATION);
+            }
+            if(batch.isEmpty())
+                return;
+
+            DatabaseFactory.getDatabaseExecutor(RumbleApplication.getContext()).addQuery(
+                    new DatabaseExecutor.WritableQuery() {
+                        @Override
+                        public boolean write() {
+                            int count = DatabaseFactory.getPushStatusDatabase(RumbleApplication.getContext())
+                                    .deleteExpiredStatuses(batch, System.currentTimeMillis());
+                            Log.d(TAG, "[-] "+count+" statuses expired");
+                            return (count > 0);
+                        }
+                    }, null, DatabaseExecutor.Priority.BACKGROUND);
+        }
+    };
+    // /!\  carefull, it does not lock (only called from wheel.advance)
+    private TimingWheel.ExpiryListener onExpired = new TimingWheel.ExpiryListener() {
+        @Override
+        public void onExpired(long dbid) {
+            expired.add(dbid);
+        }
+    };
+
+    /*
+     * Keeping the wheel up-to-date, the deleted statuses are not removed from the wheel,
+     * deleteExpiredStatuses simply ignores them when they fire.
+     */
+    public void onEvent(StatusInsertedEvent event) {
+        if((event.status == null) || (event.status.getTTL() < 0) || (event.status.getdbId() < 0))
+            return;
+        synchronized (lock) {
+            schedule(event.status.getdbId(), event.status.getTimeOfCreation() + event.status.getTTL());
+        }
+    }
+    public void onEvent(StatusWipedEvent event) {
+        synchronized (lock) {
+            wheel.clear();
+            expired.clear();
+        }
+    }
+}
@@ -0,0 +1,476 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ *
+ * This file is part of Rumble.
+ *
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.database;
+
+import org.disrupted.rumble.app.RumbleApplication;
+import org.disrupted.rumble.database.events.ContactGroupListUpdated;
+import org.disrupted.rumble.database.events.FileInsertedEvent;
+import org.disrupted.rumble.database.events.StatusDuplicate;
+import org.disrupted.rumble.database.objects.Contact;
+import org.disrupted.rumble.database.objects.Group;
+import org.disrupted.rumble.database.objects.PushStatus;
+import org.disrupted.rumble.network.protocols.events.PushStatusReceived;
+import org.disrupted.rumble.util.CompressedBitmap;
+import org.disrupted.rumble.util.FileUtil;
+import org.disrupted.rumble.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import de.greenrobot.event.EventBus;
+
+/**
+ * The StatusIngestor stores the statuses received from the network.
+ *
+ * A single thread accumulates the received statuses for at most MAX_BATCH_DELAY milliseconds
+ * or MAX_BATCH_SIZE statuses and stores the whole batch in one transaction, so that a burst of
+ * statuses costs one commit instead of a dozen per status. The events posted by the databases
+ * during the transaction are held and posted once the batch is committed. The attached files
+ * are moved to the album after the commit.
+ *
+ * @author Lucien Loiseau
+ */
+public class StatusIngestor {
+
+    private static final String TAG = "StatusIngestor";
+
+    public static final int  MAX_BATCH_SIZE  = 64;
+    public static final long MAX_BATCH_DELAY = 10; // in ms
+
+    private final Store store;
+    private final LinkedBlockingQueue<PushStatusReceived> queue;
+    private final Object lock = new Object();
+    private Thread  ingestThread;
+    private boolean running;
+
+    // statistics
+    private long nbStatusIngested;
+    private long nbBatchCommitted;
+    private long totalIngestTime; // in ms
+
+    public StatusIngestor() {
+        this(new DatabaseStore());
+    }
+
+    StatusIngestor(Store store) {
+        this.store = store;
+        this.queue = new LinkedBlockingQueue<PushStatusReceived>();
+        this.ingestThread = null;
+        this.running = false;
+    }
+
+    public void start() {
+        synchronized (lock) {
+            if (running)
+                return;
+            running = true;
+            Log.d(TAG, "[+] Status ingestor started");
+            ingestThread = new Thread(ingestBatches, TAG);
+            ingestThread.start();
+        }
+    }
+
+    public void stop() {
+        synchronized (lock) {
+            if (!running)
+                return;
+            running = false;
+            Log.d(TAG, "[-] Status ingestor stopped");
+            if (ingestThread != null)
+                ingestThread.interrupt();
+            ingestThread = null;
+            PushStatusReceived event;
+            while ((event = queue.poll()) != null)
+                store.cleanUp(event);
+        }
+    }
+
+    public boolean add(PushStatusReceived event) {
+        synchronized (lock) {
+            if (!running)
+                return false;
+            queue.add(event);
+            return true;
+        }
+    }
+
+    public synchronized long getNbStatusIngested() {
+        return nbStatusIngested;
+    }
+
+    public synchronized long getNbBatchCommitted() {
+        return nbBatchCommitted;
+    }
+
+    /*
+     * the number of statuses stored per second of ingest (waiting for the statuses excluded)
+     */
+    public synchronized float getThroughput() {
+        if(totalIngestTime == 0)
+            return 0;
+        return nbStatusIngested * 1000f / totalIngestTime;
+    }
+
+    private Runnable ingestBatches = new Runnable() {
+        @Override
+        public void run() {
+            List<PushStatusReceived> batch = new ArrayList<PushStatusReceived>(MAX_BATCH_SIZE);
+            try {
+                while (true) {
+                    batch.add(queue.take());
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(MAX_BATCH_DELAY);
+                    while (batch.size() < MAX_BATCH_SIZE) {
+                        long wait = deadline - System.nanoTime();
+                        PushStatusReceived next = (wait > 0) ? queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll();
+                        if (next == null)
+                            break;
+                        batch.add(next);
+                    }
+                    try {
+                        ingest(batch);
+                    } catch (Exception e) {
+                        // the ingest thread must survive a bad batch
+                        Log.e(TAG, "[!] batch dropped: " + e.getMessage(), e);
+                        for (PushStatusReceived event : batch)
+                            store.cleanUp(event);
+                    } finally {
+                        batch.clear();
+                    }
+                }
+            } catch (InterruptedException e) {
+                for (PushStatusReceived event : batch)
+                    store.cleanUp(event);
+                Log.d(TAG, "[!] Ingest thread has stopped");
+            }
+        }
+    };
+
+    private void ingest(List<PushStatusReceived> batch) {
+        long start = System.currentTimeMillis();
+        PushStatus[] stored = new PushStatus[batch.size()];
+
+        // the attached files are stored (scaled and hashed) before the transaction
+        String[] attachments = new String[batch.size()];
+        for (int i = 0; i < batch.size(); i++) {
+            try {
+                attachments[i] = store.storeAttachedFile(batch.get(i));
+            } catch (Exception e) {
+                Log.d(TAG, "[!] attached file refused: " + e.getMessage());
+                attachments[i] = null;
+            }
+        }
+
+        // the statuses received from every sender, their bitmaps are updated once per batch
+        Map<Long, CompressedBitmap> delivered = new HashMap<Long, CompressedBitmap>();
+        // the contacts written during the batch, see below
+        Set<String> updated = new HashSet<String>();
+
+        // a failing status is skipped, anything else rolls the whole batch back
+        boolean successful = false;
+        List<Object> events = null;
+        try {
+            store.beginTransaction();
+            for (int i = 0; i < batch.size(); i++) {
+                try {
+                    stored[i] = store.storeStatus(batch.get(i), attachments[i], delivered, updated);
+                } catch (Exception e) {
+                    Log.e(TAG, "[!] cannot store status: " + e.getMessage());
+                    stored[i] = null;
+                }
+            }
+            try {
+                store.addStatuses(delivered);
+            } catch (Exception e) {
+                Log.e(TAG, "[!] cannot store status contacts: " + e.getMessage());
+            }
+            store.setTransactionSuccessful();
+            successful = true;
+        } catch (Exception e) {
+            Log.e(TAG, "[!] batch failed: " + e.getMessage());
+        } finally {
+            try {
+                events = store.endTransaction();
+            } catch (Exception e) {
+                Log.e(TAG, "[!] batch commit failed: " + e.getMessage());
+                events = null;
+            }
+        }
+
+        if (!successful || (events == null)) {
+            store.invalidateCaches();
+            for (int i = 0; i < batch.size(); i++) {
+                store.releaseAttachedFile(attachments[i]);
+                store.cleanUp(batch.get(i));
+            }
+            return;
+        }
+
+        /*
+         * the contacts were invalidated when written but a reader could have read their old
+         * row (the batch was not committed yet) and cached it under the new generation.
+         */
+        for (String uid : updated)
+            store.invalidateContact(uid);
+
+        for (Object event : events)
+            store.post(event);
+
+        for (int i = 0; i < batch.size(); i++) {
+            if ((stored[i] != null) && (attachments[i] != null) && attachments[i].equals(stored[i].getFileName()))
+                store.post(new FileInsertedEvent(attachments[i], stored[i].getUuid()));
+            store.releaseAttachedFile(attachments[i]);
+            store.cleanUp(batch.get(i));
+        }
+
+        long elapsed = System.currentTimeMillis() - start;
+        synchronized (this) {
+            nbStatusIngested += batch.size();
+            nbBatchCommitted++;
+            totalIngestTime += elapsed;
+        }
+        Log.d(TAG, "[+] " + batch.size() + " statuses committed in " + elapsed + "ms ("
+                + getThroughput() + " statuses/s)");
+    }
+
+    /*
+     * what a batch is stored with: the databases, the album and the event bus (see DatabaseStore)
+     */
+    interface Store {
+        /*
+         * returns the name of the attached file once stored (and pinned) or null if there is none
+         */
+        String storeAttachedFile(PushStatusReceived event) throws Exception;
+
+        void beginTransaction();
+
+        PushStatus storeStatus(PushStatusReceived event, String attachment, Map<Long, CompressedBitmap> delivered,
+                               Set<String> updated);
+
+        void addStatuses(Map<Long, CompressedBitmap> delivered);
+
+        void setTransactionSuccessful();
+
+        /*
+         * returns the events held during the transaction, it throws if the commit failed
+         */
+        List<Object> endTransaction();
+
+        void invalidateContact(String uid);
+
+        /*
+         * after a rollback, the caches may hold the dbid of rows that do not exist
+         */
+        void invalidateCaches();
+
+        void releaseAttachedFile(String filename);
+
+        void cleanUp(PushStatusReceived event);
+
+        void post(Object event);
+    }
+
+    private static class DatabaseStore implements Store {
+
+        @Override
+        public void beginTransaction() {
+            DatabaseFactory.getPushStatusDatabase(RumbleApplication.getContext()).beginTransaction();
+        }
+
+        @Override
+        public void addStatuses(Map<Long, CompressedBitmap> delivered) {
+            DatabaseFactory.getStatusContactDatabase(RumbleApplication.getContext()).addStatuses(delivered);
+        }
+
+        @Override
+        public void setTransactionSuccessful() {
+            DatabaseFactory.getPushStatusDatabase(RumbleApplication.getContext()).setTransactionSuccessful();
+        }
+
+        @Override
+        public List<Object> endTransaction() {
+            return DatabaseFactory.getPushStatusDatabase(RumbleApplication.getContext()).endTransaction();
+        }
+
+        @Override
+        public void invalidateContact(String uid) {
+            DatabaseFactory.getContactDatabase(RumbleApplication.getContext()).invalidate(uid);
+        }
+
+        @Override
+        public void invalidateCaches() {
+            DatabaseFactory.getContactDatabase(RumbleApplication.getContext()).invalidateAll();
+            DatabaseFactory.getGroupDatabase(RumbleApplication.getContext()).getCache().invalidateAll();
+        }
+
+        @Override
+        public void post(Object event) {
+            EventBus.getDefault().post(event);
+        }
+
+        /*
+         * stores one status, returns the status as stored in the database or null if refused.
+         * The status is added to the statuses delivered by its sender, the uid of the contacts
+         * it writes are added to updated.
+         */
+        // /!\  carefull, it must be called within the batch transaction
+        @Override
+        public PushStatus storeStatus(PushStatusReceived event, String attachment, Map<Long, CompressedBitmap> delivered,
+                                      Set<String> updated) {
+            if (event.status == null)
+                return null;
+            if ((event.status.getAuthor() == null) || (event.status.getGroup() == null) || (event.status.receivedBy() == null))
+                return null;
+
+            Group group = DatabaseFactory.getGroupDatabase(RumbleApplication.getContext()).getGroup(event.gid);
+            if(group == null) {
+                // we do not belong to the group
+                Log.d(TAG, "[!] unknow group: refusing the message");
+                return null;
+            }
+            event.status.setGroup(group);
+
+            Contact sender = DatabaseFactory.getContactDatabase(RumbleApplication.getContext()).getContact(event.status.receivedBy());
+            if (sender == null) {
+                // we do not accept message from unknown sender, that should never happen as the protocol starts by exchange
+                // ContactInformation blocks
+                Log.d(TAG, "[!] unknown sender: refusing the message");
+                return null;
+            }
+
+            // we update the sender statistics
+            sender.setStatusReceived(sender.nbStatusReceived() + 1);
+            DatabaseFactory.getContactDatabase(RumbleApplication.getContext()).insertOrUpdateContact(sender);
+            updated.add(sender.getUid());
+
+            // we insert/update the status author
+            Contact author = DatabaseFactory.getContactDatabase(RumbleApplication.getContext()).getContact(event.status.getAuthor().getUid());
+            if (author == null) {
+                author = event.status.getAuthor();
+                DatabaseFactory.getContactDatabase(RumbleApplication.getContext()).insertOrUpdateContact(author);
+                updated.add(author.getUid());
+            } else if (!author.getName().equals(event.status.getAuthor().getName())) {
+                // we do not accept message if the author has changed since we last known of (UID/name)
+                Log.d(TAG, "[!] AuthorID: " + author.getUid() + " CONFLICT: db=" + author.getName() + " status=" + event.status.getAuthor().getName());
+                return null;
+            }
+            // we add the author to the group if it doesn't already belong
+            long authorDBID = DatabaseFactory.getContactDatabase(RumbleApplication.getContext()).getContactDBID(author.getUid());
+            long groupDBID = DatabaseFactory.getGroupDatabase(RumbleApplication.getContext()).getGroupDBID(event.status.getGroup().getGid());
+            if (DatabaseFactory.getContactJoinGroupDatabase(RumbleApplication.getContext()).insertContactGroup(authorDBID, groupDBID) >= 0) {
+                // the event is held until the commit, the cache must not return the old group list meanwhile
+                DatabaseFactory.getContactDatabase(RumbleApplication.getContext()).invalidate(author.getUid());
+                updated.add(author.getUid());
+                Database.postEvent(new ContactGroupListUpdated(author));
+            }
+
+            // we add the status to the database
+            PushStatus exists = DatabaseFactory.getPushStatusDatabase(RumbleApplication.getContext()).getStatus(event.status.getUuid());
+            if (exists == null) {
+                exists = new PushStatus(event.status);
+                exists.addDuplicate(1);
+                DatabaseFactory.getPushStatusDatabase(RumbleApplication.getContext()).insertStatus(exists);
+            } else {
+                exists.addDuplicate(1);
+                if (event.status.getLike() > 0)
+                    exists.addLike();
+                // we may not have received its attached file the first time
+                if ((attachment != null) && !attachment.equals(exists.getFileName()) && !isFileStored(exists.getFileName()))
+                    exists.setFileName(attachment);
+                DatabaseFactory.getPushStatusDatabase(RumbleApplication.getContext()).updateStatus(exists);
+                Database.postEvent(new StatusDuplicate());
+            }
+
+            // then the StatusContact database
+            if (exists.getdbId() > 0) {
+                long senderDBID = DatabaseFactory.getContactDatabase(RumbleApplication.getContext()).getContactDBID(event.senderID);
+                if (senderDBID > 0) {
+                    CompressedBitmap statuses = delivered.get(senderDBID);
+                    if (statuses == null) {
+                        statuses = new CompressedBitmap();
+                        delivered.put(senderDBID, statuses);
+                    }
+                    statuses.add((int) exists.getdbId());
+                }
+            }
+
+            return exists;
+        }
+
+        /*
+         * stores the file received with the status in the AttachmentStore (under the hash of its
+         * content, whatever the name given by the sender), returns its name or null
+         */
+        @Override
+        public String storeAttachedFile(PushStatusReceived event) throws Exception {
+            if ((event.status == null) || event.tempfile.equals(""))
+                return null;
+
+            String filename = CacheManager.getInstance().saveImageOnDisk(event.tempfile, event.tempfileHash);
+            if (filename == null)
+                throw new Exception("cannot store the file");
+            event.status.setFileName(filename);
+            return filename;
+        }
+
+        /*
+         * the file is kept if the status has been stored (or if another status uses it)
+         */
+        @Override
+        public void releaseAttachedFile(String filename) {
+            if (filename == null)
+                return;
+            AttachmentStore.getInstance().unpin(filename);
+            AttachmentStore.getInstance().release(filename);
+        }
+
+        private static boolean isFileStored(String filename) {
+            if ((filename == null) || filename.equals(""))
+                return false;
+            if (filename.startsWith("/"))
+                return true;
+            try {
+                return new File(FileUtil.getReadableAlbumStorageDir(), filename).isFile();
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public void cleanUp(PushStatusReceived event) {
+            if (!event.tempfile.equals("")) {
+                try {
+                    File toDelete = new File(FileUtil.getWritableAlbumStorageDir(), event.tempfile);
+                    toDelete.delete();
+                } catch (IOException ignore) {
+                }
+            }
+            if(event.status != null)
+                event.status.discard();
+        }
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ *
+ * This file is part of Rumble.
+ *
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.database;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import org.disrupted.rumble.app.RumbleApplication;
+import org.disrupted.rumble.database.events.StatusInsertedEvent;
+import org.disrupted.rumble.util.FileUtil;
+import org.disrupted.rumble.util.Log;
+import org.disrupted.rumble.util.RumblePreferences;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.greenrobot.event.EventBus;
+
+/**
+ * The StorageQuotaEvictor bounds the storage used by the statuses, both in number of statuses
+ * and in bytes (the database plus the attached files in the album), see RumblePreferences.
+ *
+ * The usage is checked every CHECK_INTERVAL and after every CHECK_EVERY_INSERTS statuses
+ * inserted. When the budget is exceeded, the least useful statuses (see
+ * PushStatusDatabase.getEvictionCandidates) are deleted by batches of EVICTION_BATCH_SIZE,
+ * each batch being a separate background query so that the ingestion is never blocked for
+ * long, until the usage is back under LOW_WATERMARK percent of the budget. The album is only
+ * walked once per check, the next batches subtract the bytes of the files they unlinked.
+ *
+ * @author Lucien Loiseau
+ */
+public class StorageQuotaEvictor {
+
+    private static final String TAG = "StorageQuotaEvictor";
+
+    private static final long CHECK_INTERVAL      = 60000; // in ms
+    static final int          CHECK_EVERY_INSERTS = 256;
+    static final int          EVICTION_BATCH_SIZE = 64;
+    static final int          LOW_WATERMARK       = 90;    // in percent of the budget
+
+    private static final Object lock = new Object();
+    private static StorageQuotaEvictor instance;
+
+    private boolean started;
+    private boolean checking;   // a check (or an eviction) is queued or running
+    private int     inserted;   // statuses inserted since the last check
+    private Handler handler;
+    private final Storage storage;
+
+    private volatile long evictedStatuses;
+    private volatile long evictedFileBytes;
+
+    public static StorageQuotaEvictor getInstance() {
+        synchronized (lock) {
+            if (instance == null)
+                instance = new StorageQuotaEvictor();
+
+            return instance;
+        }
+    }
+
+    private StorageQuotaEvictor() {
+        this(new DatabaseStorage());
+    }
+
+    StorageQuotaEvictor(Storage storage) {
+        this.storage = storage;
+        started = false;
+        checking = false;
+        inserted = 0;
+        handler = new Handler(Looper.getMainLooper());
+        evictedStatuses = 0;
+        evictedFileBytes = 0;
+    }
+
+    public void start() {
+        synchronized (lock) {
+            if(started)
+                return;
+            started = true;
+            Log.d(TAG, "[+] Starting Storage Quota Evictor");
+            EventBus.getDefault().register(this);
+            handler.post(tick);
+        }
+    }
+
+    public void stop() {
+        synchronized (lock) {
+            if(!started)
+                return;
+            started = false;
+            Log.d(TAG, "[-] Stopping Storage Quota Evictor");
+            if(EventBus.getDefault().isRegistered(this))
+                EventBus.getDefault().unregister(this);
+            handler.removeCallbacks(tick);
+        }
+    }
+
+    public long getEvictedStatuses() {
+        return evictedStatuses;
+    }
+
+    public long getEvictedFileBytes() {
+        return evictedFileBytes;
+    }
+
+    private Runnable tick = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (lock) {
+                if(!started)
+                    return;
+                handler.postDelayed(tick, CHECK_INTERVAL);
+            }
+            check();
+        }
+    };
+
+    private void check() {
+        synchronized (lock) {
+            if(!started || checking)
+                return;
+            checking = true;
+            inserted = 0;
+        }
+        if(DatabaseFactory.getDatabaseExecutor(RumbleApplication.getContext())
+                .addQuery(new EvictionQuery(new Pass()), null, DatabaseExecutor.Priority.BACKGROUND) == null) {
+            synchronized (lock) {
+                checking = false;
+            }
+        }
+    }
+
+    /*
+     * A check and the batches it evicts. The album is measured by the first batch only, the
+     * bytes of the files unlinked by each batch are then subtracted from it.
+     */
+    static class Pass {
+        boolean evicting  = false;
+        long    albumBytes = -1;
+    }
+
+    /*
+     * Measures the usage and, if it exceeds the budget, evicts one batch of statuses then
+     * queues itself again. Once it started evicting, it goes on until the usage is under the
+     * low watermark so that it does not run again at the very next insert.
+     */
+    private class EvictionQuery implements DatabaseExecutor.WritableQuery {
+
+        private final Pass pass;
+
+        EvictionQuery(Pass pass) {
+            this.pass = pass;
+        }
+
+        @Override
+        public boolean write() {
+            boolean again = false;
+            try {
+                again = evictBatch(pass);
+                return again;
+            } finally {
+                synchronized (lock) {
+                    if(!again || !started || (DatabaseFactory.getDatabaseExecutor(RumbleApplication.getContext())
+                            .addQuery(new EvictionQuery(pass), null, DatabaseExecutor.Priority.BACKGROUND) == null))
+                        checking = false;
+                }
+            }
+        }
+    }
+
+    /*
+     * returns true if a batch has been evicted and the usage is still over the low watermark
+     */
+    boolean evictBatch(Pass pass) {
+        long maxStatuses = storage.getMaxStatuses();
+        long maxBytes    = storage.getMaxBytes();
+        if(pass.evicting) {
+            maxStatuses = maxStatuses * LOW_WATERMARK / 100;
+            maxBytes    = maxBytes * LOW_WATERMARK / 100;
+        }
+
+        if(pass.albumBytes < 0)
+            pass.albumBytes = storage.getAlbumSize();
+        long statuses = storage.getStatusCount();
+        long bytes    = storage.getDatabaseSize() + pass.albumBytes;
+        if((statuses <= maxStatuses) && (bytes <= maxBytes)) {
+            if(pass.evicting)
+                Log.d(TAG, "[+] storage back under budget: " + statuses + " statuses, " + bytes + " bytes");
+            return false;
+        }
+
+        Map<Long, String> candidates = storage.getEvictionCandidates(System.currentTimeMillis(), EVICTION_BATCH_SIZE);
+        if(candidates.isEmpty()) {
+            Log.d(TAG, "[!] storage over budget (" + statuses + " statuses, " + bytes
+                    + " bytes) but every status left is saved or local");
+            return false;
+        }
+
+        Map<String, Long> released = new HashMap<String, Long>();
+        int count = storage.evictStatuses(new ArrayList<Long>(candidates.keySet()), released);
+        long fileBytes = 0;
+        for (Long length : released.values())
+            fileBytes += length;
+        pass.albumBytes = Math.max(0, pass.albumBytes - fileBytes);
+        pass.evicting = true;
+        evictedStatuses += count;
+        evictedFileBytes += fileBytes;
+        Log.d(TAG, "[-] " + count + " statuses evicted (" + fileBytes + " bytes of files), storage was "
+                + statuses + "/" + maxStatuses + " statuses, " + bytes + "/" + maxBytes + " bytes");
+        return (count > 0);
+    }
+
+    public void onEvent(StatusInsertedEvent event) {
+        synchronized (lock) {
+            if(++inserted < CHECK_EVERY_INSERTS)
+                return;
+        }
+        check();
+    }
+
+    /*
+     * where the usage is measured and the statuses evicted, the database and the album
+     * but for the tests
+     */
+    interface Storage {
+        long getMaxStatuses();
+
+        long getMaxBytes();
+
+        long getStatusCount();
+
+        long getDatabaseSize();
+
+        long getAlbumSize();
+
+        Map<Long, String> getEvictionCandidates(long now, int limit);
+
+        int evictStatuses(List<Long> dbids, Map<String, Long> released);
+    }
+
+    private static class DatabaseStorage implements Storage {
+
+        @Override
+        public long getMaxStatuses() {
+            return RumblePreferences.getStorageMaxStatuses(RumbleApplication.getContext());
+        }
+
+        @Override
+        public long getMaxBytes() {
+            return RumblePreferences.getStorageMaxBytes(RumbleApplication.getContext());
+        }
+
+        @Override
+        public long getStatusCount() {
+            return DatabaseFactory.getPushStatusDatabase(RumbleApplication.getContext()).getStatusCount();
+        }
+
+        @Override
+        public long getDatabaseSize() {
+            return DatabaseFactory.getPushStatusDatabase(RumbleApplication.getContext()).getDatabaseSize();
+        }
+
+        @Override
+        public long getAlbumSize() {
+            try {
+                return FileUtil.getDirectorySize(FileUtil.getReadableAlbumStorageDir());
+            } catch (IOException ignore) {
+                return 0;
+            }
+        }
+
+        @Override
+        public Map<Long, String> getEvictionCandidates(long now, int limit) {
+            return DatabaseFactory.getPushStatusDatabase(RumbleApplication.getContext())
+                    .getEvictionCandidates(now, limit);
+        }
+
+        @Override
+        public int evictStatuses(List<Long> dbids, Map<String, Long> released) {
+            return DatabaseFactory.getPushStatusDatabase(RumbleApplication.getContext())
+                    .evictStatuses(dbids, released);
+        }
+    }
+}
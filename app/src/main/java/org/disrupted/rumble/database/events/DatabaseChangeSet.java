@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ *
+ * This file is part of Rumble.
+ *
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.database.events;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A DatabaseChangeSet gathers the changes made to the tables shown by the user interface
+ * since the previous change set, see ChangeFeed. The lists can apply the changes to what
+ * they display instead of running their whole query again for every single event.
+ *
+ * The statuses are identified by their dbid, the contacts by their uid, the groups by their
+ * gid and the chat messages by their uuid.
+ *
+ * @author Lucien Loiseau
+ */
+public class DatabaseChangeSet extends DatabaseEvent {
+
+    public final TableChanges<Long>   statuses;
+    public final TableChanges<String> contacts;
+    public final TableChanges<String> groups;
+    public final TableChanges<String> chatMessages;
+
+    public final int nbEvents; // the number of events coalesced in this change set
+
+    public DatabaseChangeSet(TableChanges<Long> statuses, TableChanges<String> contacts,
+                             TableChanges<String> groups, TableChanges<String> chatMessages, int nbEvents) {
+        this.statuses = statuses;
+        this.contacts = contacts;
+        this.groups = groups;
+        this.chatMessages = chatMessages;
+        this.nbEvents = nbEvents;
+    }
+
+    /*
+     * The net changes of a table: an entry inserted then deleted does not appear at all, an
+     * entry inserted then updated only appears as inserted. If the table was wiped, reset is
+     * true and the entries are the ones changed after the wipe.
+     */
+    public static class TableChanges<K> {
+        public final Set<K> inserted;
+        public final Set<K> updated;
+        public final Set<K> deleted;
+        public boolean reset;
+
+        public TableChanges() {
+            inserted = new HashSet<K>();
+            updated  = new HashSet<K>();
+            deleted  = new HashSet<K>();
+            reset    = false;
+        }
+
+        public void insert(K key) {
+            if(deleted.remove(key))
+                updated.add(key);
+            else
+                inserted.add(key);
+        }
+
+        public void update(K key) {
+            if(!inserted.contains(key))
+                updated.add(key);
+        }
+
+        public void delete(K key) {
+            updated.remove(key);
+            if(!inserted.remove(key))
+                deleted.add(key);
+        }
+
+        public void wipe() {
+            inserted.clear();
+            updated.clear();
+            deleted.clear();
+            reset = true;
+        }
+
+        public boolean isEmpty() {
+            return !reset && inserted.isEmpty() && updated.isEmpty() && deleted.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return "+"+inserted.size()+" ~"+updated.size()+" -"+deleted.size()+(reset ? " reset" : "");
+        }
+    }
+
+    @Override
+    public String shortDescription() {
+        return "statuses="+statuses+" contacts="+contacts+" groups="+groups+" chat="+chatMessages;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ *
+ * This file is part of Rumble.
+ *
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.database.objects;
+
+/**
+ * A StatusListItem is the lightweight projection of a PushStatus that is displayed in the
+ * status lists: it only holds what the row needs (the beginning of the post, the author and
+ * group names, the attached file name and the user flags). The full PushStatus is loaded from
+ * its dbid or uuid when the status is opened or modified.
+ *
+ * (timeOfArrival, dbid) is the key used to page through the list of statuses.
+ *
+ * @author Lucien Loiseau
+ */
+public class StatusListItem {
+
+    private static final String TAG  = "StatusListItem";
+
+    public static final int POST_PREVIEW_SIZE = 500;
+
+    protected long    dbid;
+    protected String  uuid;
+    protected String  authorUid;
+    protected String  authorName;
+    protected String  groupGid;
+    protected String  groupName;
+    protected String  postPreview;
+    protected boolean truncated;
+    protected String  attachedFile;
+    protected long    timeOfCreation;
+    protected long    timeOfArrival;
+    protected boolean hasUserRead;
+    protected boolean hasUserLiked;
+    protected boolean hasUserSaved;
+
+    public StatusListItem(long dbid, String uuid, String authorUid, String authorName,
+                          String groupGid, String groupName, String post, String attachedFile,
+                          long timeOfCreation, long timeOfArrival,
+                          boolean hasUserRead, boolean hasUserLiked, boolean hasUserSaved) {
+        this.dbid           = dbid;
+        this.uuid           = uuid;
+        this.authorUid      = authorUid;
+        this.authorName     = authorName;
+        this.groupGid       = groupGid;
+        this.groupName      = groupName;
+        this.truncated      = (post.length() > POST_PREVIEW_SIZE);
+        this.postPreview    = truncated ? post.substring(0, POST_PREVIEW_SIZE) : post;
+        this.attachedFile   = (attachedFile == null) ? "" : attachedFile;
+        this.timeOfCreation = timeOfCreation;
+        this.timeOfArrival  = timeOfArrival;
+        this.hasUserRead    = hasUserRead;
+        this.hasUserLiked   = hasUserLiked;
+        this.hasUserSaved   = hasUserSaved;
+    }
+
+    public StatusListItem(PushStatus status) {
+        this(status.getdbId(), status.getUuid(),
+                status.getAuthor().getUid(), status.getAuthor().getName(),
+                status.getGroup().getGid(), status.getGroup().getName(),
+                status.getPost(), status.getFileName(),
+                status.getTimeOfCreation(), status.getTimeOfArrival(),
+                status.hasUserReadAlready(), status.hasUserLiked(), status.hasUserSaved());
+    }
+
+    public long    getdbId() {              return this.dbid;                  }
+    public String  getUuid() {              return this.uuid;                  }
+    public String  getAuthorUid() {         return this.authorUid;             }
+    public String  getAuthorName() {        return this.authorName;            }
+    public String  getGroupGid() {          return this.groupGid;              }
+    public String  getGroupName() {         return this.groupName;             }
+    public String  getPostPreview() {       return this.postPreview;           }
+    public boolean isTruncated() {          return this.truncated;             }
+    public String  getFileName(){           return this.attachedFile;          }
+    public long    getTimeOfCreation(){     return this.timeOfCreation;        }
+    public long    getTimeOfArrival(){      return this.timeOfArrival;         }
+    public boolean hasAttachedFile(){       return (!attachedFile.equals("")); }
+    public boolean hasUserReadAlready() {   return hasUserRead;                }
+    public boolean hasUserLiked() {         return hasUserLiked;               }
+    public boolean hasUserSaved() {         return hasUserSaved;               }
+
+    public void setUserRead(boolean userHasRead){    this.hasUserRead = userHasRead;   }
+
+    @Override
+    public boolean equals(Object o) {
+        if(o == null)
+            return false;
+        if(o instanceof StatusListItem)
+            return this.uuid.equals(((StatusListItem) o).uuid);
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        return uuid.hashCode();
+    }
+}
@@ -23,6 +23,9 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * @author Lucien Loiseau
  */
@@ -55,11 +58,11 @@ public class StatMessageDatabase extends StatisticDatabase {
         Cursor cursor = null;
         try {
             SQLiteDatabase database = databaseHelper.getReadableDatabase();
-            cursor = database.query(TABLE_NAME, new String[] {KEY}, KEY+ " = ?", new String[] {key}, null, null, null);
+            cursor = database.query(TABLE_NAME, new String[] {VALUE}, KEY+ " = ?", new String[] {key}, null, null, null);
             if(cursor == null)
                 return -1;
             if(cursor.moveToFirst() && !cursor.isAfterLast()) {
-                return cursor.getLong(cursor.getColumnIndexOrThrow(KEY));
+                return cursor.getLong(cursor.getColumnIndexOrThrow(VALUE));
             } else {
                 ContentValues contentValues = new ContentValues();
                 contentValues.put(KEY, key);
@@ -82,6 +85,45 @@ public class StatMessageDatabase extends StatisticDatabase {
                 SQLiteDatabase.CONFLICT_REPLACE);
     }
 
+    /*
+     * adds every delta to its counter (created if needed) in a single transaction
+     */
+    public void incrementValues(Map<String, Long> deltas) {
+        if(deltas.isEmpty())
+            return;
+        SQLiteDatabase database = databaseHelper.getWritableDatabase();
+        database.beginTransaction();
+        try {
+            for(Map.Entry<String, Long> entry : deltas.entrySet()) {
+                database.execSQL("INSERT OR IGNORE INTO " + TABLE_NAME + " ( " + KEY + " , " + VALUE + " ) VALUES ( ? , 0 )",
+                        new Object[]{entry.getKey()});
+                database.execSQL("UPDATE " + TABLE_NAME + " SET " + VALUE + " = " + VALUE + " + ? WHERE " + KEY + " = ?",
+                        new Object[]{entry.getValue(), entry.getKey()});
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    public Map<String, Long> getValues() {
+        Map<String, Long> ret = new HashMap<String, Long>();
+        Cursor cursor = null;
+        try {
+            SQLiteDatabase database = databaseHelper.getReadableDatabase();
+            cursor = database.query(TABLE_NAME, new String[] {KEY, VALUE}, null, null, null, null, null);
+            if(cursor == null)
+                return ret;
+            for(cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext())
+                ret.put(cursor.getString(cursor.getColumnIndexOrThrow(KEY)),
+                        cursor.getLong(cursor.getColumnIndexOrThrow(VALUE)));
+            return ret;
+        } finally {
+            if(cursor != null)
+                cursor.close();
+        }
+    }
+
     public void clean() {
         databaseHelper.getWritableDatabase().delete(TABLE_NAME, null, null);
     }
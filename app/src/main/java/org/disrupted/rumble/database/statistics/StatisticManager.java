@@ -19,9 +19,12 @@ package org.disrupted.rumble.database.statistics;
 
 import android.database.Cursor;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import org.disrupted.rumble.util.Log;
 
 import org.disrupted.rumble.app.RumbleApplication;
+import org.disrupted.rumble.database.DatabaseExecutor;
 import org.disrupted.rumble.database.DatabaseFactory;
 import org.disrupted.rumble.database.events.StatusDuplicate;
 import org.disrupted.rumble.network.events.ChannelDisconnected;
@@ -48,6 +51,10 @@ import java.net.URL;
 import java.security.KeyStore;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
@@ -56,23 +63,58 @@ import javax.net.ssl.TrustManagerFactory;
 import de.greenrobot.event.EventBus;
 
 /**
+ * The StatisticManager keeps track of the network and message statistics.
+ *
+ * The message counters are incremented in memory and flushed to the StatMessageDatabase in a
+ * single transaction every FLUSH_INTERVAL, when the NetworkCoordinator is destroyed and before
+ * the statistics are exported to JSON. getMessageCounter merges the persisted and in-memory values.
+ *
  * @author Lucien Loiseau
  */
 public class StatisticManager {
 
     private static final String TAG = "StatisticManager";
 
-    private static final String KEY_MESSAGE_RECEIVED  = "message_received";
-    private static final String KEY_MESSAGE_DUPLICATE = "message_duplicate";
-    private static final String KEY_MESSAGE_SENT      = "message_sent";
+    public  static final String KEY_MESSAGE_RECEIVED  = "message_received";
+    public  static final String KEY_MESSAGE_DUPLICATE = "message_duplicate";
+    public  static final String KEY_MESSAGE_SENT      = "message_sent";
     private static final String KEY_FREE_SPACE        = "storage_free_space";
     private static final String KEY_FILE_SIZE         = "storage_file_size";
 
+    private static final long FLUSH_INTERVAL = 60000; // in ms
+
     private static final Object lock = new Object();
     private static StatisticManager instance;
 
     private boolean started;
 
+    /*
+     * where the message counters are persisted, the StatMessageDatabase
+     */
+    interface CounterStore {
+        void incrementValues(Map<String, Long> deltas);
+        long getValue(String key, long defaultValue);
+    }
+
+    private static class DatabaseCounterStore implements CounterStore {
+        @Override
+        public void incrementValues(Map<String, Long> deltas) {
+            DatabaseFactory.getStatMessageDatabase(RumbleApplication.getContext()).incrementValues(deltas);
+        }
+
+        @Override
+        public long getValue(String key, long defaultValue) {
+            return DatabaseFactory.getStatMessageDatabase(RumbleApplication.getContext()).getValue(key, defaultValue);
+        }
+    }
+
+    private final CounterStore store;
+
+    // the increments that are not yet in the database
+    private final ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+    private final Object flushLock = new Object();
+    private Handler handler;
+
     public static StatisticManager getInstance() {
         synchronized (lock) {
             if (instance == null)
@@ -82,11 +124,21 @@ public class StatisticManager {
         }
     }
 
+    private StatisticManager() {
+        this(new DatabaseCounterStore());
+    }
+
+    StatisticManager(CounterStore store) {
+        this.store = store;
+    }
+
     public void start() {
         if(!started) {
             Log.d(TAG, "[+] Starting Statistic Manager");
             started = true;
             EventBus.getDefault().register(this);
+            handler = new Handler(Looper.getMainLooper());
+            handler.postDelayed(flushTick, FLUSH_INTERVAL);
         }
     }
 
@@ -96,9 +148,76 @@ public class StatisticManager {
             started = false;
             if(EventBus.getDefault().isRegistered(this))
                 EventBus.getDefault().unregister(this);
+            if(handler != null)
+                handler.removeCallbacks(flushTick);
+            handler = null;
+            flush();
+        }
+    }
+
+    void increment(String key) {
+        AtomicLong counter = counters.get(key);
+        if(counter == null) {
+            AtomicLong created = new AtomicLong(0);
+            counter = counters.putIfAbsent(key, created);
+            if(counter == null)
+                counter = created;
+        }
+        counter.incrementAndGet();
+    }
+
+    /*
+     * writes the in-memory increments to the database, in a single transaction
+     */
+    public void flush() {
+        synchronized (flushLock) {
+            Map<String, Long> deltas = new HashMap<String, Long>();
+            for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+                long delta = entry.getValue().getAndSet(0);
+                if (delta != 0)
+                    deltas.put(entry.getKey(), delta);
+            }
+            if (deltas.isEmpty())
+                return;
+            try {
+                store.incrementValues(deltas);
+            } catch (Exception e) {
+                // the increments are kept for the next flush
+                Log.e(TAG, "[!] cannot flush the counters: " + e.getMessage());
+                for (Map.Entry<String, Long> entry : deltas.entrySet())
+                    counters.get(entry.getKey()).addAndGet(entry.getValue());
+            }
+        }
+    }
+
+    /*
+     * the value of a message counter: persisted plus in-memory
+     */
+    public long getMessageCounter(String key) {
+        synchronized (flushLock) {
+            long persisted = store.getValue(key, 0);
+            AtomicLong counter = counters.get(key);
+            return persisted + ((counter == null) ? 0 : counter.get());
         }
     }
 
+    private Runnable flushTick = new Runnable() {
+        @Override
+        public void run() {
+            DatabaseFactory.getDatabaseExecutor(RumbleApplication.getContext()).addQuery(
+                    new DatabaseExecutor.WritableQuery() {
+                        @Override
+                        public boolean write() {
+                            flush();
+                            return true;
+                        }
+                    }, null, DatabaseExecutor.Priority.BACKGROUND);
+            Handler h = handler;
+            if(h != null)
+                h.postDelayed(flushTick, FLUSH_INTERVAL);
+        }
+    };
+
     public void onEventAsync(LinkLayerStarted event) {
         if(!event.linkLayerIdentifier.equals(WifiLinkLayerAdapter.LinkLayerIdentifier))
             return;
@@ -216,27 +335,19 @@ public class StatisticManager {
                         event.channel.out_transmission_time, event.channel.status_received,
                         event.channel.status_sent);
     }
-    public void onEventAsync(PushStatusReceived event) {
-        long nb = DatabaseFactory.getStatMessageDatabase(RumbleApplication.getContext())
-                .getValue(KEY_MESSAGE_RECEIVED, 0);
-        DatabaseFactory.getStatMessageDatabase(RumbleApplication.getContext())
-                .updateValue(KEY_MESSAGE_RECEIVED, nb+1);
-
+    public void onEvent(PushStatusReceived event) {
+        increment(KEY_MESSAGE_RECEIVED);
     }
-    public void onEventAsync(PushStatusSent event) {
-        long nb = DatabaseFactory.getStatMessageDatabase(RumbleApplication.getContext())
-                .getValue(KEY_MESSAGE_SENT, 0);
-        DatabaseFactory.getStatMessageDatabase(RumbleApplication.getContext())
-                .updateValue(KEY_MESSAGE_SENT, nb+1);
+    public void onEvent(PushStatusSent event) {
+        increment(KEY_MESSAGE_SENT);
     }
     public void onEvent(StatusDuplicate event) {
-        long nb = DatabaseFactory.getStatMessageDatabase(RumbleApplication.getContext())
-                .getValue(KEY_MESSAGE_DUPLICATE, 0);
-        DatabaseFactory.getStatMessageDatabase(RumbleApplication.getContext())
-                .updateValue(KEY_MESSAGE_DUPLICATE, nb+1);
+        increment(KEY_MESSAGE_DUPLICATE);
     }
 
     public JSONObject generateStatJSON() throws JSONException{
+        flush();
+
         JSONObject json = new JSONObject();
         json.put("rumble_version", RumbleApplication.BUILD_VERSION);
         json.put("android_build", Integer.toString(Build.VERSION.SDK_INT));
@@ -29,6 +29,7 @@ import android.support.v4.app.NotificationCompat;
 import org.disrupted.rumble.util.Log;
 
 import org.disrupted.rumble.R;
+import org.disrupted.rumble.database.statistics.StatisticManager;
 import org.disrupted.rumble.network.services.ServiceLayer;
 import org.disrupted.rumble.network.services.chat.ChatService;
 import org.disrupted.rumble.network.services.push.PushService;
@@ -159,6 +160,9 @@ public class NetworkCoordinator extends Service {
                     if (EventBus.getDefault().isRegistered(NetworkCoordinator.this))
                         EventBus.getDefault().unregister(NetworkCoordinator.this);
 
+                    // the in-memory counters would be lost otherwise
+                    StatisticManager.getInstance().flush();
+
                     System.exit(0);
                 }
             });
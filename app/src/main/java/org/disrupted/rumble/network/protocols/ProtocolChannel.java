@@ -86,6 +86,17 @@ public abstract class ProtocolChannel implements Worker {
                 try {
                     while (true) {
                         Command command = commandQueue.take();
+
+                        // merge the following commands if possible (we are the only consumer)
+                        Command next;
+                        while((next = commandQueue.peek()) != null) {
+                            Command merged = coalesce(command, next);
+                            if(merged == null)
+                                break;
+                            commandQueue.poll();
+                            command = merged;
+                        }
+
                         try {
                             lock.lock();
                             onCommandReceived(command);
@@ -131,6 +142,15 @@ public abstract class ProtocolChannel implements Worker {
 
     abstract public Set<Contact> getRecipientList();
 
+    /*
+     * may be overridden by a channel that is able to send several commands at once.
+     * it is called by the command thread with the command about to be executed and the next
+     * command in the queue, and returns the merged command or null if they cannot be merged.
+     */
+    protected Command coalesce(Command command, Command next) {
+        return null;
+    }
+
     /*
      * class API
      * - onChannelConnected must be called by implementing class to start the receiving thread
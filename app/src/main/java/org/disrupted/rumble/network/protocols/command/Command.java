@@ -26,9 +26,11 @@ public abstract class Command {
 
     public enum CommandID {
         SEND_PUSH_STATUS,
+        SEND_PUSH_STATUS_BUNDLE,
         SEND_LOCAL_INFORMATION,
         SEND_CHAT_MESSAGE,
-        SEND_KEEP_ALIVE
+        SEND_KEEP_ALIVE,
+        SEND_STATUS_SUMMARY
     }
 
     abstract public CommandID getCommandID();
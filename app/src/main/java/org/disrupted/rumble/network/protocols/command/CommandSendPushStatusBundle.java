@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ *
+ * This file is part of Rumble.
+ *
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.network.protocols.command;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A CommandSendPushStatusBundle groups consecutive CommandSendPushStatus of the same group
+ * so that they are sent back-to-back within a single transaction (and a single cipher block
+ * if the group is private). It is built by the ProtocolChannel when coalescing its queue,
+ * the upper layer keeps on sending CommandSendPushStatus.
+ *
+ * @author Lucien Loiseau
+ */
+public class CommandSendPushStatusBundle extends Command {
+
+    public static final int MAX_BUNDLE_SIZE = 16;
+
+    private String gid;
+    private List<CommandSendPushStatus> commands;
+    private List<CommandSendPushStatus> dropped;  // the ones that could not be sent
+
+    public CommandSendPushStatusBundle(CommandSendPushStatus first){
+        this.gid = first.getStatus().getGroup().getGid();
+        this.commands = new ArrayList<CommandSendPushStatus>();
+        this.commands.add(first);
+        this.dropped = new ArrayList<CommandSendPushStatus>();
+    }
+
+    /*
+     * merges the next command of a channel queue into the current one if both are statuses
+     * of the same group, returns null if they cannot be merged
+     */
+    public static Command coalesce(Command command, Command next) {
+        if(!next.getCommandID().equals(CommandID.SEND_PUSH_STATUS))
+            return null;
+
+        CommandSendPushStatusBundle bundle;
+        switch (command.getCommandID()) {
+            case SEND_PUSH_STATUS:
+                bundle = new CommandSendPushStatusBundle((CommandSendPushStatus)command);
+                break;
+            case SEND_PUSH_STATUS_BUNDLE:
+                bundle = (CommandSendPushStatusBundle)command;
+                break;
+            default:
+                return null;
+        }
+        if(!bundle.append((CommandSendPushStatus)next))
+            return null;
+        return bundle;
+    }
+
+    /*
+     * returns false if the command cannot be part of this bundle
+     */
+    public boolean append(CommandSendPushStatus command) {
+        if(commands.size() >= MAX_BUNDLE_SIZE)
+            return false;
+        if(!gid.equals(command.getStatus().getGroup().getGid()))
+            return false;
+        commands.add(command);
+        return true;
+    }
+
+    public List<CommandSendPushStatus> getCommands() {
+        return commands;
+    }
+
+    /*
+     * the commands of the bundle that were left out when it was sent (attached file missing)
+     */
+    public List<CommandSendPushStatus> getDropped() {
+        return dropped;
+    }
+
+    /*
+     * Command.equals only compares the CommandID, the dropped commands are compared by identity
+     */
+    public boolean isDropped(CommandSendPushStatus command) {
+        for(CommandSendPushStatus drop : dropped) {
+            if(drop == command)
+                return true;
+        }
+        return false;
+    }
+
+    public int size() {
+        return commands.size();
+    }
+
+    @Override
+    public CommandID getCommandID() {
+        return CommandID.SEND_PUSH_STATUS_BUNDLE;
+    }
+
+}
@@ -31,13 +31,15 @@ public class ContactInformationReceived extends NetworkEvent{
 
     public Contact contact;
     public int     flags;   // see class Contact
+    public int     capabilities; // see class BlockContact
     public ProtocolChannel channel;
     public LinkLayerNeighbour neighbour;
     public boolean authenticated;
 
-    public ContactInformationReceived(Contact contact, int flags, ProtocolChannel channel, LinkLayerNeighbour neighbour) {
+    public ContactInformationReceived(Contact contact, int flags, int capabilities, ProtocolChannel channel, LinkLayerNeighbour neighbour) {
         this.contact = contact;
         this.flags = flags;
+        this.capabilities = capabilities;
         this.channel = channel;
         this.neighbour = neighbour;
         this.authenticated = false;
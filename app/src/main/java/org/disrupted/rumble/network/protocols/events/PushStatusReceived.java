@@ -30,15 +30,22 @@ public class PushStatusReceived extends NetworkEvent{
     public String gid;
     public String senderID;
     public String tempfile;
+    public String tempfileHash;  // SHA-256 of the tempfile, null if unknown
     public String protocolID;
     public String linkLayerIdentifier;
 
     public PushStatusReceived(PushStatus status, String gid, String sender, String tempfile,
                               String protocolID, String linkLayerIdentifier) {
+        this(status, gid, sender, tempfile, null, protocolID, linkLayerIdentifier);
+    }
+
+    public PushStatusReceived(PushStatus status, String gid, String sender, String tempfile,
+                              String tempfileHash, String protocolID, String linkLayerIdentifier) {
         this.status = status;
         this.gid = gid;
         this.senderID = sender;
         this.tempfile = tempfile;
+        this.tempfileHash = tempfileHash;
         this.protocolID = protocolID;
         this.linkLayerIdentifier = linkLayerIdentifier;
     }
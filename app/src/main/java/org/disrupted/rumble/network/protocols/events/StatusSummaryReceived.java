@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ * This file is part of Rumble.
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.network.protocols.events;
+
+import org.disrupted.rumble.network.events.NetworkEvent;
+import org.disrupted.rumble.network.protocols.ProtocolChannel;
+import org.disrupted.rumble.util.BloomFilter;
+
+/**
+ * This event is sent when a neighbour sent us the summary of the statuses it holds
+ *
+ * @author Lucien Loiseau
+ */
+public class StatusSummaryReceived extends NetworkEvent{
+
+    public BloomFilter summary;
+    public ProtocolChannel channel;
+
+    public StatusSummaryReceived(BloomFilter summary, ProtocolChannel channel) {
+        this.summary = summary;
+        this.channel = channel;
+    }
+
+    @Override
+    public String shortDescription() {
+        if(channel != null)
+            return channel.getWorkerIdentifier();
+        else
+            return "";
+    }
+
+}
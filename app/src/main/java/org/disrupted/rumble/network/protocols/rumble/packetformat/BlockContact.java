@@ -54,6 +54,7 @@ import de.greenrobot.event.EventBus;
  * - The list of groups ID (GID) it belongs to
  * - its interests hashtags subscription list (value, hashtag)
  * - its public key
+ * - the optional blocks it understands (capabilities)
  *
  * All those fields are not necessary at every transmission so we use a (TYPE, VALUE)
  * approach
@@ -90,6 +91,14 @@ import de.greenrobot.event.EventBus;
  * | KEY_TYPE |            KEY                 |
  * +----------+--------------------------------+
  *
+ * ENTRY TYPE CAPABILITIES
+ * +----------+
+ * |  FLAGS   |   1 byte (see CAPABILITY_*)
+ * +----------+
+ *
+ * Unknown entries are skipped by the receiver, so an older peer simply ignores the
+ * capabilities and is never sent a block it does not understand.
+ *
  * @author Lucien Loiseau
  */
 public class BlockContact extends Block {
@@ -108,8 +117,15 @@ public class BlockContact extends Block {
     );
     private static final int MAX_BLOCK_CONTACT_SIZE =  2048;
 
+    /*
+     * Capabilities
+     */
+    public static final int CAPABILITY_STATUS_SUMMARY = 0x01;  // understands BlockSummary
+    public static final int LOCAL_CAPABILITIES        = CAPABILITY_STATUS_SUMMARY;
+
     public Contact contact;
     public int     flags;
+    public int     capabilities;
 
     public BlockContact(BlockHeader header) {
         super(header);
@@ -120,6 +136,7 @@ public class BlockContact extends Block {
         header.setBlockType(BlockHeader.BLOCKTYPE_CONTACT);
         this.contact = command.getContact();
         this.flags   = command.getFlags();
+        this.capabilities = LOCAL_CAPABILITIES;
     }
 
     public void sanityCheck() throws MalformedBlockPayload {
@@ -190,6 +207,11 @@ public class BlockContact extends Block {
                         contact.addTagInterest(((TagInterestEntry)entry).hashtag, ((TagInterestEntry)entry).levelOfInterest);
                         this.flags |= Contact.FLAG_TAG_INTEREST;
                         break;
+                    case Entry.ENTRY_TYPE_CAPABILITIES:
+                        entry = new CapabilitiesEntry(entrySize);
+                        entry.read(byteBuffer);
+                        this.capabilities = ((CapabilitiesEntry)entry).capabilities;
+                        break;
                     default:
                         entry = new NullEntry(entrySize);
                         entry.read(byteBuffer);
@@ -232,6 +254,9 @@ public class BlockContact extends Block {
                 buffersize += bufferEntry.getEntrySize();
             }
         }
+        CapabilitiesEntry capabilitiesEntry = new CapabilitiesEntry((byte)capabilities);
+        entries.add(capabilitiesEntry);
+        buffersize += capabilitiesEntry.getEntrySize();
         header.setPayloadLength(buffersize);
 
         /* prepare the block payload buffer */
@@ -279,6 +304,7 @@ public class BlockContact extends Block {
         public static final int ENTRY_TYPE_GROUP   = 0x01;
         public static final int ENTRY_TYPE_TAG     = 0x02;
         public static final int ENTRY_TYPE_PUB_KEY = 0x03;
+        public static final int ENTRY_TYPE_CAPABILITIES = 0x04;
 
         /* Entry payload size (without EntryHeader) */
         int entrySize;
@@ -415,4 +441,49 @@ public class BlockContact extends Block {
             return (HEADER_SIZE+TAG_INTEREST_SIZE+(byte)hashtagBytes.length);
         }
     }
+
+    /*
+     * ENTRY TYPE CAPABILITIES (Header + Payload)
+     * +-------+----------+----------+
+     * | TYPE  |  length  |  FLAGS   |
+     * +-------+----------+----------+
+     *     1       1          1
+     */
+    private class CapabilitiesEntry extends Entry {
+        public static final int  CAPABILITIES_SIZE = 1;
+
+        private int capabilities;
+
+        public CapabilitiesEntry(int entrySize)  throws MalformedBlockPayload {
+            super(entrySize);
+            if(entrySize < CAPABILITIES_SIZE)
+                throw new MalformedBlockPayload("wrong Capabilities entry size",entrySize);
+            this.capabilities = 0;
+        }
+
+        public CapabilitiesEntry(byte capabilities) {
+            super(CAPABILITIES_SIZE);
+            this.capabilities = (capabilities & 0xFF);
+        }
+
+        @Override
+        public long read(ByteBuffer buffer) throws IndexOutOfBoundsException, BufferUnderflowException {
+            // a newer peer may send more flags than we know of
+            byte[] flagsBytes = new byte[entrySize];
+            buffer.get(flagsBytes, 0, entrySize);
+            this.capabilities = (flagsBytes[0] & 0xFF);
+            return entrySize;
+        }
+
+        @Override
+        public long write(ByteBuffer buffer) throws BufferOverflowException, ReadOnlyBufferException{
+            /* write entry header */
+            buffer.put((byte)ENTRY_TYPE_CAPABILITIES);
+            buffer.put((byte)entrySize);
+
+            /* write entry payload */
+            buffer.put((byte)capabilities);
+            return (HEADER_SIZE+CAPABILITIES_SIZE);
+        }
+    }
 }
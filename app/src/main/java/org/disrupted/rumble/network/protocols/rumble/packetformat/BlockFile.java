@@ -24,6 +24,7 @@ import org.disrupted.rumble.network.linklayer.exception.InputOutputStreamExcepti
 import org.disrupted.rumble.network.protocols.rumble.packetformat.exceptions.MalformedBlockPayload;
 import org.disrupted.rumble.util.EncryptedOutputStream;
 import org.disrupted.rumble.util.FileUtil;
+import org.disrupted.rumble.util.HashUtil;
 
 import java.io.BufferedInputStream;
 import java.io.File;
@@ -33,6 +34,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.Date;
@@ -79,6 +82,7 @@ public class BlockFile extends Block {
     /* Block Attributes */
     public  String filename;
     public  String status_id_base64;
+    public  String sha256;            // of the file received, computed while it is written
 
     public BlockFile(BlockHeader header) {
         super(header);
@@ -142,6 +146,12 @@ public class BlockFile extends Block {
                 );
 
                 FileOutputStream fos = null;
+                MessageDigest md;
+                try {
+                    md = MessageDigest.getInstance("SHA-256");
+                } catch (NoSuchAlgorithmException e) {
+                    md = null;
+                }
                 try {
                     fos = new FileOutputStream(attachedFile);
                     byte[] buffer = new byte[BUFFER_SIZE];
@@ -152,6 +162,8 @@ public class BlockFile extends Block {
                             throw new IOException("End of stream reached before downloading was complete");
                         readleft -= bytesread;
                         fos.write(buffer, 0, bytesread);
+                        if (md != null)
+                            md.update(buffer, 0, bytesread);
                     }
                 } finally {
                     if (fos != null)
@@ -159,6 +171,7 @@ public class BlockFile extends Block {
                 }
 
                 filename = attachedFile.getName();
+                sha256 = (md == null) ? null : HashUtil.toHex(md.digest());
                 BlockDebug.d(TAG,"FILE received ("+attachedFile.length()+" bytes): "+filename);
 
                 return header.getBlockLength();
@@ -93,6 +93,7 @@ public class BlockHeader {
     public static final int BLOCKTYPE_CONTACT       = 0x03;
     public static final int BLOCKTYPE_CHAT_MESSAGE  = 0x04;
     public static final int BLOCK_CIPHER            = 0x05;
+    public static final int BLOCKTYPE_SUMMARY       = 0x06;
     public static final int BLOCK_NULL              = 0xff;
 
     public BlockHeader() {
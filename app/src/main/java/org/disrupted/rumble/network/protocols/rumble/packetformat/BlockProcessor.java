@@ -30,6 +30,7 @@ import org.disrupted.rumble.network.protocols.events.ChatMessageReceived;
 import org.disrupted.rumble.network.protocols.events.ContactInformationReceived;
 import org.disrupted.rumble.network.protocols.events.FileReceived;
 import org.disrupted.rumble.network.protocols.events.PushStatusReceived;
+import org.disrupted.rumble.network.protocols.events.StatusSummaryReceived;
 import org.disrupted.rumble.network.protocols.rumble.RumbleProtocol;
 import org.disrupted.rumble.network.protocols.rumble.packetformat.exceptions.MalformedBlock;
 import org.disrupted.rumble.util.EncryptedInputStream;
@@ -115,6 +116,7 @@ public class BlockProcessor {
                                         blockPushStatus.group_id_base64,
                                         blockPushStatus.sender_id_base64,
                                         blockFile.filename,
+                                        blockFile.sha256,
                                         RumbleProtocol.protocolID,
                                         channel.getLinkLayerIdentifier())
                         );
@@ -135,6 +137,7 @@ public class BlockProcessor {
                     EventBus.getDefault().post(new ContactInformationReceived(
                                     blockContact.contact,
                                     blockContact.flags,
+                                    blockContact.capabilities,
                                     channel,
                                     con.getLinkLayerNeighbour())
                     );
@@ -153,6 +156,15 @@ public class BlockProcessor {
                     channel.bytes_received += blockKA.readBlock(is);
                     channel.in_transmission_time += (System.nanoTime() - timeToTransfer);
                     break;
+                case BlockHeader.BLOCKTYPE_SUMMARY:
+                    BlockSummary blockSummary = new BlockSummary(header);
+                    channel.bytes_received += blockSummary.readBlock(is);
+                    channel.in_transmission_time += (System.nanoTime() - timeToTransfer);
+                    EventBus.getDefault().post(new StatusSummaryReceived(
+                                    blockSummary.summary,
+                                    channel)
+                    );
+                    break;
                 case BlockHeader.BLOCK_CIPHER:
                     BlockCipher blockCipher = new BlockCipher(header);
                     channel.bytes_received += blockCipher.readBlock(is);
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ * This file is part of Rumble.
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.network.protocols.rumble.packetformat;
+
+import org.disrupted.rumble.network.linklayer.exception.InputOutputStreamException;
+import org.disrupted.rumble.network.protocols.command.CommandSendStatusSummary;
+import org.disrupted.rumble.network.protocols.rumble.packetformat.exceptions.MalformedBlockPayload;
+import org.disrupted.rumble.util.BloomFilter;
+import org.disrupted.rumble.util.EncryptedOutputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A BlockSummary carries a Bloom filter of the UUIDs of the statuses held by the sender
+ * (and not yet expired) so that the receiver avoids pushing statuses the sender already has.
+ * It is only sent to a peer whose BlockContact advertised CAPABILITY_STATUS_SUMMARY, as an
+ * older peer would drop the connection on an unknown block type.
+ *
+ * +--------+--------------------------------------------------+
+ * |   K    |              Bloom filter bits                   |   1 byte + VARIABLE
+ * +--------+--------------------------------------------------+
+ *
+ * -- K: the number of hash functions (see BloomFilter)
+ *
+ * @author Lucien Loiseau
+ */
+public class BlockSummary extends Block {
+
+    private static final String TAG = "BlockSummary";
+
+    private static final int FIELD_NB_HASHES_SIZE = 1;
+
+    private static final int MIN_PAYLOAD_SIZE = FIELD_NB_HASHES_SIZE + 1;
+    public  static final int MAX_FILTER_SIZE  = 65536;
+
+    public BloomFilter summary;
+
+    public BlockSummary(BlockHeader header) {
+        super(header);
+    }
+
+    public BlockSummary(CommandSendStatusSummary command) {
+        super(new BlockHeader());
+        header.setBlockType(BlockHeader.BLOCKTYPE_SUMMARY);
+        this.summary = command.getSummary();
+    }
+
+    public void sanityCheck() throws MalformedBlockPayload {
+        if(header.getBlockType() != BlockHeader.BLOCKTYPE_SUMMARY)
+            throw new MalformedBlockPayload("Block type BLOCKTYPE_SUMMARY expected",0);
+        if((header.getBlockLength() < MIN_PAYLOAD_SIZE) || (header.getBlockLength() > MAX_FILTER_SIZE + FIELD_NB_HASHES_SIZE))
+            throw new MalformedBlockPayload("wrong header length parameter: "+header.getBlockLength(), 0);
+    }
+
+    @Override
+    public long readBlock(InputStream in) throws MalformedBlockPayload, IOException, InputOutputStreamException {
+        sanityCheck();
+
+        int nbHashes = in.read();
+        if (nbHashes < 0)
+            throw new IOException("end of stream reached");
+
+        /* the filter may be larger than a single read */
+        byte[] bits = new byte[(int)header.getBlockLength() - FIELD_NB_HASHES_SIZE];
+        int readleft = bits.length;
+        while(readleft > 0) {
+            int count = in.read(bits, bits.length - readleft, readleft);
+            if (count < 0)
+                throw new IOException("end of stream reached");
+            readleft -= count;
+        }
+
+        summary = new BloomFilter(nbHashes, bits);
+        BlockDebug.d(TAG, "BlockSummary received (" + header.getBlockLength() + " bytes)");
+        return header.getBlockLength();
+    }
+
+    @Override
+    public long writeBlock(OutputStream out, EncryptedOutputStream eos) throws IOException, InputOutputStreamException {
+        byte[] bits = summary.getBits();
+        header.setPayloadLength(FIELD_NB_HASHES_SIZE + bits.length);
+
+        header.writeBlockHeader(out);
+        out.write(summary.getNbHashes() & 0xff);
+        out.write(bits, 0, bits.length);
+        BlockDebug.d(TAG, "BlockSummary sent (" + header.getBlockLength() + " bytes)");
+
+        return BlockHeader.BLOCK_HEADER_LENGTH + header.getBlockLength();
+    }
+
+    @Override
+    public void dismiss() {
+        summary = null;
+    }
+}
@@ -17,6 +17,7 @@
 
 package org.disrupted.rumble.network.protocols.rumble.packetformat;
 
+import org.disrupted.rumble.database.objects.Group;
 import org.disrupted.rumble.database.objects.PushStatus;
 import org.disrupted.rumble.network.linklayer.UnicastConnection;
 import org.disrupted.rumble.network.linklayer.bluetooth.BluetoothLinkLayerAdapter;
@@ -27,6 +28,8 @@ import org.disrupted.rumble.network.protocols.command.CommandSendChatMessage;
 import org.disrupted.rumble.network.protocols.command.CommandSendKeepAlive;
 import org.disrupted.rumble.network.protocols.command.CommandSendLocalInformation;
 import org.disrupted.rumble.network.protocols.command.CommandSendPushStatus;
+import org.disrupted.rumble.network.protocols.command.CommandSendPushStatusBundle;
+import org.disrupted.rumble.network.protocols.command.CommandSendStatusSummary;
 import org.disrupted.rumble.network.protocols.events.ChatMessageSent;
 import org.disrupted.rumble.network.protocols.events.ContactInformationSent;
 import org.disrupted.rumble.network.protocols.events.PushStatusReceived;
@@ -88,79 +91,27 @@ public class CommandProcessor {
                 BlockKeepAlive blockKA = new BlockKeepAlive((CommandSendKeepAlive) command);
                 blockKA.writeBlock(out, null);
                 break;
+            case SEND_STATUS_SUMMARY:
+                BlockSummary blockSummary = new BlockSummary((CommandSendStatusSummary) command);
+                bytes_transmitted += blockSummary.writeBlock(out, null);
+                blockSummary.dismiss();
+                break;
             case SEND_PUSH_STATUS:
-                CommandSendPushStatus commandSendPushStatus = (CommandSendPushStatus) command;
-                PushStatus status = commandSendPushStatus.getStatus();
-
-                /* prepare the blockstatus and blockfile for attached file, if any */
-                BlockPushStatus blockPushStatus = new BlockPushStatus(commandSendPushStatus);
-                BlockFile blockFile = null;
-                if(status.hasAttachedFile()) {
-                    File attachedFile = new File(FileUtil.getReadableAlbumStorageDir(), status.getFileName());
-                    if(!(attachedFile.exists() && attachedFile.isFile())) {
-                        BlockDebug.e(TAG, "attached file doesn't exist, abort sending push status");
-                        return false;
-                    }
-                    blockFile = new BlockFile(status.getFileName(), status.getUuid());
-                }
-
-                /* if the group is private, send a BlockCipher AES128/CBC/PKCS5 first */
-                EncryptedOutputStream eos = null;
-                if(status.getGroup().isPrivate()) {
-                    try {
-                        byte[] iv = CryptoUtil.generateRandomIV(16);
-                        eos = CryptoUtil.getCipherOutputStream(out,
-                                CryptoUtil.CipherAlgo.ALGO_AES,
-                                CryptoUtil.CipherBlock.BLOCK_CBC,
-                                CryptoUtil.CipherPadding.PADDING_PKCS5,
-                                status.getGroup().getGroupKey(),
-                                iv);
-                        BlockCipher blockCipher = new BlockCipher(status.getGroup().getGid(), iv);
-                        blockCipher.header.setLastBlock(false);
-                        bytes_transmitted += blockCipher.writeBlock(out, eos);
-                        blockCipher.dismiss();
-                    } catch(CryptoUtil.CryptographicException e) {
-                        BlockDebug.e(TAG, "cannot send PushStatus, failed to setup encrypted stream", e);
-                        return false;
-                    }
-                }
-
-                /* send block status */
-                blockPushStatus.header.setLastBlock(!status.hasAttachedFile() && (eos == null));
-                blockPushStatus.header.setEncrypted(eos != null);
-                bytes_transmitted+=blockPushStatus.writeBlock(out, eos);
-                if(eos != null)
-                    eos.flush();
-                blockPushStatus.dismiss();
-
-                /* send block file if any */
-                if(blockFile != null) {
-                    blockFile.header.setLastBlock(eos == null);
-                    blockFile.header.setEncrypted(eos != null);
-                    bytes_transmitted += blockFile.writeBlock(out, eos);
-                    if(eos != null)
-                        eos.flush();
-                    blockFile.dismiss();
-                }
-
-                /* send a cleartext block */
-                if(eos != null) {
-                    BlockCipher cleartext = new BlockCipher();
-                    cleartext.header.setLastBlock(true);
-                    bytes_transmitted+=cleartext.writeBlock(out, eos);
-                    cleartext.dismiss();
-                    eos.close();
-                }
-
-                channel.status_sent++;
+                List<CommandSendPushStatus> single = new ArrayList<CommandSendPushStatus>(1);
+                single.add((CommandSendPushStatus) command);
+                long sent = sendPushStatuses(single, new ArrayList<CommandSendPushStatus>(1));
+                if(sent < 0)
+                    return false;
+                bytes_transmitted += sent;
+                channel.out_transmission_time += (System.nanoTime() - timeToTransfer);
+                break;
+            case SEND_PUSH_STATUS_BUNDLE:
+                CommandSendPushStatusBundle bundle = (CommandSendPushStatusBundle) command;
+                sent = sendPushStatuses(bundle.getCommands(), bundle.getDropped());
+                if(sent < 0)
+                    return false;
+                bytes_transmitted += sent;
                 channel.out_transmission_time += (System.nanoTime() - timeToTransfer);
-                EventBus.getDefault().post(new PushStatusSent(
-                                status,
-                                channel.getRecipientList(),
-                                RumbleProtocol.protocolID,
-                                BluetoothLinkLayerAdapter.LinkLayerIdentifier)
-                );
-
                 break;
             default:
                 return false;
@@ -170,4 +121,104 @@ public class CommandProcessor {
         channel.bytes_sent += bytes_transmitted;
         return true;
     }
+
+    /*
+     * send a list of statuses belonging to the same group within a single transaction:
+     * only the very last block carries the last_block flag and, if the group is private,
+     * a single BlockCipher covers every status of the list.
+     *
+     * the statuses that cannot be sent are added to dropped.
+     * returns the number of bytes sent or -1 if nothing was sent
+     */
+    private long sendPushStatuses(List<CommandSendPushStatus> commands, List<CommandSendPushStatus> dropped) throws InputOutputStreamException, IOException {
+        long bytes_transmitted = 0;
+
+        /* prepare the blockfile for attached file, if any, and drop the status with missing file */
+        List<CommandSendPushStatus> toSend = new ArrayList<CommandSendPushStatus>(commands.size());
+        List<BlockFile>             files  = new ArrayList<BlockFile>(commands.size());
+        for(CommandSendPushStatus command : commands) {
+            PushStatus status = command.getStatus();
+            BlockFile blockFile = null;
+            if(status.hasAttachedFile()) {
+                File attachedFile = new File(FileUtil.getReadableAlbumStorageDir(), status.getFileName());
+                if(!(attachedFile.exists() && attachedFile.isFile())) {
+                    BlockDebug.e(TAG, "attached file doesn't exist, abort sending push status");
+                    dropped.add(command);
+                    continue;
+                }
+                blockFile = new BlockFile(status.getFileName(), status.getUuid());
+            }
+            toSend.add(command);
+            files.add(blockFile);
+        }
+        if(toSend.isEmpty())
+            return -1;
+
+        /* if the group is private, send a BlockCipher AES128/CBC/PKCS5 first */
+        Group group = toSend.get(0).getStatus().getGroup();
+        EncryptedOutputStream eos = null;
+        if(group.isPrivate()) {
+            try {
+                byte[] iv = CryptoUtil.generateRandomIV(16);
+                eos = CryptoUtil.getCipherOutputStream(out,
+                        CryptoUtil.CipherAlgo.ALGO_AES,
+                        CryptoUtil.CipherBlock.BLOCK_CBC,
+                        CryptoUtil.CipherPadding.PADDING_PKCS5,
+                        group.getGroupKey(),
+                        iv);
+                BlockCipher blockCipher = new BlockCipher(group.getGid(), iv);
+                blockCipher.header.setLastBlock(false);
+                bytes_transmitted += blockCipher.writeBlock(out, eos);
+                blockCipher.dismiss();
+            } catch(CryptoUtil.CryptographicException e) {
+                BlockDebug.e(TAG, "cannot send PushStatus, failed to setup encrypted stream", e);
+                return -1;
+            }
+        }
+
+        for(int i = 0; i < toSend.size(); i++) {
+            BlockFile blockFile = files.get(i);
+            boolean lastStatus = (i == toSend.size() - 1);
+
+            /* send block status */
+            BlockPushStatus blockPushStatus = new BlockPushStatus(toSend.get(i));
+            blockPushStatus.header.setLastBlock(lastStatus && (blockFile == null) && (eos == null));
+            blockPushStatus.header.setEncrypted(eos != null);
+            bytes_transmitted += blockPushStatus.writeBlock(out, eos);
+            if(eos != null)
+                eos.flush();
+            blockPushStatus.dismiss();
+
+            /* send block file if any */
+            if(blockFile != null) {
+                blockFile.header.setLastBlock(lastStatus && (eos == null));
+                blockFile.header.setEncrypted(eos != null);
+                bytes_transmitted += blockFile.writeBlock(out, eos);
+                if(eos != null)
+                    eos.flush();
+                blockFile.dismiss();
+            }
+        }
+
+        /* send a cleartext block */
+        if(eos != null) {
+            BlockCipher cleartext = new BlockCipher();
+            cleartext.header.setLastBlock(true);
+            bytes_transmitted += cleartext.writeBlock(out, eos);
+            cleartext.dismiss();
+            eos.close();
+        }
+
+        for(CommandSendPushStatus command : toSend) {
+            channel.status_sent++;
+            EventBus.getDefault().post(new PushStatusSent(
+                            command.getStatus(),
+                            channel.getRecipientList(),
+                            RumbleProtocol.protocolID,
+                            BluetoothLinkLayerAdapter.LinkLayerIdentifier)
+            );
+        }
+
+        return bytes_transmitted;
+    }
 }
@@ -33,6 +33,7 @@ import org.disrupted.rumble.network.protocols.command.CommandSendChatMessage;
 import org.disrupted.rumble.network.protocols.command.CommandSendKeepAlive;
 import org.disrupted.rumble.network.protocols.command.CommandSendLocalInformation;
 import org.disrupted.rumble.network.protocols.command.CommandSendPushStatus;
+import org.disrupted.rumble.network.protocols.command.CommandSendPushStatusBundle;
 import org.disrupted.rumble.network.protocols.events.CommandExecuted;
 import org.disrupted.rumble.network.protocols.events.ContactInformationReceived;
 import org.disrupted.rumble.network.events.ChannelConnected;
@@ -218,16 +219,14 @@ public class RumbleUnicastChannel extends ProtocolChannel {
             // remove keep alive if any
             keepAlive.removeCallbacks(keepAliveFires);
 
-            commandProcessor.processCommand(command);
+            boolean success = commandProcessor.processCommand(command);
 
-            if(!command.getCommandID().equals(Command.CommandID.SEND_KEEP_ALIVE))
-                EventBus.getDefault().post(new CommandExecuted(this, command, true));
+            postCommandExecuted(command, success);
 
             // schedule a keep alive to send
             keepAlive.postDelayed(keepAliveFires, KEEP_ALIVE_TIME);
 
-            //EventBus.getDefault().post(new CommandExecuted(this, command, false));
-            return true;
+            return success;
         } catch(InputOutputStreamException ignore) {
             ignore.printStackTrace();
             Log.d(TAG, "[!] "+command.getCommandID()+" "+ignore.getMessage());
@@ -235,9 +234,36 @@ public class RumbleUnicastChannel extends ProtocolChannel {
             ignore.printStackTrace();
             Log.d(TAG, "[!] "+command.getCommandID()+" "+ignore.getMessage());
         }
+        postCommandExecuted(command, false);
         return false;
     }
 
+    /*
+     * a bundle is invisible to the upper layer, we thus notify every command it holds,
+     * the ones that were dropped from the bundle have failed
+     */
+    private void postCommandExecuted(Command command, boolean success) {
+        switch (command.getCommandID()) {
+            case SEND_KEEP_ALIVE:
+                break;
+            case SEND_PUSH_STATUS_BUNDLE:
+                CommandSendPushStatusBundle bundle = (CommandSendPushStatusBundle)command;
+                for(CommandSendPushStatus sub : bundle.getCommands())
+                    EventBus.getDefault().post(new CommandExecuted(this, sub, success && !bundle.isDropped(sub)));
+                break;
+            default:
+                EventBus.getDefault().post(new CommandExecuted(this, command, success));
+        }
+    }
+
+    /*
+     * consecutive statuses of the same group are sent together in one transaction
+     */
+    @Override
+    protected Command coalesce(Command command, Command next) {
+        return CommandSendPushStatusBundle.coalesce(command, next);
+    }
+
     @Override
     public void stopWorker() {
         if(!working)
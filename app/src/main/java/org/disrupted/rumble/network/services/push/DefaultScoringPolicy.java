@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ * This file is part of Rumble.
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.network.services.push;
+
+/**
+ * The default scoring policy is a weighted sum of the relevance of the status for the contact
+ * (its interest in the hashtags), the replication density of the status and its quality
+ * (like / duplicate), multiplied by its age:
+ *
+ *      score = (a*relevance + b*replicationDensity + c*quality) * age
+ *
+ * @author Lucien Loiseau
+ */
+public class DefaultScoringPolicy implements ScoringPolicy {
+
+    private static final String TAG = "DefaultScoringPolicy";
+
+    public static final float DEFAULT_A = 0;
+    public static final float DEFAULT_B = (float)0.6;
+    public static final float DEFAULT_C = (float)0.4;
+
+    private final float a;
+    private final float b;
+    private final float c;
+
+    public DefaultScoringPolicy() {
+        this(DEFAULT_A, DEFAULT_B, DEFAULT_C);
+    }
+
+    public DefaultScoringPolicy(float a, float b, float c) {
+        this.a = a;
+        this.b = b;
+        this.c = c;
+    }
+
+    @Override
+    public float score(boolean match, float relevance, float replicationDensity,
+                       int like, int duplicate, int replication, long toc, long ttl, long now) {
+        if(!match)
+            return 0;
+        float quality =  (duplicate == 0) ? 0 : (float)like/(float)duplicate;
+        float age = (ttl <= 0) ? 1 : (1- (now - toc)/ttl);
+        return (a*relevance + b*replicationDensity + c*quality)*age;
+    }
+
+    @Override
+    public void score(int size, long[] matches, float[] relevances, float[] replicationDensities,
+                      int[] likes, int[] duplicates, int[] replications, long[] tocs, long[] ttls,
+                      long now, float[] scores) {
+        final float a = this.a;
+        final float b = this.b;
+        final float c = this.c;
+        for(int i = 0; i < size; i++) {
+            if((matches[i >>> 6] & (1L << i)) == 0) {
+                scores[i] = 0;
+                continue;
+            }
+            float quality = (duplicates[i] == 0) ? 0 : (float)likes[i]/(float)duplicates[i];
+            float age = (ttls[i] <= 0) ? 1 : (1- (now - tocs[i])/ttls[i]);
+            scores[i] = (a*relevances[i] + b*replicationDensities[i] + c*quality)*age;
+        }
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ * This file is part of Rumble.
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.network.services.push;
+
+import org.disrupted.rumble.database.objects.PushStatus;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * PushCandidates keeps, for one dispatcher, the attributes of every status that may be
+ * pushed to a contact. Only the attributes needed to compute the score of a status are kept
+ * in memory (in parallel arrays) so that picking a status never requires to query the database.
+ *
+ * Every candidate also carries a weight (its last computed score) held in a WeightedSampler,
+ * so that a candidate can be picked with a probability proportional to its score in O(log n).
+ *
+ * The arrays are kept compact: removing an element moves the last element in its slot.
+ * This class is not thread-safe, the caller must take care of the locking.
+ *
+ * @author Lucien Loiseau
+ */
+public class PushCandidates {
+
+    private static final String TAG = "PushCandidates";
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private int       size;
+    private long[]    dbids;
+    private String[]  uuids;
+    private String[]  groups;
+    private long[]    tocs;
+    private long[]    toas;
+    private long[]    ttls;
+    private int[]     likes;
+    private int[]     duplicates;
+    private int[]     replications;
+    private float[]   relevances;
+
+    private Map<Long, Integer> dbidToIndex;
+    private WeightedSampler    sampler;
+
+    // scratch arrays of the batch scoring
+    private float[]   densities;
+    private long[]    matches;
+    private float[]   scores;
+
+    public PushCandidates() {
+        dbidToIndex = new HashMap<Long, Integer>();
+        sampler = new WeightedSampler();
+        allocate(INITIAL_CAPACITY);
+        size = 0;
+    }
+
+    private void allocate(int capacity) {
+        long[]   newDbids        = new long[capacity];
+        String[] newUuids        = new String[capacity];
+        String[] newGroups       = new String[capacity];
+        long[]   newTocs         = new long[capacity];
+        long[]   newToas         = new long[capacity];
+        long[]   newTtls         = new long[capacity];
+        int[]    newLikes        = new int[capacity];
+        int[]    newDuplicates   = new int[capacity];
+        int[]    newReplications = new int[capacity];
+        float[]  newRelevances   = new float[capacity];
+        if(size > 0) {
+            System.arraycopy(dbids, 0, newDbids, 0, size);
+            System.arraycopy(uuids, 0, newUuids, 0, size);
+            System.arraycopy(groups, 0, newGroups, 0, size);
+            System.arraycopy(tocs, 0, newTocs, 0, size);
+            System.arraycopy(toas, 0, newToas, 0, size);
+            System.arraycopy(ttls, 0, newTtls, 0, size);
+            System.arraycopy(likes, 0, newLikes, 0, size);
+            System.arraycopy(duplicates, 0, newDuplicates, 0, size);
+            System.arraycopy(replications, 0, newReplications, 0, size);
+            System.arraycopy(relevances, 0, newRelevances, 0, size);
+        }
+        dbids        = newDbids;
+        uuids        = newUuids;
+        groups       = newGroups;
+        tocs         = newTocs;
+        toas         = newToas;
+        ttls         = newTtls;
+        likes        = newLikes;
+        duplicates   = newDuplicates;
+        replications = newReplications;
+        relevances   = newRelevances;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean contains(long dbid) {
+        return dbidToIndex.containsKey(dbid);
+    }
+
+    public int indexOf(long dbid) {
+        Integer index = dbidToIndex.get(dbid);
+        return (index == null) ? -1 : index;
+    }
+
+    public long   getDbid(int index) {        return dbids[index];        }
+    public String getUuid(int index) {        return uuids[index];        }
+    public String getGroup(int index) {       return groups[index];       }
+    public long   getTimeOfCreation(int index){ return tocs[index];       }
+    public long   getTimeOfArrival(int index) { return toas[index];       }
+    public long   getTTL(int index) {         return ttls[index];         }
+    public int    getLike(int index) {        return likes[index];        }
+    public int    getDuplicate(int index) {   return duplicates[index];   }
+    public int    getReplication(int index) { return replications[index]; }
+    public float  getRelevance(int index) {   return relevances[index];   }
+    public float  getWeight(int index) {      return (float)sampler.get(index); }
+
+    public void setWeight(int index, float weight) {
+        sampler.set(index, weight);
+    }
+
+    public float getTotalWeight() {
+        return (float)sampler.total();
+    }
+
+    /*
+     * pick a candidate randomly, proportionally to its weight.
+     * returns its index or -1 if there is no candidate with a positive weight.
+     */
+    public int sample(Random random) {
+        return sampler.sample(random);
+    }
+
+    public void rebuildWeights() {
+        sampler.rebuild();
+    }
+
+    /*
+     * scores every candidate in a single pass with the given policy. The candidates whose
+     * score is below the threshold are removed, the others take their score as weight.
+     * returns the number of candidates removed.
+     */
+    public int updateWeights(ScoringPolicy policy, ReplicationDensityWatcher rdwatcher,
+                             Set<String> groupIDs, long now, float threshold) {
+        if((scores == null) || (scores.length < size)) {
+            int capacity = dbids.length;
+            densities = new float[capacity];
+            matches   = new long[(capacity + 63) >>> 6];
+            scores    = new float[capacity];
+        }
+
+        rdwatcher.computeMetrics(uuids, size, densities);
+        for(int w = 0; w < ((size + 63) >>> 6); w++)
+            matches[w] = 0;
+        for(int i = 0; i < size; i++) {
+            if(groupIDs.contains(groups[i]))
+                matches[i >>> 6] |= (1L << i);
+        }
+        policy.score(size, matches, relevances, densities, likes, duplicates, replications,
+                tocs, ttls, now, scores);
+
+        // compact the arrays in place, the order of the candidates is kept
+        int kept = 0;
+        for(int i = 0; i < size; i++) {
+            if(scores[i] <= threshold) {
+                dbidToIndex.remove(dbids[i]);
+                continue;
+            }
+            if(kept != i) {
+                dbids[kept]        = dbids[i];
+                uuids[kept]        = uuids[i];
+                groups[kept]       = groups[i];
+                tocs[kept]         = tocs[i];
+                toas[kept]         = toas[i];
+                ttls[kept]         = ttls[i];
+                likes[kept]        = likes[i];
+                duplicates[kept]   = duplicates[i];
+                replications[kept] = replications[i];
+                relevances[kept]   = relevances[i];
+                scores[kept]       = scores[i];
+                dbidToIndex.put(dbids[kept], kept);
+            }
+            kept++;
+        }
+        for(int i = kept; i < size; i++) {
+            uuids[i]  = null;
+            groups[i] = null;
+        }
+        int removed = size - kept;
+        size = kept;
+        sampler.assign(scores, size);
+        return removed;
+    }
+
+    /*
+     * add a status to the candidates or update its attributes if it is already there.
+     * returns the index of the status.
+     */
+    public int add(PushStatus status, float relevance) {
+        int index = indexOf(status.getdbId());
+        if(index < 0) {
+            if(size == dbids.length)
+                allocate(size * 2);
+            index = size++;
+            sampler.add(0);
+            dbids[index] = status.getdbId();
+            dbidToIndex.put(status.getdbId(), index);
+        }
+        uuids[index]        = status.getUuid();
+        groups[index]       = status.getGroup().getGid();
+        tocs[index]         = status.getTimeOfCreation();
+        toas[index]         = status.getTimeOfArrival();
+        ttls[index]         = status.getTTL();
+        likes[index]        = status.getLike();
+        duplicates[index]   = status.getDuplicate();
+        replications[index] = status.getReplication();
+        relevances[index]   = relevance;
+        return index;
+    }
+
+    /*
+     * copy a status from another PushCandidates (for instance the StatusCatalog)
+     * returns the index of the status.
+     */
+    public int add(PushCandidates from, int fromIndex, float relevance) {
+        long dbid = from.dbids[fromIndex];
+        int index = indexOf(dbid);
+        if(index < 0) {
+            if(size == dbids.length)
+                allocate(size * 2);
+            index = size++;
+            sampler.add(0);
+            dbids[index] = dbid;
+            dbidToIndex.put(dbid, index);
+        }
+        uuids[index]        = from.uuids[fromIndex];
+        groups[index]       = from.groups[fromIndex];
+        tocs[index]         = from.tocs[fromIndex];
+        toas[index]         = from.toas[fromIndex];
+        ttls[index]         = from.ttls[fromIndex];
+        likes[index]        = from.likes[fromIndex];
+        duplicates[index]   = from.duplicates[fromIndex];
+        replications[index] = from.replications[fromIndex];
+        relevances[index]   = relevance;
+        return index;
+    }
+
+    /*
+     * update the mutable attributes (like, duplicate, replication) of a status if present.
+     * returns the index of the status or -1 if it is not a candidate.
+     */
+    public int update(PushStatus status) {
+        int index = indexOf(status.getdbId());
+        if(index < 0)
+            return -1;
+        likes[index]        = status.getLike();
+        duplicates[index]   = status.getDuplicate();
+        replications[index] = status.getReplication();
+        return index;
+    }
+
+    public boolean remove(long dbid) {
+        Integer index = dbidToIndex.remove(dbid);
+        if(index == null)
+            return false;
+
+        int last = --size;
+        if(index != last) {
+            dbids[index]        = dbids[last];
+            uuids[index]        = uuids[last];
+            groups[index]       = groups[last];
+            tocs[index]         = tocs[last];
+            toas[index]         = toas[last];
+            ttls[index]         = ttls[last];
+            likes[index]        = likes[last];
+            duplicates[index]   = duplicates[last];
+            replications[index] = replications[last];
+            relevances[index]   = relevances[last];
+            dbidToIndex.put(dbids[index], index);
+        }
+        uuids[last]  = null;
+        groups[last] = null;
+        sampler.remove(index);
+        return true;
+    }
+
+    public void clear() {
+        for(int i = 0; i < size; i++) {
+            uuids[i]  = null;
+            groups[i] = null;
+        }
+        size = 0;
+        dbidToIndex.clear();
+        sampler.clear();
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ * This file is part of Rumble.
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.network.services.push;
+
+import org.disrupted.rumble.util.Log;
+
+import java.util.LinkedList;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The PushScheduler serves the per-contact queues of statuses with a small and fixed number
+ * of threads, whatever the number of neighbours.
+ *
+ * The queues are served using Deficit Round Robin: every time a queue is visited, its deficit
+ * is credited with its quantum (in bytes) and the queue sends statuses as long as the size of
+ * the next one fits in the deficit. The quantum of a queue is proportional to the throughput
+ * of its channel so that every contact gets a share of the uplink it can actually absorb.
+ *
+ * Only the queues that (may) have something to send are in the ready ring: a queue that is
+ * empty or whose window is full leaves the ring and must call wakeUp() when this changes.
+ * The scheduler lock is never held while calling a queue, so wakeUp() can be called from
+ * anywhere, including while holding the queue's own locks.
+ *
+ * @author Lucien Loiseau
+ */
+public class PushScheduler {
+
+    private static final String TAG = "PushScheduler";
+
+    public static final int DEFAULT_NB_WORKERS = 2;
+
+    public static final int COST_EMPTY   = -1;  // nothing to send
+    public static final int COST_BLOCKED = -2;  // something to send but not right now
+
+    /*
+     * A ContactQueue is a source of statuses for one contact. The scheduling state
+     * is only accessed by the scheduler (under its lock or by the worker serving it).
+     */
+    public static abstract class ContactQueue {
+
+        private int     deficit    = 0;
+        private boolean queued     = false;
+        private boolean serving    = false;
+        private boolean rearm      = false;
+        private boolean removed    = false;
+        private volatile long servedBytes = 0;
+
+        /*
+         * returns the size in bytes of the next status to be sent (the queue must keep
+         * returning the same status until it is sent), COST_EMPTY or COST_BLOCKED
+         */
+        protected abstract int peekCost();
+
+        /*
+         * sends the status returned by peekCost, returns the bytes sent or -1 on failure
+         */
+        protected abstract int sendHead();
+
+        /*
+         * the number of bytes credited to the queue at every round
+         */
+        protected abstract int getQuantum();
+
+        public abstract int getQueueDepth();
+
+        public long getServedBytes() {
+            return servedBytes;
+        }
+    }
+
+    private final int nbWorkers;
+    private final LinkedList<ContactQueue> ready;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private Thread[] workers;
+
+    public PushScheduler(int nbWorkers) {
+        this.nbWorkers = Math.max(1, nbWorkers);
+        this.ready = new LinkedList<ContactQueue>();
+        this.workers = null;
+    }
+
+    public void start() {
+        lock.lock();
+        try {
+            if(workers != null)
+                return;
+            Log.d(TAG, "[+] PushScheduler started with "+nbWorkers+" workers");
+            workers = new Thread[nbWorkers];
+            for(int i = 0; i < nbWorkers; i++) {
+                workers[i] = new Thread(serveQueues, TAG+" "+i);
+                workers[i].start();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void stop() {
+        lock.lock();
+        try {
+            if(workers == null)
+                return;
+            Log.d(TAG, "[-] PushScheduler stopped");
+            for(Thread worker : workers)
+                worker.interrupt();
+            workers = null;
+            for(ContactQueue queue : ready)
+                queue.queued = false;
+            ready.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void add(ContactQueue queue) {
+        lock.lock();
+        try {
+            queue.removed = false;
+            queue.deficit = 0;
+        } finally {
+            lock.unlock();
+        }
+        wakeUp(queue);
+    }
+
+    public void remove(ContactQueue queue) {
+        lock.lock();
+        try {
+            queue.removed = true;
+            if(queue.queued) {
+                ready.remove(queue);
+                queue.queued = false;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * to be called by a queue whenever it may have something new to send
+     */
+    public void wakeUp(ContactQueue queue) {
+        lock.lock();
+        try {
+            if(queue.removed)
+                return;
+            if(queue.serving) {
+                queue.rearm = true;
+                return;
+            }
+            if(!queue.queued) {
+                queue.queued = true;
+                ready.addLast(queue);
+                notEmpty.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Runnable serveQueues = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                while(true)
+                    serveNext();
+            } catch(InterruptedException ignore) {
+            }
+        }
+    };
+
+    /*
+     * waits for a queue in the ready ring and gives it one round, it then goes back at the
+     * end of the ring if it still has something to send
+     */
+    void serveNext() throws InterruptedException {
+        ContactQueue queue;
+        lock.lockInterruptibly();
+        try {
+            while (ready.isEmpty())
+                notEmpty.await();
+            queue = ready.removeFirst();
+            queue.queued = false;
+            queue.serving = true;
+            queue.rearm = false;
+        } finally {
+            lock.unlock();
+        }
+
+        boolean backlogged = false;
+        try {
+            backlogged = serve(queue);
+        } finally {
+            lock.lock();
+            try {
+                queue.serving = false;
+                if(!queue.removed && (backlogged || queue.rearm)) {
+                    queue.queued = true;
+                    ready.addLast(queue);
+                    notEmpty.signal();
+                }
+                queue.rearm = false;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /*
+     * one round of Deficit Round Robin for this queue.
+     * returns true if the queue still has something to send (it goes back in the ring)
+     */
+    private boolean serve(ContactQueue queue) {
+        queue.deficit += queue.getQuantum();
+        while(true) {
+            int cost = queue.peekCost();
+            if(cost == COST_EMPTY) {
+                queue.deficit = 0;
+                return false;
+            }
+            if(cost == COST_BLOCKED) {
+                queue.deficit = Math.min(queue.deficit, queue.getQuantum());
+                return false;
+            }
+            if(cost > queue.deficit)
+                return true;
+
+            int sent = queue.sendHead();
+            if(sent < 0)
+                return false;
+            queue.deficit -= sent;
+            queue.servedBytes += sent;
+        }
+    }
+}
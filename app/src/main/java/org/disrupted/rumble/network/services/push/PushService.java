@@ -5,11 +5,11 @@ import org.disrupted.rumble.util.Log;
 import org.disrupted.rumble.app.RumbleApplication;
 import org.disrupted.rumble.database.DatabaseExecutor;
 import org.disrupted.rumble.database.DatabaseFactory;
-import org.disrupted.rumble.database.PushStatusDatabase;
 import org.disrupted.rumble.database.events.ContactGroupListUpdated;
 import org.disrupted.rumble.database.events.ContactTagInterestUpdatedEvent;
 import org.disrupted.rumble.database.events.StatusDeletedEvent;
 import org.disrupted.rumble.database.events.StatusInsertedEvent;
+import org.disrupted.rumble.database.events.StatusUpdatedEvent;
 import org.disrupted.rumble.database.objects.Contact;
 import org.disrupted.rumble.database.objects.PushStatus;
 import org.disrupted.rumble.network.NetworkCoordinator;
@@ -23,14 +23,24 @@ import org.disrupted.rumble.network.events.ChannelConnected;
 import org.disrupted.rumble.network.protocols.rumble.RumbleProtocol;
 import org.disrupted.rumble.network.services.ServiceLayer;
 import org.disrupted.rumble.network.events.ContactDisconnected;
-
+import org.disrupted.rumble.network.events.ChannelDisconnected;
+import org.disrupted.rumble.network.protocols.command.CommandSendStatusSummary;
+import org.disrupted.rumble.network.protocols.events.StatusSummaryReceived;
+import org.disrupted.rumble.network.protocols.rumble.packetformat.BlockContact;
+import org.disrupted.rumble.network.protocols.rumble.packetformat.BlockSummary;
+import org.disrupted.rumble.util.BloomFilter;
+import org.disrupted.rumble.util.CompressedBitmap;
+import org.disrupted.rumble.util.FileUtil;
+import org.disrupted.rumble.util.RumblePreferences;
+
+import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
 import de.greenrobot.event.EventBus;
@@ -51,6 +61,8 @@ public class PushService implements ServiceLayer {
     private static NetworkCoordinator networkCoordinator;
 
     private static Map<Contact, MessageDispatcher> contactToDispatcher;
+    private static PushScheduler scheduler;
+    private static volatile ScoringPolicy scoringPolicy = new DefaultScoringPolicy();
 
     public static PushService getInstance(NetworkCoordinator networkCoordinator) {
         synchronized (lock) {
@@ -63,6 +75,7 @@ public class PushService implements ServiceLayer {
     private PushService(NetworkCoordinator networkCoordinator) {
         this.networkCoordinator = networkCoordinator;
         rdwatcher = new ReplicationDensityWatcher(1000*3600);
+        scheduler = new PushScheduler(PushScheduler.DEFAULT_NB_WORKERS);
     }
 
     @Override
@@ -74,7 +87,9 @@ public class PushService implements ServiceLayer {
         synchronized (lock) {
             Log.d(TAG, "[+] Starting PushService");
             rdwatcher.start();
+            StatusCatalog.getInstance().start();
             contactToDispatcher = new HashMap<Contact, MessageDispatcher>();
+            scheduler.start();
             EventBus.getDefault().register(this);
         }
     }
@@ -85,11 +100,11 @@ public class PushService implements ServiceLayer {
             if(EventBus.getDefault().isRegistered(this))
                 EventBus.getDefault().unregister(this);
 
-            for(Map.Entry<Contact, MessageDispatcher> entry : contactToDispatcher.entrySet()) {
-                MessageDispatcher dispatcher = entry.getValue();
-                dispatcher.interrupt();
-            }
+            for(MessageDispatcher dispatcher : new ArrayList<MessageDispatcher>(contactToDispatcher.values()))
+                dispatcher.stopDispatcher();
             contactToDispatcher.clear();
+            scheduler.stop();
+            StatusCatalog.getInstance().stop();
             rdwatcher.stop();
         }
     }
@@ -109,9 +124,28 @@ public class PushService implements ServiceLayer {
         event.channel.executeNonBlocking(command);
     }
 
+    /*
+     * the neighbour told us which statuses it already has, its dispatcher will skip them
+     */
+    public void onEvent(StatusSummaryReceived event) {
+        if(!event.channel.getProtocolIdentifier().equals(RumbleProtocol.protocolID))
+            return;
+        if(event.summary == null)
+            return;
+
+        synchronized (lock) {
+            for(Contact contact : event.channel.getRecipientList()) {
+                MessageDispatcher dispatcher = contactToDispatcher.get(contact);
+                if (dispatcher != null)
+                    dispatcher.setPeerSummary(event.summary);
+            }
+        }
+    }
+
     /*
      * Whenever a new contact is connected (i.e. we received a contact information packet),
      * we start the dispatcher that will send him the PushStatus according to its preferences.
+     * If the contact understands it, we also send him the summary of the statuses we already have.
      */
     public void onEvent(ContactInformationReceived event) {
         if(!event.channel.getProtocolIdentifier().equals(RumbleProtocol.protocolID))
@@ -127,6 +161,13 @@ public class PushService implements ServiceLayer {
             dispatcher = new MessageDispatcher(event.contact);
             dispatcher.startDispatcher();
         }
+
+        if((event.capabilities & BlockContact.CAPABILITY_STATUS_SUMMARY) == BlockContact.CAPABILITY_STATUS_SUMMARY) {
+            BloomFilter summary = StatusCatalog.getInstance().getSummary(
+                    RumblePreferences.getSummaryFalsePositiveRate(RumbleApplication.getContext()),
+                    BlockSummary.MAX_FILTER_SIZE);
+            event.channel.executeNonBlocking(new CommandSendStatusSummary(summary));
+        }
     }
 
     /*
@@ -142,14 +183,61 @@ public class PushService implements ServiceLayer {
         }
     }
 
+    /*
+     * statistics of the dispatcher of a contact, -1 if the contact is not connected
+     */
+    public int getQueueDepth(Contact contact) {
+        synchronized (lock) {
+            MessageDispatcher dispatcher = contactToDispatcher.get(contact);
+            return (dispatcher == null) ? -1 : dispatcher.getQueueDepth();
+        }
+    }
+    public long getServedBytes(Contact contact) {
+        synchronized (lock) {
+            MessageDispatcher dispatcher = contactToDispatcher.get(contact);
+            return (dispatcher == null) ? -1 : dispatcher.getServedBytes();
+        }
+    }
+
+    /*
+     * the policy used by every dispatcher to score the statuses
+     */
+    public static void setScoringPolicy(ScoringPolicy policy) {
+        scoringPolicy = (policy == null) ? new DefaultScoringPolicy() : policy;
+    }
+
     private static float computeScore(PushStatus message, Contact contact) {
-        if(!contact.getJoinedGroupIDs().contains(message.getGroup().getGid()))
-            return 0;
+        return scoringPolicy.score(
+                contact.getJoinedGroupIDs().contains(message.getGroup().getGid()),
+                computeRelevance(message.getHashtagSet(), contact),
+                rdwatcher.computeMetric(message.getUuid()),
+                message.getLike(),
+                message.getDuplicate(),
+                message.getReplication(),
+                message.getTimeOfCreation(),
+                message.getTTL(),
+                System.currentTimeMillis());
+    }
 
-        float relevance;
+    private static float computeScore(PushCandidates candidates, int index, Contact contact, long now) {
+        return scoringPolicy.score(
+                contact.getJoinedGroupIDs().contains(candidates.getGroup(index)),
+                candidates.getRelevance(index),
+                rdwatcher.computeMetric(candidates.getUuid(index)),
+                candidates.getLike(index),
+                candidates.getDuplicate(index),
+                candidates.getReplication(index),
+                candidates.getTimeOfCreation(index),
+                candidates.getTTL(index),
+                now);
+    }
+
+    private static float computeRelevance(Set<String> hashtags, Contact contact) {
+        if(hashtags == null)
+            return 0;
         int totalInterest  = 0;
         int totalHashtag   = 0;
-        for(String hashtag : message.getHashtagSet()) {
+        for(String hashtag : hashtags) {
             Integer value = contact.getHashtagInterests().get(hashtag);
             if(value != null) {
                 totalInterest += value;
@@ -157,41 +245,57 @@ public class PushService implements ServiceLayer {
             }
         }
         if(totalHashtag > 0)
-            relevance = totalInterest/(totalHashtag*Contact.MAX_INTEREST_TAG_VALUE);
+            return totalInterest/(totalHashtag*Contact.MAX_INTEREST_TAG_VALUE);
         else
-            relevance = 0;
-        float replicationDensity = rdwatcher.computeMetric(message.getUuid());
-        float quality =  (message.getDuplicate() == 0) ? 0 : (float)message.getLike()/(float)message.getDuplicate();
-        float age = (message.getTTL() <= 0) ? 1 : (1- (System.currentTimeMillis() - message.getTimeOfCreation())/message.getTTL());
-        boolean distance = true;
-
-        float a = 0;
-        float b = (float)0.6;
-        float c = (float)0.4;
-
-        float score = (a*relevance + b*replicationDensity + c*quality)*age*(distance ? 1 : 0);
-
-        return score;
+            return 0;
     }
 
     // todo: not being dependant on age would make it so much easier ....
-    private static class MessageDispatcher extends Thread {
+    private static class MessageDispatcher extends PushScheduler.ContactQueue {
 
         private static final String TAG = "MessageDispatcher";
 
+        // weights of the candidates are recomputed every minute
+        private static final long WEIGHT_REFRESH_PERIOD = 60000;
+
+        // quantum = what the channel can send in QUANTUM_PERIOD (see PushScheduler)
+        private static final long QUANTUM_PERIOD  = 100;
+        private static final int  DEFAULT_QUANTUM = 16*1024;
+        private static final int  MIN_QUANTUM     = 4*1024;
+        private static final int  MAX_QUANTUM     = 256*1024;
+
+        // approximate size of a BlockPushStatus without its post
+        private static final int  STATUS_OVERHEAD = 128;
+
         private Contact            contact;
         private ProtocolChannel    tmpchannel;
 
-        private ArrayList<Integer> statuses;
+        private PushCandidates candidates;
         private float threshold;
+        private long  lastRefresh;
+
+        // the status picked by the scheduler but not sent yet, and its size
+        private PushStatus head;
+        private int        headCost;
+
+        // statuses the contact told us it already has (may be null)
+        private BloomFilter peerSummary;
+
+        // statuses handed to a channel but not yet executed
+        private final SendWindow window;
 
-        // locks for managing the ArrayList
+        // locks for managing the candidates
         private final ReentrantLock putLock = new ReentrantLock(true);
         private final ReentrantLock takeLock = new ReentrantLock(true);
-        private final Condition notEmpty = takeLock.newCondition();
         private boolean running;
 
-        private PushStatus max;
+        // the groups the candidates were computed for, null until they are loaded
+        private Set<String> loadedGroupIDs;
+
+        // time to first status, for the warm and cold starts
+        private long    startedAt;
+        private boolean warmStart;
+        private boolean firstSent;
 
         private void fullyLock() {
             putLock.lock();
@@ -201,151 +305,313 @@ public class PushService implements ServiceLayer {
             putLock.unlock();
             takeLock.unlock();
         }
-        private void signalNotEmpty() {
-            final ReentrantLock takeLock = this.takeLock;
-            takeLock.lock();
-            try {
-                notEmpty.signal();
-            } finally {
-                takeLock.unlock();
-            }
-        }
 
         public MessageDispatcher(Contact contact) {
             this.running = false;
             this.contact = contact;
-            this.max = null;
             this.threshold = 0;
-            statuses = new ArrayList<Integer>();
+            this.lastRefresh = 0;
+            this.peerSummary = null;
+            this.head = null;
+            this.loadedGroupIDs = null;
+            this.warmStart = false;
+            this.firstSent = false;
+            candidates = new PushCandidates();
+            window = new SendWindow(RumblePreferences.getPushWindow(RumbleApplication.getContext()));
             contactToDispatcher.put(contact, this);
         }
 
+        /*
+         * if we met this contact recently, its candidates are restored from the snapshot
+         * taken when its last dispatcher stopped, otherwise they are loaded for the groups
+         * we know of (see StatusCatalog.startCandidates). ContactGroupListUpdated is only
+         * posted if the groups have changed, in which case the candidates are loaded again.
+         */
         public void startDispatcher() {
             running = true;
+            startedAt = System.currentTimeMillis();
             EventBus.getDefault().register(MessageDispatcher.this);
-            start();
+            Log.d(TAG, "[+] MessageDispatcher initiated");
+            loadedGroupIDs = new HashSet<String>(contact.getJoinedGroupIDs());
+            warmStart = StatusCatalog.getInstance().startCandidates(contact, onStatusLoaded);
+            scheduler.add(this);
         }
 
         public void stopDispatcher() {
             running = false;
-            this.interrupt();
+            scheduler.remove(this);
             if(EventBus.getDefault().isRegistered(this))
                 EventBus.getDefault().unregister(this);
-            contactToDispatcher.remove(contact);
+            // it may be called from a scheduler thread
+            synchronized (lock) {
+                if(contactToDispatcher.get(contact) == this)
+                    contactToDispatcher.remove(contact);
+            }
+            saveSnapshot();
+            clear();
+            Log.d(TAG, "[-] MessageDispatcher stopped");
+        }
+
+        /*
+         * the statuses not sent yet (including the ones in flight) are kept by the catalog
+         */
+        private void saveSnapshot() {
+            CompressedBitmap snapshot = new CompressedBitmap();
+            fullyLock();
+            try {
+                if(loadedGroupIDs == null)
+                    return;
+                loadedGroupIDs = null;
+                for(int i = 0; i < candidates.size(); i++)
+                    snapshot.add((int)candidates.getDbid(i));
+                if(head != null)
+                    snapshot.add((int)head.getdbId());
+                for(SendWindow.InFlightStatus sent : window.getInFlight())
+                    snapshot.add((int)sent.status.getdbId());
+            } finally {
+                fullyUnlock();
+            }
+            StatusCatalog.getInstance().saveSnapshot(contact, snapshot);
         }
 
         private void updateStatusList() {
             if(contact == null)
                 return;
-            PushStatusDatabase.StatusQueryOption options = new PushStatusDatabase.StatusQueryOption();
-            options.filterFlags |= PushStatusDatabase.StatusQueryOption.FILTER_NOT_EXPIRED;
-            options.filterFlags |= PushStatusDatabase.StatusQueryOption.FILTER_GROUP;
-            options.filterFlags |= PushStatusDatabase.StatusQueryOption.FILTER_NEVER_SEND_TO_USER;
-            options.groupIDFilters = contact.getJoinedGroupIDs();
-            options.uid = contact.getUid();
-            options.query_result = PushStatusDatabase.StatusQueryOption.QUERY_RESULT.LIST_OF_DBIDS;
-            DatabaseFactory.getPushStatusDatabase(RumbleApplication.getContext()).getStatuses(options, onStatusLoaded);
+            loadedGroupIDs = new HashSet<String>(contact.getJoinedGroupIDs());
+            StatusCatalog.getInstance().getCandidates(contact, onStatusLoaded);
         }
         DatabaseExecutor.ReadableQueryCallback onStatusLoaded = new DatabaseExecutor.ReadableQueryCallback() {
             @Override
             public void onReadableQueryFinished(Object result) {
-                if (result != null) {
-                    try {
-                        takeLock.lock();
-                        Log.d(TAG, "[+] update status list: "+result.toString());
-                        statuses.clear();
-                        final ArrayList<Integer> answer = (ArrayList<Integer>)result;
-                        for (Integer s : answer) {
-                            PushStatus message = DatabaseFactory.getPushStatusDatabase(RumbleApplication.getContext())
-                                    .getStatus(s);
-                            if(message != null)
-                                add(message);
-                        }
-                        // the "max" has been automatically updated while we were adding items
-                    } finally {
-                        takeLock.unlock();
+                if (result != null)
+                    loadCandidates((CompressedBitmap)result);
+            }
+        };
+        private void loadCandidates(final CompressedBitmap answer) {
+            fullyLock();
+            try {
+                final long now = System.currentTimeMillis();
+                Log.d(TAG, "[+] update status list: "+answer.cardinality()+" candidates");
+                candidates.clear();
+                StatusCatalog.getInstance().visit(answer, new StatusCatalog.CandidateVisitor() {
+                    @Override
+                    public void onCandidate(PushCandidates catalog, int index, Set<String> hashtags) {
+                        if(window.contains(catalog.getDbid(index)))
+                            return;
+                        if((peerSummary != null) && peerSummary.mightContain(catalog.getUuid(index)))
+                            return;
+                        candidates.add(catalog, index, computeRelevance(hashtags, contact));
                     }
+                });
+                // every candidate is scored at once
+                updateWeights(now);
+            } finally {
+                fullyUnlock();
+            }
+            scheduler.wakeUp(MessageDispatcher.this);
+        }
+
+        /*
+         * called by the scheduler, returns the size of the next status to send.
+         * the status is picked only once and kept until it is sent. The candidate is picked
+         * under the lock but it is read from the database (and its attached file measured)
+         * outside of it, so that the events and the other workers are not blocked meanwhile.
+         * If the candidate left in the meantime, another one is picked.
+         */
+        @Override
+        protected int peekCost() {
+            while(true) {
+                long id;
+                fullyLock();
+                try {
+                    if(!running)
+                        return PushScheduler.COST_EMPTY;
+
+                    if(window.isFull())
+                        return PushScheduler.COST_BLOCKED;
+
+                    if(head != null) {
+                        if(candidates.contains(head.getdbId()))
+                            return headCost;
+                        // it has been removed in the meantime (deleted, expired...)
+                        head.discard();
+                        head = null;
+                    }
+
+                    id = pickCandidate();
+                    if(id < 0)
+                        return PushScheduler.COST_EMPTY;
+                } finally {
+                    fullyUnlock();
                 }
+
+                PushStatus picked = DatabaseFactory.getPushStatusDatabase(RumbleApplication.getContext()).getStatus(id);
+                int cost = (picked == null) ? 0 : estimateSize(picked);
+
+                fullyLock();
+                try {
+                    if(picked == null) {
+                        candidates.remove(id);
+                    } else if(running && (head == null) && candidates.contains(id)) {
+                        head = picked;
+                        headCost = cost;
+                        return headCost;
+                    }
+                } finally {
+                    fullyUnlock();
+                }
+                if(picked != null)
+                    picked.discard();
             }
-        };
+        }
 
+        /*
+         * called by the scheduler, hands the head status to the best channel. It leaves the
+         * candidates while in flight and is released (and put back in case of failure) when
+         * the CommandExecuted event is received. The channel may coalesce it with the
+         * following ones.
+         */
         @Override
-        public void run() {
+        protected int sendHead() {
+            // choose a channel to execute the command
+            ProtocolChannel channel = PushService.networkCoordinator.neighbourManager.chooseBestChannel(contact);
+            this.tmpchannel = channel;
+            if(this.tmpchannel == null) {
+                // the contact must have disconnected completely
+                stopDispatcher();
+                return -1;
+            }
+
+            Command cmd;
+            int cost;
+            fullyLock();
+            try {
+                // the head may have been removed since peekCost, the scheduler will peek again
+                if(head == null)
+                    return 0;
+                cmd = new CommandSendPushStatus(head);
+                cost = headCost;
+                if(!window.put(cmd, head, channel, cost, System.currentTimeMillis()))
+                    return 0;
+                candidates.remove(head.getdbId());
+                head = null;
+            } finally {
+                fullyUnlock();
+            }
+
+            if(!channel.executeNonBlocking(cmd))
+                onCommandDone(cmd, false);
+            return cost;
+        }
+
+        @Override
+        protected int getQuantum() {
+            float throughput = window.getThroughput();
+            if(throughput <= 0)
+                return DEFAULT_QUANTUM;
+            long quantum = (long)(throughput * QUANTUM_PERIOD);
+            return (int)Math.max(MIN_QUANTUM, Math.min(MAX_QUANTUM, quantum));
+        }
+
+        @Override
+        public int getQueueDepth() {
+            fullyLock();
             try {
-                Log.d(TAG, "[+] MessageDispatcher initiated");
-                do {
-                        // pick a message randomly
-                        PushStatus message = pickMessage();
-
-                        // prepare the command
-                        Command cmd = new CommandSendPushStatus(message);
-
-                        // choose a channel to execute the command
-                        ProtocolChannel channel = PushService.networkCoordinator.neighbourManager.chooseBestChannel(contact);
-                        this.tmpchannel = channel;
-                        if(this.tmpchannel == null) {
-                            // the contact must have disconnected completely
-                            stopDispatcher();
-                            break;
-                        }
-
-                        // send the message (blocking operation)
-                        if(channel.execute(cmd)) {
-                            if(max.equals(message))
-                                max = null;
-                            statuses.remove(Integer.valueOf((int) message.getdbId()));
-                        }
-
-                        message.discard();
-                } while (running);
-
-            } catch (InterruptedException ie) {
+                return candidates.size();
             } finally {
-                clear();
-                Log.d(TAG, "[-] MessageDispatcher stopped");
+                fullyUnlock();
             }
         }
 
+        private static int estimateSize(PushStatus status) {
+            int size = STATUS_OVERHEAD + status.getPost().length();
+            if(status.hasAttachedFile()) {
+                File attachedFile = new File(FileUtil.getReadableAlbumStorageDir(), status.getFileName());
+                size += (int)Math.min(Integer.MAX_VALUE - size, attachedFile.length());
+            }
+            return size;
+        }
+
         private void clear() {
             fullyLock();
             try {
-                if(EventBus.getDefault().isRegistered(this))
-                    EventBus.getDefault().unregister(this);
-                statuses.clear();
+                candidates.clear();
+                if(head != null)
+                    head.discard();
+                head = null;
+                for(SendWindow.InFlightStatus sent : window.getInFlight())
+                    sent.status.discard();
+                window.clear();
             } finally {
                 fullyUnlock();
             }
         }
 
+        /*
+         * remove the candidates that the contact already has (or a false positive)
+         */
+        public void setPeerSummary(BloomFilter summary) {
+            fullyLock();
+            try {
+                this.peerSummary = summary;
+                for(int i = candidates.size() - 1; i >= 0; i--) {
+                    if(summary.mightContain(candidates.getUuid(i)))
+                        candidates.remove(candidates.getDbid(i));
+                }
+            } finally {
+                fullyUnlock();
+            }
+        }
+
+        /*
+         * a command in flight has been executed (or dropped), its slot is released
+         * and the status goes back to the candidates if it could not be sent.
+         */
+        private void onCommandDone(Command command, boolean success) {
+            SendWindow.InFlightStatus sent;
+            fullyLock();
+            try {
+                long now = System.currentTimeMillis();
+                sent = window.complete(command, success, now);
+                if((sent != null) && success) {
+                    if(!firstSent) {
+                        firstSent = true;
+                        Log.d(TAG, "[+] first status sent to "+contact.getName()+" after "
+                                +(now - startedAt)+"ms ("+(warmStart ? "warm" : "cold")+" start)");
+                    }
+                }
+            } finally {
+                fullyUnlock();
+            }
+            if(sent == null)
+                return;
+            if(!success && running)
+                add(sent.status);
+            sent.status.discard();
+            scheduler.wakeUp(this);
+        }
+
+        /*
+         * add a status to the candidates. The message is not kept by the dispatcher
+         * so the caller is free to discard it afterwards.
+         */
         private boolean add(PushStatus message){
             if(this.contact == null)
                 return false;
             final ReentrantLock putlock = this.putLock;
             putlock.lock();
             try {
+                if((peerSummary != null) && peerSummary.mightContain(message.getUuid()))
+                    return false;
 
                 float score = computeScore(message, contact);
-
-                if (score <= threshold) {
-                    message.discard();
+                if (score <= threshold)
                     return false;
-                }
 
-                statuses.add((int)message.getdbId());
-
-                /* we update the max value */
-                if (max == null) {
-                    max = message;
-                } else {
-                    float maxScore = computeScore(max, contact);
-                    if (score > maxScore) {
-                        max.discard();
-                        max = message;
-                    } else
-                        message.discard();
-                }
+                int index = candidates.add(message, computeRelevance(message.getHashtagSet(), contact));
+                candidates.setWeight(index, score);
 
-                signalNotEmpty();
+                scheduler.wakeUp(this);
                 return true;
             } finally {
                 putlock.unlock();
@@ -353,110 +619,49 @@ public class PushService implements ServiceLayer {
         }
 
         // /!\  carefull, it does not lock thread
-        private void updateMax() {
-            float maxScore = 0;
-
-            /*
-             * we only update the max if it has been sent (max == null) or it is no longer valid
-             */
-            if(max != null) {
-                maxScore = computeScore(max, contact);
-                if(maxScore > threshold)
-                    return;
-                max.discard();
-                max = null;
-            }
-
-            ArrayList<Integer> toDelete = new ArrayList<Integer>();
-            for(Integer id : statuses) {
-                PushStatus message = DatabaseFactory.getPushStatusDatabase(RumbleApplication.getContext())
-                        .getStatus(id);
-                float score = computeScore(message, contact);
+        // the messages that are no longer valid (for instance expired) are removed
+        private void updateWeights(long now) {
+            candidates.updateWeights(scoringPolicy, rdwatcher, contact.getJoinedGroupIDs(), now, threshold);
+            lastRefresh = now;
+        }
 
-                // we delete the message if it is no longer valid (for instance it expired)
-                if(score <= threshold) {
-                    message.discard();
-                    toDelete.add((int)message.getdbId());
+        /*
+         *  The candidates are picked with a probability proportional to their weight, which is
+         *  the score computed the last time the candidate was added, updated or picked.
+         *  As the score changes over time (age, replication density), the weight of the picked
+         *  candidate is refreshed and the candidate is rejected with probability 1 - score/weight
+         *  if its score has decreased. Every weights are refreshed periodically.
+         *
+         *  The selection is done entirely in memory, it returns the dbid of the picked
+         *  candidate or -1 if there is none left.
+         */
+        // /!\  carefull, it does not lock thread
+        private long pickCandidate() {
+            while(candidates.size() > 0) {
+                long now = System.currentTimeMillis();
+                if(now - lastRefresh > WEIGHT_REFRESH_PERIOD)
+                    updateWeights(now);
+
+                int index = candidates.sample(random);
+                if(index < 0) {
+                    updateWeights(now);
                     continue;
                 }
+                long id = candidates.getDbid(index);
 
-                // item becomes the new max if max was null
-                if(max == null) {
-                    max = message;
-                    maxScore = score;
+                float weight = candidates.getWeight(index);
+                float score = computeScore(candidates, index, contact, now);
+                if (score <= threshold) {
+                    candidates.remove(id);
                     continue;
                 }
+                candidates.setWeight(index, score);
 
-                // if we have better score than the max, we replace it
-                if(score > maxScore) {
-                    max.discard();
-                    max = message;
-                    maxScore = score;
-                } else {
-                    // we get rid of the message as we only stores message ids
-                    message.discard();
-                }
-            }
-            for(Integer i : toDelete) {
-                statuses.remove(Integer.valueOf(i));
+                if ((score >= weight) || (random.nextFloat() * weight < score))
+                    return id;
             }
-        }
-
-        /*
-         *  See the paper:
-         *  "Roulette-wheel selection via stochastic acceptance"
-         *  By Adam Lipowski, Dorota Lipowska
-         */
-        private PushStatus pickMessage() throws InterruptedException {
-            final ReentrantLock takelock = this.takeLock;
-            final ReentrantLock putlock = this.takeLock;
 
-            boolean pickup = false;
-            PushStatus pickedUpMessage;
-            takelock.lockInterruptibly();
-            try {
-                do {
-                    while (statuses.size() == 0)
-                        notEmpty.await();
-
-                    putlock.lock();
-                    try {
-                        updateMax();
-
-                        // randomly pickup an element homogeneously
-                        int index = random.nextInt(statuses.size());
-                        long id = statuses.get(index);
-                        pickedUpMessage = DatabaseFactory.getPushStatusDatabase(RumbleApplication.getContext()).getStatus(id);
-                        if(pickedUpMessage == null) {
-                            statuses.remove(Integer.valueOf((int)id));
-                            continue;
-                        }
-
-                        // get max probability Pmax and element probability Pu
-                        float maxScore = computeScore(max, contact);
-                        float score = computeScore(pickedUpMessage, contact);
-
-                        if (score <= threshold) {
-                            statuses.remove(Integer.valueOf((int)id));
-                            pickedUpMessage.discard();
-                            pickedUpMessage = null;
-                            continue;
-                        }
-
-                        int shallwepick = random.nextInt((int) (maxScore * 1000));
-                        if (shallwepick <= (score * 1000)) {
-                            pickup = true;
-                        } else {
-                            pickedUpMessage.discard();
-                        }
-                    } finally {
-                        putlock.unlock();
-                    }
-                } while(!pickup);
-            } finally {
-                takelock.unlock();
-            }
-            return pickedUpMessage;
+            return -1;
         }
 
         public void sendLocalPreferences(int flags) {
@@ -476,13 +681,32 @@ public class PushService implements ServiceLayer {
 
         // ====================== Event management ==========================
 
+        /*
+         * Managing the window of statuses in flight
+         */
+        public void onEvent(CommandExecuted event) {
+            onCommandDone(event.command, event.success);
+        }
+        public void onEvent(ChannelDisconnected event) {
+            // the commands still queued in this channel are lost
+            List<Command> lost;
+            fullyLock();
+            try {
+                lost = window.getCommands(event.channel);
+            } finally {
+                fullyUnlock();
+            }
+            for(Command command : lost)
+                onCommandDone(command, false);
+        }
+
         /*
          * Keeping the list of status to push up-to-date
          */
         public void onEvent(StatusDeletedEvent event) {
             fullyLock();
             try {
-                statuses.remove(Integer.valueOf((int) event.dbid));
+                candidates.remove(event.dbid);
             } finally {
                 fullyUnlock();
             }
@@ -495,6 +719,14 @@ public class PushService implements ServiceLayer {
                 message.discard();
             }
         }
+        public void onEvent(StatusUpdatedEvent event) {
+            fullyLock();
+            try {
+                candidates.update(event.status);
+            } finally {
+                fullyUnlock();
+            }
+        }
 
         /*
          * we don't send any status until we received an Interest Vector
@@ -507,7 +739,9 @@ public class PushService implements ServiceLayer {
                 return;
             if(event.contact.equals(this.contact)) {
                 this.contact.setJoinedGroupIDs(event.contact.getJoinedGroupIDs());
-                updateStatusList();
+                // nothing to reload if the candidates were restored for the same groups
+                if((loadedGroupIDs == null) || !loadedGroupIDs.equals(this.contact.getJoinedGroupIDs()))
+                    updateStatusList();
             }
             if(event.contact.isLocal()) {
                 sendLocalPreferences(Contact.FLAG_GROUP_LIST);
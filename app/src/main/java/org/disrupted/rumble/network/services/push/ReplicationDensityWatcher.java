@@ -2,10 +2,12 @@ package org.disrupted.rumble.network.services.push;
 
 import org.disrupted.rumble.network.protocols.events.PushStatusReceived;
 
+import org.disrupted.rumble.util.Log;
+
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
-import android.os.Handler;
-import org.disrupted.rumble.util.Log;
+import java.util.Set;
 
 import de.greenrobot.event.EventBus;
 
@@ -17,24 +19,86 @@ import de.greenrobot.event.EventBus;
  * following:
  *              RDu(WS) = Cu(WS) / Nu(WS)
  *
+ * The window is split into a ring of fixed time buckets. Each bucket counts the copies received
+ * during its period in a count-min sketch so that the memory used does not depend on the number
+ * of messages received. The sketch of the whole window is the sum of the buckets' sketches;
+ * when the ring rotates, the expired bucket is simply subtracted from it.
+ *
+ * A count-min sketch never underestimates and overestimates Cu by at most e/width * N with
+ * probability 1 - exp(-depth), so the error on the metric itself is bounded by e/width.
+ *
+ * A message that has not been received within the window has a metric of 1. As the sketch
+ * may count a few copies of it (collisions), the window also keeps a 64 bits fingerprint of
+ * up to maxTracked messages to tell them apart. Past this limit, the sketch alone is used.
+ *
  * @author Lucien Loiseau
  */
 public class ReplicationDensityWatcher {
 
     private static final String TAG = "RDWatcher";
 
+    private static final int DEFAULT_NB_BUCKETS   = 12;
+    private static final int DEFAULT_SKETCH_WIDTH = 1024;
+    private static final int DEFAULT_SKETCH_DEPTH = 4;
+    private static final int DEFAULT_MAX_TRACKED  = 16384;
+
+    public interface Clock {
+        public long currentTimeMillis();
+    }
+    private static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
     private boolean started;
-    private long windowSize;   //window size in seconds
-    private Handler handler;
-    Map<String, Integer> copiesReceived;
-    int messageReceived;
+    private long    windowSize;       // window size in milliseconds
+    private long    bucketDuration;
+    private int     nbBuckets;
+    private int     width;
+    private int     depth;
+    private Clock   clock;
+
+    private int[][][] buckets;        // [bucket][row][column]
+    private int[]     bucketReceived; // number of messages received per bucket
+    private int[][]   window;         // sum of every bucket
+    private int       messageReceived;
+    private long      currentEpoch;   // index of the current bucket since the epoch
+
+    private int             maxTracked;
+    private Set<Long>[]     bucketSeen;     // fingerprints received per bucket
+    private int[]           bucketUntracked;// messages received per bucket whose fingerprint was not kept
+    private Map<Long, Integer> seen;        // fingerprint -> number of buckets holding it
+    private int             untracked;      // sum of bucketUntracked
 
     public ReplicationDensityWatcher(long windowSize) {
-        started = false;
-        handler = new Handler();
+        this(windowSize, DEFAULT_NB_BUCKETS, DEFAULT_SKETCH_WIDTH, DEFAULT_SKETCH_DEPTH, DEFAULT_MAX_TRACKED, SYSTEM_CLOCK);
+    }
+
+    @SuppressWarnings("unchecked")
+    public ReplicationDensityWatcher(long windowSize, int nbBuckets, int width, int depth, int maxTracked, Clock clock) {
+        this.started = false;
         this.windowSize = windowSize;
-        this.messageReceived = 0;
-        copiesReceived = new HashMap<String, Integer>();
+        this.nbBuckets = Math.max(1, nbBuckets);
+        this.bucketDuration = Math.max(1, windowSize / this.nbBuckets);
+        this.width = Math.max(1, width);
+        this.depth = Math.max(1, depth);
+        this.clock = clock;
+
+        buckets = new int[this.nbBuckets][this.depth][this.width];
+        bucketReceived = new int[this.nbBuckets];
+        window = new int[this.depth][this.width];
+        messageReceived = 0;
+        currentEpoch = clock.currentTimeMillis() / bucketDuration;
+
+        this.maxTracked = Math.max(0, maxTracked);
+        bucketSeen = new Set[this.nbBuckets];
+        for(int b = 0; b < this.nbBuckets; b++)
+            bucketSeen[b] = new HashSet<Long>();
+        bucketUntracked = new int[this.nbBuckets];
+        seen = new HashMap<Long, Integer>();
+        untracked = 0;
     }
 
     public void start() {
@@ -52,41 +116,171 @@ public class ReplicationDensityWatcher {
         started = false;
 
         Log.d(TAG, "[-] RD Watcher Stopped");
-        handler.removeCallbacksAndMessages(null);
-        copiesReceived.clear();
+        clear();
 
         if(EventBus.getDefault().isRegistered(this))
             EventBus.getDefault().unregister(this);
     }
 
-    public float computeMetric(String uuid) {
-        Integer nbOfCopies = copiesReceived.get(uuid);
-        if(nbOfCopies == null)
-            return 1;
+    public synchronized float computeMetric(String uuid) {
+        rotate(clock.currentTimeMillis());
 
         if(messageReceived == 0)
             return 1;
 
-        return (1-(nbOfCopies / messageReceived));
+        return metric(uuid);
     }
 
-    public void onEvent(PushStatusReceived event) {
-        final String uuid = event.status.getUuid();
-        Integer nbOfCopies = copiesReceived.get(uuid);
-        if(nbOfCopies == null)
-            copiesReceived.put(uuid, 1);
-        else
-            copiesReceived.put(uuid, nbOfCopies++);
+    /*
+     * computes the metric of the first size messages at once, under a single lock
+     */
+    public synchronized void computeMetrics(String[] uuids, int size, float[] metrics) {
+        rotate(clock.currentTimeMillis());
+
+        if(messageReceived == 0) {
+            for(int i = 0; i < size; i++)
+                metrics[i] = 1;
+            return;
+        }
+
+        for(int i = 0; i < size; i++)
+            metrics[i] = metric(uuids[i]);
+    }
+
+    // /!\  carefull, it does not lock
+    private float metric(String uuid) {
+        if((untracked == 0) && !seen.containsKey(fingerprint(uuid)))
+            return 1;
+
+        int nbOfCopies = Integer.MAX_VALUE;
+        int hash = uuid.hashCode();
+        for(int row = 0; row < depth; row++)
+            nbOfCopies = Math.min(nbOfCopies, window[row][column(hash, row)]);
+
+        return (1-((float)nbOfCopies / (float)messageReceived));
+    }
+
+    public synchronized void received(String uuid) {
+        rotate(clock.currentTimeMillis());
+
+        int bucket = (int)(currentEpoch % nbBuckets);
+        int hash = uuid.hashCode();
+        for(int row = 0; row < depth; row++) {
+            int column = column(hash, row);
+            buckets[bucket][row][column]++;
+            window[row][column]++;
+        }
+        bucketReceived[bucket]++;
         messageReceived++;
 
-        handler.postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                Integer nbOfCopies = copiesReceived.get(uuid);
-                copiesReceived.put(uuid, nbOfCopies--);
-                messageReceived--;
+        Long fingerprint = fingerprint(uuid);
+        if(bucketSeen[bucket].contains(fingerprint))
+            return;
+        Integer nbBucketsSeen = seen.get(fingerprint);
+        if(nbBucketsSeen != null) {
+            bucketSeen[bucket].add(fingerprint);
+            seen.put(fingerprint, nbBucketsSeen + 1);
+        } else if(seen.size() < maxTracked) {
+            bucketSeen[bucket].add(fingerprint);
+            seen.put(fingerprint, 1);
+        } else {
+            bucketUntracked[bucket]++;
+            untracked++;
+        }
+    }
+
+    public synchronized void clear() {
+        for(int b = 0; b < nbBuckets; b++)
+            resetBucket(b);
+        for(int row = 0; row < depth; row++) {
+            for(int column = 0; column < width; column++)
+                window[row][column] = 0;
+        }
+        messageReceived = 0;
+        seen.clear();
+        untracked = 0;
+        currentEpoch = clock.currentTimeMillis() / bucketDuration;
+    }
+
+    public void onEvent(PushStatusReceived event) {
+        received(event.status.getUuid());
+    }
+
+    /*
+     * move the ring forward, every bucket that left the window is removed from the sum.
+     * it costs O(width*depth) per elapsed bucket, whatever the number of messages received.
+     */
+    // /!\  carefull, it does not lock
+    private void rotate(long now) {
+        long epoch = now / bucketDuration;
+        if(epoch <= currentEpoch)
+            return;
+
+        if(epoch - currentEpoch >= nbBuckets) {
+            for(int b = 0; b < nbBuckets; b++)
+                resetBucket(b);
+            for(int row = 0; row < depth; row++) {
+                for(int column = 0; column < width; column++)
+                    window[row][column] = 0;
+            }
+            messageReceived = 0;
+            seen.clear();
+            untracked = 0;
+        } else {
+            for(long e = currentEpoch + 1; e <= epoch; e++) {
+                int b = (int)(e % nbBuckets);
+                if(bucketReceived[b] == 0)
+                    continue;
+                for(int row = 0; row < depth; row++) {
+                    for(int column = 0; column < width; column++)
+                        window[row][column] -= buckets[b][row][column];
+                }
+                messageReceived -= bucketReceived[b];
+                for(Long fingerprint : bucketSeen[b]) {
+                    int nbBucketsSeen = seen.get(fingerprint);
+                    if(nbBucketsSeen <= 1)
+                        seen.remove(fingerprint);
+                    else
+                        seen.put(fingerprint, nbBucketsSeen - 1);
+                }
+                untracked -= bucketUntracked[b];
+                resetBucket(b);
             }
-        }, windowSize);
+        }
+        currentEpoch = epoch;
     }
 
+    // /!\  carefull, it does not lock
+    private void resetBucket(int b) {
+        if(bucketReceived[b] == 0)
+            return;
+        for(int row = 0; row < depth; row++) {
+            for(int column = 0; column < width; column++)
+                buckets[b][row][column] = 0;
+        }
+        bucketReceived[b] = 0;
+        bucketSeen[b].clear();
+        bucketUntracked[b] = 0;
+    }
+
+    private static long fingerprint(String uuid) {
+        // 64 bits FNV-1a over the chars of the uuid
+        long hash = 0xcbf29ce484222325L;
+        for(int i = 0; i < uuid.length(); i++) {
+            hash ^= uuid.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private int column(int hash, int row) {
+        // double hashing, the second hash is a murmur3 finalizer of the first one
+        int h2 = hash;
+        h2 ^= h2 >>> 16;
+        h2 *= 0x85ebca6b;
+        h2 ^= h2 >>> 13;
+        h2 *= 0xc2b2ae35;
+        h2 ^= h2 >>> 16;
+        return ((hash + row * (h2 | 1)) & 0x7fffffff) % width;
+    }
 }
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ * This file is part of Rumble.
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.network.services.push;
+
+/**
+ * A ScoringPolicy decides how much a status is worth pushing to a given contact.
+ * The higher the score, the more likely the status is picked; a status whose score is
+ * below the dispatcher's threshold is not a candidate anymore (for instance it expired).
+ *
+ * The batch method scores a whole set of candidates held in parallel arrays (see
+ * PushCandidates) in a single pass. The bit i of matches is set if the candidate i
+ * belongs to a group the contact has joined.
+ *
+ * @author Lucien Loiseau
+ */
+public interface ScoringPolicy {
+
+    public float score(boolean match, float relevance, float replicationDensity,
+                       int like, int duplicate, int replication, long toc, long ttl, long now);
+
+    public void score(int size, long[] matches, float[] relevances, float[] replicationDensities,
+                      int[] likes, int[] duplicates, int[] replications, long[] tocs, long[] ttls,
+                      long now, float[] scores);
+}
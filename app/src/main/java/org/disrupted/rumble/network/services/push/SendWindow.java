@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ *
+ * This file is part of Rumble.
+ *
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.network.services.push;
+
+import org.disrupted.rumble.database.objects.PushStatus;
+import org.disrupted.rumble.network.protocols.ProtocolChannel;
+import org.disrupted.rumble.network.protocols.command.Command;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+/**
+ * The SendWindow keeps track of the statuses handed to a channel but not yet executed, at
+ * most "size" of them. A slot is taken when a command is handed to the channel and released
+ * exactly once when it is done, whether it succeeded or not. It also estimates the throughput
+ * of the channel from the completions.
+ *
+ * The commands are compared by identity as Command.equals only compares their CommandID.
+ * Apart from the slots, it is not thread safe, the MessageDispatcher calls it under its lock.
+ *
+ * @author Lucien Loiseau
+ */
+class SendWindow {
+
+    private final Semaphore slots;
+    private final Map<Command, InFlightStatus> inFlight;
+
+    // throughput of the channel in bytes per ms (exponential moving average)
+    private float throughput;
+    private long  lastCompletion;
+
+    SendWindow(int size) {
+        this.slots = new Semaphore(size);
+        this.inFlight = new IdentityHashMap<Command, InFlightStatus>();
+        this.throughput = 0;
+        this.lastCompletion = 0;
+    }
+
+    boolean isFull() {
+        return slots.availablePermits() == 0;
+    }
+
+    int availableSlots() {
+        return slots.availablePermits();
+    }
+
+    /*
+     * returns false if every slot is taken, the command is not in flight then
+     */
+    boolean put(Command command, PushStatus status, ProtocolChannel channel, int size, long now) {
+        if(!slots.tryAcquire())
+            return false;
+        inFlight.put(command, new InFlightStatus(status, channel, size, now));
+        return true;
+    }
+
+    /*
+     * the command has been executed (or dropped), its slot is released. It returns null
+     * if the command was not in flight (already done, or not ours) so that a slot is never
+     * released twice.
+     */
+    InFlightStatus complete(Command command, boolean success, long now) {
+        InFlightStatus sent = inFlight.remove(command);
+        if(sent == null)
+            return null;
+        if(success) {
+            // the statuses are pipelined, the service time starts when the channel
+            // is done with the previous one
+            long elapsed = Math.max(1, now - Math.max(sent.sentAt, lastCompletion));
+            float sample = (float)sent.size / (float)elapsed;
+            throughput = (throughput <= 0) ? sample : (0.8f*throughput + 0.2f*sample);
+            lastCompletion = now;
+        }
+        slots.release();
+        return sent;
+    }
+
+    boolean contains(long dbid) {
+        for(InFlightStatus sent : inFlight.values()) {
+            if(sent.status.getdbId() == dbid)
+                return true;
+        }
+        return false;
+    }
+
+    /*
+     * the commands that were handed to this channel
+     */
+    List<Command> getCommands(ProtocolChannel channel) {
+        List<Command> commands = new ArrayList<Command>();
+        for(Map.Entry<Command, InFlightStatus> entry : inFlight.entrySet()) {
+            if(entry.getValue().channel.equals(channel))
+                commands.add(entry.getKey());
+        }
+        return commands;
+    }
+
+    Collection<InFlightStatus> getInFlight() {
+        return inFlight.values();
+    }
+
+    int size() {
+        return inFlight.size();
+    }
+
+    float getThroughput() {
+        return throughput;
+    }
+
+    /*
+     * forgets the commands in flight, their slots are released as well
+     */
+    void clear() {
+        slots.release(inFlight.size());
+        inFlight.clear();
+    }
+
+    static class InFlightStatus {
+        final PushStatus      status;
+        final ProtocolChannel channel;
+        final int             size;
+        final long            sentAt;
+
+        InFlightStatus(PushStatus status, ProtocolChannel channel, int size, long sentAt) {
+            this.status = status;
+            this.channel = channel;
+            this.size = size;
+            this.sentAt = sentAt;
+        }
+    }
+}
@@ -0,0 +1,488 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ * This file is part of Rumble.
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.network.services.push;
+
+import org.disrupted.rumble.app.RumbleApplication;
+import org.disrupted.rumble.database.DatabaseExecutor;
+import org.disrupted.rumble.database.DatabaseFactory;
+import org.disrupted.rumble.database.PushStatusDatabase;
+import org.disrupted.rumble.database.events.StatusDeletedEvent;
+import org.disrupted.rumble.database.events.StatusInsertedEvent;
+import org.disrupted.rumble.database.events.StatusUpdatedEvent;
+import org.disrupted.rumble.database.events.StatusWipedEvent;
+import org.disrupted.rumble.database.objects.Contact;
+import org.disrupted.rumble.database.objects.PushStatus;
+import org.disrupted.rumble.network.protocols.events.PushStatusReceived;
+import org.disrupted.rumble.network.protocols.events.PushStatusSent;
+import org.disrupted.rumble.util.BloomFilter;
+import org.disrupted.rumble.util.CompressedBitmap;
+import org.disrupted.rumble.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import de.greenrobot.event.EventBus;
+
+/**
+ * The StatusCatalog is the process-wide list of statuses that may be pushed to a neighbour.
+ * It is shared by every MessageDispatcher so that the database is scanned only once
+ * instead of once per connected contact.
+ *
+ * Every status is indexed by its group and every contact carries a CompressedBitmap of the
+ * statuses it already has (we sent it or we received it from him). The candidates of a
+ * contact are thus computed in memory as:
+ *
+ *          (statuses of the contact's groups) - (statuses the contact already has)
+ *
+ * When a dispatcher stops, its candidates are kept as a snapshot so that a contact that
+ * reconnects gets its candidates back immediately, only the statuses that arrived since
+ * are looked up.
+ *
+ * The statuses are loaded asynchronously when the catalog starts, the candidates asked
+ * for meanwhile are only computed once the catalog is loaded.
+ *
+ * @author Lucien Loiseau
+ */
+public class StatusCatalog {
+
+    private static final String TAG = "StatusCatalog";
+
+    private static final Object lock = new Object();
+    private static StatusCatalog instance;
+
+    private final Source source;
+    private boolean started;
+    private boolean loaded;
+    private List<PendingQuery> pending;   // getCandidates waiting for the catalog to be loaded
+
+    private PushCandidates                statuses;
+    private Map<Long, Set<String>>        hashtags;
+    private Map<String, Long>             uuidToDbid;
+    private Map<String, CompressedBitmap> groupToStatuses;
+    private Map<String, CompressedBitmap> delivered;       // contact uid -> statuses it has
+    private Set<String>                   deliveredLoaded; // contact uid loaded from database
+    private Map<String, Snapshot>         snapshots;       // contact uid -> last candidates
+
+    public interface CandidateVisitor {
+        public void onCandidate(PushCandidates catalog, int index, Set<String> hashtags);
+    }
+
+    /*
+     * where the statuses and the statuses a contact already has are loaded from, and where
+     * the candidates are computed
+     */
+    interface Source {
+        public void loadStatuses(DatabaseExecutor.ReadableQueryCallback callback);
+        public CompressedBitmap loadDelivered(String uid); // null if the contact is unknown
+        public boolean read(DatabaseExecutor.ReadableQuery query, DatabaseExecutor.ReadableQueryCallback callback);
+    }
+
+    private static class DatabaseSource implements Source {
+        @Override
+        public void loadStatuses(DatabaseExecutor.ReadableQueryCallback callback) {
+            PushStatusDatabase.StatusQueryOption options = new PushStatusDatabase.StatusQueryOption();
+            options.filterFlags |= PushStatusDatabase.StatusQueryOption.FILTER_NOT_EXPIRED;
+            options.query_result = PushStatusDatabase.StatusQueryOption.QUERY_RESULT.LIST_OF_MESSAGE;
+            DatabaseFactory.getPushStatusDatabase(RumbleApplication.getContext()).getStatuses(options, callback);
+        }
+
+        @Override
+        public CompressedBitmap loadDelivered(String uid) {
+            long contactDBID = DatabaseFactory.getContactDatabase(RumbleApplication.getContext()).getContactDBID(uid);
+            if(contactDBID < 0)
+                return null;
+            return DatabaseFactory.getStatusContactDatabase(RumbleApplication.getContext()).getStatusDBIDs(contactDBID);
+        }
+
+        @Override
+        public boolean read(DatabaseExecutor.ReadableQuery query, DatabaseExecutor.ReadableQueryCallback callback) {
+            return (DatabaseFactory.getDatabaseExecutor(RumbleApplication.getContext())
+                    .addQuery(query, callback, DatabaseExecutor.Priority.NETWORK) != null);
+        }
+    }
+
+    /*
+     * The candidates of a contact when its dispatcher was stopped, along with the groups
+     * they were computed for and the statuses of these groups that arrived since.
+     */
+    public static class Snapshot {
+        final CompressedBitmap dbids;
+        final Set<String>      groupIDs;
+        final CompressedBitmap arrived;
+
+        Snapshot(CompressedBitmap dbids, Set<String> groupIDs) {
+            this.dbids = dbids;
+            this.groupIDs = groupIDs;
+            this.arrived = new CompressedBitmap();
+        }
+    }
+
+    public static StatusCatalog getInstance() {
+        synchronized (lock) {
+            if (instance == null)
+                instance = new StatusCatalog();
+
+            return instance;
+        }
+    }
+
+    private StatusCatalog() {
+        this(new DatabaseSource());
+    }
+
+    StatusCatalog(Source source) {
+        this.source = source;
+        started = false;
+        loaded = false;
+        pending = new LinkedList<PendingQuery>();
+        statuses = new PushCandidates();
+        hashtags = new HashMap<Long, Set<String>>();
+        uuidToDbid = new HashMap<String, Long>();
+        groupToStatuses = new HashMap<String, CompressedBitmap>();
+        delivered = new HashMap<String, CompressedBitmap>();
+        deliveredLoaded = new HashSet<String>();
+        snapshots = new HashMap<String, Snapshot>();
+    }
+
+    public void start() {
+        synchronized (lock) {
+            if(started)
+                return;
+            started = true;
+            Log.d(TAG, "[+] Status Catalog Started");
+            EventBus.getDefault().register(this);
+        }
+
+        source.loadStatuses(onStatusLoaded);
+    }
+    DatabaseExecutor.ReadableQueryCallback onStatusLoaded = new DatabaseExecutor.ReadableQueryCallback() {
+        @Override
+        public void onReadableQueryFinished(Object result) {
+            List<PendingQuery> ready;
+            synchronized (lock) {
+                if(!started)
+                    return;
+                if(result != null) {
+                    for (PushStatus status : (ArrayList<PushStatus>) result) {
+                        add(status);
+                        status.discard();
+                    }
+                }
+                Log.d(TAG, "[+] " + statuses.size() + " statuses loaded");
+                // even if the load failed, the dispatchers get the statuses inserted since
+                loaded = true;
+                ready = new ArrayList<PendingQuery>(pending);
+                pending.clear();
+            }
+            for(PendingQuery query : ready)
+                query.execute();
+        }
+    };
+
+    public void stop() {
+        synchronized (lock) {
+            if(!started)
+                return;
+            started = false;
+            loaded = false;
+            pending.clear();
+            Log.d(TAG, "[-] Status Catalog Stopped");
+            if(EventBus.getDefault().isRegistered(this))
+                EventBus.getDefault().unregister(this);
+            clear();
+        }
+    }
+
+    /*
+     * computes the candidates for a contact, the result (a CompressedBitmap of status dbids)
+     * is returned to the callback. The query is executed by the DatabaseExecutor because the
+     * statuses the contact already has may have to be loaded from the database first.
+     * If the catalog is still loading, the query is queued until it is loaded (otherwise the
+     * contact would only get the statuses inserted since the start).
+     */
+    public boolean getCandidates(final Contact contact, DatabaseExecutor.ReadableQueryCallback callback) {
+        PendingQuery query = new PendingQuery(contact, callback);
+        synchronized (lock) {
+            if(!started)
+                return false;
+            if(!loaded) {
+                pending.add(query);
+                return true;
+            }
+        }
+        return query.execute();
+    }
+
+    private class PendingQuery {
+        private final Contact contact;
+        private final DatabaseExecutor.ReadableQueryCallback callback;
+
+        PendingQuery(Contact contact, DatabaseExecutor.ReadableQueryCallback callback) {
+            this.contact = contact;
+            this.callback = callback;
+        }
+
+        boolean execute() {
+            return source.read(
+                    new DatabaseExecutor.ReadableQuery() {
+                        @Override
+                        public Object read() {
+                            return getCandidates(contact);
+                        }
+                    }, callback);
+        }
+    }
+    CompressedBitmap getCandidates(Contact contact) {
+        loadDelivered(contact.getUid());
+        synchronized (lock) {
+            CompressedBitmap ret = new CompressedBitmap();
+            for(String gid : contact.getJoinedGroupIDs()) {
+                CompressedBitmap group = groupToStatuses.get(gid);
+                if(group != null)
+                    ret.or(group);
+            }
+            CompressedBitmap has = delivered.get(contact.getUid());
+            if(has != null)
+                ret.andNot(has);
+            return ret;
+        }
+    }
+
+    /*
+     * the candidates of a contact whose dispatcher is starting: restored from its snapshot
+     * and given to the callback right away if it has one, computed for the groups we know of
+     * otherwise (see getCandidates). A known contact coming back with the same groups gets
+     * no ContactGroupListUpdated, so its dispatcher must not wait for one.
+     * returns true if the snapshot was restored.
+     */
+    public boolean startCandidates(Contact contact, DatabaseExecutor.ReadableQueryCallback callback) {
+        CompressedBitmap snapshot = restoreSnapshot(contact);
+        if(snapshot != null) {
+            callback.onReadableQueryFinished(snapshot);
+            return true;
+        }
+        getCandidates(contact, callback);
+        return false;
+    }
+
+    /*
+     * keeps the candidates of a contact whose dispatcher is being stopped so that they
+     * can be restored without any query if it reconnects.
+     */
+    public void saveSnapshot(Contact contact, CompressedBitmap dbids) {
+        synchronized (lock) {
+            if(!started)
+                return;
+            snapshots.put(contact.getUid(),
+                    new Snapshot(dbids, new HashSet<String>(contact.getJoinedGroupIDs())));
+        }
+    }
+
+    /*
+     * computes the candidates of a reconnecting contact from its snapshot: the statuses of the
+     * snapshot still in the catalog plus the ones that arrived after the snapshot was taken,
+     * minus those the contact got in the meantime. The snapshot is consumed.
+     * The snapshots are kept up-to-date as the statuses are inserted and deleted, so that
+     * restoring one does not walk the catalog.
+     * returns null if there is no snapshot or if the contact changed its groups since.
+     */
+    public CompressedBitmap restoreSnapshot(Contact contact) {
+        synchronized (lock) {
+            Snapshot snapshot = snapshots.remove(contact.getUid());
+            if(snapshot == null)
+                return null;
+            if(!snapshot.groupIDs.equals(contact.getJoinedGroupIDs()))
+                return null;
+            // the delivered statuses must be known or the snapshot could resend them
+            if(!deliveredLoaded.contains(contact.getUid()))
+                return null;
+
+            CompressedBitmap ret = new CompressedBitmap(snapshot.dbids);
+            ret.or(snapshot.arrived);
+            CompressedBitmap has = delivered.get(contact.getUid());
+            if(has != null)
+                ret.andNot(has);
+            return ret;
+        }
+    }
+
+    /*
+     * visits the statuses of the catalog whose dbid are in the bitmap
+     */
+    public void visit(CompressedBitmap dbids, CandidateVisitor visitor) {
+        synchronized (lock) {
+            for(int dbid : dbids.toArray()) {
+                int index = statuses.indexOf(dbid);
+                if(index >= 0)
+                    visitor.onCandidate(statuses, index, hashtags.get((long)dbid));
+            }
+        }
+    }
+
+    /*
+     * returns a Bloom filter of the UUIDs of the non-expired statuses we hold
+     */
+    public BloomFilter getSummary(double falsePositiveRate, int maxBytes) {
+        synchronized (lock) {
+            long now = System.currentTimeMillis();
+            BloomFilter ret = new BloomFilter(statuses.size(), falsePositiveRate, maxBytes);
+            for(int i = 0; i < statuses.size(); i++) {
+                long ttl = statuses.getTTL(i);
+                if((ttl > 0) && (statuses.getTimeOfCreation(i) + ttl < now))
+                    continue;
+                ret.add(statuses.getUuid(i));
+            }
+            return ret;
+        }
+    }
+
+    public boolean hasStatus(String uid, long dbid) {
+        synchronized (lock) {
+            CompressedBitmap has = delivered.get(uid);
+            return (has != null) && has.contains((int)dbid);
+        }
+    }
+
+    private void loadDelivered(String uid) {
+        synchronized (lock) {
+            if(deliveredLoaded.contains(uid))
+                return;
+        }
+        CompressedBitmap fromDatabase = source.loadDelivered(uid);
+        synchronized (lock) {
+            if(fromDatabase != null)
+                getDelivered(uid).or(fromDatabase);
+            deliveredLoaded.add(uid);
+        }
+    }
+
+    // /!\  carefull, it does not lock
+    private CompressedBitmap getDelivered(String uid) {
+        CompressedBitmap has = delivered.get(uid);
+        if(has == null) {
+            has = new CompressedBitmap();
+            delivered.put(uid, has);
+        }
+        return has;
+    }
+
+    // /!\  carefull, it does not lock
+    private void add(PushStatus status) {
+        if(status.getdbId() < 0)
+            return;
+        statuses.add(status, 0);
+        hashtags.put(status.getdbId(), new HashSet<String>(status.getHashtagSet()));
+        uuidToDbid.put(status.getUuid(), status.getdbId());
+        CompressedBitmap group = groupToStatuses.get(status.getGroup().getGid());
+        if(group == null) {
+            group = new CompressedBitmap();
+            groupToStatuses.put(status.getGroup().getGid(), group);
+        }
+        group.add((int)status.getdbId());
+        for(Snapshot snapshot : snapshots.values()) {
+            if(snapshot.groupIDs.contains(status.getGroup().getGid()))
+                snapshot.arrived.add((int)status.getdbId());
+        }
+    }
+
+    // /!\  carefull, it does not lock
+    private void remove(long dbid) {
+        // the rowid may be given to another status later on
+        for(CompressedBitmap has : delivered.values())
+            has.remove((int)dbid);
+        for(Snapshot snapshot : snapshots.values()) {
+            snapshot.dbids.remove((int)dbid);
+            snapshot.arrived.remove((int)dbid);
+        }
+        int index = statuses.indexOf(dbid);
+        if(index < 0)
+            return;
+        CompressedBitmap group = groupToStatuses.get(statuses.getGroup(index));
+        if(group != null)
+            group.remove((int)dbid);
+        uuidToDbid.remove(statuses.getUuid(index));
+        hashtags.remove(dbid);
+        statuses.remove(dbid);
+    }
+
+    // /!\  carefull, it does not lock
+    private void clear() {
+        statuses.clear();
+        hashtags.clear();
+        uuidToDbid.clear();
+        groupToStatuses.clear();
+        delivered.clear();
+        deliveredLoaded.clear();
+        snapshots.clear();
+    }
+
+    /*
+     * Keeping the catalog up-to-date
+     */
+    public void onEvent(StatusInsertedEvent event) {
+        if(event.status == null)
+            return;
+        synchronized (lock) {
+            add(event.status);
+            // the author and the sender obviously already have this status
+            getDelivered(event.status.getAuthor().getUid()).add((int)event.status.getdbId());
+            if(event.status.receivedBy() != null)
+                getDelivered(event.status.receivedBy()).add((int)event.status.getdbId());
+        }
+    }
+    public void onEvent(StatusUpdatedEvent event) {
+        if(event.status == null)
+            return;
+        synchronized (lock) {
+            statuses.update(event.status);
+        }
+    }
+    public void onEvent(StatusDeletedEvent event) {
+        synchronized (lock) {
+            remove(event.dbid);
+        }
+    }
+    public void onEvent(StatusWipedEvent event) {
+        synchronized (lock) {
+            clear();
+        }
+    }
+    public void onEvent(PushStatusSent event) {
+        if((event.status == null) || (event.status.getdbId() < 0))
+            return;
+        synchronized (lock) {
+            for(Contact recipient : event.recipients)
+                getDelivered(recipient.getUid()).add((int) event.status.getdbId());
+        }
+    }
+    public void onEvent(PushStatusReceived event) {
+        if((event.status == null) || (event.senderID == null))
+            return;
+        synchronized (lock) {
+            // if the status is not in the catalog yet, StatusInsertedEvent will take care of it
+            Long dbid = uuidToDbid.get(event.status.getUuid());
+            if(dbid != null)
+                getDelivered(event.senderID).add(dbid.intValue());
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ * This file is part of Rumble.
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.network.services.push;
+
+import java.util.Random;
+
+/**
+ * WeightedSampler picks an index randomly with a probability proportional to its weight.
+ * It is backed by a Fenwick tree (binary indexed tree) so that adding, removing or updating
+ * a weight as well as sampling an index are all done in O(log n).
+ *
+ * Removing an index moves the last index in its slot, exactly like PushCandidates does with
+ * its arrays, so that both structures can share the same indexes.
+ *
+ * This class is not thread-safe.
+ *
+ * @author Lucien Loiseau
+ */
+public class WeightedSampler {
+
+    private static final String TAG = "WeightedSampler";
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private double[] weights; // 0-based
+    private double[] tree;    // 1-based, tree[i] holds the sum of the weights in (i - lowbit(i), i]
+    private int      size;
+    private double   total;
+
+    public WeightedSampler() {
+        weights = new double[INITIAL_CAPACITY];
+        tree = new double[INITIAL_CAPACITY + 1];
+        size = 0;
+        total = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public double total() {
+        return total;
+    }
+
+    public double get(int index) {
+        return weights[index];
+    }
+
+    /*
+     * append a new weight and returns its index
+     */
+    public int add(double weight) {
+        if(size == weights.length)
+            grow();
+        int index = size++;
+        weights[index] = 0;
+        set(index, weight);
+        return index;
+    }
+
+    public void set(int index, double weight) {
+        if(weight < 0)
+            weight = 0;
+        double delta = weight - weights[index];
+        if(delta == 0)
+            return;
+        weights[index] = weight;
+        total += delta;
+        for(int i = index + 1; i < tree.length; i += (i & -i))
+            tree[i] += delta;
+    }
+
+    /*
+     * remove the weight at index, the last weight takes its place
+     */
+    public void remove(int index) {
+        int last = size - 1;
+        if(index != last)
+            set(index, weights[last]);
+        set(last, 0);
+        size--;
+        if(size == 0)
+            total = 0;
+    }
+
+    /*
+     * replace every weight at once, this costs O(n) instead of O(n log n)
+     */
+    public void assign(float[] newWeights, int count) {
+        while(weights.length < count)
+            weights = new double[weights.length * 2];
+        if(tree.length != weights.length + 1)
+            tree = new double[weights.length + 1];
+        for(int i = 0; i < count; i++)
+            weights[i] = (newWeights[i] < 0) ? 0 : newWeights[i];
+        for(int i = count; i < weights.length; i++)
+            weights[i] = 0;
+        size = count;
+        rebuild();
+    }
+
+    public void clear() {
+        for(int i = 0; i < weights.length; i++)
+            weights[i] = 0;
+        for(int i = 0; i < tree.length; i++)
+            tree[i] = 0;
+        size = 0;
+        total = 0;
+    }
+
+    /*
+     * returns an index with a probability proportional to its weight,
+     * or -1 if every weight is null.
+     */
+    public int sample(Random random) {
+        if((size == 0) || (total <= 0))
+            return -1;
+
+        double target = random.nextDouble() * total;
+        int pos = 0;
+        for(int step = Integer.highestOneBit(tree.length - 1); step > 0; step >>= 1) {
+            int next = pos + step;
+            if((next < tree.length) && (tree[next] <= target)) {
+                target -= tree[next];
+                pos = next;
+            }
+        }
+
+        // pos is the number of weights whose cumulated sum is <= target, that is the index
+        // we are looking for. Rounding errors may push it at the very end, we thus fall back
+        // on the last index with a positive weight.
+        if(pos >= size) {
+            for(pos = size - 1; pos >= 0; pos--) {
+                if(weights[pos] > 0)
+                    return pos;
+            }
+            return -1;
+        }
+        return pos;
+    }
+
+    /*
+     * recompute the tree from the weights, this gets rid of the rounding errors
+     * accumulated over the updates.
+     */
+    public void rebuild() {
+        total = 0;
+        for(int i = 0; i < tree.length; i++)
+            tree[i] = 0;
+        // the partial sums must be carried up to the root, past the last weight
+        for(int j = 1; j < tree.length; j++) {
+            if(j <= size) {
+                total += weights[j - 1];
+                tree[j] += weights[j - 1];
+            }
+            int parent = j + (j & -j);
+            if(parent < tree.length)
+                tree[parent] += tree[j];
+        }
+    }
+
+    private void grow() {
+        double[] newWeights = new double[weights.length * 2];
+        System.arraycopy(weights, 0, newWeights, 0, size);
+        weights = newWeights;
+        tree = new double[newWeights.length + 1];
+        rebuild();
+    }
+}
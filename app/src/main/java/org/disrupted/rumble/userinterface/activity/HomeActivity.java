@@ -44,9 +44,7 @@ import org.disrupted.rumble.database.ChatMessageDatabase;
 import org.disrupted.rumble.database.DatabaseExecutor;
 import org.disrupted.rumble.database.DatabaseFactory;
 import org.disrupted.rumble.database.PushStatusDatabase;
-import org.disrupted.rumble.database.events.ChatMessageInsertedEvent;
-import org.disrupted.rumble.database.events.ChatMessageUpdatedEvent;
-import org.disrupted.rumble.database.events.StatusDatabaseEvent;
+import org.disrupted.rumble.database.events.DatabaseChangeSet;
 import org.disrupted.rumble.network.linklayer.bluetooth.BluetoothUtil;
 import org.disrupted.rumble.userinterface.adapter.HomePagerAdapter;
 import org.disrupted.rumble.userinterface.fragments.FragmentChatMessageList;
@@ -252,14 +250,11 @@ public class HomeActivity extends AppCompatActivity {
     /*
      * Handling Events coming from outside the activity
      */
-    public void onEvent(StatusDatabaseEvent event) {
-        refreshStatusNotifications();
-    }
-    public void onEvent(ChatMessageInsertedEvent event) {
-        refreshChatNotifications();
-    }
-    public void onEvent(ChatMessageUpdatedEvent event) {
-        refreshChatNotifications();
+    public void onEvent(DatabaseChangeSet event) {
+        if(!event.statuses.isEmpty())
+            refreshStatusNotifications();
+        if(!event.chatMessages.isEmpty())
+            refreshChatNotifications();
     }
 
 }
@@ -48,6 +48,7 @@ import org.disrupted.rumble.userinterface.activity.GroupDetailActivity;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Hashtable;
+import java.util.Map;
 
 import javax.crypto.SecretKey;
 
@@ -226,6 +227,23 @@ public class GroupRecyclerAdapter extends RecyclerView.Adapter<GroupRecyclerAdap
         notifyDataSetChanged();
     }
 
+    /*
+     * sets the unread counts from a map of gid to count (a group that is absent has none),
+     * only the groups whose count changed are refreshed
+     */
+    public void updateUnread(Map<String, Integer> unread) {
+        if(groupList == null)
+            return;
+        for(int i = 0; i < groupList.size(); i++) {
+            Integer count = unread.get(groupList.get(i).getGid());
+            int value = (count == null) ? 0 : count;
+            if(unreadList.get(i) != value) {
+                unreadList.set(i, value);
+                notifyItemChanged(i);
+            }
+        }
+    }
+
     public void updateUnread(String gid, int unread) {
         for(int i = 0; i < groupList.size(); i++) {
             if(groupList.get(i).getGid().equals(gid)) {
@@ -42,7 +42,11 @@ import com.amulyakhare.textdrawable.util.ColorGenerator;
 import com.squareup.picasso.Picasso;
 
 import org.disrupted.rumble.R;
+import org.disrupted.rumble.app.RumbleApplication;
+import org.disrupted.rumble.database.DatabaseExecutor;
+import org.disrupted.rumble.database.DatabaseFactory;
 import org.disrupted.rumble.database.objects.PushStatus;
+import org.disrupted.rumble.database.objects.StatusListItem;
 import org.disrupted.rumble.userinterface.activity.ContactDetailActivity;
 import org.disrupted.rumble.userinterface.activity.DisplayImage;
 import org.disrupted.rumble.userinterface.activity.DisplayStatusActivity;
@@ -94,15 +98,15 @@ public class StatusRecyclerAdapter extends RecyclerView.Adapter<StatusRecyclerAd
             box           = (LinearLayout)itemView.findViewById(R.id.status_item_box);
         }
 
-        public void bindStatus(final PushStatus status) {
-            final String uid = status.getAuthor().getUid();
-            final String name= status.getAuthor().getName();
+        public void bindStatus(final StatusListItem status) {
+            final String uid = status.getAuthorUid();
+            final String name= status.getAuthorName();
 
             // we draw the avatar
             ColorGenerator generator = ColorGenerator.DEFAULT;
             avatarView.setImageDrawable(
-                    builder.build(status.getAuthor().getName().substring(0, 1),
-                            generator.getColor(status.getAuthor().getUid())));
+                    builder.build(name.substring(0, 1),
+                            generator.getColor(uid)));
             if(!fragment.noCoordinatorLayout) {
                 avatarView.setOnClickListener(new View.OnClickListener() {
                     @Override
@@ -117,14 +121,15 @@ public class StatusRecyclerAdapter extends RecyclerView.Adapter<StatusRecyclerAd
             }
 
             // we draw the author field
-            authorView.setText(status.getAuthor().getName());
+            authorView.setText(name);
             tocView.setText(TimeUtil.timeElapsed(status.getTimeOfCreation()));
             toaView.setText(TimeUtil.timeElapsed(status.getTimeOfArrival()));
-            groupNameView.setText(status.getGroup().getName());
-            groupNameView.setTextColor(generator.getColor(status.getGroup().getGid()));
+            groupNameView.setText(status.getGroupName());
+            groupNameView.setTextColor(generator.getColor(status.getGroupGid()));
 
-            // we draw the status (with clickable hashtag)
-            if (status.getPost().length() == 0) {
+            // we draw the status (with clickable hashtag), the full post is in DisplayStatusActivity
+            final String post = status.isTruncated() ? status.getPostPreview() + "\u2026" : status.getPostPreview();
+            if (post.length() == 0) {
                 itemView.setVisibility(View.GONE);
             } else {
                 // open the status in a viewer activity if clicked
@@ -138,14 +143,14 @@ public class StatusRecyclerAdapter extends RecyclerView.Adapter<StatusRecyclerAd
                     }
                 });
 
-                SpannableString ss = new SpannableString(status.getPost());
+                SpannableString ss = new SpannableString(post);
                 int beginCharPosition = -1;
                 int j;
-                for (j = 0; j < status.getPost().length(); j++) {
-                    if (status.getPost().charAt(j) == '#')
+                for (j = 0; j < post.length(); j++) {
+                    if (post.charAt(j) == '#')
                         beginCharPosition = j;
-                    if ((status.getPost().charAt(j) == ' ') && (beginCharPosition >= 0)) {
-                        final String word = status.getPost().substring(beginCharPosition, j);
+                    if ((post.charAt(j) == ' ') && (beginCharPosition >= 0)) {
+                        final String word = post.substring(beginCharPosition, j);
                         ClickableSpan clickableSpan = new ClickableSpan() {
                             @Override
                             public void onClick(View textView) {
@@ -157,7 +162,7 @@ public class StatusRecyclerAdapter extends RecyclerView.Adapter<StatusRecyclerAd
                     }
                 }
                 if (beginCharPosition >= 0) {
-                    final String word = status.getPost().substring(beginCharPosition, j);
+                    final String word = post.substring(beginCharPosition, j);
                     ClickableSpan clickableSpan = new ClickableSpan() {
                         @Override
                         public void onClick(View textView) {
@@ -222,7 +227,12 @@ public class StatusRecyclerAdapter extends RecyclerView.Adapter<StatusRecyclerAd
                     }
                     if (!status.hasUserReadAlready()) {
                         status.setUserRead(true);
-                        EventBus.getDefault().post(new UserReadStatus(status));
+                        postUserEvent(status.getUuid(), new UserAction() {
+                            @Override
+                            public Object getEvent(PushStatus full) {
+                                return new UserReadStatus(full);
+                            }
+                        });
                     }
                 } else {
                     if (android.os.Build.VERSION.SDK_INT < android.os.Build.VERSION_CODES.JELLY_BEAN) {
@@ -247,15 +257,33 @@ public class StatusRecyclerAdapter extends RecyclerView.Adapter<StatusRecyclerAd
                     @Override
                     public boolean onMenuItemClick(MenuItem menuItem) {
                         int pos = getAdapterPosition();
+                        if(pos < 0)
+                            return false;
+                        String uuid = statuses.get(pos).getUuid();
                         switch (menuItem.getItemId()) {
                             case 1:
-                                EventBus.getDefault().post(new UserLikedStatus(statuses.get(pos)));
+                                postUserEvent(uuid, new UserAction() {
+                                    @Override
+                                    public Object getEvent(PushStatus full) {
+                                        return new UserLikedStatus(full);
+                                    }
+                                });
                                 return true;
                             case 2:
-                                EventBus.getDefault().post(new UserSavedStatus(statuses.get(pos)));
+                                postUserEvent(uuid, new UserAction() {
+                                    @Override
+                                    public Object getEvent(PushStatus full) {
+                                        return new UserSavedStatus(full);
+                                    }
+                                });
                                 return true;
                             case 3:
-                                EventBus.getDefault().post(new UserDeleteStatus(statuses.get(pos)));
+                                postUserEvent(uuid, new UserAction() {
+                                    @Override
+                                    public Object getEvent(PushStatus full) {
+                                        return new UserDeleteStatus(full);
+                                    }
+                                });
                                 return true;
                             default:
                                 return false;
@@ -269,16 +297,35 @@ public class StatusRecyclerAdapter extends RecyclerView.Adapter<StatusRecyclerAd
 
     }
 
+    /*
+     * the list only holds StatusListItem, the full PushStatus is loaded before posting the
+     * user events that modify it
+     */
+    private interface UserAction {
+        Object getEvent(PushStatus full);
+    }
+    private void postUserEvent(String uuid, final UserAction action) {
+        DatabaseFactory.getPushStatusDatabase(RumbleApplication.getContext()).getStatus(uuid,
+                DatabaseExecutor.Priority.UI,
+                new DatabaseExecutor.ReadableQueryCallback() {
+                    @Override
+                    public void onReadableQueryFinished(Object object) {
+                        if(object != null)
+                            EventBus.getDefault().post(action.getEvent((PushStatus) object));
+                    }
+                });
+    }
+
     private FragmentStatusList fragment;
     private Activity activity;
-    private List<PushStatus> statuses;
+    private List<StatusListItem> statuses;
     private static final TextDrawable.IBuilder builder = TextDrawable.builder().rect();
 
 
     public StatusRecyclerAdapter(Activity activity, FragmentStatusList fragment) {
         this.activity = activity;
         this.fragment = fragment;
-        this.statuses = new ArrayList<PushStatus>();
+        this.statuses = new ArrayList<StatusListItem>();
     }
 
 
@@ -291,7 +338,7 @@ public class StatusRecyclerAdapter extends RecyclerView.Adapter<StatusRecyclerAd
 
     @Override
     public void onBindViewHolder(StatusHolder contactHolder, int i) {
-        PushStatus status = statuses.get(i);
+        StatusListItem status = statuses.get(i);
         contactHolder.bindStatus(status);
     }
 
@@ -314,25 +361,39 @@ public class StatusRecyclerAdapter extends RecyclerView.Adapter<StatusRecyclerAd
         fragment = null;
     }
 
-    public PushStatus getLastItem() {
+    public StatusListItem getLastItem() {
         if(statuses.size() == 0)
             return null;
         return statuses.get(statuses.size()-1);
     }
-    public PushStatus getFirstItem() {
+    public StatusListItem getFirstItem() {
         if(statuses.size() == 0)
             return null;
         return statuses.get(0);
     }
 
-    public int addStatusOnTop(PushStatus status) {
+    public int addStatusOnTop(StatusListItem status) {
         statuses.add(0,status);
         return 0;
     }
 
-    public int addStatusesAtBottom(List<PushStatus> statusesToAdd) {
+    /*
+     * adds the statuses (ordered from the newest) on top of the list, returns how many were added
+     */
+    public int addStatusesOnTop(List<StatusListItem> statusesToAdd) {
         int loaded = 0;
-        for(PushStatus status : statusesToAdd) {
+        for(StatusListItem status : statusesToAdd) {
+            if(!this.statuses.contains(status)) {
+                this.statuses.add(loaded, status);
+                loaded++;
+            }
+        }
+        return loaded;
+    }
+
+    public int addStatusesAtBottom(List<StatusListItem> statusesToAdd) {
+        int loaded = 0;
+        for(StatusListItem status : statusesToAdd) {
             if(!this.statuses.contains(status)) {
                 this.statuses.add(status);
                 loaded++;
@@ -342,9 +403,9 @@ public class StatusRecyclerAdapter extends RecyclerView.Adapter<StatusRecyclerAd
     }
 
     public int deleteStatus(String uuid) {
-        Iterator<PushStatus> it = statuses.iterator();
+        Iterator<StatusListItem> it = statuses.iterator();
         while(it.hasNext()) {
-            PushStatus item = it.next();
+            StatusListItem item = it.next();
             if(item.getUuid().equals(uuid)) {
                 int pos = statuses.indexOf(item);
                 it.remove();
@@ -353,19 +414,36 @@ public class StatusRecyclerAdapter extends RecyclerView.Adapter<StatusRecyclerAd
         }
         return -1;
     }
-    public void swap(List<PushStatus> statuses) {
-        if(this.statuses != null) {
-            for (PushStatus message : this.statuses) {
-                message.discard();
-                message = null;
-            }
-            this.statuses.clear();
-        }
-        if(statuses != null) {
-            for (PushStatus message : statuses) {
-                this.statuses.add(message);
-            }
+    public int deleteStatus(long dbid) {
+        int pos = indexOf(dbid);
+        if(pos >= 0)
+            statuses.remove(pos);
+        return pos;
+    }
+
+    /*
+     * replaces the item of the same status, returns its position or -1 if it is not displayed
+     */
+    public int updateStatus(StatusListItem status) {
+        int pos = indexOf(status.getdbId());
+        if(pos >= 0)
+            statuses.set(pos, status);
+        return pos;
+    }
+
+    public int indexOf(long dbid) {
+        for(int i = 0; i < statuses.size(); i++) {
+            if(statuses.get(i).getdbId() == dbid)
+                return i;
         }
+        return -1;
+    }
+
+    public void swap(List<StatusListItem> statuses) {
+        if(this.statuses != null)
+            this.statuses.clear();
+        if(statuses != null)
+            this.statuses.addAll(statuses);
     }
 
 }
@@ -31,8 +31,7 @@ import org.disrupted.rumble.R;
 import org.disrupted.rumble.database.ContactDatabase;
 import org.disrupted.rumble.database.DatabaseExecutor;
 import org.disrupted.rumble.database.DatabaseFactory;
-import org.disrupted.rumble.database.events.ContactDeletedEvent;
-import org.disrupted.rumble.database.events.ContactInsertedEvent;
+import org.disrupted.rumble.database.events.DatabaseChangeSet;
 import org.disrupted.rumble.database.objects.Contact;
 import org.disrupted.rumble.userinterface.adapter.ContactRecyclerAdapter;
 
@@ -118,11 +117,12 @@ public class FragmentContactList  extends Fragment {
         }
     };
 
-    public void onEvent(ContactInsertedEvent event) {
-        getContactList();
-    }
-    public void onEvent(ContactDeletedEvent event) {
-        getContactList();
+    /*
+     * the list is ordered and limited so it is loaded again, but only once per change set
+     */
+    public void onEvent(DatabaseChangeSet event) {
+        if(!event.contacts.inserted.isEmpty() || !event.contacts.deleted.isEmpty())
+            getContactList();
     }
 
 }
@@ -35,16 +35,13 @@ import org.disrupted.rumble.R;
 import org.disrupted.rumble.app.RumbleApplication;
 import org.disrupted.rumble.database.DatabaseExecutor;
 import org.disrupted.rumble.database.DatabaseFactory;
-import org.disrupted.rumble.database.PushStatusDatabase;
-import org.disrupted.rumble.database.events.GroupDeletedEvent;
-import org.disrupted.rumble.database.events.GroupInsertedEvent;
-import org.disrupted.rumble.database.events.StatusInsertedEvent;
+import org.disrupted.rumble.database.events.DatabaseChangeSet;
 import org.disrupted.rumble.database.objects.Group;
 import org.disrupted.rumble.network.protocols.events.PushStatusReceived;
 import org.disrupted.rumble.userinterface.adapter.GroupRecyclerAdapter;
 
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Map;
 
 import de.greenrobot.event.EventBus;
 
@@ -113,50 +110,40 @@ public class FragmentGroupList extends Fragment {
             }
 
             // update the number of unread message for every group
-            for(Group group : (ArrayList<Group>)(result)) {
-                refreshBadge(group.getGid());
-            }
+            refreshBadges();
         }
     };
 
-    public void refreshBadge(String gid) {
-        PushStatusDatabase.StatusQueryOption statusQueryOption = new PushStatusDatabase.StatusQueryOption();
-        statusQueryOption.filterFlags = PushStatusDatabase.StatusQueryOption.FILTER_READ;
-        statusQueryOption.read = false;
-        statusQueryOption.filterFlags |= PushStatusDatabase.StatusQueryOption.FILTER_GROUP;
-        statusQueryOption.groupIDFilters = new HashSet<>();
-        statusQueryOption.groupIDFilters.add(gid);
-        statusQueryOption.query_result = PushStatusDatabase.StatusQueryOption.QUERY_RESULT.COUNT;
+    /*
+     * the unread counts of every group are computed by a single query
+     */
+    public void refreshBadges() {
         DatabaseFactory.getPushStatusDatabase(RumbleApplication.getContext())
-                .getStatuses(statusQueryOption, new GroupUnreadCallback(gid));
+                .getUnreadCountPerGroup(DatabaseExecutor.Priority.UI, onBadgesLoaded);
     }
-    private class GroupUnreadCallback implements DatabaseExecutor.ReadableQueryCallback {
-        String gid;
-        public GroupUnreadCallback(String gid) {
-            this.gid = gid;
-        }
+    private DatabaseExecutor.ReadableQueryCallback onBadgesLoaded = new DatabaseExecutor.ReadableQueryCallback() {
         @Override
         public void onReadableQueryFinished(Object object) {
-            final Integer count = (Integer)object;
+            final Map<String, Integer> counts = (Map<String, Integer>)object;
             Activity activity = FragmentGroupList.this.getActivity();
-            if(activity != null) {
+            if((activity != null) && (counts != null)) {
                 activity.runOnUiThread(new Runnable() {
                     @Override
                     public void run() {
-                        groupRecyclerAdapter.updateUnread(gid, count);
+                        groupRecyclerAdapter.updateUnread(counts);
                     }
                 });
             }
         }
-    }
+    };
 
-    public void onEvent(StatusInsertedEvent event) {
-        refreshBadge(event.status.getGroup().getGid());
-    }
-    public void onEvent(GroupInsertedEvent event) {
-        getGroupList();
-    }
-    public void onEvent(GroupDeletedEvent event) {
-        getGroupList();
+    /*
+     * Database changes, coalesced by the ChangeFeed
+     */
+    public void onEvent(DatabaseChangeSet event) {
+        if(!event.groups.isEmpty())
+            getGroupList();
+        else if(!event.statuses.isEmpty())
+            refreshBadges();
     }
 }
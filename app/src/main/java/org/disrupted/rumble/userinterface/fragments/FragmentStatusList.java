@@ -24,24 +24,25 @@ import android.os.Bundle;
 import android.support.annotation.Nullable;
 import android.support.design.widget.FloatingActionButton;
 import android.support.v4.app.Fragment;
+import android.support.v4.view.MenuItemCompat;
 import android.support.v4.widget.SwipeRefreshLayout;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.SearchView;
 import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuInflater;
+import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ListView;
 
 import org.disrupted.rumble.database.events.ContactTagInterestUpdatedEvent;
-import org.disrupted.rumble.database.events.StatusInsertedEvent;
+import org.disrupted.rumble.database.events.DatabaseChangeSet;
 import org.disrupted.rumble.userinterface.activity.HomeActivity;
 import org.disrupted.rumble.R;
 import org.disrupted.rumble.database.PushStatusDatabase;
-import org.disrupted.rumble.database.events.GroupDeletedEvent;
-import org.disrupted.rumble.database.events.StatusDeletedEvent;
-import org.disrupted.rumble.database.events.StatusUpdatedEvent;
-import org.disrupted.rumble.database.events.StatusWipedEvent;
-import org.disrupted.rumble.database.objects.PushStatus;
+import org.disrupted.rumble.database.objects.StatusListItem;
 import org.disrupted.rumble.userinterface.activity.PopupComposeStatus;
 import org.disrupted.rumble.database.DatabaseExecutor;
 import org.disrupted.rumble.database.DatabaseFactory;
@@ -51,6 +52,7 @@ import org.disrupted.rumble.userinterface.events.UserComposeStatus;
 
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 
 import de.greenrobot.event.EventBus;
 
@@ -61,6 +63,9 @@ public class FragmentStatusList extends Fragment implements SwipeRefreshLayout.O
 
     private static final String TAG = "FragmentStatusList";
 
+    // above this number of new statuses, the first page is loaded again instead
+    private static final int MAX_NEWER_STATUSES = 50;
+
     private View mView;
     private RecyclerView mRecyclerView;
     private SwipeRefreshLayout swipeLayout;
@@ -70,15 +75,57 @@ public class FragmentStatusList extends Fragment implements SwipeRefreshLayout.O
     private FloatingActionButton composeFAB;
     public  boolean noCoordinatorLayout;
     private boolean loadingMore;
+    private volatile int queryGeneration;
+    private DatabaseExecutor.QueryHandle pendingQuery;
     private boolean noMoreStatusToLoad;
 
     private String   filter_gid = null;
     private String   filter_uid = null;
     private String   filter_hashtag = null;
+    private String   search = null;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        setHasOptionsMenu(true);
+    }
+
+    /*
+     * Full-text search, while a search is shown the list is ranked by relevance and
+     * the other filters are not applied
+     */
+    @Override
+    public void onCreateOptionsMenu(Menu menu, MenuInflater inflater) {
+        inflater.inflate(R.menu.status_list_menu, menu);
+        MenuItem searchItem = menu.findItem(R.id.status_action_search);
+        SearchView searchView = (SearchView) MenuItemCompat.getActionView(searchItem);
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                search = query;
+                refreshStatuses();
+                return false;
+            }
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                return false;
+            }
+        });
+        MenuItemCompat.setOnActionExpandListener(searchItem, new MenuItemCompat.OnActionExpandListener() {
+            @Override
+            public boolean onMenuItemActionExpand(MenuItem item) {
+                return true;
+            }
+            @Override
+            public boolean onMenuItemActionCollapse(MenuItem item) {
+                if(search != null) {
+                    search = null;
+                    refreshStatuses();
+                }
+                return true;
+            }
+        });
+        super.onCreateOptionsMenu(menu, inflater);
     }
 
     @Override
@@ -161,6 +208,8 @@ public class FragmentStatusList extends Fragment implements SwipeRefreshLayout.O
     public void onDestroy() {
         if(EventBus.getDefault().isRegistered(this))
             EventBus.getDefault().unregister(this);
+        if(pendingQuery != null)
+            pendingQuery.cancel();
         statusRecyclerAdapter.clean();
         super.onDestroy();
     }
@@ -184,26 +233,55 @@ public class FragmentStatusList extends Fragment implements SwipeRefreshLayout.O
     }
 
     private void refreshStatuses() {
-        refreshStatuses(-1,-1);
+        refreshStatuses(null);
     }
-    private void refreshStatuses(long before_toa, long after_toa) {
-        if(loadingMore)
+    /*
+     * a refresh supersedes the query that is pending (if any) whereas loading more statuses
+     * at the bottom (the ones older than the last item) waits for the pending query to finish
+     */
+    private void refreshStatuses(StatusListItem olderThan) {
+        boolean refresh = (olderThan == null);
+        if(loadingMore && !refresh)
             return;
+        if(pendingQuery != null)
+            pendingQuery.cancel();
         loadingMore = true;
+        final int generation = ++queryGeneration;
 
-        PushStatusDatabase.StatusQueryOption options = new PushStatusDatabase.StatusQueryOption();
-        options.answerLimit = 10;
-        options.query_result = PushStatusDatabase.StatusQueryOption.QUERY_RESULT.LIST_OF_MESSAGE;
-        options.order_by = PushStatusDatabase.StatusQueryOption.ORDER_BY.TIME_OF_ARRIVAL;
-
-        if(before_toa > 0) {
-            options.filterFlags |= PushStatusDatabase.StatusQueryOption.FILTER_BEFORE_TOA;
-            options.before_toa = before_toa;
+        DatabaseExecutor.ReadableQueryCallback callback;
+        if(refresh)
+            callback = new StatusesRefreshedCallback(generation);
+        else
+            callback = new StatusesLoadedCallback(generation);
+
+        if(search != null) {
+            pendingQuery = DatabaseFactory.getPushStatusDatabase(getActivity())
+                    .searchStatuses(search, refresh ? 0 : statusRecyclerAdapter.getItemCount(), 10,
+                            DatabaseExecutor.Priority.UI, callback);
+            if(pendingQuery == null)
+                loadingMore = false;
+            return;
         }
-        if(after_toa > 0) {
-            options.filterFlags |= PushStatusDatabase.StatusQueryOption.FILTER_AFTER_TOA;
-            options.after_toa = after_toa;
+
+        PushStatusDatabase.StatusQueryOption options = getQueryOptions();
+        options.answerLimit = 10;
+        if(olderThan != null) {
+            options.filterFlags |= PushStatusDatabase.StatusQueryOption.FILTER_BEFORE_KEY;
+            options.before_key_toa  = olderThan.getTimeOfArrival();
+            options.before_key_dbid = olderThan.getdbId();
         }
+        pendingQuery = DatabaseFactory.getPushStatusDatabase(getActivity())
+                .getStatuses(options, DatabaseExecutor.Priority.UI, callback);
+        if(pendingQuery == null)
+            loadingMore = false;
+    }
+    /*
+     * the statuses of this list, as filtered by the user
+     */
+    private PushStatusDatabase.StatusQueryOption getQueryOptions() {
+        PushStatusDatabase.StatusQueryOption options = new PushStatusDatabase.StatusQueryOption();
+        options.query_result = PushStatusDatabase.StatusQueryOption.QUERY_RESULT.LIST_OF_ITEMS;
+        options.order_by = PushStatusDatabase.StatusQueryOption.ORDER_BY.TIME_OF_ARRIVAL;
         if(filter_gid != null) {
             options.filterFlags |= PushStatusDatabase.StatusQueryOption.FILTER_GROUP;
             options.groupIDFilters = new HashSet<String>();
@@ -219,23 +297,25 @@ public class FragmentStatusList extends Fragment implements SwipeRefreshLayout.O
             if(filter_hashtag != null)
                 options.hashtagFilters.add(filter_hashtag);
         }
-        if(before_toa <= 0) {
-            DatabaseFactory.getPushStatusDatabase(getActivity())
-                    .getStatuses(options, onStatusesRefreshed);
-        } else {
-            DatabaseFactory.getPushStatusDatabase(getActivity())
-                    .getStatuses(options, onStatusesLoaded);
-        }
+        return options;
     }
-    DatabaseExecutor.ReadableQueryCallback onStatusesRefreshed = new DatabaseExecutor.ReadableQueryCallback() {
+    private class StatusesRefreshedCallback implements DatabaseExecutor.ReadableQueryCallback {
+        private final int generation;
+        StatusesRefreshedCallback(int generation) {
+            this.generation = generation;
+        }
         @Override
         public void onReadableQueryFinished(final Object result) {
-            final ArrayList<PushStatus> answer = (ArrayList<PushStatus>)result;
+            final ArrayList<StatusListItem> answer = (ArrayList<StatusListItem>)result;
             if (getActivity() == null)
                 return;
             getActivity().runOnUiThread(new Runnable() {
                 @Override
                 public void run() {
+                    // the query has been superseded while it was running
+                    if(generation != queryGeneration)
+                        return;
+                    pendingQuery = null;
                     statusRecyclerAdapter.swap(answer);
                     statusRecyclerAdapter.notifyDataSetChanged();
                     swipeLayout.setRefreshing(false);
@@ -249,16 +329,24 @@ public class FragmentStatusList extends Fragment implements SwipeRefreshLayout.O
                 }
             });
         }
-    };
-    DatabaseExecutor.ReadableQueryCallback onStatusesLoaded = new DatabaseExecutor.ReadableQueryCallback() {
+    }
+    private class StatusesLoadedCallback implements DatabaseExecutor.ReadableQueryCallback {
+        private final int generation;
+        StatusesLoadedCallback(int generation) {
+            this.generation = generation;
+        }
         @Override
         public void onReadableQueryFinished(final Object result) {
-            final ArrayList<PushStatus> answer = (ArrayList<PushStatus>)result;
+            final ArrayList<StatusListItem> answer = (ArrayList<StatusListItem>)result;
             if (getActivity() == null)
                 return;
             getActivity().runOnUiThread(new Runnable() {
                 @Override
                 public void run() {
+                    // the query has been superseded while it was running
+                    if(generation != queryGeneration)
+                        return;
+                    pendingQuery = null;
                     int before = statusRecyclerAdapter.getItemCount();
                     int loaded = statusRecyclerAdapter.addStatusesAtBottom(answer);
                     if(loaded > 0) {
@@ -274,7 +362,7 @@ public class FragmentStatusList extends Fragment implements SwipeRefreshLayout.O
                 }
             });
         }
-    };
+    }
 
     /*
      * Endless scrolling. Whenever we reach the last item, we load for more
@@ -289,10 +377,10 @@ public class FragmentStatusList extends Fragment implements SwipeRefreshLayout.O
             int pastVisiblesItems = mLayoutManager.findFirstVisibleItemPosition();
             if ( (visibleItemCount + pastVisiblesItems) >= totalItemCount) {
                 if((!loadingMore) && (!noMoreStatusToLoad)) {
-                    PushStatus status = statusRecyclerAdapter.getLastItem();
+                    StatusListItem status = statusRecyclerAdapter.getLastItem();
                     if(status == null)
                         return;
-                    refreshStatuses(status.getTimeOfArrival(),-1);
+                    refreshStatuses(status);
                 }
             }
         }
@@ -318,47 +406,107 @@ public class FragmentStatusList extends Fragment implements SwipeRefreshLayout.O
     }
 
     /*
-     * Status Events
+     * Status Events, coalesced by the ChangeFeed: the list is only updated where it changed
      */
-    public void onEvent(GroupDeletedEvent event) {
-        refreshStatuses();
+    public void onEvent(DatabaseChangeSet event) {
+        final DatabaseChangeSet.TableChanges<Long> changes = event.statuses;
+        if(changes.isEmpty() || (getActivity() == null))
+            return;
+        getActivity().runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                applyStatusChanges(changes);
+            }
+        });
     }
-    public void onEvent(StatusWipedEvent event) {
-        refreshStatuses();
+    private void applyStatusChanges(DatabaseChangeSet.TableChanges<Long> changes) {
+        if(changes.reset) {
+            refreshStatuses();
+            return;
+        }
+
+        for(Long dbid : changes.deleted) {
+            int pos = statusRecyclerAdapter.deleteStatus(dbid);
+            if(pos >= 0)
+                statusRecyclerAdapter.notifyItemRemoved(pos);
+        }
+
+        List<Long> displayed = new ArrayList<Long>();
+        for(Long dbid : changes.updated) {
+            if(statusRecyclerAdapter.indexOf(dbid) >= 0)
+                displayed.add(dbid);
+        }
+        if(!displayed.isEmpty())
+            DatabaseFactory.getPushStatusDatabase(getActivity())
+                    .getStatusListItems(displayed, DatabaseExecutor.Priority.UI, new StatusesUpdatedCallback(queryGeneration));
+
+        // the search results are ranked, new statuses are not added to them
+        if(changes.inserted.isEmpty() || (search != null))
+            return;
+        StatusListItem newest = statusRecyclerAdapter.getFirstItem();
+        if((newest == null) || (changes.inserted.size() > MAX_NEWER_STATUSES)) {
+            refreshStatuses();
+            return;
+        }
+        PushStatusDatabase.StatusQueryOption options = getQueryOptions();
+        options.filterFlags |= PushStatusDatabase.StatusQueryOption.FILTER_AFTER_KEY;
+        options.after_key_toa  = newest.getTimeOfArrival();
+        options.after_key_dbid = newest.getdbId();
+        options.answerLimit = changes.inserted.size();
+        DatabaseFactory.getPushStatusDatabase(getActivity())
+                .getStatuses(options, DatabaseExecutor.Priority.UI, new NewerStatusesCallback(queryGeneration));
     }
-    public void onEvent(StatusInsertedEvent event) {
-        final PushStatus message = event.status;
-        if(message.getAuthor().isLocal()) {
+    private class NewerStatusesCallback implements DatabaseExecutor.ReadableQueryCallback {
+        private final int generation;
+        NewerStatusesCallback(int generation) {
+            this.generation = generation;
+        }
+        @Override
+        public void onReadableQueryFinished(final Object result) {
+            final ArrayList<StatusListItem> answer = (ArrayList<StatusListItem>)result;
+            if ((getActivity() == null) || (answer == null))
+                return;
             getActivity().runOnUiThread(new Runnable() {
                 @Override
                 public void run() {
-                    statusRecyclerAdapter.addStatusOnTop(message);
-                    statusRecyclerAdapter.notifyItemInserted(0);
-                    mRecyclerView.smoothScrollToPosition(0);
+                    // the list has been refreshed in the meantime
+                    if(generation != queryGeneration)
+                        return;
+                    LinearLayoutManager layoutManager = (LinearLayoutManager)mRecyclerView.getLayoutManager();
+                    boolean onTop = (layoutManager.findFirstVisibleItemPosition() == 0);
+                    int added = statusRecyclerAdapter.addStatusesOnTop(answer);
+                    if(added > 0) {
+                        statusRecyclerAdapter.notifyItemRangeInserted(0, added);
+                        if(onTop)
+                            mRecyclerView.scrollToPosition(0);
+                    }
                 }
             });
         }
     }
-    public void onEvent(StatusDeletedEvent event) {
-        final String uuid = event.uuid;
-        getActivity().runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-            int pos = statusRecyclerAdapter.deleteStatus(uuid);
-            if(pos >= 0)
-                statusRecyclerAdapter.notifyItemRemoved(pos);
-            }
-        });
-    }
-    public void onEvent(StatusUpdatedEvent event) {
-        final PushStatus message = event.status;
-        getActivity().runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                //if(statusRecyclerAdapter.updateStatus(message))
-                //    statusRecyclerAdapter.notifyDataSetChanged();
-            }
-        });
+    private class StatusesUpdatedCallback implements DatabaseExecutor.ReadableQueryCallback {
+        private final int generation;
+        StatusesUpdatedCallback(int generation) {
+            this.generation = generation;
+        }
+        @Override
+        public void onReadableQueryFinished(final Object result) {
+            final ArrayList<StatusListItem> answer = (ArrayList<StatusListItem>)result;
+            if ((getActivity() == null) || (answer == null))
+                return;
+            getActivity().runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    if(generation != queryGeneration)
+                        return;
+                    for(StatusListItem item : answer) {
+                        int pos = statusRecyclerAdapter.updateStatus(item);
+                        if(pos >= 0)
+                            statusRecyclerAdapter.notifyItemChanged(pos);
+                    }
+                }
+            });
+        }
     }
     public void onEvent(ContactTagInterestUpdatedEvent event) {
         if(event.contact.isLocal()) {
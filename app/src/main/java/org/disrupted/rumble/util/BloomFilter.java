@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ *
+ * This file is part of Rumble.
+ *
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.util;
+
+import java.nio.charset.Charset;
+
+/**
+ * A BloomFilter is a compact probabilistic set: mightContain() never returns false for an
+ * element that has been added but may return true for an element that has not
+ * (a false positive), with a probability that depends on the size of the filter.
+ *
+ * The filter is exchanged between devices so the hash functions must be stable: the
+ * k indexes of an element are derived by double hashing (h1 + i*h2) from the 64 bits
+ * FNV-1a hash of its UTF-8 representation.
+ *
+ * @author Lucien Loiseau
+ */
+public class BloomFilter {
+
+    private static final String TAG = "BloomFilter";
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME        = 0x100000001b3L;
+
+    public static final int MAX_HASHES = 16;
+
+    private byte[] bits;
+    private int    nbBits;
+    private int    nbHashes;
+
+    /*
+     * creates an empty filter sized for the expected number of elements and false positive
+     * rate, the size is capped to maxBytes (the false positive rate will then be higher).
+     */
+    public BloomFilter(int expectedElements, double falsePositiveRate, int maxBytes) {
+        if(expectedElements < 1)
+            expectedElements = 1;
+        if((falsePositiveRate <= 0) || (falsePositiveRate >= 1))
+            falsePositiveRate = 0.01;
+
+        double ln2 = Math.log(2);
+        long m = (long)Math.ceil(-expectedElements * Math.log(falsePositiveRate) / (ln2 * ln2));
+        m = Math.max(8, Math.min(m, 8L * maxBytes));
+        int k = (int)Math.round(((double)m / expectedElements) * ln2);
+
+        this.nbBits   = (int)(((m + 7) / 8) * 8);
+        this.bits     = new byte[nbBits / 8];
+        this.nbHashes = Math.max(1, Math.min(k, MAX_HASHES));
+    }
+
+    /*
+     * wraps a filter received from the network
+     */
+    public BloomFilter(int nbHashes, byte[] bits) {
+        this.bits     = bits;
+        this.nbBits   = bits.length * 8;
+        this.nbHashes = Math.max(1, Math.min(nbHashes, MAX_HASHES));
+    }
+
+    public int    getNbHashes() {   return nbHashes;   }
+    public byte[] getBits() {       return bits;       }
+
+    public void add(String element) {
+        if(nbBits == 0)
+            return;
+        long hash = hash(element);
+        int h1 = (int)hash;
+        int h2 = (int)(hash >>> 32);
+        for(int i = 0; i < nbHashes; i++) {
+            int index = index(h1 + i * h2);
+            bits[index >>> 3] |= (1 << (index & 7));
+        }
+    }
+
+    public boolean mightContain(String element) {
+        if(nbBits == 0)
+            return false;
+        long hash = hash(element);
+        int h1 = (int)hash;
+        int h2 = (int)(hash >>> 32);
+        for(int i = 0; i < nbHashes; i++) {
+            int index = index(h1 + i * h2);
+            if((bits[index >>> 3] & (1 << (index & 7))) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    private int index(int combined) {
+        return (int)((combined & 0xffffffffL) % nbBits);
+    }
+
+    private static long hash(String element) {
+        long hash = FNV_OFFSET_BASIS;
+        for(byte b : element.getBytes(Charset.forName("UTF-8"))) {
+            hash ^= (b & 0xff);
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+}
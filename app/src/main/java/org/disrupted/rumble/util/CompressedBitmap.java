@@ -0,0 +1,389 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ *
+ * This file is part of Rumble.
+ *
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.util;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * CompressedBitmap is a set of non-negative integers (typically database IDs) following the
+ * idea of Roaring bitmaps: the integers are split in chunks of 2^16 values sharing the same
+ * 16 high bits. Each chunk is stored in a container that is either
+ *
+ *   - a sorted array of the 16 low bits if the chunk holds at most 4096 values
+ *   - a plain 2^16 bits bitmap otherwise
+ *
+ * so a sparse set stays small while a dense set never takes more than 8Kb per chunk.
+ *
+ * A bitmap can be serialized with toByteArray (to be stored as a BLOB for instance): the
+ * number of containers followed, for every container, by its key, its cardinality and its
+ * content (the array or the bitmap, the kind of container is given by its cardinality).
+ *
+ * This class is not thread-safe.
+ *
+ * @author Lucien Loiseau
+ */
+public class CompressedBitmap {
+
+    private static final String TAG = "CompressedBitmap";
+
+    private static final int ARRAY_CONTAINER_MAX = 4096;
+    private static final int BITMAP_WORDS        = 1024; // 2^16 bits / 64
+
+    private char[]      keys;       // sorted 16 high bits
+    private Container[] containers;
+    private int         nbContainers;
+
+    public CompressedBitmap() {
+        keys = new char[4];
+        containers = new Container[4];
+        nbContainers = 0;
+    }
+
+    public CompressedBitmap(CompressedBitmap bitmap) {
+        keys = Arrays.copyOf(bitmap.keys, Math.max(4, bitmap.nbContainers));
+        containers = new Container[keys.length];
+        nbContainers = bitmap.nbContainers;
+        for(int i = 0; i < nbContainers; i++)
+            containers[i] = new Container(bitmap.containers[i]);
+    }
+
+    public boolean add(int value) {
+        if(value < 0)
+            return false;
+        char high = (char)(value >>> 16);
+        int i = indexOfKey(high);
+        if(i < 0) {
+            i = -i - 1;
+            insertContainer(i, high, new Container());
+        }
+        return containers[i].add((char)value);
+    }
+
+    public boolean remove(int value) {
+        if(value < 0)
+            return false;
+        int i = indexOfKey((char)(value >>> 16));
+        if(i < 0)
+            return false;
+        boolean removed = containers[i].remove((char)value);
+        if(containers[i].cardinality == 0)
+            removeContainer(i);
+        return removed;
+    }
+
+    public boolean contains(int value) {
+        if(value < 0)
+            return false;
+        int i = indexOfKey((char)(value >>> 16));
+        return (i >= 0) && containers[i].contains((char)value);
+    }
+
+    public int cardinality() {
+        int ret = 0;
+        for(int i = 0; i < nbContainers; i++)
+            ret += containers[i].cardinality;
+        return ret;
+    }
+
+    public boolean isEmpty() {
+        return (nbContainers == 0);
+    }
+
+    public void clear() {
+        Arrays.fill(containers, null);
+        nbContainers = 0;
+    }
+
+    /*
+     * in-place union
+     */
+    public void or(CompressedBitmap other) {
+        for(int j = 0; j < other.nbContainers; j++) {
+            int i = indexOfKey(other.keys[j]);
+            if(i < 0) {
+                insertContainer(-i - 1, other.keys[j], new Container(other.containers[j]));
+            } else {
+                containers[i].or(other.containers[j]);
+            }
+        }
+    }
+
+    /*
+     * in-place difference: removes every value that is also in other
+     */
+    public void andNot(CompressedBitmap other) {
+        int i = 0;
+        while(i < nbContainers) {
+            int j = other.indexOfKey(keys[i]);
+            if(j >= 0) {
+                containers[i].andNot(other.containers[j]);
+                if(containers[i].cardinality == 0) {
+                    removeContainer(i);
+                    continue;
+                }
+            }
+            i++;
+        }
+    }
+
+    /*
+     * returns the values in ascending order
+     */
+    public int[] toArray() {
+        int[] ret = new int[cardinality()];
+        int pos = 0;
+        for(int i = 0; i < nbContainers; i++) {
+            int high = ((int)keys[i]) << 16;
+            Container c = containers[i];
+            if(c.array != null) {
+                for(int k = 0; k < c.cardinality; k++)
+                    ret[pos++] = high | c.array[k];
+            } else {
+                for(int w = 0; w < BITMAP_WORDS; w++) {
+                    long word = c.bitmap[w];
+                    while(word != 0) {
+                        int bit = Long.numberOfTrailingZeros(word);
+                        ret[pos++] = high | (w << 6) | bit;
+                        word &= (word - 1);
+                    }
+                }
+            }
+        }
+        return ret;
+    }
+
+    public int serializedSize() {
+        int size = 4;
+        for(int i = 0; i < nbContainers; i++) {
+            size += 2 + 4;
+            size += (containers[i].array != null) ? 2 * containers[i].cardinality : 8 * BITMAP_WORDS;
+        }
+        return size;
+    }
+
+    public byte[] toByteArray() {
+        ByteBuffer buffer = ByteBuffer.allocate(serializedSize());
+        buffer.putInt(nbContainers);
+        for(int i = 0; i < nbContainers; i++) {
+            Container c = containers[i];
+            buffer.putChar(keys[i]);
+            buffer.putInt(c.cardinality);
+            if(c.array != null) {
+                for(int k = 0; k < c.cardinality; k++)
+                    buffer.putChar(c.array[k]);
+            } else {
+                for(int w = 0; w < BITMAP_WORDS; w++)
+                    buffer.putLong(c.bitmap[w]);
+            }
+        }
+        return buffer.array();
+    }
+
+    /*
+     * returns the bitmap serialized by toByteArray, an empty bitmap if bytes is null
+     */
+    public static CompressedBitmap fromByteArray(byte[] bytes) {
+        CompressedBitmap ret = new CompressedBitmap();
+        if(bytes == null)
+            return ret;
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int nb = buffer.getInt();
+        ret.keys = new char[Math.max(4, nb)];
+        ret.containers = new Container[ret.keys.length];
+        for(int i = 0; i < nb; i++) {
+            Container c = new Container();
+            char key = buffer.getChar();
+            c.cardinality = buffer.getInt();
+            if(c.cardinality <= ARRAY_CONTAINER_MAX) {
+                c.array = new char[Math.max(4, c.cardinality)];
+                for(int k = 0; k < c.cardinality; k++)
+                    c.array[k] = buffer.getChar();
+            } else {
+                c.array = null;
+                c.bitmap = new long[BITMAP_WORDS];
+                for(int w = 0; w < BITMAP_WORDS; w++)
+                    c.bitmap[w] = buffer.getLong();
+            }
+            ret.keys[i] = key;
+            ret.containers[i] = c;
+        }
+        ret.nbContainers = nb;
+        return ret;
+    }
+
+    private int indexOfKey(char key) {
+        return Arrays.binarySearch(keys, 0, nbContainers, key);
+    }
+
+    private void insertContainer(int i, char key, Container container) {
+        if(nbContainers == keys.length) {
+            keys = Arrays.copyOf(keys, keys.length * 2);
+            containers = Arrays.copyOf(containers, containers.length * 2);
+        }
+        System.arraycopy(keys, i, keys, i + 1, nbContainers - i);
+        System.arraycopy(containers, i, containers, i + 1, nbContainers - i);
+        keys[i] = key;
+        containers[i] = container;
+        nbContainers++;
+    }
+
+    private void removeContainer(int i) {
+        System.arraycopy(keys, i + 1, keys, i, nbContainers - i - 1);
+        System.arraycopy(containers, i + 1, containers, i, nbContainers - i - 1);
+        nbContainers--;
+        containers[nbContainers] = null;
+    }
+
+    /*
+     * A container holds the 16 low bits of the values of a chunk, either as a sorted
+     * array (array != null) or as a bitmap (bitmap != null).
+     */
+    private static class Container {
+
+        char[] array;
+        long[] bitmap;
+        int    cardinality;
+
+        Container() {
+            array = new char[4];
+            bitmap = null;
+            cardinality = 0;
+        }
+
+        Container(Container c) {
+            array  = (c.array  == null) ? null : Arrays.copyOf(c.array, Math.max(4, c.cardinality));
+            bitmap = (c.bitmap == null) ? null : Arrays.copyOf(c.bitmap, BITMAP_WORDS);
+            cardinality = c.cardinality;
+        }
+
+        boolean contains(char low) {
+            if(array != null)
+                return Arrays.binarySearch(array, 0, cardinality, low) >= 0;
+            return (bitmap[low >>> 6] & (1L << low)) != 0;
+        }
+
+        boolean add(char low) {
+            if(array != null) {
+                int i = Arrays.binarySearch(array, 0, cardinality, low);
+                if(i >= 0)
+                    return false;
+                if(cardinality == ARRAY_CONTAINER_MAX) {
+                    toBitmap();
+                    return add(low);
+                }
+                i = -i - 1;
+                if(cardinality == array.length)
+                    array = Arrays.copyOf(array, Math.min(ARRAY_CONTAINER_MAX, array.length * 2));
+                System.arraycopy(array, i, array, i + 1, cardinality - i);
+                array[i] = low;
+                cardinality++;
+                return true;
+            }
+            long mask = 1L << low;
+            if((bitmap[low >>> 6] & mask) != 0)
+                return false;
+            bitmap[low >>> 6] |= mask;
+            cardinality++;
+            return true;
+        }
+
+        boolean remove(char low) {
+            if(array != null) {
+                int i = Arrays.binarySearch(array, 0, cardinality, low);
+                if(i < 0)
+                    return false;
+                System.arraycopy(array, i + 1, array, i, cardinality - i - 1);
+                cardinality--;
+                return true;
+            }
+            long mask = 1L << low;
+            if((bitmap[low >>> 6] & mask) == 0)
+                return false;
+            bitmap[low >>> 6] &= ~mask;
+            cardinality--;
+            if(cardinality <= ARRAY_CONTAINER_MAX)
+                toArray();
+            return true;
+        }
+
+        void or(Container other) {
+            if(other.array != null) {
+                for(int k = 0; k < other.cardinality; k++)
+                    add(other.array[k]);
+                return;
+            }
+            if(array != null)
+                toBitmap();
+            cardinality = 0;
+            for(int w = 0; w < BITMAP_WORDS; w++) {
+                bitmap[w] |= other.bitmap[w];
+                cardinality += Long.bitCount(bitmap[w]);
+            }
+        }
+
+        void andNot(Container other) {
+            if(array != null) {
+                int pos = 0;
+                for(int k = 0; k < cardinality; k++) {
+                    if(!other.contains(array[k]))
+                        array[pos++] = array[k];
+                }
+                cardinality = pos;
+                return;
+            }
+            if(other.array != null) {
+                for(int k = 0; k < other.cardinality; k++) {
+                    char low = other.array[k];
+                    bitmap[low >>> 6] &= ~(1L << low);
+                }
+            } else {
+                for(int w = 0; w < BITMAP_WORDS; w++)
+                    bitmap[w] &= ~other.bitmap[w];
+            }
+            cardinality = 0;
+            for(int w = 0; w < BITMAP_WORDS; w++)
+                cardinality += Long.bitCount(bitmap[w]);
+            if(cardinality <= ARRAY_CONTAINER_MAX)
+                toArray();
+        }
+
+        private void toBitmap() {
+            bitmap = new long[BITMAP_WORDS];
+            for(int k = 0; k < cardinality; k++)
+                bitmap[array[k] >>> 6] |= (1L << array[k]);
+            array = null;
+        }
+
+        private void toArray() {
+            char[] newArray = new char[Math.max(4, cardinality)];
+            int pos = 0;
+            for(int w = 0; w < BITMAP_WORDS; w++) {
+                long word = bitmap[w];
+                while(word != 0) {
+                    newArray[pos++] = (char)((w << 6) | Long.numberOfTrailingZeros(word));
+                    word &= (word - 1);
+                }
+            }
+            array = newArray;
+            bitmap = null;
+        }
+    }
+}
@@ -103,6 +103,21 @@ public class FileUtil {
         return file;
     }
 
+    /*
+     * the number of bytes used by the files of a directory (not recursive)
+     */
+    public static long getDirectorySize(File dir) {
+        File[] files = dir.listFiles();
+        if(files == null)
+            return 0;
+        long size = 0;
+        for(File file : files) {
+            if(file.isFile())
+                size += file.length();
+        }
+        return size;
+    }
+
     @SuppressLint("NewApi")
     private static String getRealPathFromURI_API19(Context context, Uri uri){
         String filePath = "";
@@ -25,6 +25,10 @@ import org.disrupted.rumble.database.objects.Contact;
 import org.disrupted.rumble.database.objects.Group;
 import org.disrupted.rumble.database.objects.PushStatus;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -103,6 +107,38 @@ public class HashUtil {
         }
     }
 
+    /*
+     * SHA-256 of the content of a file, in hexadecimal
+     */
+    public static final String computeFileSha256(File file) throws IOException {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            InputStream in = new FileInputStream(file);
+            try {
+                byte[] buffer = new byte[8192];
+                int count;
+                while ((count = in.read(buffer)) > 0)
+                    md.update(buffer, 0, count);
+            } finally {
+                in.close();
+            }
+            return toHex(md.digest());
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 is not available");
+        }
+    }
+
+    public static final String toHex(byte[] bytes) {
+        char[] digits = "0123456789abcdef".toCharArray();
+        char[] ret = new char[bytes.length * 2];
+        for(int i = 0; i < bytes.length; i++) {
+            ret[2*i]   = digits[(bytes[i] >> 4) & 0x0f];
+            ret[2*i+1] = digits[bytes[i] & 0x0f];
+        }
+        return new String(ret);
+    }
+
     public static boolean isBase64Encoded(String str)
     {
         try
@@ -17,6 +17,8 @@
 
 package org.disrupted.rumble.util;
 
+import android.content.Context;
+
 import org.disrupted.rumble.app.RumbleApplication;
 
 /**
@@ -24,23 +26,31 @@ import org.disrupted.rumble.app.RumbleApplication;
  */
 public class Log {
 
+    /*
+     * there is no application context outside of the app (e.g. in the JVM unit tests)
+     */
+    private static boolean enabled() {
+        Context context = RumbleApplication.getContext();
+        return (context != null) && RumblePreferences.isLogcatDebugEnabled(context);
+    }
+
     public static void d(String tag, String message) {
-        if(RumblePreferences.isLogcatDebugEnabled(RumbleApplication.getContext()))
+        if(enabled())
             android.util.Log.d(tag,message);
     }
 
     public static void d(String tag, String message, Throwable t) {
-        if(RumblePreferences.isLogcatDebugEnabled(RumbleApplication.getContext()))
+        if(enabled())
             android.util.Log.d(tag,message,t);
     }
 
     public static void e(String tag, String message) {
-        if(RumblePreferences.isLogcatDebugEnabled(RumbleApplication.getContext()))
+        if(enabled())
             android.util.Log.e(tag,message);
     }
 
     public static void e(String tag, String message, Throwable t) {
-        if(RumblePreferences.isLogcatDebugEnabled(RumbleApplication.getContext()))
+        if(enabled())
             android.util.Log.e(tag,message,t);
     }
 }
@@ -35,6 +35,14 @@ public class RumblePreferences {
     public static final String PREF_LOGCAT_DEBUG   = "logcat_debug";
     public static final String USER_ANONYMOUS_ID = "anonymous_id";
     public static final String LAST_SYNC = "last_sync";
+    public static final String PREF_PUSH_WINDOW = "push_window";
+    private static final int   DEFAULT_PUSH_WINDOW = 4;
+    public static final String PREF_SUMMARY_FALSE_POSITIVE = "summary_false_positive_permille";
+    private static final int   DEFAULT_SUMMARY_FALSE_POSITIVE = 10;
+    public static final String PREF_STORAGE_MAX_STATUSES = "storage_max_statuses";
+    private static final int   DEFAULT_STORAGE_MAX_STATUSES = 10000;
+    public static final String PREF_STORAGE_MAX_MEGABYTES = "storage_max_megabytes";
+    private static final int   DEFAULT_STORAGE_MAX_MEGABYTES = 256;
     private static final int   SYNC_EVERY = 3600*24*1000;
 
     public static String getAnonymousID(Context context) {
@@ -78,6 +86,41 @@ public class RumblePreferences {
         setLongPreference(context, LAST_SYNC, System.currentTimeMillis());
     }
 
+    public static int getPushWindow(Context context) {
+        return Math.max(1, getIntegerPreference(context, PREF_PUSH_WINDOW, DEFAULT_PUSH_WINDOW));
+    }
+    public static void setPushWindow(Context context, int window) {
+        setIntegerPrefrence(context, PREF_PUSH_WINDOW, window);
+    }
+
+    /*
+     * false positive rate of the status summary sent to a neighbour, stored in per mille
+     */
+    public static double getSummaryFalsePositiveRate(Context context) {
+        int permille = getIntegerPreference(context, PREF_SUMMARY_FALSE_POSITIVE, DEFAULT_SUMMARY_FALSE_POSITIVE);
+        return Math.max(1, Math.min(permille, 999)) / 1000.0;
+    }
+    public static void setSummaryFalsePositiveRate(Context context, double rate) {
+        setIntegerPrefrence(context, PREF_SUMMARY_FALSE_POSITIVE, (int)Math.round(rate*1000));
+    }
+
+    /*
+     * storage budget of the statuses, enforced by the StorageQuotaEvictor. The bytes count
+     * both the database and the attached files in the album
+     */
+    public static int getStorageMaxStatuses(Context context) {
+        return Math.max(1, getIntegerPreference(context, PREF_STORAGE_MAX_STATUSES, DEFAULT_STORAGE_MAX_STATUSES));
+    }
+    public static void setStorageMaxStatuses(Context context, int max) {
+        setIntegerPrefrence(context, PREF_STORAGE_MAX_STATUSES, max);
+    }
+    public static long getStorageMaxBytes(Context context) {
+        return Math.max(1, getIntegerPreference(context, PREF_STORAGE_MAX_MEGABYTES, DEFAULT_STORAGE_MAX_MEGABYTES))*1024L*1024L;
+    }
+    public static void setStorageMaxMegabytes(Context context, int megabytes) {
+        setIntegerPrefrence(context, PREF_STORAGE_MAX_MEGABYTES, megabytes);
+    }
+
     /**
      *  Shared Preferences Setter and Getter
      */
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ *
+ * This file is part of Rumble.
+ *
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.util;
+
+import java.util.Arrays;
+
+/**
+ * TimingWheel is a hierarchical timing wheel (Varghese & Lauck) that keeps a large number of
+ * timers (identified by a long) with O(1) insertion and O(1) amortized expiry.
+ *
+ * The time is divided in ticks. The wheel of level i has WHEEL_SIZE slots of WHEEL_SIZE^i
+ * ticks each, a timer is stored in the lowest level that covers its expiration. Whenever the
+ * wheel of level i completes a turn, the current slot of level i+1 is cascaded into the
+ * lower levels, so every timer is moved at most LEVELS times before it fires.
+ *
+ * A timer fires during the first advance() that reaches the end of its tick, that is at
+ * most one tick late. Timers cannot be cancelled, the caller is expected to check
+ * whether the timer is still relevant when it fires.
+ *
+ * This class is not thread-safe.
+ *
+ * @author Lucien Loiseau
+ */
+public class TimingWheel {
+
+    private static final String TAG = "TimingWheel";
+
+    private static final int WHEEL_BITS = 8;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int LEVELS     = 4;
+
+    public interface ExpiryListener {
+        public void onExpired(long id);
+    }
+
+    private final long tickDuration;
+    private long       currentTick;
+    private int        size;
+    private Slot[][]   wheels;
+
+    public TimingWheel(long tickDuration, long now) {
+        this.tickDuration = Math.max(1, tickDuration);
+        this.currentTick = now / this.tickDuration;
+        this.size = 0;
+        this.wheels = new Slot[LEVELS][WHEEL_SIZE];
+        for(int level = 0; level < LEVELS; level++) {
+            for(int i = 0; i < WHEEL_SIZE; i++)
+                wheels[level][i] = new Slot();
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /*
+     * schedule a timer, returns false if it is already expired (it is not added)
+     */
+    public boolean add(long id, long expiration) {
+        long tick = (expiration + tickDuration - 1) / tickDuration;
+        if(tick <= currentTick)
+            return false;
+        insert(id, tick);
+        size++;
+        return true;
+    }
+
+    /*
+     * move the time forward to now and notify every timer that expired
+     */
+    public void advance(long now, ExpiryListener listener) {
+        long target = now / tickDuration;
+        while(currentTick < target) {
+            currentTick++;
+
+            // cascade the upper levels whenever a wheel completes a turn
+            long tick = currentTick;
+            for(int level = 1; level < LEVELS; level++) {
+                if((tick & WHEEL_MASK) != 0)
+                    break;
+                tick >>>= WHEEL_BITS;
+                Slot slot = wheels[level][(int)(tick & WHEEL_MASK)];
+                int count = slot.count;
+                long[] ids = slot.ids;
+                long[] ticks = slot.ticks;
+                slot.reset();
+                for(int i = 0; i < count; i++)
+                    insert(ids[i], ticks[i]);
+            }
+
+            Slot slot = wheels[0][(int)(currentTick & WHEEL_MASK)];
+            int count = slot.count;
+            long[] ids = slot.ids;
+            slot.reset();
+            size -= count;
+            for(int i = 0; i < count; i++)
+                listener.onExpired(ids[i]);
+        }
+    }
+
+    public void clear() {
+        for(int level = 0; level < LEVELS; level++) {
+            for(int i = 0; i < WHEEL_SIZE; i++)
+                wheels[level][i].reset();
+        }
+        size = 0;
+    }
+
+    private void insert(long id, long tick) {
+        long delta = tick - currentTick;
+        if(delta <= 0) {
+            // may only happen when cascading, it fires in the current tick
+            wheels[0][(int)(currentTick & WHEEL_MASK)].add(id, tick);
+            return;
+        }
+        int level = 0;
+        long bucket = tick;
+        while((level < LEVELS - 1) && (delta >= WHEEL_SIZE)) {
+            delta >>>= WHEEL_BITS;
+            bucket >>>= WHEEL_BITS;
+            level++;
+        }
+        wheels[level][(int)(bucket & WHEEL_MASK)].add(id, tick);
+    }
+
+    private static class Slot {
+        private static final long[] EMPTY = new long[0];
+
+        long[] ids   = EMPTY;
+        long[] ticks = EMPTY;
+        int    count = 0;
+
+        void add(long id, long tick) {
+            if(count == ids.length) {
+                int capacity = Math.max(4, ids.length * 2);
+                ids = Arrays.copyOf(ids, capacity);
+                ticks = Arrays.copyOf(ticks, capacity);
+            }
+            ids[count] = id;
+            ticks[count] = tick;
+            count++;
+        }
+
+        void reset() {
+            ids = EMPTY;
+            ticks = EMPTY;
+            count = 0;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ *
+ * This file is part of Rumble.
+ *
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.database;
+
+import org.disrupted.rumble.util.HashUtil;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the content addressing of the attached files (HashUtil.computeFileSha256 and
+ * AttachmentStore.moveToAlbum).
+ *
+ * @author Lucien Loiseau
+ */
+public class AttachmentStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File write(byte[] content) throws IOException {
+        File file = folder.newFile();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    @Test
+    public void sha256() throws IOException {
+        assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad",
+                HashUtil.computeFileSha256(write("abc".getBytes("US-ASCII"))));
+        assertEquals("e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855",
+                HashUtil.computeFileSha256(write(new byte[0])));
+        // larger than the buffer
+        byte[] content = new byte[100000];
+        new Random(1).nextBytes(content);
+        String hash = HashUtil.computeFileSha256(write(content));
+        assertEquals(hash, HashUtil.computeFileSha256(write(content.clone())));
+        content[99999]++;
+        assertFalse(hash.equals(HashUtil.computeFileSha256(write(content))));
+
+        assertEquals("00017f80ff", HashUtil.toHex(new byte[]{0, 1, 127, (byte)128, (byte)255}));
+        assertEquals("SHA256_" + hash + ".jpg", AttachmentStore.getFileName(hash));
+    }
+
+    @Test
+    public void sameContentIsStoredOnce() throws IOException {
+        File album = folder.newFolder("album");
+        byte[] content = "a picture".getBytes("US-ASCII");
+        File first = write(content);
+        File second = write(content);
+        String name = AttachmentStore.getFileName(HashUtil.computeFileSha256(first));
+        assertEquals(name, AttachmentStore.getFileName(HashUtil.computeFileSha256(second)));
+
+        assertTrue(AttachmentStore.moveToAlbum(first, album, name));
+        assertFalse(first.exists());
+        assertFalse(AttachmentStore.moveToAlbum(second, album, name));
+        assertFalse(second.exists());
+        assertEquals(1, album.listFiles().length);
+        assertArrayEquals(new String[]{name}, album.list());
+        assertEquals(content.length, new File(album, name).length());
+    }
+}
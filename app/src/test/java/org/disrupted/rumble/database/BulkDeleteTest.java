@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ *
+ * This file is part of Rumble.
+ *
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.database;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs the set-based statements of PushStatusDatabase.deleteStatusesWhere (a group purge and
+ * a wipe) on 50k statuses in a desktop SQLite file and checks what is left.
+ *
+ * The statuscontact bitmaps are left out, they are updated by StatusContactDatabase.
+ *
+ * @author Lucien Loiseau
+ */
+public class BulkDeleteTest {
+
+    static final int NB_STATUSES = 50000;
+    private static final int NB_GROUPS   = 5;
+    private static final int NB_HASHTAGS = 2000;
+    private static final int NB_FOLLOWED = 10;   // hashtags a contact is interested in
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    Connection connection;
+    private Set<String> albumFiles;   // the files of our album attached to a status
+
+    @Before
+    public void setUp() throws Exception {
+        connection = TestDatabase.open(folder.newFile("rumble.db"));
+        Statement statement = connection.createStatement();
+        statement.execute("PRAGMA synchronous = OFF");
+        statement.close();
+        connection.setAutoCommit(false);
+
+        Random random = new Random(42);
+        statement = connection.createStatement();
+        for(int g = 1; g <= NB_GROUPS; g++)
+            statement.execute("INSERT INTO " + GroupDatabase.TABLE_NAME + " (" + GroupDatabase.ID + ", "
+                    + GroupDatabase.GID + ") VALUES (" + g + ", 'gid" + g + "')");
+        for(int h = 1; h <= NB_HASHTAGS; h++)
+            statement.execute("INSERT INTO " + HashtagDatabase.TABLE_NAME + " VALUES (" + h + ", '#tag" + h + "')");
+        statement.execute("INSERT INTO " + ContactDatabase.TABLE_NAME + " (" + ContactDatabase.ID + ", "
+                + ContactDatabase.UID + ") VALUES (1, 'uid')");
+        for(int h = 1; h <= NB_FOLLOWED; h++)
+            statement.execute("INSERT INTO " + ContactHashTagInterestDatabase.TABLE_NAME + " VALUES (1, " + h + ", 100)");
+        statement.close();
+
+        albumFiles = new HashSet<String>();
+        PreparedStatement insert = connection.prepareStatement("INSERT INTO " + PushStatusDatabase.TABLE_NAME
+                + " (" + PushStatusDatabase.ID + ", " + PushStatusDatabase.UUID + ", " + PushStatusDatabase.GROUP_DBID
+                + ", " + PushStatusDatabase.FILE_NAME + ", " + PushStatusDatabase.POST + ") VALUES (?, ?, ?, ?, ?)");
+        PreparedStatement tag = connection.prepareStatement("INSERT OR IGNORE INTO " + StatusTagDatabase.TABLE_NAME
+                + " VALUES (?, ?)");
+        for(int s = 1; s <= NB_STATUSES; s++) {
+            String file = "";
+            int kind = random.nextInt(100);
+            if(kind < 30) {
+                file = "SHA256_" + random.nextInt(NB_STATUSES / 4) + ".jpg";
+                albumFiles.add(file);
+            } else if(kind < 35) {
+                file = "/sdcard/DCIM/picture" + s + ".jpg";
+            }
+            insert.setInt(1, s);
+            insert.setString(2, "status-" + s);
+            insert.setInt(3, 1 + s % NB_GROUPS);
+            insert.setString(4, file);
+            insert.setString(5, "post number " + s);
+            insert.addBatch();
+            for(int t = random.nextInt(4); t > 0; t--) {
+                tag.setInt(1, 1 + random.nextInt(NB_HASHTAGS));
+                tag.setInt(2, s);
+                tag.addBatch();
+            }
+        }
+        insert.executeBatch();
+        tag.executeBatch();
+        insert.close();
+        tag.close();
+        connection.commit();
+        connection.setAutoCommit(true);
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        connection.close();
+    }
+
+    long count(String sql) throws SQLException {
+        Statement statement = connection.createStatement();
+        try {
+            ResultSet result = statement.executeQuery(sql);
+            result.next();
+            return result.getLong(1);
+        } finally {
+            statement.close();
+        }
+    }
+
+    static String countOf(String table) {
+        return "SELECT count(*) FROM " + table;
+    }
+
+    private static void bind(PreparedStatement statement, String[] args) throws SQLException {
+        for(int i = 0; i < args.length; i++)
+            statement.setString(i + 1, args[i]);
+    }
+
+    private void execute(String sql, String[] args) throws SQLException {
+        PreparedStatement statement = connection.prepareStatement(sql);
+        try {
+            bind(statement, args);
+            statement.executeUpdate();
+        } finally {
+            statement.close();
+        }
+    }
+
+    /*
+     * the statements of deleteStatusesWhere, in a single transaction
+     */
+    void deleteWhere(String selection, String[] args) throws SQLException {
+        String where = (selection == null) ? "" : " WHERE " + selection;
+        connection.setAutoCommit(false);
+        try {
+            execute(DeletedFileDatabase.queueFilesStatement("SELECT " + PushStatusDatabase.FILE_NAME + " AS f FROM "
+                    + PushStatusDatabase.TABLE_NAME + where), args);
+            if(selection == null) {
+                execute("DELETE FROM " + StatusTagDatabase.TABLE_NAME, args);
+            } else {
+                execute("DELETE FROM " + StatusTagDatabase.TABLE_NAME + " WHERE " + StatusTagDatabase.SDBID
+                        + " IN (SELECT " + PushStatusDatabase.ID + " FROM " + PushStatusDatabase.TABLE_NAME + where + ")", args);
+            }
+            execute("DELETE FROM " + PushStatusDatabase.TABLE_NAME + where, args);
+            execute("DELETE FROM " + HashtagDatabase.TABLE_NAME + " WHERE " + HashtagDatabase.UNUSED_WHERE, new String[0]);
+            connection.commit();
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    @Test
+    public void groupPurge() throws SQLException {
+        String group = PushStatusDatabase.TABLE_NAME + " WHERE " + PushStatusDatabase.GROUP_DBID + " = 2";
+        long statuses = count("SELECT count(*) FROM " + group);
+        long files = count("SELECT count(*) FROM " + group + " AND " + PushStatusDatabase.FILE_NAME + " LIKE 'SHA256_%'");
+        long otherTags = count(countOf(StatusTagDatabase.TABLE_NAME) + " WHERE " + StatusTagDatabase.SDBID
+                + " NOT IN (SELECT " + PushStatusDatabase.ID + " FROM " + group + ")");
+
+        deleteWhere(PushStatusDatabase.GROUP_DBID + " = ?", new String[]{"2"});
+
+        assertEquals(0, count("SELECT count(*) FROM " + group));
+        assertEquals(NB_STATUSES - statuses, count(countOf(PushStatusDatabase.TABLE_NAME)));
+        assertEquals(NB_STATUSES - statuses, count(countOf(PushStatusDatabase.FTS_TABLE_NAME)));
+        assertEquals(otherTags, count(countOf(StatusTagDatabase.TABLE_NAME)));
+        // only the files of our album are queued, the shared ones are checked by the collector
+        assertEquals(files, count(countOf(DeletedFileDatabase.TABLE_NAME)));
+        // the hashtags left are the ones still used or followed
+        assertEquals(0, count(countOf(HashtagDatabase.TABLE_NAME) + " WHERE " + HashtagDatabase.UNUSED_WHERE));
+        assertEquals(NB_FOLLOWED, count(countOf(HashtagDatabase.TABLE_NAME) + " WHERE "
+                + HashtagDatabase.ID + " <= " + NB_FOLLOWED));
+    }
+
+    @Test
+    public void wipe() throws SQLException {
+        long files = count(countOf(PushStatusDatabase.TABLE_NAME) + " WHERE "
+                + PushStatusDatabase.FILE_NAME + " LIKE 'SHA256_%'");
+        deleteWhere(null, new String[0]);
+
+        assertEquals(0, count(countOf(PushStatusDatabase.TABLE_NAME)));
+        assertEquals(0, count(countOf(PushStatusDatabase.FTS_TABLE_NAME)));
+        assertEquals(0, count(countOf(StatusTagDatabase.TABLE_NAME)));
+        assertEquals(files, count(countOf(DeletedFileDatabase.TABLE_NAME)));
+        assertEquals(albumFiles.size(), count("SELECT count(DISTINCT " + DeletedFileDatabase.FILE_NAME + ") FROM "
+                + DeletedFileDatabase.TABLE_NAME));
+        assertEquals(NB_FOLLOWED, count(countOf(HashtagDatabase.TABLE_NAME)));
+    }
+}
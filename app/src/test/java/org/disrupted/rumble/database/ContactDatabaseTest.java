@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ *
+ * This file is part of Rumble.
+ *
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.database;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the diff of ContactDatabase that decides which rows of a contact are written when
+ * its ContactInformation is received: nothing for an unchanged contact, only the entries
+ * that changed otherwise.
+ *
+ * @author Lucien Loiseau
+ */
+public class ContactDatabaseTest {
+
+    private static Set<String> set(String... keys) {
+        return new HashSet<String>(Arrays.asList(keys));
+    }
+
+    private static Map<String, Integer> interests(Object... keysAndValues) {
+        Map<String, Integer> ret = new HashMap<String, Integer>();
+        for(int i = 0; i < keysAndValues.length; i += 2)
+            ret.put((String)keysAndValues[i], (Integer)keysAndValues[i + 1]);
+        return ret;
+    }
+
+    @Test
+    public void unchangedGroupsWriteNothing() {
+        ContactDatabase.Diff<String> diff = ContactDatabase.Diff.of(set("a", "b", "c"), set("c", "b", "a"));
+        assertTrue(diff.isEmpty());
+        assertEquals(3, diff.kept);
+
+        diff = ContactDatabase.Diff.of(set(), set());
+        assertTrue(diff.isEmpty());
+        assertEquals(0, diff.kept);
+    }
+
+    @Test
+    public void unchangedInterestsWriteNothing() {
+        ContactDatabase.Diff<String> diff = ContactDatabase.Diff.of(
+                interests("#rumble", 100, "#android", 50), interests("#android", 50, "#rumble", 100));
+        assertTrue(diff.isEmpty());
+        assertEquals(2, diff.kept);
+    }
+
+    @Test
+    public void unchangedRowWritesNothing() {
+        Map<String, String> stored = new HashMap<String, String>();
+        stored.put(ContactDatabase.NAME, "bob");
+        stored.put(ContactDatabase.LOCALUSER, "0");
+        stored.put(ContactDatabase.AVATAR, null);
+        assertTrue(ContactDatabase.Diff.of(stored, new HashMap<String, String>(stored)).isEmpty());
+
+        Map<String, String> received = new HashMap<String, String>(stored);
+        received.put(ContactDatabase.AVATAR, "avatar.jpg");
+        assertEquals(Arrays.asList(ContactDatabase.AVATAR), ContactDatabase.Diff.of(stored, received).written);
+        // a column that is not stored is not the same as a null one
+        stored.remove(ContactDatabase.AVATAR);
+        received.put(ContactDatabase.AVATAR, null);
+        assertFalse(ContactDatabase.Diff.of(stored, received).isEmpty());
+    }
+
+    @Test
+    public void onlyTheChangesAreWritten() {
+        ContactDatabase.Diff<String> diff = ContactDatabase.Diff.of(set("a", "b", "c"), set("b", "c", "d"));
+        assertEquals(Arrays.asList("a"), diff.deleted);
+        assertEquals(Arrays.asList("d"), diff.written);
+        assertEquals(2, diff.kept);
+
+        // a new level of interest is written again, a hashtag no longer followed is deleted
+        diff = ContactDatabase.Diff.of(interests("#rumble", 100, "#android", 50, "#old", 10),
+                interests("#rumble", 100, "#android", 80, "#new", 10));
+        assertEquals(Arrays.asList("#old"), diff.deleted);
+        assertEquals(new HashSet<String>(Arrays.asList("#android", "#new")), new HashSet<String>(diff.written));
+        assertEquals(1, diff.kept);
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ *
+ * This file is part of Rumble.
+ *
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.database;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the order in which DatabaseExecutor serves its queries, the cancellation of the
+ * queued ones and the queue and execution time it accounts. A lane is held busy by a query
+ * that waits on a latch while the others are queued.
+ *
+ * @author Lucien Loiseau
+ */
+public class DatabaseExecutorTest {
+
+    private DatabaseExecutor executor;
+    private List<String> served;
+
+    @Before
+    public void setUp() {
+        executor = new DatabaseExecutor(1);
+        served = Collections.synchronizedList(new ArrayList<String>());
+    }
+
+    @After
+    public void tearDown() {
+        executor.stopExecutor();
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /*
+     * a query that holds its lane until release is counted down
+     */
+    private static class Blocker implements DatabaseExecutor.ReadableQuery, DatabaseExecutor.WritableQuery {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public Object read() {
+            started.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException ignore) {
+                // the executor has been stopped
+            }
+            return null;
+        }
+
+        @Override
+        public boolean write() {
+            read();
+            return true;
+        }
+    }
+
+    private DatabaseExecutor.ReadableQuery read(final String name) {
+        return new DatabaseExecutor.ReadableQuery() {
+            @Override
+            public Object read() {
+                served.add(name);
+                return name;
+            }
+        };
+    }
+
+    private DatabaseExecutor.WritableQuery write(final String name) {
+        return new DatabaseExecutor.WritableQuery() {
+            @Override
+            public boolean write() {
+                served.add(name);
+                return true;
+            }
+        };
+    }
+
+    private static DatabaseExecutor.ReadableQueryCallback countDown(final CountDownLatch latch) {
+        return new DatabaseExecutor.ReadableQueryCallback() {
+            @Override
+            public void onReadableQueryFinished(Object object) {
+                latch.countDown();
+            }
+        };
+    }
+
+    private static DatabaseExecutor.WritableQueryCallback countDownWrite(final CountDownLatch latch) {
+        return new DatabaseExecutor.WritableQueryCallback() {
+            @Override
+            public void onWritableQueryFinished(boolean success) {
+                latch.countDown();
+            }
+        };
+    }
+
+    @Test
+    public void theReadsAreServedByPriorityThenInOrder() {
+        Blocker blocker = new Blocker();
+        executor.addQuery((DatabaseExecutor.ReadableQuery)blocker, null, DatabaseExecutor.Priority.BACKGROUND);
+        await(blocker.started);
+
+        CountDownLatch done = new CountDownLatch(5);
+        executor.addQuery(read("background"), countDown(done), DatabaseExecutor.Priority.BACKGROUND);
+        executor.addQuery(read("network1"), countDown(done), DatabaseExecutor.Priority.NETWORK);
+        executor.addQuery(read("ui1"), countDown(done), DatabaseExecutor.Priority.UI);
+        executor.addQuery(read("network2"), countDown(done), DatabaseExecutor.Priority.NETWORK);
+        executor.addQuery(read("ui2"), countDown(done), DatabaseExecutor.Priority.UI);
+        blocker.release.countDown();
+        await(done);
+        assertEquals("[ui1, ui2, network1, network2, background]", served.toString());
+    }
+
+    @Test
+    public void theWritesAreServedByPriorityThenInOrder() {
+        Blocker blocker = new Blocker();
+        executor.addQuery((DatabaseExecutor.WritableQuery)blocker, null, DatabaseExecutor.Priority.BACKGROUND);
+        await(blocker.started);
+
+        CountDownLatch done = new CountDownLatch(4);
+        executor.addQuery(write("background1"), countDownWrite(done), DatabaseExecutor.Priority.BACKGROUND);
+        executor.addQuery(write("network"), countDownWrite(done), DatabaseExecutor.Priority.NETWORK);
+        executor.addQuery(write("background2"), countDownWrite(done), DatabaseExecutor.Priority.BACKGROUND);
+        executor.addQuery(write("ui"), countDownWrite(done), DatabaseExecutor.Priority.UI);
+        blocker.release.countDown();
+        await(done);
+        assertEquals("[ui, network, background1, background2]", served.toString());
+    }
+
+    /*
+     * the lanes are not ordered with each other: a read queued after a write that is held
+     * back runs before it
+     */
+    @Test
+    public void aReadMayOvertakeAQueuedWrite() {
+        Blocker blocker = new Blocker();
+        executor.addQuery((DatabaseExecutor.WritableQuery)blocker, null, DatabaseExecutor.Priority.UI);
+        await(blocker.started);
+
+        CountDownLatch written = new CountDownLatch(1);
+        CountDownLatch read = new CountDownLatch(1);
+        executor.addQuery(write("write"), countDownWrite(written), DatabaseExecutor.Priority.UI);
+        executor.addQuery(read("read"), countDown(read), DatabaseExecutor.Priority.BACKGROUND);
+        await(read);
+        assertEquals("[read]", served.toString());
+
+        blocker.release.countDown();
+        await(written);
+        assertEquals("[read, write]", served.toString());
+    }
+
+    @Test
+    public void aCancelledQueryNeverRuns() {
+        Blocker blocker = new Blocker();
+        DatabaseExecutor.QueryHandle running = executor.addQuery((DatabaseExecutor.ReadableQuery)blocker, null, DatabaseExecutor.Priority.UI);
+        await(blocker.started);
+
+        final List<Object> callbacks = Collections.synchronizedList(new ArrayList<Object>());
+        DatabaseExecutor.QueryHandle cancelled = executor.addQuery(read("cancelled"),
+                new DatabaseExecutor.ReadableQueryCallback() {
+                    @Override
+                    public void onReadableQueryFinished(Object object) {
+                        callbacks.add(object);
+                    }
+                }, DatabaseExecutor.Priority.UI);
+        CountDownLatch done = new CountDownLatch(1);
+        DatabaseExecutor.QueryHandle next = executor.addQuery(read("next"), countDown(done), DatabaseExecutor.Priority.BACKGROUND);
+
+        assertFalse(running.cancel());   // it has started
+        assertTrue(cancelled.cancel());
+        assertTrue(cancelled.isCancelled());
+        assertFalse(cancelled.cancel());  // only once
+
+        blocker.release.countDown();
+        await(done);
+        assertEquals("[next]", served.toString());
+        assertTrue(callbacks.isEmpty());
+        assertTrue(next.isDone());
+        assertFalse(next.cancel());       // it is done
+        assertFalse(cancelled.isDone());
+        assertEquals(-1, cancelled.getExecutionTime());
+    }
+
+    @Test
+    public void theQueueAndExecutionTimesAreAccounted() throws InterruptedException {
+        Blocker blocker = new Blocker();
+        executor.addQuery((DatabaseExecutor.ReadableQuery)blocker, null, DatabaseExecutor.Priority.UI);
+        await(blocker.started);
+
+        CountDownLatch done = new CountDownLatch(1);
+        DatabaseExecutor.QueryHandle handle = executor.addQuery(new DatabaseExecutor.ReadableQuery() {
+            @Override
+            public Object read() {
+                try {
+                    Thread.sleep(30);
+                } catch (InterruptedException ignore) {
+                }
+                return null;
+            }
+        }, countDown(done), DatabaseExecutor.Priority.NETWORK);
+        Thread.sleep(50);
+        assertTrue(handle.getQueueTime() >= 50);  // so far
+        assertEquals(-1, handle.getExecutionTime());
+
+        blocker.release.countDown();
+        await(done);
+        while(!handle.isDone())
+            Thread.sleep(1);
+        long queueTime = handle.getQueueTime();
+        assertTrue(queueTime >= 50);
+        assertTrue(handle.getExecutionTime() >= 30);
+        Thread.sleep(20);
+        assertEquals(queueTime, handle.getQueueTime());  // it does not grow once started
+
+        // the statistics are added once the query is done
+        DatabaseExecutor.QueryStatistics statistics = executor.getStatistics(DatabaseExecutor.Priority.NETWORK);
+        long deadline = System.currentTimeMillis() + 5000;
+        while((statistics.getCount() == 0) && (System.currentTimeMillis() < deadline))
+            Thread.sleep(1);
+        assertEquals(1, statistics.getCount());
+        assertEquals(queueTime, statistics.getMaxQueueTime());
+        assertEquals(queueTime, statistics.getAverageQueueTime());
+        assertTrue(statistics.getAverageExecutionTime() >= 30);
+        assertEquals(0, executor.getStatistics(DatabaseExecutor.Priority.BACKGROUND).getCount());
+    }
+
+    @Test
+    public void stoppingCancelsTheQueuedQueries() {
+        Blocker blocker = new Blocker();
+        executor.addQuery((DatabaseExecutor.ReadableQuery)blocker, null, DatabaseExecutor.Priority.UI);
+        await(blocker.started);
+
+        DatabaseExecutor.QueryHandle queued = executor.addQuery(read("queued"), null, DatabaseExecutor.Priority.UI);
+        assertNotNull(queued);
+        executor.stopExecutor();
+        assertTrue(queued.isCancelled());
+        assertNull(executor.addQuery(read("late"), null, DatabaseExecutor.Priority.UI));
+        assertFalse(executor.addQuery(write("late"), null));
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ *
+ * This file is part of Rumble.
+ *
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.database;
+
+import org.disrupted.rumble.util.CompressedBitmap;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the migrations of DatabaseFactory on a desktop SQLite.
+ *
+ * @author Lucien Loiseau
+ */
+public class DatabaseMigrationTest {
+
+    private static class Recorder extends DatabaseMigration {
+        final List<Integer> ran;
+
+        Recorder(int version, List<Integer> ran) {
+            super(version);
+            this.ran = ran;
+        }
+
+        @Override
+        protected void migrate(Connection db) {
+            ran.add(getVersion());
+        }
+    }
+
+    @Test
+    public void onlyTheStepsInTheRangeAreRun() {
+        List<Integer> ran = new ArrayList<Integer>();
+        DatabaseMigration[] migrations = {
+                new Recorder(2, ran), new Recorder(3, ran), new Recorder(4, ran)
+        };
+        DatabaseMigration.upgrade(null, migrations, 1, 4);
+        assertEquals("[2, 3, 4]", ran.toString());
+        ran.clear();
+        DatabaseMigration.upgrade(null, migrations, 2, 3);
+        assertEquals("[3]", ran.toString());
+        ran.clear();
+        DatabaseMigration.upgrade(null, migrations, 4, 4);
+        assertTrue(ran.isEmpty());
+    }
+
+    @Test
+    public void theMigrationsAreOrdered() {
+        int version = 1;
+        for(DatabaseMigration migration : DatabaseFactory.MIGRATIONS)
+            assertEquals(++version, migration.getVersion());
+        assertEquals(DatabaseFactory.DATABASE_VERSION, version);
+    }
+
+    /*
+     * a database of the first release is upgraded to the current version with its rows,
+     * and ends up with the very same schema as a fresh one
+     */
+    @Test
+    public void upgradeFromVersion1() throws SQLException {
+        Connection connection = TestDatabase.openVersion1();
+        Statement statement = connection.createStatement();
+        for(int i = 1; i <= 100; i++)
+            statement.execute("INSERT INTO " + PushStatusDatabase.TABLE_NAME + " ("
+                    + PushStatusDatabase.ID + ", " + PushStatusDatabase.UUID + ", "
+                    + PushStatusDatabase.GROUP_DBID + ", " + PushStatusDatabase.TIME_OF_ARRIVAL
+                    + ") VALUES (" + i + ", 'uuid" + i + "', " + (i % 3) + ", " + (1000 + i) + ")");
+
+        DatabaseMigration.upgrade(TestDatabase.wrap(connection), DatabaseFactory.MIGRATIONS,
+                1, DatabaseFactory.DATABASE_VERSION);
+
+        ResultSet rows = statement.executeQuery("SELECT COUNT(*) FROM " + PushStatusDatabase.TABLE_NAME);
+        assertEquals(100, rows.getInt(1));
+        rows.close();
+        statement.close();
+        assertEquals(schema(TestDatabase.open()), schema(connection));
+        connection.close();
+    }
+
+    /*
+     * the rows of the version 1 statuscontact table become one bitmap per contact
+     */
+    @Test
+    public void statusContactRowsBecomeBitmaps() throws SQLException {
+        Connection connection = TestDatabase.openVersion1();
+        DatabaseMigration.upgrade(TestDatabase.wrap(connection), DatabaseFactory.MIGRATIONS, 1, 5);
+
+        Random random = new Random(6);
+        Map<Long, Set<Integer>> expected = new HashMap<Long, Set<Integer>>();
+        PreparedStatement insert = connection.prepareStatement("INSERT INTO " + StatusContactDatabase.LEGACY_TABLE_NAME
+                + " (" + StatusContactDatabase.LEGACY_STATUS_DBID + ", " + StatusContactDatabase.LEGACY_CONTACT_DBID
+                + ") VALUES (?, ?)");
+        connection.setAutoCommit(false);
+        for(long contact = 1; contact <= 50; contact++) {
+            Set<Integer> statuses = new TreeSet<Integer>();
+            int count = random.nextInt(2000);
+            for(int i = 0; i < count; i++)
+                statuses.add(1 + random.nextInt(100000));
+            if(contact % 10 == 0)
+                continue; // contacts without any status have no bitmap
+            for(int status : statuses) {
+                insert.setInt(1, status);
+                insert.setLong(2, contact);
+                insert.execute();
+            }
+            if(!statuses.isEmpty())
+                expected.put(contact, statuses);
+        }
+        connection.commit();
+        connection.setAutoCommit(true);
+        insert.close();
+
+        DatabaseMigration.upgrade(TestDatabase.wrap(connection), DatabaseFactory.MIGRATIONS, 5, 6);
+
+        Statement statement = connection.createStatement();
+        ResultSet rows = statement.executeQuery("SELECT " + StatusContactDatabase.CONTACT_DBID + ", "
+                + StatusContactDatabase.STATUSES + " FROM " + StatusContactDatabase.TABLE_NAME);
+        Map<Long, int[]> migrated = new HashMap<Long, int[]>();
+        while(rows.next())
+            migrated.put(rows.getLong(1), CompressedBitmap.fromByteArray(rows.getBytes(2)).toArray());
+        rows.close();
+        statement.close();
+
+        assertEquals(expected.keySet(), migrated.keySet());
+        for(Map.Entry<Long, Set<Integer>> entry : expected.entrySet()) {
+            int[] statuses = new int[entry.getValue().size()];
+            int i = 0;
+            for(int status : entry.getValue())
+                statuses[i++] = status;
+            assertArrayEquals(statuses, migrated.get(entry.getKey()));
+        }
+        assertFalse(schema(connection).contains("table:" + StatusContactDatabase.LEGACY_TABLE_NAME));
+        connection.close();
+    }
+
+    @Test
+    public void theIndexesAreCreated() throws SQLException {
+        Set<String> schema = schema(TestDatabase.open());
+        for(String index : PushStatusDatabase.CREATE_INDEXS)
+            assertTrue(index, schema.contains("index:" + index.split(" ")[5]));
+    }
+
+    private static Set<String> schema(Connection connection) throws SQLException {
+        Set<String> ret = new HashSet<String>();
+        Statement statement = connection.createStatement();
+        ResultSet objects = statement.executeQuery("SELECT type, name, sql FROM sqlite_master");
+        while(objects.next())
+            ret.add(objects.getString(1) + ":" + objects.getString(2));
+        objects.close();
+        statement.close();
+        return ret;
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ *
+ * This file is part of Rumble.
+ *
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.database;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the lookups of IdentityCache and that a value loaded before an invalidation is never
+ * cached after it, whatever the interleaving of the loaders and the writers.
+ *
+ * @author Lucien Loiseau
+ */
+public class IdentityCacheTest {
+
+    @Test
+    public void anEntryIsFoundByKeyAndByDbid() {
+        IdentityCache<String> cache = new IdentityCache<String>(10);
+        cache.put(cache.getGeneration(), "uid", 7, "contact");
+        assertEquals("contact", cache.getByKey("uid"));
+        assertEquals("contact", cache.getByDbid(7));
+        assertEquals(7, cache.getDbid("uid"));
+        assertEquals(3, cache.getHits());
+        assertNull(cache.getByDbid(8));
+        assertEquals(-1, cache.getDbid("other"));
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void theLeastRecentlyUsedEntryIsEvictedFromBothIndexes() {
+        IdentityCache<String> cache = new IdentityCache<String>(2);
+        cache.put(cache.getGeneration(), "a", 1, "A");
+        cache.put(cache.getGeneration(), "b", 2, "B");
+        cache.getByDbid(1);  // a is now more recent than b
+        cache.put(cache.getGeneration(), "c", 3, "C");
+        assertEquals(2, cache.size());
+        assertNull(cache.getByKey("b"));
+        assertNull(cache.getByDbid(2));
+        assertEquals("A", cache.getByKey("a"));
+        assertEquals("C", cache.getByDbid(3));
+    }
+
+    /*
+     * an entry that only knows the dbid of its key is a miss and does not replace a value
+     */
+    @Test
+    public void aDbidOnlyEntry() {
+        IdentityCache<String> cache = new IdentityCache<String>(10);
+        cache.put(cache.getGeneration(), "uid", 7, null);
+        assertEquals(7, cache.getDbid("uid"));
+        assertNull(cache.getByKey("uid"));
+        assertNull(cache.getByDbid(7));
+
+        cache.put(cache.getGeneration(), "uid", 7, "contact");
+        cache.put(cache.getGeneration(), "uid", 7, null);
+        assertEquals("contact", cache.getByKey("uid"));
+    }
+
+    @Test
+    public void aKeyStoredUnderAnotherDbidForgetsTheOldOne() {
+        IdentityCache<String> cache = new IdentityCache<String>(10);
+        cache.put(cache.getGeneration(), "uid", 7, "old");
+        cache.put(cache.getGeneration(), "uid", 8, "new");
+        assertNull(cache.getByDbid(7));
+        assertEquals("new", cache.getByDbid(8));
+        assertEquals(1, cache.size());
+    }
+
+    /*
+     * the loader reads the generation and the row, the writer updates the row and
+     * invalidates, then the loader stores what it read: it must be dropped
+     */
+    @Test
+    public void aValueReadBeforeAnInvalidationIsDropped() {
+        IdentityCache<String> cache = new IdentityCache<String>(10);
+        long generation = cache.getGeneration();
+        String read = "old";
+        cache.invalidate("uid");
+        cache.put(generation, "uid", 7, read);
+        assertNull(cache.getByKey("uid"));
+        assertEquals(-1, cache.getDbid("uid"));
+
+        // the same with the invalidation of another key, or of the whole cache
+        generation = cache.getGeneration();
+        cache.invalidate("other");
+        cache.put(generation, "uid", 7, read);
+        assertNull(cache.getByKey("uid"));
+        generation = cache.getGeneration();
+        cache.invalidateAll();
+        cache.put(generation, "uid", 7, read);
+        assertNull(cache.getByKey("uid"));
+
+        // a value read after the invalidation is kept
+        cache.put(cache.getGeneration(), "uid", 7, "new");
+        assertEquals("new", cache.getByKey("uid"));
+    }
+
+    /*
+     * why the writers must invalidate after the write (and after the commit): a loader that
+     * reads the generation after the invalidation but the row before the write caches it
+     */
+    @Test
+    public void anInvalidationBeforeTheWriteLetsTheOldRowIn() {
+        IdentityCache<String> cache = new IdentityCache<String>(10);
+        String row = "old";
+        cache.invalidate("uid");
+        long generation = cache.getGeneration();
+        String read = row;
+        row = "new";
+        cache.put(generation, "uid", 7, read);
+        assertEquals("old", cache.getByKey("uid"));
+        assertTrue(!row.equals(cache.getByKey("uid")));
+    }
+
+    @Test
+    public void anInvalidationRemovesTheEntryFromBothIndexes() {
+        IdentityCache<String> cache = new IdentityCache<String>(10);
+        cache.put(cache.getGeneration(), "uid", 7, "contact");
+        cache.put(cache.getGeneration(), "gid", 9, "group");
+        cache.invalidate("uid");
+        assertNull(cache.getByKey("uid"));
+        assertNull(cache.getByDbid(7));
+        assertEquals("group", cache.getByKey("gid"));
+        cache.invalidateAll();
+        assertEquals(0, cache.size());
+        assertNull(cache.getByDbid(9));
+    }
+
+    /*
+     * loaders and writers race on a few keys. The writers update the row, then invalidate,
+     * the loaders load as ContactDatabase does. Once everything is done, every cached value
+     * must be the last one written.
+     */
+    @Test
+    public void concurrentLoadsNeverCacheAStaleValue() throws InterruptedException {
+        final int nbKeys = 4;
+        final int nbOperations = 20000;
+        final IdentityCache<Integer> cache = new IdentityCache<Integer>(nbKeys);
+        final ConcurrentHashMap<String, Integer> rows = new ConcurrentHashMap<String, Integer>();
+        for(int k = 0; k < nbKeys; k++)
+            rows.put("uid" + k, 0);
+        final AtomicInteger loads = new AtomicInteger(0);
+        final CountDownLatch start = new CountDownLatch(1);
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for(int t = 0; t < 6; t++) {
+            final boolean writer = (t < 2);
+            final Random random = new Random(t);
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for(int i = 0; i < nbOperations; i++) {
+                        int k = random.nextInt(nbKeys);
+                        String key = "uid" + k;
+                        if(writer) {
+                            rows.put(key, rows.get(key) + 1);
+                            cache.invalidate(key);
+                        } else if(cache.getByKey(key) == null) {
+                            long generation = cache.getGeneration();
+                            Integer row = rows.get(key);
+                            Thread.yield();
+                            cache.put(generation, key, k, row);
+                            loads.incrementAndGet();
+                        }
+                    }
+                }
+            });
+        }
+        for(Thread thread : threads)
+            thread.start();
+        start.countDown();
+        for(Thread thread : threads)
+            thread.join();
+
+        assertTrue(loads.get() > 0);
+        for(int k = 0; k < nbKeys; k++) {
+            Integer cached = cache.getByKey("uid" + k);
+            assertTrue((cached == null) || cached.equals(rows.get("uid" + k)));
+            Integer byDbid = cache.getByDbid(k);
+            assertTrue((byDbid == null) || byDbid.equals(rows.get("uid" + k)));
+        }
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ *
+ * This file is part of Rumble.
+ *
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.database;
+
+import android.content.ContentResolver;
+import android.database.CharArrayBuffer;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.DataSetObserver;
+import android.net.Uri;
+import android.os.Bundle;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A Cursor over the rows of a JDBC ResultSet, read at once, so that the code written against
+ * the Android database API (e.g. the migrations) can run on a desktop SQLite.
+ *
+ * @author Lucien Loiseau
+ */
+public class JdbcCursor implements Cursor {
+
+    private final String[]       columns;
+    private final List<Object[]> rows;
+    private int     position;
+    private boolean closed;
+
+    public JdbcCursor(ResultSet result) throws SQLException {
+        ResultSetMetaData meta = result.getMetaData();
+        columns = new String[meta.getColumnCount()];
+        for(int i = 0; i < columns.length; i++)
+            columns[i] = meta.getColumnLabel(i + 1);
+        rows = new ArrayList<Object[]>();
+        while(result.next()) {
+            Object[] row = new Object[columns.length];
+            for(int i = 0; i < columns.length; i++)
+                row[i] = result.getObject(i + 1);
+            rows.add(row);
+        }
+        result.close();
+        position = -1;
+        closed = false;
+    }
+
+    private Object get(int column) {
+        if((position < 0) || (position >= rows.size()))
+            throw new IllegalStateException("cursor is not on a row");
+        return rows.get(position)[column];
+    }
+
+    @Override
+    public int getCount() {
+        return rows.size();
+    }
+
+    @Override
+    public int getPosition() {
+        return position;
+    }
+
+    @Override
+    public boolean move(int offset) {
+        return moveToPosition(position + offset);
+    }
+
+    @Override
+    public boolean moveToPosition(int newPosition) {
+        position = Math.max(-1, Math.min(newPosition, rows.size()));
+        return (position >= 0) && (position < rows.size());
+    }
+
+    @Override
+    public boolean moveToFirst() {
+        return moveToPosition(0);
+    }
+
+    @Override
+    public boolean moveToLast() {
+        return moveToPosition(rows.size() - 1);
+    }
+
+    @Override
+    public boolean moveToNext() {
+        return moveToPosition(position + 1);
+    }
+
+    @Override
+    public boolean moveToPrevious() {
+        return moveToPosition(position - 1);
+    }
+
+    @Override
+    public boolean isFirst() {
+        return (position == 0) && !rows.isEmpty();
+    }
+
+    @Override
+    public boolean isLast() {
+        return (position == rows.size() - 1) && !rows.isEmpty();
+    }
+
+    @Override
+    public boolean isBeforeFirst() {
+        return rows.isEmpty() || (position == -1);
+    }
+
+    @Override
+    public boolean isAfterLast() {
+        return rows.isEmpty() || (position == rows.size());
+    }
+
+    @Override
+    public int getColumnIndex(String columnName) {
+        for(int i = 0; i < columns.length; i++) {
+            if(columns[i].equalsIgnoreCase(columnName))
+                return i;
+        }
+        return -1;
+    }
+
+    @Override
+    public int getColumnIndexOrThrow(String columnName) throws IllegalArgumentException {
+        int index = getColumnIndex(columnName);
+        if(index < 0)
+            throw new IllegalArgumentException("no column " + columnName);
+        return index;
+    }
+
+    @Override
+    public String getColumnName(int columnIndex) {
+        return columns[columnIndex];
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return columns.clone();
+    }
+
+    @Override
+    public int getColumnCount() {
+        return columns.length;
+    }
+
+    @Override
+    public byte[] getBlob(int columnIndex) {
+        return (byte[])get(columnIndex);
+    }
+
+    @Override
+    public String getString(int columnIndex) {
+        Object value = get(columnIndex);
+        return (value == null) ? null : value.toString();
+    }
+
+    @Override
+    public void copyStringToBuffer(int columnIndex, CharArrayBuffer buffer) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public short getShort(int columnIndex) {
+        return (short)getLong(columnIndex);
+    }
+
+    @Override
+    public int getInt(int columnIndex) {
+        return (int)getLong(columnIndex);
+    }
+
+    @Override
+    public long getLong(int columnIndex) {
+        Object value = get(columnIndex);
+        return (value == null) ? 0 : ((Number)value).longValue();
+    }
+
+    @Override
+    public float getFloat(int columnIndex) {
+        return (float)getDouble(columnIndex);
+    }
+
+    @Override
+    public double getDouble(int columnIndex) {
+        Object value = get(columnIndex);
+        return (value == null) ? 0 : ((Number)value).doubleValue();
+    }
+
+    @Override
+    public int getType(int columnIndex) {
+        Object value = get(columnIndex);
+        if(value == null)
+            return FIELD_TYPE_NULL;
+        if((value instanceof Integer) || (value instanceof Long))
+            return FIELD_TYPE_INTEGER;
+        if(value instanceof Number)
+            return FIELD_TYPE_FLOAT;
+        if(value instanceof byte[])
+            return FIELD_TYPE_BLOB;
+        return FIELD_TYPE_STRING;
+    }
+
+    @Override
+    public boolean isNull(int columnIndex) {
+        return get(columnIndex) == null;
+    }
+
+    @Override
+    public void deactivate() {
+    }
+
+    @Override
+    public boolean requery() {
+        return false;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void registerContentObserver(ContentObserver observer) {
+    }
+
+    @Override
+    public void unregisterContentObserver(ContentObserver observer) {
+    }
+
+    @Override
+    public void registerDataSetObserver(DataSetObserver observer) {
+    }
+
+    @Override
+    public void unregisterDataSetObserver(DataSetObserver observer) {
+    }
+
+    @Override
+    public void setNotificationUri(ContentResolver resolver, Uri uri) {
+    }
+
+    public Uri getNotificationUri() {
+        return null;
+    }
+
+    @Override
+    public boolean getWantsAllOnMoveCalls() {
+        return false;
+    }
+
+    public void setExtras(Bundle extras) {
+    }
+
+    @Override
+    public Bundle getExtras() {
+        return null;
+    }
+
+    @Override
+    public Bundle respond(Bundle extras) {
+        return null;
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ *
+ * This file is part of Rumble.
+ *
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.database;
+
+import org.disrupted.rumble.database.PushStatusDatabase.StatusQueryOption;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Pages through statuses that share their time of arrival with the keyset cursors of
+ * getStatuses, towards the older and towards the newer statuses and between two cursors, and
+ * checks that no status is skipped nor returned twice.
+ *
+ * @author Lucien Loiseau
+ */
+public class KeysetPagingTest {
+
+    private static final int NB_STATUSES = 200;
+    private static final int NB_TOAS     = 20;   // ten statuses per time of arrival
+    private static final int PAGE_SIZE   = 7;
+
+    private Connection connection;
+    private Map<Long, Long> toas;       // dbid -> toa
+    private List<Long> newestFirst;     // the dbids by (toa, dbid) descending
+
+    @Before
+    public void setUp() throws SQLException {
+        connection = TestDatabase.open();
+        connection.setAutoCommit(false);
+        toas = new HashMap<Long, Long>();
+        Statement statement = connection.createStatement();
+        for(long s = 1; s <= NB_STATUSES; s++) {
+            // the dbids of a time of arrival are not contiguous
+            long toa = 1000 + ((s * 7) % NB_TOAS);
+            toas.put(s, toa);
+            statement.execute("INSERT INTO " + PushStatusDatabase.TABLE_NAME + " (" + PushStatusDatabase.ID + ", "
+                    + PushStatusDatabase.UUID + ", " + PushStatusDatabase.TIME_OF_ARRIVAL + ") VALUES ("
+                    + s + ", 'status" + s + "', " + toa + ")");
+        }
+        statement.close();
+        connection.commit();
+        connection.setAutoCommit(true);
+
+        newestFirst = new ArrayList<Long>();
+        for(long toa = 1000 + NB_TOAS - 1; toa >= 1000; toa--) {
+            for(long s = NB_STATUSES; s >= 1; s--) {
+                if(toas.get(s) == toa)
+                    newestFirst.add(s);
+            }
+        }
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        connection.close();
+    }
+
+    private static StatusQueryOption options(long flags, int limit) {
+        StatusQueryOption options = new StatusQueryOption();
+        options.filterFlags = flags;
+        options.order_by = StatusQueryOption.ORDER_BY.TIME_OF_ARRIVAL;
+        options.query_result = StatusQueryOption.QUERY_RESULT.LIST_OF_DBIDS;
+        options.answerLimit = limit;
+        return options;
+    }
+
+    /*
+     * the dbids in the order of getStatuses: newest first, a query paging towards the newer
+     * statuses being put back in that order
+     */
+    private List<Long> dbids(StatusQueryOption options) throws SQLException {
+        PushStatusDatabase.QueryShape shape = new PushStatusDatabase.QueryShape(options);
+        String[] arguments = PushStatusDatabase.getArguments(options, shape);
+        PreparedStatement statement = connection.prepareStatement(PushStatusDatabase.buildQuery(shape));
+        try {
+            for(int i = 0; i < arguments.length; i++)
+                statement.setString(i + 1, arguments[i]);
+            List<Long> ret = new ArrayList<Long>();
+            ResultSet result = statement.executeQuery();
+            while(result.next())
+                ret.add(result.getLong(1));
+            result.close();
+            if(shape.reversed)
+                Collections.reverse(ret);
+            return ret;
+        } finally {
+            statement.close();
+        }
+    }
+
+    private static void assertNoDuplicate(List<Long> dbids) {
+        Set<Long> seen = new HashSet<Long>();
+        for(long dbid : dbids)
+            assertTrue("returned twice: " + dbid, seen.add(dbid));
+    }
+
+    @Test
+    public void pagingTowardsTheOlderStatuses() throws SQLException {
+        List<Long> paged = dbids(options(0, PAGE_SIZE));
+        while(true) {
+            long oldest = paged.get(paged.size() - 1);
+            StatusQueryOption options = options(StatusQueryOption.FILTER_BEFORE_KEY, PAGE_SIZE);
+            options.before_key_toa = toas.get(oldest);
+            options.before_key_dbid = oldest;
+            List<Long> page = dbids(options);
+            if(page.isEmpty())
+                break;
+            paged.addAll(page);
+        }
+        assertNoDuplicate(paged);
+        assertEquals(newestFirst, paged);
+    }
+
+    @Test
+    public void pagingTowardsTheNewerStatuses() throws SQLException {
+        long oldest = newestFirst.get(newestFirst.size() - 1);
+        List<Long> paged = new ArrayList<Long>();
+        paged.add(oldest);
+        while(true) {
+            long newest = paged.get(0);
+            StatusQueryOption options = options(StatusQueryOption.FILTER_AFTER_KEY, PAGE_SIZE);
+            options.after_key_toa = toas.get(newest);
+            options.after_key_dbid = newest;
+            List<Long> page = dbids(options);
+            if(page.isEmpty())
+                break;
+            // the statuses closest to the cursor, newest first
+            assertEquals(newestFirst.subList(newestFirst.indexOf(newest) - page.size(), newestFirst.indexOf(newest)), page);
+            paged.addAll(0, page);
+        }
+        assertNoDuplicate(paged);
+        assertEquals(newestFirst, paged);
+    }
+
+    /*
+     * both cursors: the statuses strictly between them, whether they share their time of
+     * arrival with the cursors or not
+     */
+    @Test
+    public void betweenTwoCursors() throws SQLException {
+        for(int[] window : new int[][]{{3, 45}, {0, 9}, {10, 11}, {57, 157}, {5, 6}}) {
+            long newer = newestFirst.get(window[0]);
+            long older = newestFirst.get(window[1]);
+            StatusQueryOption options = options(StatusQueryOption.FILTER_BEFORE_KEY
+                    | StatusQueryOption.FILTER_AFTER_KEY, 0);
+            options.before_key_toa = toas.get(newer);
+            options.before_key_dbid = newer;
+            options.after_key_toa = toas.get(older);
+            options.after_key_dbid = older;
+            assertEquals(newestFirst.subList(window[0] + 1, window[1]), dbids(options));
+        }
+    }
+}
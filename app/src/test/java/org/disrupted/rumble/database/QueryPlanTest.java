@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ *
+ * This file is part of Rumble.
+ *
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.database;
+
+import org.disrupted.rumble.database.PushStatusDatabase.StatusQueryOption;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks with EXPLAIN QUERY PLAN that no query of PushStatusDatabase.getStatuses walks the
+ * whole push_status table, whatever the combination of its selective filters. Walking a whole
+ * index (SCAN ... USING INDEX) is as much a full scan as walking the table and fails too.
+ *
+ * Without any selective filter (FILTER_NOT_EXPIRED alone included) every status may be part of
+ * the answer, these queries are full scans by design and are not checked.
+ *
+ * @author Lucien Loiseau
+ */
+public class QueryPlanTest {
+
+    private static final long[] SELECTIVE_FILTERS = {
+            StatusQueryOption.FILTER_READ,
+            StatusQueryOption.FILTER_GROUP,
+            StatusQueryOption.FILTER_HOPS,
+            StatusQueryOption.FILTER_LIKE,
+            StatusQueryOption.FILTER_TAG,
+            StatusQueryOption.FILTER_AUTHOR,
+            StatusQueryOption.FILTER_AFTER_TOC,
+            StatusQueryOption.FILTER_AFTER_TOA,
+            StatusQueryOption.FILTER_BEFORE_TOC,
+            StatusQueryOption.FILTER_BEFORE_TOA,
+            StatusQueryOption.FILTER_BEFORE_KEY,
+            StatusQueryOption.FILTER_AFTER_KEY
+    };
+
+    private Connection connection;
+
+    @Before
+    public void setUp() throws SQLException {
+        connection = TestDatabase.open();
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        connection.close();
+    }
+
+    static StatusQueryOption options(long flags, StatusQueryOption.ORDER_BY order, StatusQueryOption.QUERY_RESULT result) {
+        StatusQueryOption options = new StatusQueryOption();
+        options.filterFlags = flags;
+        options.hashtagFilters = new HashSet<String>(Arrays.asList("#rumble", "#test", "#android"));
+        options.groupIDFilters = new HashSet<String>(Arrays.asList("gid1", "gid2"));
+        options.uid = "uid";
+        options.order_by = order;
+        options.query_result = result;
+        options.answerLimit = 20;
+        return options;
+    }
+
+    private List<String> explain(StatusQueryOption options) throws SQLException {
+        PushStatusDatabase.QueryShape shape = new PushStatusDatabase.QueryShape(options);
+        String[] arguments = PushStatusDatabase.getArguments(options, shape);
+        PreparedStatement statement = connection.prepareStatement("EXPLAIN QUERY PLAN " + PushStatusDatabase.buildQuery(shape));
+        List<String> plan = new ArrayList<String>();
+        try {
+            for(int i = 0; i < arguments.length; i++)
+                statement.setString(i + 1, arguments[i]);
+            ResultSet result = statement.executeQuery();
+            while(result.next())
+                plan.add(result.getString(4));
+            result.close();
+        } finally {
+            statement.close();
+        }
+        return plan;
+    }
+
+    /*
+     * a lookup is reported as "SEARCH TABLE x USING ...", anything that walks a whole table
+     * or a whole index as "SCAN TABLE x [USING [COVERING] INDEX i]"
+     */
+    private static boolean isScan(String step) {
+        return step.startsWith("SCAN");
+    }
+
+    private static long combination(int mask) {
+        long flags = 0;
+        for(int i = 0; i < SELECTIVE_FILTERS.length; i++) {
+            if((mask & (1 << i)) != 0)
+                flags |= SELECTIVE_FILTERS[i];
+        }
+        return flags;
+    }
+
+    /*
+     * every non empty combination of the selective filters, with and without FILTER_NOT_EXPIRED,
+     * for every ordering and every kind of result
+     */
+    @Test
+    public void everyCombinationOfFiltersUsesAnIndex() throws SQLException {
+        List<String> scans = new ArrayList<String>();
+        int explained = 0;
+        for(int mask = 1; mask < (1 << SELECTIVE_FILTERS.length); mask++) {
+            for(long extra : new long[]{0, StatusQueryOption.FILTER_NOT_EXPIRED}) {
+                long flags = combination(mask) | extra;
+                for(StatusQueryOption.ORDER_BY order : StatusQueryOption.ORDER_BY.values()) {
+                    for(StatusQueryOption.QUERY_RESULT result : StatusQueryOption.QUERY_RESULT.values()) {
+                        List<String> plan = explain(options(flags, order, result));
+                        explained++;
+                        for(String step : plan) {
+                            if(isScan(step)) {
+                                scans.add("filters 0x" + Long.toHexString(flags) + " " + order + " " + result + ": " + plan);
+                                break;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        assertTrue(explained + " plans checked, " + scans.size() + " scans, first ones: "
+                + scans.subList(0, Math.min(5, scans.size())), scans.isEmpty());
+    }
+
+    @Test
+    public void statusContactByContact() throws SQLException {
+        PreparedStatement statement = connection.prepareStatement("EXPLAIN QUERY PLAN SELECT "
+                + StatusContactDatabase.STATUSES + " FROM " + StatusContactDatabase.TABLE_NAME
+                + " WHERE " + StatusContactDatabase.CONTACT_DBID + " = ?");
+        statement.setLong(1, 1);
+        ResultSet result = statement.executeQuery();
+        while(result.next())
+            assertTrue(result.getString(4), !isScan(result.getString(4)));
+        result.close();
+        statement.close();
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ *
+ * This file is part of Rumble.
+ *
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.database;
+
+import org.disrupted.rumble.database.PushStatusDatabase.StatusQueryOption;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the SQL of getStatuses only depends on the shape of the query, that every
+ * shape prepares with as many parameters as getArguments gives and that repeated dispatcher
+ * and UI queries reuse the cached SQL of their shape.
+ *
+ * @author Lucien Loiseau
+ */
+public class QueryShapeTest {
+
+    private static final int NB_STATUSES = 5000;
+
+    Connection connection;
+
+    @Before
+    public void setUp() throws SQLException {
+        connection = TestDatabase.open();
+        connection.setAutoCommit(false);
+        Statement statement = connection.createStatement();
+        statement.execute("INSERT INTO " + ContactDatabase.TABLE_NAME + " (" + ContactDatabase.ID + ", "
+                + ContactDatabase.UID + ") VALUES (1, 'uid')");
+        for(int g = 1; g <= 4; g++)
+            statement.execute("INSERT INTO " + GroupDatabase.TABLE_NAME + " (" + GroupDatabase.ID + ", "
+                    + GroupDatabase.GID + ") VALUES (" + g + ", 'gid" + g + "')");
+        String[] hashtags = {"#rumble", "#test", "#android", "#other"};
+        for(int h = 0; h < hashtags.length; h++)
+            statement.execute("INSERT INTO " + HashtagDatabase.TABLE_NAME + " VALUES (" + (h + 1) + ", '" + hashtags[h] + "')");
+        for(int s = 1; s <= NB_STATUSES; s++) {
+            statement.execute("INSERT INTO " + PushStatusDatabase.TABLE_NAME + " (" + PushStatusDatabase.ID + ", "
+                    + PushStatusDatabase.UUID + ", " + PushStatusDatabase.AUTHOR_DBID + ", "
+                    + PushStatusDatabase.GROUP_DBID + ", " + PushStatusDatabase.TIME_OF_CREATION + ", "
+                    + PushStatusDatabase.TIME_OF_ARRIVAL + ", " + PushStatusDatabase.TIME_TO_LIVE + ", "
+                    + PushStatusDatabase.USERREAD + ", " + PushStatusDatabase.USERLIKED + ", "
+                    + PushStatusDatabase.HOP_LIMIT + ", " + PushStatusDatabase.POST + ") VALUES ("
+                    + s + ", 'status" + s + "', 1, " + (1 + s % 4) + ", " + s + ", " + s + ", -1, "
+                    + (s % 2) + ", " + (s % 3 == 0 ? 1 : 0) + ", 10, 'post " + s + "')");
+            statement.execute("INSERT INTO " + StatusTagDatabase.TABLE_NAME + " VALUES (" + (1 + s % 4) + ", " + s + ")");
+            if(s % 5 == 0)
+                statement.execute("INSERT INTO " + StatusTagDatabase.TABLE_NAME + " VALUES (" + (1 + (s + 1) % 4) + ", " + s + ")");
+        }
+        statement.close();
+        connection.commit();
+        connection.setAutoCommit(true);
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        connection.close();
+    }
+
+    static StatusQueryOption options(long flags, StatusQueryOption.ORDER_BY order, StatusQueryOption.QUERY_RESULT result) {
+        StatusQueryOption options = new StatusQueryOption();
+        options.filterFlags = flags;
+        options.hashtagFilters = new HashSet<String>(Arrays.asList("#rumble", "#test", "#android"));
+        options.groupIDFilters = new HashSet<String>(Arrays.asList("gid1", "gid2"));
+        options.uid = "uid";
+        options.order_by = order;
+        options.query_result = result;
+        options.answerLimit = 20;
+        return options;
+    }
+
+    private static int placeholders(String sql) {
+        int count = 0;
+        for(int i = 0; i < sql.length(); i++) {
+            if(sql.charAt(i) == '?')
+                count++;
+        }
+        return count;
+    }
+
+    private static String key(StatusQueryOption options) {
+        return new PushStatusDatabase.QueryShape(options).key;
+    }
+
+    @Test
+    public void sameShapeSameSql() {
+        PushStatusDatabase database = new PushStatusDatabase(null, null);
+        StatusQueryOption first = options(
+                StatusQueryOption.FILTER_TAG | StatusQueryOption.FILTER_AFTER_TOA,
+                StatusQueryOption.ORDER_BY.TIME_OF_ARRIVAL, StatusQueryOption.QUERY_RESULT.LIST_OF_ITEMS);
+        StatusQueryOption second = options(first.filterFlags, first.order_by, first.query_result);
+        second.hashtagFilters = new HashSet<String>(Arrays.asList("#a", "#b", "#c", "#d"));
+        second.after_toa = 123456;
+        second.answerLimit = 50;
+
+        String sql = database.getQuery(new PushStatusDatabase.QueryShape(first));
+        assertSame(sql, database.getQuery(new PushStatusDatabase.QueryShape(second)));
+        assertEquals(1, database.getShapeCacheMisses());
+        assertEquals(1, database.getShapeCacheHits());
+        assertFalse(sql.contains("123456"));
+
+        // the IN lists are rounded up to a power of two
+        second.hashtagFilters.add("#e");
+        assertNotEquals(key(first), key(second));
+        second.hashtagFilters = new HashSet<String>(Arrays.asList("#a", "#b"));
+        assertNotEquals(key(first), key(second));
+
+        // a filter without its value is not applied
+        second.hashtagFilters = null;
+        first.filterFlags = StatusQueryOption.FILTER_AFTER_TOA;
+        assertEquals(key(first), key(second));
+
+        second.answerLimit = 0;
+        assertNotEquals(key(first), key(second));
+    }
+
+    /*
+     * every combination of the filters, for every result and ordering, with and without a limit
+     */
+    @Test
+    public void everyShapePreparesWithItsArguments() throws SQLException {
+        long[] filters = new long[]{
+                StatusQueryOption.FILTER_READ, StatusQueryOption.FILTER_GROUP, StatusQueryOption.FILTER_HOPS,
+                StatusQueryOption.FILTER_LIKE, StatusQueryOption.FILTER_TAG, StatusQueryOption.FILTER_AUTHOR,
+                StatusQueryOption.FILTER_AFTER_TOC, StatusQueryOption.FILTER_AFTER_TOA,
+                StatusQueryOption.FILTER_BEFORE_TOC, StatusQueryOption.FILTER_BEFORE_TOA,
+                StatusQueryOption.FILTER_NOT_EXPIRED, StatusQueryOption.FILTER_BEFORE_KEY,
+                StatusQueryOption.FILTER_AFTER_KEY};
+        Set<String> keys = new HashSet<String>();
+        int prepared = 0;
+        for(int subset = 0; subset < (1 << filters.length); subset++) {
+            long flags = 0;
+            for(int i = 0; i < filters.length; i++) {
+                if((subset & (1 << i)) != 0)
+                    flags |= filters[i];
+            }
+            for(StatusQueryOption.QUERY_RESULT result : StatusQueryOption.QUERY_RESULT.values()) {
+                for(StatusQueryOption.ORDER_BY order : StatusQueryOption.ORDER_BY.values()) {
+                    for(int limit : new int[]{0, 20}) {
+                        StatusQueryOption options = options(flags, order, result);
+                        options.answerLimit = limit;
+                        PushStatusDatabase.QueryShape shape = new PushStatusDatabase.QueryShape(options);
+                        String sql = PushStatusDatabase.buildQuery(shape);
+                        String[] arguments = PushStatusDatabase.getArguments(options, shape);
+                        assertEquals(sql, placeholders(sql), arguments.length);
+                        assertTrue(keys.add(shape.key));
+
+                        // preparing every shape would take a while, one in sixteen is enough
+                        if((subset % 16) != (order.ordinal() + result.ordinal()) % 16)
+                            continue;
+                        PreparedStatement statement = connection.prepareStatement(sql);
+                        try {
+                            assertEquals(arguments.length, statement.getParameterMetaData().getParameterCount());
+                            for(int i = 0; i < arguments.length; i++)
+                                statement.setString(i + 1, arguments[i]);
+                            statement.executeQuery().close();
+                            prepared++;
+                        } finally {
+                            statement.close();
+                        }
+                    }
+                }
+            }
+        }
+        assertTrue(prepared > 1000);
+    }
+
+    private Set<Long> dbids(StatusQueryOption options) throws SQLException {
+        PushStatusDatabase.QueryShape shape = new PushStatusDatabase.QueryShape(options);
+        String[] arguments = PushStatusDatabase.getArguments(options, shape);
+        PreparedStatement statement = connection.prepareStatement(PushStatusDatabase.buildQuery(shape));
+        try {
+            for(int i = 0; i < arguments.length; i++)
+                statement.setString(i + 1, arguments[i]);
+            Set<Long> ret = new HashSet<Long>();
+            ResultSet result = statement.executeQuery();
+            while(result.next())
+                ret.add(result.getLong(1));
+            result.close();
+            return ret;
+        } finally {
+            statement.close();
+        }
+    }
+
+    @Test
+    public void paddingDoesNotChangeTheResult() throws SQLException {
+        StatusQueryOption options = options(StatusQueryOption.FILTER_TAG | StatusQueryOption.FILTER_GROUP,
+                StatusQueryOption.ORDER_BY.NO_ORDERING, StatusQueryOption.QUERY_RESULT.LIST_OF_DBIDS);
+        options.answerLimit = 0;
+        options.hashtagFilters = new HashSet<String>(Arrays.asList("#rumble", "#test", "#android"));
+        options.groupIDFilters = new HashSet<String>(Arrays.asList("gid1", "gid2", "gid3"));
+        assertEquals(4, new PushStatusDatabase.QueryShape(options).nbHashtags);
+        Set<Long> padded = dbids(options);
+
+        Set<Long> union = new HashSet<Long>();
+        for(String hashtag : Arrays.asList("#rumble", "#test", "#android")) {
+            for(String gid : Arrays.asList("gid1", "gid2", "gid3")) {
+                options.hashtagFilters = new HashSet<String>(Arrays.asList(hashtag));
+                options.groupIDFilters = new HashSet<String>(Arrays.asList(gid));
+                union.addAll(dbids(options));
+            }
+        }
+        assertTrue(padded.size() > 0);
+        assertEquals(union, padded);
+    }
+
+    // how getStatuses used to build its SQL, with the values in it
+    static String inline(String sql, String[] arguments) {
+        StringBuilder ret = new StringBuilder();
+        int next = 0;
+        for(int i = 0; i < sql.length(); i++) {
+            char c = sql.charAt(i);
+            if(c == '?')
+                ret.append('\'').append(arguments[next++].replace("'", "''")).append('\'');
+            else
+                ret.append(c);
+        }
+        return ret.toString();
+    }
+
+    // what a dispatcher and the status list ask for, over and over with new values
+    static StatusQueryOption query(int i) {
+        StatusQueryOption options;
+        if(i % 2 == 0) {
+            options = options(StatusQueryOption.FILTER_GROUP | StatusQueryOption.FILTER_AFTER_TOA
+                            | StatusQueryOption.FILTER_NOT_EXPIRED, StatusQueryOption.ORDER_BY.NO_ORDERING,
+                    StatusQueryOption.QUERY_RESULT.LIST_OF_DBIDS);
+            options.after_toa = NB_STATUSES - (i % 100);
+            options.answerLimit = 0;
+        } else {
+            options = options(StatusQueryOption.FILTER_BEFORE_KEY,
+                    StatusQueryOption.ORDER_BY.TIME_OF_ARRIVAL, StatusQueryOption.QUERY_RESULT.LIST_OF_ITEMS);
+            options.before_key_toa = NB_STATUSES - (i % 1000);
+            options.before_key_dbid = options.before_key_toa;
+        }
+        return options;
+    }
+
+    static int consume(PreparedStatement statement) throws SQLException {
+        int count = 0;
+        ResultSet result = statement.executeQuery();
+        while(result.next())
+            count++;
+        result.close();
+        return count;
+    }
+
+    /*
+     * the repeated queries of the dispatchers and of the status list only make two shapes,
+     * and their cached SQL gives the same rows as the values inlined
+     */
+    @Test
+    public void repeatedQueriesReuseTheirShape() throws SQLException {
+        PushStatusDatabase database = new PushStatusDatabase(null, null);
+        Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+        for(int i = 0; i < 200; i++) {
+            StatusQueryOption options = query(i);
+            PushStatusDatabase.QueryShape shape = new PushStatusDatabase.QueryShape(options);
+            String[] arguments = PushStatusDatabase.getArguments(options, shape);
+            PreparedStatement inlined = connection.prepareStatement(
+                    inline(PushStatusDatabase.buildQuery(shape), arguments));
+            int expected = consume(inlined);
+            inlined.close();
+
+            String sql = database.getQuery(shape);
+            PreparedStatement statement = statements.get(sql);
+            if(statement == null) {
+                statement = connection.prepareStatement(sql);
+                statements.put(sql, statement);
+            }
+            for(int a = 0; a < arguments.length; a++)
+                statement.setString(a + 1, arguments[a]);
+            assertEquals(expected, consume(statement));
+        }
+        for(PreparedStatement statement : statements.values())
+            statement.close();
+        assertEquals(2, statements.size());
+        assertEquals(2, database.getShapeCacheMisses());
+        assertEquals(198, database.getShapeCacheHits());
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ *
+ * This file is part of Rumble.
+ *
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.database;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Hydrates pages of 10, 100 and 1000 statuses with the queries of getContacts, getGroups and
+ * getHashTagLists, once per row (as cursorToStatus did before, an IN of a single dbid being
+ * the same query as an equality) and once per page, and compares the number of queries and
+ * the statuses obtained.
+ *
+ * @author Lucien Loiseau
+ */
+public class StatusHydrationTest {
+
+    private static final int NB_CONTACTS = 200;
+    private static final int NB_GROUPS   = 20;
+    private static final int NB_HASHTAGS = 500;
+    private static final int NB_STATUSES = 5000;
+
+    private Connection database;
+    int queries;
+
+    /*
+     * everything a hydrated status carries, as strings so that both paths can be compared
+     */
+    static class Hydrated {
+        String author;
+        Map<String, Integer> interests = new HashMap<String, Integer>();
+        Set<String> joinedGroups = new HashSet<String>();
+        Set<String> interfaces   = new HashSet<String>();
+        String group;
+        Set<String> hashtags = new HashSet<String>();
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof Hydrated))
+                return false;
+            Hydrated other = (Hydrated)o;
+            return author.equals(other.author) && interests.equals(other.interests)
+                    && joinedGroups.equals(other.joinedGroups) && interfaces.equals(other.interfaces)
+                    && group.equals(other.group) && hashtags.equals(other.hashtags);
+        }
+
+        @Override
+        public int hashCode() {
+            return author.hashCode();
+        }
+    }
+
+    @Before
+    public void setUp() throws SQLException {
+        database = TestDatabase.open();
+        database.setAutoCommit(false);
+        Random random = new Random(42);
+        Statement statement = database.createStatement();
+        for(int h = 1; h <= NB_HASHTAGS; h++)
+            statement.execute("INSERT INTO " + HashtagDatabase.TABLE_NAME + " VALUES (" + h + ", '#tag" + h + "')");
+        for(int g = 1; g <= NB_GROUPS; g++)
+            statement.execute("INSERT INTO " + GroupDatabase.TABLE_NAME + " (" + GroupDatabase.ID + ", "
+                    + GroupDatabase.GID + ", " + GroupDatabase.NAME + ") VALUES (" + g + ", 'gid" + g + "', 'group" + g + "')");
+        for(int c = 1; c <= NB_CONTACTS; c++) {
+            statement.execute("INSERT INTO " + ContactDatabase.TABLE_NAME + " (" + ContactDatabase.ID + ", "
+                    + ContactDatabase.UID + ", " + ContactDatabase.NAME + ", " + ContactDatabase.LOCALUSER
+                    + ") VALUES (" + c + ", 'uid" + c + "', 'contact" + c + "', 0)");
+            for(int i = 0; i < 5; i++)
+                statement.execute("INSERT OR IGNORE INTO " + ContactHashTagInterestDatabase.TABLE_NAME
+                        + " VALUES (" + c + ", " + (1 + random.nextInt(NB_HASHTAGS)) + ", " + random.nextInt(256) + ")");
+            for(int i = 0; i < 3; i++)
+                statement.execute("INSERT OR IGNORE INTO " + ContactGroupDatabase.TABLE_NAME
+                        + " VALUES (" + c + ", " + (1 + random.nextInt(NB_GROUPS)) + ")");
+            for(int i = 0; i < 2; i++) {
+                int id = c * 2 + i;
+                statement.execute("INSERT INTO " + InterfaceDatabase.TABLE_NAME + " VALUES (" + id
+                        + ", 'hash" + id + "', 'mac" + id + "')");
+                statement.execute("INSERT INTO " + ContactInterfaceDatabase.TABLE_NAME + " ("
+                        + ContactInterfaceDatabase.CONTACT_DBID + ", " + ContactInterfaceDatabase.INTERFACE_DBID
+                        + ") VALUES (" + c + ", " + id + ")");
+            }
+        }
+        for(int s = 1; s <= NB_STATUSES; s++) {
+            statement.execute("INSERT INTO " + PushStatusDatabase.TABLE_NAME + " (" + PushStatusDatabase.ID + ", "
+                    + PushStatusDatabase.UUID + ", " + PushStatusDatabase.AUTHOR_DBID + ", "
+                    + PushStatusDatabase.GROUP_DBID + ", " + PushStatusDatabase.TIME_OF_ARRIVAL + ") VALUES ("
+                    + s + ", 'status" + s + "', " + (1 + random.nextInt(NB_CONTACTS)) + ", "
+                    + (1 + random.nextInt(NB_GROUPS)) + ", " + s + ")");
+            for(int i = random.nextInt(5); i > 0; i--)
+                statement.execute("INSERT OR IGNORE INTO " + StatusTagDatabase.TABLE_NAME
+                        + " VALUES (" + (1 + random.nextInt(NB_HASHTAGS)) + ", " + s + ")");
+        }
+        statement.close();
+        database.commit();
+        database.setAutoCommit(true);
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        database.close();
+    }
+
+    private List<Object[]> query(String sql, Object... args) throws SQLException {
+        queries++;
+        PreparedStatement statement = database.prepareStatement(sql);
+        try {
+            for(int i = 0; i < args.length; i++)
+                statement.setObject(i + 1, args[i]);
+            ResultSet result = statement.executeQuery();
+            int columns = result.getMetaData().getColumnCount();
+            List<Object[]> rows = new ArrayList<Object[]>();
+            while(result.next()) {
+                Object[] row = new Object[columns];
+                for(int i = 0; i < columns; i++)
+                    row[i] = result.getObject(i + 1);
+                rows.add(row);
+            }
+            return rows;
+        } finally {
+            statement.close();
+        }
+    }
+
+    private static long id(Object o) {
+        return ((Number)o).longValue();
+    }
+
+    // status dbid, author dbid, group dbid of the most recent statuses
+    private List<Object[]> page(int size) throws SQLException {
+        return query("SELECT " + PushStatusDatabase.ID + ", " + PushStatusDatabase.AUTHOR_DBID + ", "
+                + PushStatusDatabase.GROUP_DBID + " FROM " + PushStatusDatabase.TABLE_NAME
+                + " ORDER BY " + PushStatusDatabase.TIME_OF_ARRIVAL + " DESC LIMIT ?", size);
+    }
+
+    List<Hydrated> perRow(int size) throws SQLException {
+        List<Hydrated> ret = new ArrayList<Hydrated>();
+        for(Object[] row : page(size)) {
+            Hydrated status = new Hydrated();
+            status.author = (String)query(ContactDatabase.CONTACTS_IN + "( ? )", row[1]).get(0)[1];
+            for(Object[] interest : query(ContactDatabase.INTERESTS_IN + "( ? )", row[1]))
+                status.interests.put((String)interest[1], (int)id(interest[2]));
+            for(Object[] group : query(ContactDatabase.JOINED_GROUPS_IN + "( ? )", row[1]))
+                status.joinedGroups.add((String)group[1]);
+            for(Object[] iface : query(ContactDatabase.INTERFACES_IN + "( ? )", row[1]))
+                status.interfaces.add((String)iface[2]);
+            status.group = (String)query(GroupDatabase.GROUPS_IN + "( ? )", row[2]).get(0)[1];
+            for(Object[] hashtag : query(PushStatusDatabase.HASHTAGS_IN + "( ? )", row[0]))
+                status.hashtags.add((String)hashtag[1]);
+            ret.add(status);
+        }
+        return ret;
+    }
+
+    List<Hydrated> perPage(int size) throws SQLException {
+        List<Object[]> rows = page(size);
+        Set<Long> statuses = new LinkedHashSet<Long>();
+        Set<Long> authors  = new LinkedHashSet<Long>();
+        Set<Long> groups   = new LinkedHashSet<Long>();
+        for(Object[] row : rows) {
+            statuses.add(id(row[0]));
+            authors.add(id(row[1]));
+            groups.add(id(row[2]));
+        }
+
+        Map<Long, Hydrated> contacts = new HashMap<Long, Hydrated>();
+        for(Object[] contact : query(ContactDatabase.CONTACTS_IN + Database.inList(authors))) {
+            Hydrated status = new Hydrated();
+            status.author = (String)contact[1];
+            contacts.put(id(contact[0]), status);
+        }
+        for(Object[] interest : query(ContactDatabase.INTERESTS_IN + Database.inList(authors)))
+            contacts.get(id(interest[0])).interests.put((String)interest[1], (int)id(interest[2]));
+        for(Object[] group : query(ContactDatabase.JOINED_GROUPS_IN + Database.inList(authors)))
+            contacts.get(id(group[0])).joinedGroups.add((String)group[1]);
+        for(Object[] iface : query(ContactDatabase.INTERFACES_IN + Database.inList(authors)))
+            contacts.get(id(iface[0])).interfaces.add((String)iface[2]);
+        Map<Long, String> gids = new HashMap<Long, String>();
+        for(Object[] group : query(GroupDatabase.GROUPS_IN + Database.inList(groups)))
+            gids.put(id(group[0]), (String)group[1]);
+        Map<Long, Set<String>> hashtags = new HashMap<Long, Set<String>>();
+        for(Object[] hashtag : query(PushStatusDatabase.HASHTAGS_IN + Database.inList(statuses))) {
+            Set<String> set = hashtags.get(id(hashtag[0]));
+            if(set == null) {
+                set = new HashSet<String>();
+                hashtags.put(id(hashtag[0]), set);
+            }
+            set.add((String)hashtag[1]);
+        }
+
+        List<Hydrated> ret = new ArrayList<Hydrated>();
+        for(Object[] row : rows) {
+            Hydrated author = contacts.get(id(row[1]));
+            Hydrated status = new Hydrated();
+            status.author = author.author;
+            status.interests = author.interests;
+            status.joinedGroups = author.joinedGroups;
+            status.interfaces = author.interfaces;
+            status.group = gids.get(id(row[2]));
+            Set<String> set = hashtags.get(id(row[0]));
+            if(set != null)
+                status.hashtags = set;
+            ret.add(status);
+        }
+        return ret;
+    }
+
+    /*
+     * both paths give the same statuses, in 1 + 6 queries per status per row and in 7
+     * queries per page (see StatusHydrationBenchmark for the time they take)
+     */
+    @Test
+    public void aPageIsHydratedInSevenQueries() throws SQLException {
+        for(int size : new int[]{10, 100, 1000}) {
+            queries = 0;
+            List<Hydrated> expected = perRow(size);
+            assertEquals(1 + 6 * size, queries);
+
+            queries = 0;
+            List<Hydrated> actual = perPage(size);
+            assertEquals(7, queries);
+
+            assertEquals(size, actual.size());
+            assertEquals(expected, actual);
+        }
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ *
+ * This file is part of Rumble.
+ *
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.database;
+
+import org.disrupted.rumble.database.events.FileInsertedEvent;
+import org.disrupted.rumble.database.objects.Contact;
+import org.disrupted.rumble.database.objects.Group;
+import org.disrupted.rumble.database.objects.PushStatus;
+import org.disrupted.rumble.network.protocols.events.PushStatusReceived;
+import org.disrupted.rumble.util.CompressedBitmap;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks how the StatusIngestor groups the received statuses in batches (at most
+ * MAX_BATCH_SIZE statuses, waiting at most MAX_BATCH_DELAY for more), that a status that
+ * fails is skipped without the rest of its batch and that a batch that cannot be committed
+ * is rolled back: caches invalidated, files released and no event posted.
+ *
+ * @author Lucien Loiseau
+ */
+public class StatusIngestorTest {
+
+    private static final Group   GROUP  = new Group("group", "gid", null);
+    private static final Contact AUTHOR = new Contact("author", "author-uid", false);
+
+    /*
+     * stores the statuses in memory, every call is recorded
+     */
+    private static class FakeStore implements StatusIngestor.Store {
+        final List<Integer>  batches     = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<String>   stored      = Collections.synchronizedList(new ArrayList<String>());
+        final List<String>   released    = Collections.synchronizedList(new ArrayList<String>());
+        final List<Object>   posted      = Collections.synchronizedList(new ArrayList<Object>());
+        final List<String>   invalidated = Collections.synchronizedList(new ArrayList<String>());
+        final Set<PushStatusReceived> cleaned = Collections.synchronizedSet(new HashSet<PushStatusReceived>());
+        final Set<String>    failing     = Collections.synchronizedSet(new HashSet<String>());
+        final Semaphore      done        = new Semaphore(0);  // a permit per status cleaned up
+        volatile int     cacheInvalidations = 0;
+        volatile boolean failCommit = false;
+        volatile CountDownLatch hold = null;   // holds the first transaction until counted down
+        volatile CountDownLatch holding = new CountDownLatch(1);
+
+        private int size;
+        private List<Object> held;
+
+        @Override
+        public String storeAttachedFile(PushStatusReceived event) throws Exception {
+            if(event.tempfile.equals(""))
+                return null;
+            if(event.tempfile.equals("refused"))
+                throw new Exception("refused");
+            return "SHA256_" + event.tempfile;
+        }
+
+        @Override
+        public void beginTransaction() {
+            holding.countDown();
+            CountDownLatch latch = hold;
+            if(latch != null) {
+                try {
+                    latch.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException ignore) {
+                }
+                hold = null;
+            }
+            size = 0;
+            held = new LinkedList<Object>();
+        }
+
+        @Override
+        public PushStatus storeStatus(PushStatusReceived event, String attachment,
+                                      Map<Long, CompressedBitmap> delivered, Set<String> updated) {
+            size++;
+            if(failing.contains(event.status.getPost()))
+                throw new IllegalStateException("cannot store " + event.status.getPost());
+            event.status.setFileName(attachment);
+            updated.add(event.senderID);
+            held.add(event.status.getPost());
+            return event.status;
+        }
+
+        @Override
+        public void addStatuses(Map<Long, CompressedBitmap> delivered) {
+        }
+
+        @Override
+        public void setTransactionSuccessful() {
+        }
+
+        @Override
+        public List<Object> endTransaction() {
+            batches.add(size);
+            if(failCommit)
+                throw new IllegalStateException("disk full");
+            for(Object post : held)
+                stored.add((String)post);
+            return held;
+        }
+
+        @Override
+        public void invalidateContact(String uid) {
+            invalidated.add(uid);
+        }
+
+        @Override
+        public void invalidateCaches() {
+            cacheInvalidations++;
+        }
+
+        @Override
+        public void releaseAttachedFile(String filename) {
+            if(filename != null)
+                released.add(filename);
+        }
+
+        @Override
+        public void cleanUp(PushStatusReceived event) {
+            cleaned.add(event);
+            done.release();
+        }
+
+        @Override
+        public void post(Object event) {
+            posted.add(event);
+        }
+    }
+
+    private FakeStore      store;
+    private StatusIngestor ingestor;
+
+    @Before
+    public void setUp() {
+        store = new FakeStore();
+        ingestor = new StatusIngestor(store);
+        ingestor.start();
+    }
+
+    @After
+    public void tearDown() {
+        ingestor.stop();
+    }
+
+    private static PushStatusReceived received(int i, String tempfile) {
+        PushStatus status = new PushStatus(AUTHOR, GROUP, "status " + i, i, "sender");
+        return new PushStatusReceived(status, GROUP.getGid(), "sender", tempfile, "protocol", "link");
+    }
+
+    /*
+     * a status is cleaned up last, once its batch is committed or rolled back
+     */
+    private void awaitDone(int statuses) throws InterruptedException {
+        assertTrue(store.done.tryAcquire(statuses, 5, TimeUnit.SECONDS));
+    }
+
+    // the statistics are updated after the statuses are cleaned up
+    private void awaitBatchCommitted(long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while((ingestor.getNbBatchCommitted() < count) && (System.currentTimeMillis() < deadline))
+            Thread.sleep(1);
+        assertEquals(count, ingestor.getNbBatchCommitted());
+    }
+
+    /*
+     * the statuses that arrive while a batch is being stored are stored by batches of
+     * MAX_BATCH_SIZE, without waiting
+     */
+    @Test
+    public void aBurstIsStoredByBatchesOfMaxBatchSize() throws InterruptedException {
+        store.hold = new CountDownLatch(1);
+        CountDownLatch hold = store.hold;
+        ingestor.add(received(0, ""));
+        assertTrue(store.holding.await(5, TimeUnit.SECONDS));
+        int burst = 3 * StatusIngestor.MAX_BATCH_SIZE + 7;
+        for(int i = 1; i <= burst; i++)
+            ingestor.add(received(i, ""));
+        hold.countDown();
+
+        awaitDone(burst + 1);
+        awaitBatchCommitted(5);
+        assertEquals("[1, " + StatusIngestor.MAX_BATCH_SIZE + ", " + StatusIngestor.MAX_BATCH_SIZE + ", "
+                + StatusIngestor.MAX_BATCH_SIZE + ", 7]", store.batches.toString());
+        assertEquals(burst + 1, store.stored.size());
+        for(int i = 0; i <= burst; i++)
+            assertEquals("status " + i, store.stored.get(i));
+        assertEquals(burst + 1, ingestor.getNbStatusIngested());
+    }
+
+    /*
+     * a lone status is stored after MAX_BATCH_DELAY, and the statuses that arrive further
+     * apart than MAX_BATCH_DELAY are stored in separate batches
+     */
+    @Test
+    public void aBatchWaitsAtMostMaxBatchDelay() throws InterruptedException {
+        long start = System.nanoTime();
+        ingestor.add(received(0, ""));
+        awaitDone(1);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(elapsed >= StatusIngestor.MAX_BATCH_DELAY);
+        assertTrue(elapsed < 1000);
+
+        Thread.sleep(20 * StatusIngestor.MAX_BATCH_DELAY);
+        ingestor.add(received(1, ""));
+        awaitDone(1);
+        assertEquals("[1, 1]", store.batches.toString());
+
+        // within the delay, they share the batch
+        ingestor.add(received(2, ""));
+        ingestor.add(received(3, ""));
+        awaitDone(2);
+        assertEquals("[1, 1, 2]", store.batches.toString());
+    }
+
+    @Test
+    public void aFailingStatusDoesNotFailItsBatch() throws InterruptedException {
+        store.hold = new CountDownLatch(1);
+        CountDownLatch hold = store.hold;
+        ingestor.add(received(0, ""));
+        assertTrue(store.holding.await(5, TimeUnit.SECONDS));
+        store.failing.add("status 2");
+        PushStatusReceived failing = received(2, "file2");
+        ingestor.add(received(1, "file1"));
+        ingestor.add(failing);
+        ingestor.add(received(3, "refused"));
+        ingestor.add(received(4, ""));
+        hold.countDown();
+
+        awaitDone(5);
+        assertEquals("[1, 4]", store.batches.toString());
+        assertEquals("[status 0, status 1, status 3, status 4]", store.stored.toString());
+        assertEquals(0, store.cacheInvalidations);
+        // the failed status is cleaned up and its file released (unpinned) like the others
+        assertTrue(store.cleaned.contains(failing));
+        assertEquals(5, store.cleaned.size());
+        assertEquals("[SHA256_file1, SHA256_file2]", store.released.toString());
+        // only the stored file is announced
+        int files = 0;
+        for(Object event : store.posted) {
+            if(event instanceof FileInsertedEvent)
+                files++;
+        }
+        assertEquals(1, files);
+        assertTrue(store.posted.contains("status 1"));
+        assertTrue(!store.posted.contains("status 2"));
+    }
+
+    /*
+     * the caches are invalidated, the files released, the events dropped and the
+     * statuses cleaned up; the ingestor goes on with the next batch
+     */
+    @Test
+    public void aBatchThatCannotBeCommittedIsRolledBack() throws InterruptedException {
+        store.failCommit = true;
+        PushStatusReceived first  = received(1, "file1");
+        PushStatusReceived second = received(2, "");
+        ingestor.add(first);
+        ingestor.add(second);
+        awaitDone(2);
+        assertEquals(1, store.cacheInvalidations);
+        assertEquals("[SHA256_file1]", store.released.toString());
+        assertTrue(store.cleaned.contains(first) && store.cleaned.contains(second));
+        assertTrue(store.posted.isEmpty());
+        assertTrue(store.invalidated.isEmpty());
+        assertEquals(0, ingestor.getNbStatusIngested());
+        assertEquals(0, ingestor.getNbBatchCommitted());
+
+        store.failCommit = false;
+        ingestor.add(received(3, ""));
+        awaitDone(1);
+        assertEquals("[status 3]", store.stored.toString());
+        awaitBatchCommitted(1);
+    }
+
+    /*
+     * the contacts written by a batch are invalidated again once it is committed
+     */
+    @Test
+    public void theUpdatedContactsAreInvalidatedAfterTheCommit() throws InterruptedException {
+        ingestor.add(received(1, ""));
+        awaitDone(1);
+        assertEquals("[sender]", store.invalidated.toString());
+    }
+
+    @Test
+    public void stoppingCleansUpTheQueuedStatuses() throws InterruptedException {
+        store.hold = new CountDownLatch(1);
+        CountDownLatch hold = store.hold;
+        ingestor.add(received(0, ""));
+        assertTrue(store.holding.await(5, TimeUnit.SECONDS));
+        PushStatusReceived queued = received(1, "");
+        ingestor.add(queued);
+        ingestor.stop();
+        assertTrue(store.cleaned.contains(queued));
+        assertTrue(!ingestor.add(received(2, "")));
+        hold.countDown();
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ *
+ * This file is part of Rumble.
+ *
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.database;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the full-text search of PushStatusDatabase on the FTS4 table of the desktop SQLite
+ * (filled by the triggers of the migration): the query built from the text typed by the user,
+ * the ranking computed from matchinfo and the cap on the ranked candidates.
+ *
+ * @author Lucien Loiseau
+ */
+public class StatusSearchTest {
+
+    Connection connection;
+    private PreparedStatement insertStatus;
+    private PreparedStatement insertTag;
+    private Map<String, Long> hashtags;
+
+    @Before
+    public void setUp() throws SQLException {
+        connection = TestDatabase.open();
+        insertStatus = connection.prepareStatement("INSERT INTO " + PushStatusDatabase.TABLE_NAME
+                + " (" + PushStatusDatabase.ID + ", " + PushStatusDatabase.UUID + ", " + PushStatusDatabase.POST
+                + ") VALUES (?, ?, ?)");
+        insertTag = connection.prepareStatement("INSERT OR IGNORE INTO " + StatusTagDatabase.TABLE_NAME
+                + " (" + StatusTagDatabase.HDBID + ", " + StatusTagDatabase.SDBID + ") VALUES (?, ?)");
+        hashtags = new HashMap<String, Long>();
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        insertStatus.close();
+        insertTag.close();
+        connection.close();
+    }
+
+    void insert(long dbid, String post, String... tags) throws SQLException {
+        insertStatus.setLong(1, dbid);
+        insertStatus.setString(2, "status-" + dbid);
+        insertStatus.setString(3, post);
+        insertStatus.executeUpdate();
+        for(String tag : tags) {
+            Long hdbid = hashtags.get(tag);
+            if(hdbid == null) {
+                hdbid = (long)(hashtags.size() + 1);
+                hashtags.put(tag, hdbid);
+                PreparedStatement statement = connection.prepareStatement("INSERT INTO "
+                        + HashtagDatabase.TABLE_NAME + " VALUES (?, ?)");
+                statement.setLong(1, hdbid);
+                statement.setString(2, tag);
+                statement.executeUpdate();
+                statement.close();
+            }
+            insertTag.setLong(1, hdbid);
+            insertTag.setLong(2, dbid);
+            insertTag.executeUpdate();
+        }
+    }
+
+    /*
+     * the dbids of the statuses matching text, the most relevant first (see searchStatuses)
+     */
+    List<Long> search(String text) throws SQLException {
+        List<long[]> ranked = new ArrayList<long[]>();
+        PreparedStatement statement = connection.prepareStatement(PushStatusDatabase.SEARCH_CANDIDATES);
+        try {
+            statement.setString(1, PushStatusDatabase.toMatchQuery(text));
+            statement.setInt(2, PushStatusDatabase.MAX_SEARCH_CANDIDATES);
+            ResultSet result = statement.executeQuery();
+            while(result.next()) {
+                float score = PushStatusDatabase.score(result.getBytes(2));
+                ranked.add(new long[]{result.getLong(1), Float.floatToIntBits(score)});
+            }
+            result.close();
+        } finally {
+            statement.close();
+        }
+        Collections.sort(ranked, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                int byScore = Float.compare(Float.intBitsToFloat((int) b[1]), Float.intBitsToFloat((int) a[1]));
+                if(byScore != 0)
+                    return byScore;
+                return (a[0] < b[0]) ? 1 : ((a[0] == b[0]) ? 0 : -1);
+            }
+        });
+        List<Long> ret = new ArrayList<Long>();
+        for(long[] candidate : ranked)
+            ret.add(candidate[0]);
+        return ret;
+    }
+
+    @Test
+    public void matchQuery() {
+        assertEquals("hello world*", PushStatusDatabase.toMatchQuery("  Hello,  World! "));
+        assertEquals("rumble*", PushStatusDatabase.toMatchQuery("#Rumble"));
+        // the operators of FTS are upper case, they are not exposed
+        assertEquals("cats or dogs*", PushStatusDatabase.toMatchQuery("cats OR \"dogs\""));
+        assertEquals("notme*", PushStatusDatabase.toMatchQuery("-notme"));
+        assertNull(PushStatusDatabase.toMatchQuery(" !! ?"));
+        assertNull(PushStatusDatabase.toMatchQuery(null));
+    }
+
+    private static byte[] matchinfo(int rows, int[]... phraseColumns) {
+        int columns = phraseColumns[0].length / 2;
+        ByteBuffer buffer = ByteBuffer.allocate(4 * (3 + 3 * phraseColumns.length * columns)).order(ByteOrder.nativeOrder());
+        buffer.putInt(phraseColumns.length).putInt(columns).putInt(rows);
+        for(int[] hitsAndDocs : phraseColumns) {
+            for(int c = 0; c < columns; c++) {
+                buffer.putInt(hitsAndDocs[2 * c]);      // hits in this row
+                buffer.putInt(hitsAndDocs[2 * c]);      // hits in every row, unused
+                buffer.putInt(hitsAndDocs[2 * c + 1]);  // rows with a hit
+            }
+        }
+        return buffer.array();
+    }
+
+    @Test
+    public void score() {
+        assertEquals(0, PushStatusDatabase.score(null), 0);
+        // a rare word weighs more than a common one
+        assertTrue(PushStatusDatabase.score(matchinfo(1000, new int[]{1, 10, 0, 0}))
+                > PushStatusDatabase.score(matchinfo(1000, new int[]{1, 500, 0, 0})));
+        // the hashtags weigh more than the post
+        assertTrue(PushStatusDatabase.score(matchinfo(1000, new int[]{0, 10, 1, 10}))
+                > PushStatusDatabase.score(matchinfo(1000, new int[]{1, 10, 0, 10})));
+        // more hits is better, but it saturates
+        float one   = PushStatusDatabase.score(matchinfo(1000, new int[]{1, 10, 0, 0}));
+        float two   = PushStatusDatabase.score(matchinfo(1000, new int[]{2, 10, 0, 0}));
+        float many  = PushStatusDatabase.score(matchinfo(1000, new int[]{50, 10, 0, 0}));
+        assertTrue(one < two && two < many);
+        assertTrue(many < one * (1.2f + 1));
+        // every phrase counts
+        assertTrue(PushStatusDatabase.score(matchinfo(1000, new int[]{1, 10, 0, 0}, new int[]{1, 10, 0, 0})) > one);
+    }
+
+    @Test
+    public void ranking() throws SQLException {
+        insert(1, "we met at the rumble festival", "#music");
+        insert(2, "a post about nothing", "#rumble");
+        insert(3, "rumble rumble rumble all night long", "#music");
+        insert(4, "mumble jumble", "#other");
+        insert(5, "the android app of rumble", "#android");
+        for(int i = 6; i < 100; i++)
+            insert(i, "filler " + i, "#filler");
+
+        List<Long> result = search("rumble");
+        assertEquals(4, result.size());
+        assertEquals(2L, (long)result.get(0));       // in the hashtags
+        assertEquals(3L, (long)result.get(1));       // many times in the post
+        assertEquals(5L, (long)result.get(2));       // same score, the most recent first
+        assertEquals(1L, (long)result.get(3));
+
+        // the last word is a prefix, every word must match
+        assertEquals(4, search("rum").size());
+        assertEquals(1, search("Rumble #Andro").size());
+        assertEquals(5L, (long)search("Rumble #Andro").get(0));
+        assertTrue(search("rumble nowhere").isEmpty());
+
+        // the hashtags follow the tags and the deletes
+        insert(100, "nothing to see", "#rumble", "#android");
+        assertEquals(2, search("android").size());
+        assertTrue(search("android").contains(100L));
+        connection.createStatement().execute("DELETE FROM " + PushStatusDatabase.TABLE_NAME
+                + " WHERE " + PushStatusDatabase.ID + " = 100");
+        assertEquals(1, search("android").size());
+    }
+
+    /*
+     * only the MAX_SEARCH_CANDIDATES most recent matches are ranked, an older status is left
+     * out even if it is the most relevant one
+     */
+    @Test
+    public void onlyTheMostRecentCandidatesAreRanked() throws SQLException {
+        connection.setAutoCommit(false);
+        insert(1, "rumble rumble rumble", "#rumble");
+        for(int i = 2; i <= PushStatusDatabase.MAX_SEARCH_CANDIDATES + 1; i++)
+            insert(i, "a rumble " + i);
+        connection.commit();
+        connection.setAutoCommit(true);
+
+        List<Long> result = search("rumble");
+        assertEquals(PushStatusDatabase.MAX_SEARCH_CANDIDATES, result.size());
+        assertFalse(result.contains(1L));
+
+        // once a newer match is gone, it is back in the candidates and ranked first
+        connection.createStatement().execute("DELETE FROM " + PushStatusDatabase.TABLE_NAME
+                + " WHERE " + PushStatusDatabase.ID + " = 2");
+        assertEquals(1L, (long)search("rumble").get(0));
+    }
+}
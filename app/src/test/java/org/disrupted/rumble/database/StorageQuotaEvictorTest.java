@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ *
+ * This file is part of Rumble.
+ *
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.database;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives the StorageQuotaEvictor (a pass every CHECK_EVERY_INSERTS inserts, batches of
+ * EVICTION_BATCH_SIZE candidates from PushStatusDatabase.EVICTION_CANDIDATES down to
+ * LOW_WATERMARK) against a sustained synthetic ingest, and checks that the budget holds, that
+ * saved and local statuses are never evicted, that only the files actually unlinked are
+ * counted as evicted bytes and that the album is measured once per pass (the album is
+ * simulated, a file being shared by the statuses that carry the same content).
+ *
+ * @author Lucien Loiseau
+ */
+public class StorageQuotaEvictorTest {
+
+    private static final int  NB_INSERTS    = 20000;
+    private static final long LOCAL_CONTACT  = 1;
+    private static final long REMOTE_CONTACT = 2;
+
+    private Connection database;
+    private PreparedStatement insert;
+    private PreparedStatement candidates;
+    private PreparedStatement file;
+    private PreparedStatement delete;
+    private PreparedStatement references;
+
+    private Map<String, Long> album;      // the attached files and their size
+    private long   albumBytes;
+    private long   albumMeasures;
+    private long   candidateFileBytes;    // what was counted before, shared files included
+    private long   protectedStatuses;
+    private long   maxStatuses;
+    private long   maxBytes;
+
+    private StorageQuotaEvictor evictor;
+
+    @Before
+    public void setUp() throws SQLException {
+        database = TestDatabase.open();
+        Statement statement = database.createStatement();
+        statement.execute("INSERT INTO " + ContactDatabase.TABLE_NAME + " (" + ContactDatabase.ID + ", "
+                + ContactDatabase.UID + ", " + ContactDatabase.LOCALUSER + ") VALUES (" + LOCAL_CONTACT + ", 'local', 1)");
+        statement.execute("INSERT INTO " + ContactDatabase.TABLE_NAME + " (" + ContactDatabase.ID + ", "
+                + ContactDatabase.UID + ", " + ContactDatabase.LOCALUSER + ") VALUES (" + REMOTE_CONTACT + ", 'remote', 0)");
+        statement.close();
+
+        insert = database.prepareStatement("INSERT INTO " + PushStatusDatabase.TABLE_NAME + " ("
+                + PushStatusDatabase.UUID + ", " + PushStatusDatabase.AUTHOR_DBID + ", "
+                + PushStatusDatabase.FILE_NAME + ", " + PushStatusDatabase.TIME_OF_ARRIVAL + ", "
+                + PushStatusDatabase.LIKE + ", " + PushStatusDatabase.DUPLICATE + ", "
+                + PushStatusDatabase.USERLIKED + ", " + PushStatusDatabase.USERSAVED
+                + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
+        candidates = database.prepareStatement(PushStatusDatabase.EVICTION_CANDIDATES);
+        file = database.prepareStatement("SELECT " + PushStatusDatabase.FILE_NAME + " FROM "
+                + PushStatusDatabase.TABLE_NAME + " WHERE " + PushStatusDatabase.ID + " = ?");
+        delete = database.prepareStatement("DELETE FROM " + PushStatusDatabase.TABLE_NAME
+                + " WHERE " + PushStatusDatabase.ID + " = ? AND " + PushStatusDatabase.USERSAVED + " = 0");
+        references = database.prepareStatement("SELECT count(*) FROM " + PushStatusDatabase.TABLE_NAME
+                + " WHERE " + PushStatusDatabase.FILE_NAME + " = ?");
+
+        album = new HashMap<String, Long>();
+        albumBytes = 0;
+        albumMeasures = 0;
+        candidateFileBytes = 0;
+        protectedStatuses = 0;
+        evictor = new StorageQuotaEvictor(new TestStorage());
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        database.close();
+    }
+
+    private long longForQuery(String sql) throws SQLException {
+        Statement statement = database.createStatement();
+        try {
+            ResultSet result = statement.executeQuery(sql);
+            result.next();
+            return result.getLong(1);
+        } finally {
+            statement.close();
+        }
+    }
+
+    private long statusCount() throws SQLException {
+        return longForQuery("SELECT count(*) FROM " + PushStatusDatabase.TABLE_NAME);
+    }
+
+    // as PushStatusDatabase.getDatabaseSize
+    private long databaseBytes() throws SQLException {
+        long pageSize  = longForQuery("PRAGMA page_size");
+        long pageCount = longForQuery("PRAGMA page_count");
+        long freePages = longForQuery("PRAGMA freelist_count");
+        return (pageCount - freePages) * pageSize;
+    }
+
+    // as AttachmentStore.release
+    private long release(String name) throws SQLException {
+        if((name == null) || !album.containsKey(name))
+            return 0;
+        references.setString(1, name);
+        ResultSet result = references.executeQuery();
+        result.next();
+        long count = result.getLong(1);
+        result.close();
+        if(count > 0)
+            return 0;
+        long length = album.remove(name);
+        albumBytes -= length;
+        return length;
+    }
+
+    /*
+     * the statuses table of the desktop SQLite and the simulated album
+     */
+    private class TestStorage implements StorageQuotaEvictor.Storage {
+
+        @Override
+        public long getMaxStatuses() {
+            return maxStatuses;
+        }
+
+        @Override
+        public long getMaxBytes() {
+            return maxBytes;
+        }
+
+        @Override
+        public long getStatusCount() {
+            try {
+                return statusCount();
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public long getDatabaseSize() {
+            try {
+                return databaseBytes();
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public long getAlbumSize() {
+            albumMeasures++;
+            return albumBytes;
+        }
+
+        @Override
+        public Map<Long, String> getEvictionCandidates(long now, int limit) {
+            Map<Long, String> batch = new LinkedHashMap<Long, String>();
+            try {
+                candidates.setLong(1, now);
+                candidates.setInt(2, limit);
+                ResultSet result = candidates.executeQuery();
+                while(result.next())
+                    batch.put(result.getLong(1), result.getString(2));
+                result.close();
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+            for(String filename : batch.values())
+                if(filename != null)
+                    candidateFileBytes += album.get(filename);
+            return batch;
+        }
+
+        // as PushStatusDatabase.evictStatuses
+        @Override
+        public int evictStatuses(List<Long> dbids, Map<String, Long> released) {
+            try {
+                List<String> files = new ArrayList<String>();
+                int count = 0;
+                for(Long dbid : dbids) {
+                    file.setLong(1, dbid);
+                    ResultSet result = file.executeQuery();
+                    String filename = result.next() ? result.getString(1) : null;
+                    result.close();
+                    delete.setLong(1, dbid);
+                    if(delete.executeUpdate() == 0)
+                        continue;
+                    count++;
+                    if(filename != null)
+                        files.add(filename);
+                }
+                for(String filename : files) {
+                    long bytes = release(filename);
+                    if(bytes > 0)
+                        released.put(filename, bytes);
+                }
+                return count;
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /*
+     * a check and the batches it queues, see StorageQuotaEvictor.EvictionQuery
+     */
+    private void check() {
+        long measures = albumMeasures;
+        StorageQuotaEvictor.Pass pass = new StorageQuotaEvictor.Pass();
+        while(evictor.evictBatch(pass));
+        assertEquals(measures + 1, albumMeasures);
+    }
+
+    /*
+     * inserts NB_INSERTS statuses, one per minute. filePercent of them carry a file, a third of
+     * which is a copy of a recent file. one percent is saved and one percent is local.
+     */
+    private void ingest(long maxStatuses, long maxBytes, int filePercent, int maxFileSize) throws SQLException {
+        this.maxStatuses = maxStatuses;
+        this.maxBytes = maxBytes;
+        Random random = new Random(42);
+        List<String> recentFiles = new ArrayList<String>();
+        long addedFileBytes = 0;
+        long now = 0;
+        for(int i = 1; i <= NB_INSERTS; i++) {
+            now += 60000;
+            String filename = null;
+            if(random.nextInt(100) < filePercent) {
+                if(!recentFiles.isEmpty() && (random.nextInt(3) == 0)) {
+                    filename = recentFiles.get(random.nextInt(recentFiles.size()));
+                } else {
+                    filename = "SHA256_" + i + ".jpg";
+                    recentFiles.add(filename);
+                    if(recentFiles.size() > 50)
+                        recentFiles.remove(0);
+                }
+                if(!album.containsKey(filename)) {
+                    long length = 1 + random.nextInt(maxFileSize);
+                    album.put(filename, length);
+                    albumBytes += length;
+                    addedFileBytes += length;
+                }
+            }
+            boolean local = (random.nextInt(100) == 0);
+            boolean saved = (random.nextInt(100) == 0);
+            if(local || saved)
+                protectedStatuses++;
+            insert.setString(1, "status-" + i);
+            insert.setLong(2, local ? LOCAL_CONTACT : REMOTE_CONTACT);
+            insert.setString(3, filename);
+            insert.setLong(4, now);
+            insert.setInt(5, random.nextInt(4));
+            insert.setInt(6, random.nextInt(4));
+            insert.setInt(7, (random.nextInt(20) == 0) ? 1 : 0);
+            insert.setInt(8, saved ? 1 : 0);
+            insert.executeUpdate();
+
+            // between two checks the storage may only grow by CHECK_EVERY_INSERTS statuses
+            assertTrue(statusCount() <= maxStatuses + StorageQuotaEvictor.CHECK_EVERY_INSERTS);
+
+            if((i % StorageQuotaEvictor.CHECK_EVERY_INSERTS) == 0) {
+                check();
+                assertTrue(statusCount() <= maxStatuses);
+                assertTrue(databaseBytes() + albumBytes <= maxBytes);
+            }
+        }
+
+        // nothing that was saved or written locally has been evicted
+        assertEquals(protectedStatuses, longForQuery("SELECT count(*) FROM " + PushStatusDatabase.TABLE_NAME
+                + " WHERE " + PushStatusDatabase.USERSAVED + " = 1 OR "
+                + PushStatusDatabase.AUTHOR_DBID + " = " + LOCAL_CONTACT));
+        assertEquals(NB_INSERTS, statusCount() + evictor.getEvictedStatuses());
+
+        // the evicted bytes are exactly the bytes that left the album
+        assertEquals(addedFileBytes - albumBytes, evictor.getEvictedFileBytes());
+    }
+
+    @Test
+    public void statusBudgetHolds() throws SQLException {
+        ingest(2000, 1L << 40, 0, 1);
+        assertEquals(0, evictor.getEvictedFileBytes());
+    }
+
+    @Test
+    public void byteBudgetHolds() throws SQLException {
+        ingest(NB_INSERTS, 4 * 1024 * 1024, 30, 64 * 1024);
+        assertTrue(evictor.getEvictedStatuses() > 0);
+        // shared files are not counted until their last status is gone
+        assertTrue(candidateFileBytes > evictor.getEvictedFileBytes());
+    }
+}
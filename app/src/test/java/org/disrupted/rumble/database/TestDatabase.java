@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ *
+ * This file is part of Rumble.
+ *
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.database;
+
+import android.database.Cursor;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * The main database in a desktop SQLite, for the tests of the queries. It is built by the
+ * very same steps as on the device: DatabaseFactory.createVersion1 then every migration.
+ *
+ * @author Lucien Loiseau
+ */
+public class TestDatabase {
+
+    public static Connection open() throws SQLException {
+        return open(null);
+    }
+
+    // in memory if file is null
+    public static Connection open(File file) throws SQLException {
+        Connection connection = openVersion1(file);
+        DatabaseMigration.upgrade(wrap(connection), DatabaseFactory.MIGRATIONS, 1, DatabaseFactory.DATABASE_VERSION);
+        return connection;
+    }
+
+    /*
+     * a database as it was created by the first release, before any migration
+     */
+    public static Connection openVersion1() throws SQLException {
+        return openVersion1(null);
+    }
+
+    public static Connection openVersion1(File file) throws SQLException {
+        try {
+            Class.forName("org.sqlite.JDBC");
+        } catch(ClassNotFoundException e) {
+            throw new SQLException(e);
+        }
+        Connection connection = DriverManager.getConnection("jdbc:sqlite:" + ((file == null) ? ":memory:" : file.getPath()));
+        DatabaseFactory.createVersion1(wrap(connection));
+        return connection;
+    }
+
+    public static DatabaseMigration.Connection wrap(final Connection connection) {
+        return new DatabaseMigration.Connection() {
+            @Override
+            public void execSQL(String sql) {
+                try {
+                    Statement statement = connection.createStatement();
+                    try {
+                        statement.execute(sql);
+                    } finally {
+                        statement.close();
+                    }
+                } catch(SQLException e) {
+                    throw new RuntimeException(sql, e);
+                }
+            }
+
+            @Override
+            public void execSQL(String sql, Object[] bindArgs) {
+                try {
+                    PreparedStatement statement = connection.prepareStatement(sql);
+                    try {
+                        for(int i = 0; i < bindArgs.length; i++)
+                            statement.setObject(i + 1, bindArgs[i]);
+                        statement.execute();
+                    } finally {
+                        statement.close();
+                    }
+                } catch(SQLException e) {
+                    throw new RuntimeException(sql, e);
+                }
+            }
+
+            @Override
+            public Cursor rawQuery(String sql, String[] selectionArgs) {
+                try {
+                    PreparedStatement statement = connection.prepareStatement(sql);
+                    try {
+                        if(selectionArgs != null) {
+                            for (int i = 0; i < selectionArgs.length; i++)
+                                statement.setString(i + 1, selectionArgs[i]);
+                        }
+                        return new JdbcCursor(statement.executeQuery());
+                    } finally {
+                        statement.close();
+                    }
+                } catch(SQLException e) {
+                    throw new RuntimeException(sql, e);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ *
+ * This file is part of Rumble.
+ *
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.database.events;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Lucien Loiseau
+ */
+public class TableChangesTest {
+
+    @Test
+    public void netChanges() {
+        DatabaseChangeSet.TableChanges<Long> changes = new DatabaseChangeSet.TableChanges<Long>();
+        assertTrue(changes.isEmpty());
+
+        // inserted then updated only appears as inserted
+        changes.insert(1L);
+        changes.update(1L);
+        // inserted then deleted does not appear at all
+        changes.insert(2L);
+        changes.delete(2L);
+        // deleted then inserted again is an update
+        changes.delete(3L);
+        changes.insert(3L);
+        // updated then deleted is a deletion
+        changes.update(4L);
+        changes.delete(4L);
+
+        assertEquals(Collections.singleton(1L), changes.inserted);
+        assertEquals(Collections.singleton(3L), changes.updated);
+        assertEquals(Collections.singleton(4L), changes.deleted);
+        assertFalse(changes.reset);
+    }
+
+    @Test
+    public void wipe() {
+        DatabaseChangeSet.TableChanges<String> changes = new DatabaseChangeSet.TableChanges<String>();
+        changes.insert("a");
+        changes.update("b");
+        changes.delete("c");
+        changes.wipe();
+        assertTrue(changes.reset);
+        assertFalse(changes.isEmpty());
+        assertTrue(changes.inserted.isEmpty() && changes.updated.isEmpty() && changes.deleted.isEmpty());
+
+        changes.insert("d");
+        assertEquals(Collections.singleton("d"), changes.inserted);
+        assertEquals("+1 ~0 -0 reset", changes.toString());
+    }
+
+    /*
+     * a burst of 200 statuses received from a neighbour, each inserted then updated (hashtags,
+     * attached file) and a few of them deleted by the storage quota, is a single change set
+     */
+    @Test
+    public void burst() {
+        DatabaseChangeSet.TableChanges<Long> changes = new DatabaseChangeSet.TableChanges<Long>();
+        int nbEvents = 0;
+        for(long dbid = 1; dbid <= 200; dbid++) {
+            changes.insert(dbid);
+            changes.update(dbid);
+            nbEvents += 2;
+        }
+        for(long dbid = 1; dbid <= 10; dbid++) {
+            changes.delete(dbid);
+            nbEvents++;
+        }
+        assertEquals(410, nbEvents);
+        assertEquals(190, changes.inserted.size());
+        assertTrue(changes.updated.isEmpty());
+        assertTrue(changes.deleted.isEmpty());
+    }
+
+    /*
+     * whatever the order of the events, applying the net changes to the rows displayed before
+     * gives the rows of the table after the events
+     */
+    @Test
+    public void applyingTheChangesGivesTheTable() {
+        Random random = new Random(42);
+        for(int round = 0; round < 1000; round++) {
+            Set<Integer> before = new HashSet<Integer>();
+            for(int key = 0; key < 20; key++)
+                if(random.nextBoolean())
+                    before.add(key);
+
+            Set<Integer> table = new HashSet<Integer>(before);
+            Set<Integer> touched = new HashSet<Integer>();
+            DatabaseChangeSet.TableChanges<Integer> changes = new DatabaseChangeSet.TableChanges<Integer>();
+            int nbEvents = random.nextInt(50);
+            for(int i = 0; i < nbEvents; i++) {
+                if(random.nextInt(100) == 0) {
+                    table.clear();
+                    changes.wipe();
+                    continue;
+                }
+                Integer key = random.nextInt(20);
+                if(!table.contains(key)) {
+                    table.add(key);
+                    changes.insert(key);
+                } else if(random.nextBoolean()) {
+                    table.remove(key);
+                    changes.delete(key);
+                } else {
+                    changes.update(key);
+                }
+                touched.add(key);
+            }
+
+            Set<Integer> displayed = changes.reset ? new HashSet<Integer>() : new HashSet<Integer>(before);
+            displayed.removeAll(changes.deleted);
+            displayed.addAll(changes.inserted);
+            assertEquals(table, displayed);
+
+            assertTrue(touched.containsAll(changes.updated));
+            for(Integer key : changes.updated)
+                assertTrue(table.contains(key) && !changes.inserted.contains(key));
+            for(Integer key : changes.inserted)
+                assertTrue(changes.reset || !before.contains(key));
+            for(Integer key : changes.deleted)
+                assertTrue(before.contains(key) && !table.contains(key));
+        }
+    }
+}
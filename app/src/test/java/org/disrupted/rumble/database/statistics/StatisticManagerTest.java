@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ *
+ * This file is part of Rumble.
+ *
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.database.statistics;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Checks that the message counters of the StatisticManager are never lost nor counted twice:
+ * getMessageCounter merges the persisted and the in-memory values, a flush moves the
+ * increments to the database and a flush that fails keeps them for the next one.
+ *
+ * @author Lucien Loiseau
+ */
+public class StatisticManagerTest {
+
+    /*
+     * the StatMessageDatabase in memory, it fails the flushes while failing is set
+     */
+    private static class FakeStore implements StatisticManager.CounterStore {
+        final Map<String, Long> values = new HashMap<String, Long>();
+        volatile boolean failing = false;
+        int flushes = 0;
+
+        @Override
+        public synchronized void incrementValues(Map<String, Long> deltas) {
+            if(failing)
+                throw new IllegalStateException("database locked");
+            flushes++;
+            for(Map.Entry<String, Long> entry : deltas.entrySet())
+                values.put(entry.getKey(), getValue(entry.getKey(), 0) + entry.getValue());
+        }
+
+        @Override
+        public synchronized long getValue(String key, long defaultValue) {
+            Long value = values.get(key);
+            return (value == null) ? defaultValue : value;
+        }
+    }
+
+    private FakeStore        store;
+    private StatisticManager manager;
+
+    @Before
+    public void setUp() {
+        store = new FakeStore();
+        store.values.put(StatisticManager.KEY_MESSAGE_RECEIVED, 10L);
+        manager = new StatisticManager(store);
+    }
+
+    private void increment(String key, int times) {
+        for(int i = 0; i < times; i++)
+            manager.increment(key);
+    }
+
+    @Test
+    public void theCounterMergesThePersistedAndInMemoryValues() {
+        assertEquals(10, manager.getMessageCounter(StatisticManager.KEY_MESSAGE_RECEIVED));
+        increment(StatisticManager.KEY_MESSAGE_RECEIVED, 3);
+        increment(StatisticManager.KEY_MESSAGE_SENT, 2);
+        assertEquals(13, manager.getMessageCounter(StatisticManager.KEY_MESSAGE_RECEIVED));
+        assertEquals(2, manager.getMessageCounter(StatisticManager.KEY_MESSAGE_SENT));
+        assertEquals(0, manager.getMessageCounter(StatisticManager.KEY_MESSAGE_DUPLICATE));
+        assertEquals(10, store.getValue(StatisticManager.KEY_MESSAGE_RECEIVED, 0));
+    }
+
+    @Test
+    public void aFlushMovesTheIncrementsToTheDatabase() {
+        increment(StatisticManager.KEY_MESSAGE_RECEIVED, 3);
+        increment(StatisticManager.KEY_MESSAGE_DUPLICATE, 1);
+        manager.flush();
+        assertEquals(1, store.flushes);
+        assertEquals(13, store.getValue(StatisticManager.KEY_MESSAGE_RECEIVED, 0));
+        assertEquals(1, store.getValue(StatisticManager.KEY_MESSAGE_DUPLICATE, 0));
+        assertEquals(13, manager.getMessageCounter(StatisticManager.KEY_MESSAGE_RECEIVED));
+        assertEquals(1, manager.getMessageCounter(StatisticManager.KEY_MESSAGE_DUPLICATE));
+
+        // nothing new, nothing written
+        manager.flush();
+        assertEquals(1, store.flushes);
+    }
+
+    @Test
+    public void aFailedFlushKeepsTheIncrements() {
+        increment(StatisticManager.KEY_MESSAGE_RECEIVED, 3);
+        store.failing = true;
+        manager.flush();
+        assertEquals(10, store.getValue(StatisticManager.KEY_MESSAGE_RECEIVED, 0));
+        assertEquals(13, manager.getMessageCounter(StatisticManager.KEY_MESSAGE_RECEIVED));
+
+        increment(StatisticManager.KEY_MESSAGE_RECEIVED, 2);
+        manager.flush();
+        assertEquals(15, manager.getMessageCounter(StatisticManager.KEY_MESSAGE_RECEIVED));
+
+        store.failing = false;
+        manager.flush();
+        assertEquals(15, store.getValue(StatisticManager.KEY_MESSAGE_RECEIVED, 0));
+        assertEquals(15, manager.getMessageCounter(StatisticManager.KEY_MESSAGE_RECEIVED));
+    }
+
+    /*
+     * increments from several threads while the counters are flushed, a flush out of
+     * three failing: every increment ends up in the database exactly once
+     */
+    @Test
+    public void concurrentIncrementsAndFlushes() throws InterruptedException {
+        final int nbThreads = 4;
+        final int nbIncrements = 20000;
+        final AtomicBoolean incrementing = new AtomicBoolean(true);
+        final AtomicBoolean decreased = new AtomicBoolean(false);
+        List<Thread> threads = new ArrayList<Thread>();
+        for(int t = 0; t < nbThreads; t++) {
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    for(int i = 0; i < nbIncrements; i++)
+                        manager.increment(StatisticManager.KEY_MESSAGE_SENT);
+                }
+            });
+        }
+        Thread flusher = new Thread() {
+            @Override
+            public void run() {
+                Random random = new Random(5);
+                long last = 0;
+                while(incrementing.get()) {
+                    store.failing = (random.nextInt(3) == 0);
+                    manager.flush();
+                    long value = manager.getMessageCounter(StatisticManager.KEY_MESSAGE_SENT);
+                    if(value < last)
+                        decreased.set(true);
+                    last = value;
+                }
+            }
+        };
+        flusher.start();
+        for(Thread thread : threads)
+            thread.start();
+        for(Thread thread : threads)
+            thread.join();
+        incrementing.set(false);
+        flusher.join();
+        assertFalse(decreased.get());
+
+        long expected = (long)nbThreads * nbIncrements;
+        assertEquals(expected, manager.getMessageCounter(StatisticManager.KEY_MESSAGE_SENT));
+        store.failing = false;
+        manager.flush();
+        assertEquals(expected, store.getValue(StatisticManager.KEY_MESSAGE_SENT, 0));
+        assertEquals(expected, manager.getMessageCounter(StatisticManager.KEY_MESSAGE_SENT));
+    }
+}
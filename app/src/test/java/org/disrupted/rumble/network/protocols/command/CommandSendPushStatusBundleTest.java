@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ *
+ * This file is part of Rumble.
+ *
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.network.protocols.command;
+
+import org.disrupted.rumble.database.objects.Contact;
+import org.disrupted.rumble.database.objects.Group;
+import org.disrupted.rumble.database.objects.PushStatus;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks how the statuses queued in a channel are coalesced into bundles: only consecutive
+ * statuses of the same group, at most MAX_BUNDLE_SIZE of them, and that the dropped ones are
+ * told apart from the others although every CommandSendPushStatus equals the others.
+ *
+ * @author Lucien Loiseau
+ */
+public class CommandSendPushStatusBundleTest {
+
+    private static final Contact AUTHOR = new Contact("author", "author-uid", false);
+    private static final Group   GROUP  = new Group("group", "gid", null);
+    private static final Group   OTHER  = new Group("other", "other-gid", null);
+
+    private static CommandSendPushStatus command(Group group, long dbid) {
+        PushStatus status = new PushStatus(AUTHOR, group, "status " + dbid, dbid, "sender");
+        status.setdbId(dbid);
+        return new CommandSendPushStatus(status);
+    }
+
+    @Test
+    public void sameGroupIsBundled() {
+        CommandSendPushStatus first  = command(GROUP, 1);
+        CommandSendPushStatus second = command(GROUP, 2);
+        Command merged = CommandSendPushStatusBundle.coalesce(first, second);
+        assertTrue(merged instanceof CommandSendPushStatusBundle);
+        CommandSendPushStatusBundle bundle = (CommandSendPushStatusBundle)merged;
+        assertEquals(2, bundle.size());
+        assertSame(first, bundle.getCommands().get(0));
+        assertSame(second, bundle.getCommands().get(1));
+
+        // a bundle keeps on growing
+        CommandSendPushStatus third = command(GROUP, 3);
+        assertSame(bundle, CommandSendPushStatusBundle.coalesce(bundle, third));
+        assertEquals(3, bundle.size());
+    }
+
+    @Test
+    public void otherGroupOrCommandIsNotBundled() {
+        CommandSendPushStatus first = command(GROUP, 1);
+        assertNull(CommandSendPushStatusBundle.coalesce(first, command(OTHER, 2)));
+
+        CommandSendPushStatusBundle bundle = new CommandSendPushStatusBundle(first);
+        assertFalse(bundle.append(command(OTHER, 2)));
+        assertEquals(1, bundle.size());
+
+        Command keepAlive = new Command() {
+            @Override
+            public CommandID getCommandID() {
+                return CommandID.SEND_KEEP_ALIVE;
+            }
+        };
+        assertNull(CommandSendPushStatusBundle.coalesce(first, keepAlive));
+        assertNull(CommandSendPushStatusBundle.coalesce(keepAlive, first));
+    }
+
+    @Test
+    public void bundleIsBounded() {
+        CommandSendPushStatusBundle bundle = new CommandSendPushStatusBundle(command(GROUP, 0));
+        for(int i = 1; i < CommandSendPushStatusBundle.MAX_BUNDLE_SIZE; i++)
+            assertTrue(bundle.append(command(GROUP, i)));
+        assertEquals(CommandSendPushStatusBundle.MAX_BUNDLE_SIZE, bundle.size());
+
+        CommandSendPushStatus next = command(GROUP, CommandSendPushStatusBundle.MAX_BUNDLE_SIZE);
+        assertFalse(bundle.append(next));
+        assertNull(CommandSendPushStatusBundle.coalesce(bundle, next));
+        assertEquals(CommandSendPushStatusBundle.MAX_BUNDLE_SIZE, bundle.size());
+    }
+
+    @Test
+    public void droppedAreComparedByIdentity() {
+        CommandSendPushStatus first  = command(GROUP, 1);
+        CommandSendPushStatus second = command(GROUP, 2);
+        CommandSendPushStatusBundle bundle = new CommandSendPushStatusBundle(first);
+        bundle.append(second);
+        assertTrue(first.equals(second));
+
+        bundle.getDropped().add(second);
+        assertFalse(bundle.isDropped(first));
+        assertTrue(bundle.isDropped(second));
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ *
+ * This file is part of Rumble.
+ *
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.network.protocols.rumble.packetformat;
+
+import org.disrupted.rumble.database.objects.Contact;
+import org.disrupted.rumble.database.objects.Group;
+import org.disrupted.rumble.network.protocols.command.CommandSendStatusSummary;
+import org.disrupted.rumble.network.protocols.rumble.packetformat.exceptions.MalformedBlockPayload;
+import org.disrupted.rumble.util.BloomFilter;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that a BlockSummary reads back the filter it was written with, and that the
+ * capabilities carried by the BlockContact keep the older peers working: a BlockContact
+ * without capabilities (an older peer, which must never be sent a BlockSummary) reads as
+ * no capability, and the entries a peer does not know of are skipped by their length.
+ *
+ * The BlockContact are written by hand as BlockContact.writeBlock needs android.util.Base64.
+ *
+ * @author Lucien Loiseau
+ */
+public class BlockSummaryTest {
+
+    private static final int ENTRY_TYPE_GROUP        = 0x01;
+    private static final int ENTRY_TYPE_CAPABILITIES = 0x04;
+    private static final int ENTRY_TYPE_UNKNOWN      = 0x7f;
+
+    private static BloomFilter filter(int nbElements) {
+        BloomFilter filter = new BloomFilter(nbElements, 0.01, BlockSummary.MAX_FILTER_SIZE);
+        for(int i = 0; i < nbElements; i++)
+            filter.add("status-" + i);
+        return filter;
+    }
+
+    private static BlockSummary roundTrip(BlockSummary sent) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long written = sent.writeBlock(out, null);
+        assertEquals(out.size(), written);
+
+        ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+        BlockHeader header = BlockHeader.readBlockHeader(in);
+        assertEquals(BlockHeader.BLOCKTYPE_SUMMARY, header.getBlockType());
+        BlockSummary received = new BlockSummary(header);
+        assertEquals(header.getBlockLength(), received.readBlock(in));
+        assertEquals(0, in.available());
+        return received;
+    }
+
+    @Test
+    public void summaryRoundTrip() throws Exception {
+        for(int nbElements : new int[]{1, 100, 10000}) {
+            BloomFilter filter = filter(nbElements);
+            BlockSummary received = roundTrip(new BlockSummary(new CommandSendStatusSummary(filter)));
+            assertEquals(filter.getNbHashes(), received.summary.getNbHashes());
+            assertArrayEquals(filter.getBits(), received.summary.getBits());
+            for(int i = 0; i < nbElements; i++)
+                assertTrue(received.summary.mightContain("status-" + i));
+        }
+    }
+
+    @Test
+    public void largestSummaryRoundTrip() throws Exception {
+        // more elements than a filter of MAX_FILTER_SIZE can hold at 1%, it is capped
+        BloomFilter filter = filter(200000);
+        assertEquals(BlockSummary.MAX_FILTER_SIZE, filter.getBits().length);
+        BlockSummary received = roundTrip(new BlockSummary(new CommandSendStatusSummary(filter)));
+        assertArrayEquals(filter.getBits(), received.summary.getBits());
+    }
+
+    @Test
+    public void oversizedSummaryIsRejected() throws Exception {
+        BlockHeader header = new BlockHeader();
+        header.setBlockType(BlockHeader.BLOCKTYPE_SUMMARY);
+        header.setPayloadLength(BlockSummary.MAX_FILTER_SIZE + 2);
+        try {
+            new BlockSummary(header).readBlock(new ByteArrayInputStream(new byte[0]));
+            fail("a summary larger than MAX_FILTER_SIZE must be rejected");
+        } catch(MalformedBlockPayload expected) {
+        }
+    }
+
+    /*
+     * a BlockContact with the given entries (type, payload)
+     */
+    private static BlockContact readContact(byte[]... entries) throws Exception {
+        byte[] name = "peer".getBytes("UTF-8");
+        int length = Contact.CONTACT_UID_RAW_SIZE + 1 + name.length;
+        for(byte[] entry : entries)
+            length += entry.length;
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        payload.put(new byte[Contact.CONTACT_UID_RAW_SIZE]);
+        payload.put((byte)name.length);
+        payload.put(name);
+        for(byte[] entry : entries)
+            payload.put(entry);
+
+        BlockHeader header = new BlockHeader();
+        header.setBlockType(BlockHeader.BLOCKTYPE_CONTACT);
+        header.setPayloadLength(length);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        header.writeBlockHeader(out);
+        out.write(payload.array());
+
+        ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+        BlockContact contact = new BlockContact(BlockHeader.readBlockHeader(in));
+        contact.readBlock(in);
+        assertEquals(0, in.available());
+        return contact;
+    }
+
+    private static byte[] entry(int type, int... payload) {
+        byte[] entry = new byte[2 + payload.length];
+        entry[0] = (byte)type;
+        entry[1] = (byte)payload.length;
+        for(int i = 0; i < payload.length; i++)
+            entry[2 + i] = (byte)payload[i];
+        return entry;
+    }
+
+    private static byte[] group() {
+        return entry(ENTRY_TYPE_GROUP, new int[Group.GROUP_GID_RAW_SIZE]);
+    }
+
+    @Test
+    public void olderPeerHasNoCapability() throws Exception {
+        BlockContact contact = readContact(group());
+        assertEquals(0, contact.capabilities);
+        assertEquals(1, contact.contact.getJoinedGroupIDs().size());
+        // PushService only sends a BlockSummary to a peer with this capability
+        assertEquals(0, contact.capabilities & BlockContact.CAPABILITY_STATUS_SUMMARY);
+    }
+
+    @Test
+    public void capabilitiesAreRead() throws Exception {
+        BlockContact contact = readContact(group(), entry(ENTRY_TYPE_CAPABILITIES, BlockContact.LOCAL_CAPABILITIES));
+        assertEquals(BlockContact.LOCAL_CAPABILITIES, contact.capabilities);
+        assertEquals(1, contact.contact.getJoinedGroupIDs().size());
+    }
+
+    /*
+     * an older peer reads the capabilities entry as we read an entry we do not know of:
+     * it is skipped by its length and the entries that follow are still read
+     */
+    @Test
+    public void unknownEntriesAreSkipped() throws Exception {
+        BlockContact contact = readContact(entry(ENTRY_TYPE_UNKNOWN, 1, 2, 3), group(),
+                entry(ENTRY_TYPE_CAPABILITIES, BlockContact.CAPABILITY_STATUS_SUMMARY, 0xff));
+        assertEquals(1, contact.contact.getJoinedGroupIDs().size());
+        // a newer peer may send more flags than we know of
+        assertEquals(BlockContact.CAPABILITY_STATUS_SUMMARY, contact.capabilities);
+    }
+}
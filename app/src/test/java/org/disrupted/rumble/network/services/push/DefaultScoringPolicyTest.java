@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ *
+ * This file is part of Rumble.
+ *
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.network.services.push;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the batch scoring of DefaultScoringPolicy gives the same scores as the per-object
+ * one, and that it only writes the scores of the candidates it is given.
+ *
+ * @author Lucien Loiseau
+ */
+public class DefaultScoringPolicyTest {
+
+    // candidates held in arrays, as in PushCandidates
+    static class Candidates {
+        int size;
+        long[]  matches;
+        float[] relevances;
+        float[] densities;
+        int[]   likes;
+        int[]   duplicates;
+        int[]   replications;
+        long[]  tocs;
+        long[]  ttls;
+        float[] scores;
+
+        Candidates(int size, long now, Random random) {
+            this.size = size;
+            matches = new long[(size + 63) >>> 6];
+            relevances = new float[size];
+            densities = new float[size];
+            likes = new int[size];
+            duplicates = new int[size];
+            replications = new int[size];
+            tocs = new long[size];
+            ttls = new long[size];
+            scores = new float[size];
+            for(int i = 0; i < size; i++) {
+                if(random.nextInt(10) != 0)
+                    matches[i >>> 6] |= (1L << i);
+                relevances[i] = random.nextFloat();
+                densities[i] = random.nextFloat();
+                likes[i] = random.nextInt(10);
+                duplicates[i] = random.nextInt(5);
+                replications[i] = random.nextInt(20);
+                tocs[i] = now - random.nextInt(3600000);
+                ttls[i] = (random.nextInt(3) == 0) ? 0 : random.nextInt(7200000);
+            }
+        }
+    }
+
+    @Test
+    public void batchMatchesPerObject() {
+        long now = 1000000000L;
+        Random random = new Random(1);
+        for(ScoringPolicy policy : new ScoringPolicy[]{new DefaultScoringPolicy(), new DefaultScoringPolicy(0.3f, 0.5f, 0.2f)}) {
+            Candidates c = new Candidates(1000, now, random);
+            policy.score(c.size, c.matches, c.relevances, c.densities, c.likes, c.duplicates,
+                    c.replications, c.tocs, c.ttls, now, c.scores);
+            int matched = 0;
+            for(int i = 0; i < c.size; i++) {
+                boolean match = (c.matches[i >>> 6] & (1L << i)) != 0;
+                if(match)
+                    matched++;
+                float expected = policy.score(match, c.relevances[i], c.densities[i], c.likes[i],
+                        c.duplicates[i], c.replications[i], c.tocs[i], c.ttls[i], now);
+                assertEquals(expected, c.scores[i], 0);
+                if(!match)
+                    assertEquals(0, c.scores[i], 0);
+            }
+            assertTrue(matched > 0 && matched < c.size);
+        }
+    }
+
+    @Test
+    public void onlyTheFirstSizeScoresAreWritten() {
+        Candidates c = new Candidates(100, 0, new Random(2));
+        c.scores[50] = -1;
+        new DefaultScoringPolicy().score(50, c.matches, c.relevances, c.densities, c.likes,
+                c.duplicates, c.replications, c.tocs, c.ttls, 0, c.scores);
+        assertEquals(-1, c.scores[50], 0);
+    }
+}
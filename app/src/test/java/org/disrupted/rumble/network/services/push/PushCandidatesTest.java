@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ *
+ * This file is part of Rumble.
+ *
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.network.services.push;
+
+import org.disrupted.rumble.database.objects.Contact;
+import org.disrupted.rumble.database.objects.Group;
+import org.disrupted.rumble.database.objects.PushStatus;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that PushCandidates keeps its parallel arrays and its dbid index consistent through
+ * the insertions, the updates and the removals (the last candidate moving into the slot of the
+ * removed one).
+ *
+ * @author Lucien Loiseau
+ */
+public class PushCandidatesTest {
+
+    private static final Contact AUTHOR = new Contact("author", "author-uid", false);
+    private static final Group   GROUP  = new Group("group", "gid", null);
+
+    private static PushStatus status(long dbid) {
+        PushStatus status = new PushStatus(AUTHOR, GROUP, "status " + dbid, 1000 + dbid, "sender");
+        status.setdbId(dbid);
+        status.setTimeOfArrival(2000 + dbid);
+        status.setTTL(dbid % 3 == 0 ? -1 : 60000);
+        status.setLike((int) (dbid % 5));
+        status.addDuplicate(dbid % 7);
+        status.addReplication(dbid % 11);
+        return status;
+    }
+
+    private static void assertCandidate(PushCandidates candidates, long dbid) {
+        int index = candidates.indexOf(dbid);
+        assertTrue(index >= 0 && index < candidates.size());
+        assertEquals(dbid, candidates.getDbid(index));
+        assertEquals("gid", candidates.getGroup(index));
+        assertEquals(1000 + dbid, candidates.getTimeOfCreation(index));
+        assertEquals(2000 + dbid, candidates.getTimeOfArrival(index));
+        assertEquals(dbid % 3 == 0 ? -1 : 60000, candidates.getTTL(index));
+        assertEquals(dbid % 5, candidates.getLike(index));
+        assertEquals(dbid % 7, candidates.getDuplicate(index));
+        assertEquals(dbid % 11, candidates.getReplication(index));
+        assertEquals(dbid / 10f, candidates.getRelevance(index), 0);
+    }
+
+    @Test
+    public void addAndUpdateInPlace() {
+        PushCandidates candidates = new PushCandidates();
+        for(long dbid = 1; dbid <= 40; dbid++)   // more than the initial capacity
+            candidates.add(status(dbid), dbid / 10f);
+        assertEquals(40, candidates.size());
+        for(long dbid = 1; dbid <= 40; dbid++)
+            assertCandidate(candidates, dbid);
+
+        // adding a candidate again only updates it
+        int index = candidates.indexOf(12);
+        assertEquals(index, candidates.add(status(12), 1.2f));
+        assertEquals(40, candidates.size());
+
+        PushStatus liked = status(12);
+        liked.setLike(42);
+        assertEquals(index, candidates.update(liked));
+        assertEquals(42, candidates.getLike(index));
+        assertEquals(-1, candidates.update(status(41)));
+        assertFalse(candidates.contains(41));
+    }
+
+    @Test
+    public void removeMovesTheLastCandidate() {
+        PushCandidates candidates = new PushCandidates();
+        for(long dbid = 1; dbid <= 5; dbid++)
+            candidates.add(status(dbid), dbid / 10f);
+        candidates.setWeight(candidates.indexOf(5), 5);
+
+        int index = candidates.indexOf(2);
+        assertTrue(candidates.remove(2));
+        assertFalse(candidates.remove(2));
+        assertEquals(4, candidates.size());
+        assertFalse(candidates.contains(2));
+        assertEquals(-1, candidates.indexOf(2));
+        assertEquals(5, candidates.getDbid(index));
+        assertEquals(5, candidates.getWeight(index), 0);
+        for(long dbid : new long[]{1, 3, 4, 5})
+            assertCandidate(candidates, dbid);
+
+        candidates.clear();
+        assertEquals(0, candidates.size());
+        assertFalse(candidates.contains(1));
+        assertEquals(0, candidates.getTotalWeight(), 0);
+    }
+
+    /*
+     * random insertions and removals against a map, every candidate must stay reachable
+     * by its dbid with its own attributes
+     */
+    @Test
+    public void randomOperations() {
+        PushCandidates candidates = new PushCandidates();
+        Map<Long, Boolean> expected = new HashMap<Long, Boolean>();
+        List<Long> present = new ArrayList<Long>();
+        Random random = new Random(4);
+        for(int i = 0; i < 5000; i++) {
+            long dbid = 1 + random.nextInt(300);
+            if(random.nextInt(3) == 0) {
+                assertEquals(expected.remove(dbid) != null, candidates.remove(dbid));
+                present.remove(dbid);
+            } else {
+                candidates.add(status(dbid), dbid / 10f);
+                if(expected.put(dbid, true) == null)
+                    present.add(dbid);
+            }
+            assertEquals(expected.size(), candidates.size());
+        }
+        for(long dbid : present)
+            assertCandidate(candidates, dbid);
+        for(int index = 0; index < candidates.size(); index++)
+            assertEquals(index, candidates.indexOf(candidates.getDbid(index)));
+    }
+}
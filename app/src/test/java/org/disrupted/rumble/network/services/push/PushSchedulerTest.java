@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ *
+ * This file is part of Rumble.
+ *
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.network.services.push;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The scheduler is driven by the test thread (serveNext) instead of its workers, so that
+ * the rounds are deterministic.
+ *
+ * @author Lucien Loiseau
+ */
+public class PushSchedulerTest {
+
+    private static final int MAX_STATUS_SIZE = 20*1024;
+
+    /*
+     * a contact that always has statuses of random size to send
+     */
+    private static class SimulatedContact extends PushScheduler.ContactQueue {
+        final int quantum;
+        final Random random;
+        int  head;
+        int  sent;
+        long bytes;
+        boolean blocked;
+        int  remaining;
+
+        SimulatedContact(int quantum, long seed, int remaining) {
+            this.quantum = quantum;
+            this.random = new Random(seed);
+            this.head = -1;
+            this.remaining = remaining;
+        }
+
+        @Override
+        protected int peekCost() {
+            if(blocked)
+                return PushScheduler.COST_BLOCKED;
+            if(remaining == 0)
+                return PushScheduler.COST_EMPTY;
+            if(head < 0)
+                head = 100 + random.nextInt(MAX_STATUS_SIZE - 100);
+            return head;
+        }
+
+        @Override
+        protected int sendHead() {
+            int cost = head;
+            head = -1;
+            sent++;
+            bytes += cost;
+            if(remaining > 0)
+                remaining--;
+            return cost;
+        }
+
+        @Override
+        protected int getQuantum() {
+            return quantum;
+        }
+
+        @Override
+        public int getQueueDepth() {
+            return remaining;
+        }
+    }
+
+    /*
+     * 100 backlogged contacts, a third of them on a channel 4 times faster: every contact
+     * gets a share of the bytes proportional to its quantum.
+     */
+    @Test
+    public void fairnessWith100Contacts() throws InterruptedException {
+        PushScheduler scheduler = new PushScheduler(1);
+        List<SimulatedContact> contacts = new ArrayList<SimulatedContact>();
+        for(int i = 0; i < 100; i++) {
+            int quantum = (i % 3 == 0) ? 64*1024 : 16*1024;
+            SimulatedContact contact = new SimulatedContact(quantum, i, -1);
+            contacts.add(contact);
+            scheduler.add(contact);
+        }
+
+        int rounds = 500;
+        for(int i = 0; i < rounds * contacts.size(); i++)
+            scheduler.serveNext();
+
+        // Jain's fairness index of the bytes served per unit of quantum
+        double sum = 0;
+        double sumOfSquares = 0;
+        for(SimulatedContact contact : contacts) {
+            double normalized = (double)contact.bytes / contact.quantum;
+            sum += normalized;
+            sumOfSquares += normalized * normalized;
+            // DRR: after n rounds, a contact has been served n*quantum bytes give or take one status
+            assertTrue(Math.abs(contact.bytes - (long)rounds * contact.quantum) <= MAX_STATUS_SIZE);
+            assertEquals(contact.bytes, contact.getServedBytes());
+        }
+        double jain = (sum * sum) / (contacts.size() * sumOfSquares);
+        assertTrue("fairness index "+jain, jain > 0.999);
+    }
+
+    /*
+     * a contact that is empty or blocked leaves the ring and does not take any share,
+     * it is served again once woken up
+     */
+    @Test
+    public void idleContactsLeaveTheRing() throws InterruptedException {
+        PushScheduler scheduler = new PushScheduler(1);
+        SimulatedContact busy = new SimulatedContact(16*1024, 1, -1);
+        SimulatedContact blocked = new SimulatedContact(16*1024, 2, -1);
+        SimulatedContact empty = new SimulatedContact(16*1024, 3, 0);
+        blocked.blocked = true;
+        scheduler.add(busy);
+        scheduler.add(blocked);
+        scheduler.add(empty);
+
+        for(int i = 0; i < 100; i++)
+            scheduler.serveNext();
+        assertEquals(0, blocked.sent);
+        assertEquals(0, empty.sent);
+        assertTrue(busy.sent > 0);
+
+        blocked.blocked = false;
+        scheduler.wakeUp(blocked);
+        empty.remaining = 5;
+        scheduler.wakeUp(empty);
+        for(int i = 0; i < 100; i++)
+            scheduler.serveNext();
+        assertTrue(blocked.sent > 0);
+        assertEquals(5, empty.sent);
+
+        scheduler.remove(blocked);
+        int sentBefore = blocked.sent;
+        for(int i = 0; i < 100; i++)
+            scheduler.serveNext();
+        assertEquals(sentBefore, blocked.sent);
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ *
+ * This file is part of Rumble.
+ *
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.network.services.push;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Lucien Loiseau
+ */
+public class ReplicationDensityWatcherTest {
+
+    private static final long WINDOW     = 3600*1000;
+    private static final int  NB_BUCKETS = 12;
+    private static final long BUCKET     = WINDOW / NB_BUCKETS;
+
+    private static class FakeClock implements ReplicationDensityWatcher.Clock {
+        long now = 1000*BUCKET;
+        @Override
+        public long currentTimeMillis() {
+            return now;
+        }
+    }
+
+    private FakeClock clock;
+    private ReplicationDensityWatcher watcher;
+
+    @Before
+    public void setUp() {
+        clock = new FakeClock();
+        watcher = new ReplicationDensityWatcher(WINDOW, NB_BUCKETS, 1024, 4, 16384, clock);
+    }
+
+    @Test
+    public void emptyWindow() {
+        assertEquals(1f, watcher.computeMetric("a"), 0f);
+    }
+
+    @Test
+    public void copiesWithinTheWindow() {
+        watcher.received("a");
+        watcher.received("a");
+        watcher.received("a");
+        watcher.received("b");
+        assertEquals(1f - 3f/4f, watcher.computeMetric("a"), 0.0001f);
+        assertEquals(1f - 1f/4f, watcher.computeMetric("b"), 0.0001f);
+    }
+
+    /*
+     * a message never received keeps a metric of 1, even if the sketch counts a few
+     * copies of it because of collisions
+     */
+    @Test
+    public void unseenMessage() {
+        ReplicationDensityWatcher narrow = new ReplicationDensityWatcher(WINDOW, NB_BUCKETS, 4, 1, 16384, clock);
+        for(int i = 0; i < 100; i++)
+            narrow.received("status-"+i);
+        assertEquals(1f, narrow.computeMetric("unseen"), 0f);
+        assertTrue(narrow.computeMetric("status-0") < 1f);
+    }
+
+    @Test
+    public void bucketsExpire() {
+        watcher.received("a");
+        clock.now += WINDOW/2;
+        watcher.received("b");
+        watcher.received("b");
+        assertEquals(1f - 1f/3f, watcher.computeMetric("a"), 0.0001f);
+
+        // the bucket holding "a" leaves the window, "b" is still there
+        clock.now += WINDOW/2;
+        assertEquals(1f, watcher.computeMetric("a"), 0f);
+        assertEquals(0f, watcher.computeMetric("b"), 0.0001f);
+
+        clock.now += WINDOW;
+        assertEquals(1f, watcher.computeMetric("b"), 0f);
+    }
+
+    @Test
+    public void bucketGranularity() {
+        watcher.received("a");
+        // still within the window until the bucket it was received in has rotated out
+        clock.now += WINDOW - BUCKET;
+        watcher.received("b");
+        assertEquals(0.5f, watcher.computeMetric("a"), 0.0001f);
+        clock.now += BUCKET;
+        assertEquals(1f, watcher.computeMetric("a"), 0f);
+        assertEquals(0f, watcher.computeMetric("b"), 0.0001f);
+    }
+
+    @Test
+    public void batchMatchesSingle() {
+        Random random = new Random(1);
+        String[] uuids = new String[200];
+        for(int i = 0; i < uuids.length; i++) {
+            uuids[i] = "status-"+i;
+            int copies = random.nextInt(5);
+            for(int c = 0; c < copies; c++)
+                watcher.received(uuids[i]);
+        }
+        float[] metrics = new float[uuids.length];
+        watcher.computeMetrics(uuids, uuids.length, metrics);
+        for(int i = 0; i < uuids.length; i++)
+            assertEquals(watcher.computeMetric(uuids[i]), metrics[i], 0f);
+    }
+
+    /*
+     * an hour of traffic over the sliding window, compared to exact counting.
+     * the sketch never underestimates and its error stays within e/width.
+     */
+    @Test
+    public void slidingWindowAccuracy() {
+        Random random = new Random(42);
+        Map<Long, Map<String, Integer>> perBucket = new HashMap<Long, Map<String, Integer>>();
+        for(int minute = 0; minute < 180; minute++) {
+            for(int i = 0; i < 50; i++) {
+                String uuid = "status-"+random.nextInt(2000);
+                watcher.received(uuid);
+                long epoch = clock.now / BUCKET;
+                Map<String, Integer> counts = perBucket.get(epoch);
+                if(counts == null) {
+                    counts = new HashMap<String, Integer>();
+                    perBucket.put(epoch, counts);
+                }
+                Integer count = counts.get(uuid);
+                counts.put(uuid, (count == null) ? 1 : count + 1);
+            }
+            clock.now += 60*1000;
+
+            long current = clock.now / BUCKET;
+            Map<String, Integer> exact = new HashMap<String, Integer>();
+            int total = 0;
+            for(Map.Entry<Long, Map<String, Integer>> bucket : perBucket.entrySet()) {
+                if(bucket.getKey() <= current - NB_BUCKETS)
+                    continue;
+                for(Map.Entry<String, Integer> count : bucket.getValue().entrySet()) {
+                    Integer sum = exact.get(count.getKey());
+                    exact.put(count.getKey(), (sum == null) ? count.getValue() : sum + count.getValue());
+                    total += count.getValue();
+                }
+            }
+            for(int u = 0; u < 2000; u += 37) {
+                String uuid = "status-"+u;
+                Integer copies = exact.get(uuid);
+                float metric = watcher.computeMetric(uuid);
+                if(copies == null) {
+                    assertEquals(1f, metric, 0f);
+                } else {
+                    float expected = 1f - (float)copies / (float)total;
+                    assertTrue(metric <= expected + 0.0001f);
+                    assertTrue(expected - metric <= Math.E / 1024 + 0.0001f);
+                }
+            }
+        }
+    }
+
+    /*
+     * past maxTracked, the sketch alone is used and unseen messages are estimated
+     */
+    @Test
+    public void trackingLimit() {
+        ReplicationDensityWatcher bounded = new ReplicationDensityWatcher(WINDOW, NB_BUCKETS, 1024, 4, 10, clock);
+        for(int i = 0; i < 20; i++)
+            bounded.received("status-"+i);
+        assertEquals(1f - 1f/20f, bounded.computeMetric("status-15"), 0.0001f);
+        assertTrue(bounded.computeMetric("unseen") >= 1f - 1f/20f);
+
+        // once the untracked messages leave the window, the fingerprints are used again
+        clock.now += WINDOW;
+        bounded.received("a");
+        assertEquals(1f, bounded.computeMetric("unseen"), 0f);
+        assertEquals(0f, bounded.computeMetric("a"), 0.0001f);
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ *
+ * This file is part of Rumble.
+ *
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.network.services.push;
+
+import org.disrupted.rumble.database.objects.Contact;
+import org.disrupted.rumble.database.objects.Group;
+import org.disrupted.rumble.database.objects.PushStatus;
+import org.disrupted.rumble.network.protocols.command.Command;
+import org.disrupted.rumble.network.protocols.command.CommandSendPushStatus;
+import org.disrupted.rumble.network.protocols.command.CommandSendPushStatusBundle;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a slot of the SendWindow is released exactly once per command, whether it
+ * succeeded or failed, including when the commands were coalesced into a bundle by the
+ * channel (which notifies every command of the bundle, see RumbleUnicastChannel).
+ *
+ * @author Lucien Loiseau
+ */
+public class SendWindowTest {
+
+    private static final int     SIZE   = 4;
+    private static final Contact AUTHOR = new Contact("author", "author-uid", false);
+    private static final Group   GROUP  = new Group("group", "gid", null);
+
+    private static CommandSendPushStatus command(long dbid) {
+        PushStatus status = new PushStatus(AUTHOR, GROUP, "status " + dbid, dbid, "sender");
+        status.setdbId(dbid);
+        return new CommandSendPushStatus(status);
+    }
+
+    private static List<CommandSendPushStatus> fill(SendWindow window, int count) {
+        List<CommandSendPushStatus> commands = new ArrayList<CommandSendPushStatus>();
+        for(int i = 0; i < count; i++) {
+            CommandSendPushStatus command = command(i);
+            assertTrue(window.put(command, command.getStatus(), null, 100, 0));
+            commands.add(command);
+        }
+        return commands;
+    }
+
+    @Test
+    public void windowIsBounded() {
+        SendWindow window = new SendWindow(SIZE);
+        fill(window, SIZE);
+        assertTrue(window.isFull());
+        CommandSendPushStatus extra = command(SIZE);
+        assertFalse(window.put(extra, extra.getStatus(), null, 100, 0));
+        assertEquals(SIZE, window.size());
+        assertFalse(window.contains(SIZE));
+        assertTrue(window.contains(0));
+    }
+
+    @Test
+    public void failureReleasesTheSlot() {
+        SendWindow window = new SendWindow(SIZE);
+        List<CommandSendPushStatus> commands = fill(window, SIZE);
+
+        // the status comes back so that the dispatcher can put it back in the candidates
+        SendWindow.InFlightStatus sent = window.complete(commands.get(1), false, 10);
+        assertNotNull(sent);
+        assertSame(commands.get(1).getStatus(), sent.status);
+        assertFalse(window.isFull());
+        assertEquals(1, window.availableSlots());
+        assertFalse(window.contains(1));
+
+        // no throughput is measured from a failure
+        assertEquals(0, window.getThroughput(), 0);
+    }
+
+    @Test
+    public void slotIsReleasedOnlyOnce() {
+        SendWindow window = new SendWindow(SIZE);
+        List<CommandSendPushStatus> commands = fill(window, SIZE);
+
+        assertNotNull(window.complete(commands.get(0), true, 10));
+        assertNull(window.complete(commands.get(0), false, 20));
+        // equal to every other CommandSendPushStatus, but not in flight
+        assertNull(window.complete(command(0), false, 20));
+        assertEquals(1, window.availableSlots());
+        assertEquals(SIZE - 1, window.size());
+    }
+
+    @Test
+    public void failedBundleReleasesEverySlot() {
+        SendWindow window = new SendWindow(SIZE);
+        List<CommandSendPushStatus> commands = fill(window, SIZE);
+
+        Command merged = commands.get(0);
+        for(int i = 1; i < SIZE; i++)
+            merged = CommandSendPushStatusBundle.coalesce(merged, commands.get(i));
+        CommandSendPushStatusBundle bundle = (CommandSendPushStatusBundle)merged;
+        assertEquals(SIZE, bundle.size());
+
+        int failed = 0;
+        for(CommandSendPushStatus sub : bundle.getCommands()) {
+            SendWindow.InFlightStatus sent = window.complete(sub, false, 10);
+            assertNotNull(sent);
+            failed++;
+        }
+        assertEquals(SIZE, failed);
+        assertEquals(SIZE, window.availableSlots());
+        assertEquals(0, window.size());
+    }
+
+    @Test
+    public void droppedStatusOfASentBundleFails() {
+        SendWindow window = new SendWindow(SIZE);
+        List<CommandSendPushStatus> commands = fill(window, SIZE);
+
+        CommandSendPushStatusBundle bundle = new CommandSendPushStatusBundle(commands.get(0));
+        for(int i = 1; i < SIZE; i++)
+            bundle.append(commands.get(i));
+        bundle.getDropped().add(commands.get(2));
+
+        List<Long> failed = new ArrayList<Long>();
+        for(CommandSendPushStatus sub : bundle.getCommands()) {
+            boolean success = !bundle.isDropped(sub);
+            SendWindow.InFlightStatus sent = window.complete(sub, success, 10);
+            if(!success)
+                failed.add(sent.status.getdbId());
+        }
+        assertEquals(1, failed.size());
+        assertEquals(2L, (long)failed.get(0));
+        assertEquals(SIZE, window.availableSlots());
+        assertTrue(window.getThroughput() > 0);
+    }
+
+    @Test
+    public void clearReleasesEverySlot() {
+        SendWindow window = new SendWindow(SIZE);
+        List<CommandSendPushStatus> commands = fill(window, SIZE);
+        window.clear();
+        assertEquals(SIZE, window.availableSlots());
+
+        // the channel may still notify the commands afterwards
+        for(CommandSendPushStatus command : commands)
+            assertNull(window.complete(command, false, 10));
+        assertEquals(SIZE, window.availableSlots());
+    }
+
+    @Test
+    public void throughputFollowsThePipeline() {
+        SendWindow window = new SendWindow(SIZE);
+        List<CommandSendPushStatus> commands = fill(window, 2);
+
+        // both sent at 0, the second one is only served once the first one is done
+        window.complete(commands.get(0), true, 10);
+        assertEquals(10f, window.getThroughput(), 0.001);
+        window.complete(commands.get(1), true, 20);
+        assertEquals(10f, window.getThroughput(), 0.001);
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ *
+ * This file is part of Rumble.
+ *
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.network.services.push;
+
+import org.disrupted.rumble.database.DatabaseExecutor;
+import org.disrupted.rumble.database.events.StatusDeletedEvent;
+import org.disrupted.rumble.database.events.StatusInsertedEvent;
+import org.disrupted.rumble.database.objects.Contact;
+import org.disrupted.rumble.database.objects.Group;
+import org.disrupted.rumble.database.objects.PushStatus;
+import org.disrupted.rumble.network.protocols.events.PushStatusSent;
+import org.disrupted.rumble.util.CompressedBitmap;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the snapshot of a contact gives its candidates back when it reconnects: the
+ * ones of the snapshot still in the catalog plus the statuses that arrived since, minus what
+ * the contact got meanwhile, that a snapshot is not used once it is stale (groups changed,
+ * catalog restarted) or already consumed, and that a dispatcher starting without a snapshot
+ * still gets its candidates.
+ *
+ * @author Lucien Loiseau
+ */
+public class StatusCatalogTest {
+
+    private static final Group   GROUP  = new Group("group", "gid", null);
+    private static final Group   OTHER  = new Group("other", "other-gid", null);
+    private static final Contact AUTHOR = new Contact("author", "author-uid", false);
+
+    private static class FakeSource implements StatusCatalog.Source {
+        DatabaseExecutor.ReadableQueryCallback callback;
+        Map<String, CompressedBitmap> delivered = new HashMap<String, CompressedBitmap>();
+
+        @Override
+        public void loadStatuses(DatabaseExecutor.ReadableQueryCallback callback) {
+            this.callback = callback;
+        }
+
+        @Override
+        public CompressedBitmap loadDelivered(String uid) {
+            return delivered.get(uid);
+        }
+
+        @Override
+        public boolean read(DatabaseExecutor.ReadableQuery query, DatabaseExecutor.ReadableQueryCallback callback) {
+            callback.onReadableQueryFinished(query.read());
+            return true;
+        }
+    }
+
+    private FakeSource    source;
+    private StatusCatalog catalog;
+    private Contact       contact;
+
+    private static PushStatus status(long dbid, Group group) {
+        PushStatus status = new PushStatus(AUTHOR, group, "status " + dbid, dbid, "sender");
+        status.setdbId(dbid);
+        status.setTimeOfArrival(1000 * dbid);
+        return status;
+    }
+
+    private static CompressedBitmap bitmap(int... dbids) {
+        CompressedBitmap bitmap = new CompressedBitmap();
+        for(int dbid : dbids)
+            bitmap.add(dbid);
+        return bitmap;
+    }
+
+    @Before
+    public void setUp() {
+        source = new FakeSource();
+        // the contact already has the statuses 1 and 2
+        source.delivered.put("contact-uid", bitmap(1, 2));
+        catalog = new StatusCatalog(source);
+        catalog.start();
+
+        // 1 to 10 in the group of the contact, 11 to 15 in another one
+        List<PushStatus> statuses = new ArrayList<PushStatus>();
+        for(long dbid = 1; dbid <= 15; dbid++)
+            statuses.add(status(dbid, (dbid <= 10) ? GROUP : OTHER));
+        source.callback.onReadableQueryFinished(statuses);
+
+        contact = new Contact("contact", "contact-uid", false);
+        contact.addGroup(GROUP.getGid());
+    }
+
+    @After
+    public void tearDown() {
+        catalog.stop();
+    }
+
+    private void insert(PushStatus status) {
+        catalog.onEvent(new StatusInsertedEvent(status));
+    }
+
+    private void sent(long dbid) {
+        catalog.onEvent(new PushStatusSent(status(dbid, GROUP), Collections.singleton(contact), "protocol", "link"));
+    }
+
+    @Test
+    public void snapshotIsRestored() {
+        assertArrayEquals(new int[]{3, 4, 5, 6, 7, 8, 9, 10}, catalog.getCandidates(contact).toArray());
+
+        // 3 and 4 were sent, 9 was left out (e.g. the peer summary said it had it)
+        sent(3);
+        sent(4);
+        catalog.saveSnapshot(contact, bitmap(5, 6, 7, 8, 10));
+
+        // arrived since: 16 in the group, 17 in another group
+        insert(status(16, GROUP));
+        insert(status(17, OTHER));
+
+        assertArrayEquals(new int[]{5, 6, 7, 8, 10, 16}, catalog.restoreSnapshot(contact).toArray());
+    }
+
+    @Test
+    public void snapshotFollowsTheCatalog() {
+        catalog.getCandidates(contact);
+        catalog.saveSnapshot(contact, bitmap(3, 4, 5, 6, 7, 8, 9, 10));
+
+        catalog.onEvent(new StatusDeletedEvent("uuid-4", 4));
+        sent(5);
+        // received from the contact itself, so it has it
+        PushStatus received = new PushStatus(AUTHOR, GROUP, "status 18", 18, "contact-uid");
+        received.setdbId(18);
+        received.setTimeOfArrival(18000);
+        insert(received);
+        insert(status(19, GROUP));
+
+        assertArrayEquals(new int[]{3, 6, 7, 8, 9, 10, 19}, catalog.restoreSnapshot(contact).toArray());
+    }
+
+    @Test
+    public void snapshotIsConsumed() {
+        catalog.getCandidates(contact);
+        catalog.saveSnapshot(contact, bitmap(3, 4));
+        assertNotNull(catalog.restoreSnapshot(contact));
+        assertNull(catalog.restoreSnapshot(contact));
+    }
+
+    @Test
+    public void staleSnapshotIsNotRestored() {
+        // never saved
+        assertNull(catalog.restoreSnapshot(contact));
+
+        // the contact joined another group since
+        catalog.getCandidates(contact);
+        catalog.saveSnapshot(contact, bitmap(3, 4));
+        contact.addGroup(OTHER.getGid());
+        assertNull(catalog.restoreSnapshot(contact));
+    }
+
+    @Test
+    public void snapshotNeedsTheDeliveredStatuses() {
+        // the statuses the contact has were never loaded, the snapshot could resend them
+        catalog.saveSnapshot(contact, bitmap(3, 4));
+        assertNull(catalog.restoreSnapshot(contact));
+    }
+
+    @Test
+    public void snapshotDoesNotSurviveARestart() {
+        catalog.getCandidates(contact);
+        catalog.saveSnapshot(contact, bitmap(3, 4));
+        catalog.stop();
+        catalog.saveSnapshot(contact, bitmap(3, 4));   // ignored, the catalog is stopped
+        catalog.start();
+        source.callback.onReadableQueryFinished(new ArrayList<PushStatus>());
+        catalog.getCandidates(contact);
+        assertNull(catalog.restoreSnapshot(contact));
+    }
+
+    /*
+     * a known contact coming back with the same groups gets no ContactGroupListUpdated,
+     * its candidates are computed at start if it has no snapshot
+     */
+    @Test
+    public void knownContactWithoutSnapshotGetsItsCandidates() {
+        final List<CompressedBitmap> answers = new ArrayList<CompressedBitmap>();
+        DatabaseExecutor.ReadableQueryCallback callback = new DatabaseExecutor.ReadableQueryCallback() {
+            @Override
+            public void onReadableQueryFinished(Object result) {
+                answers.add((CompressedBitmap)result);
+            }
+        };
+
+        // met before with the same groups, but no snapshot
+        catalog.getCandidates(contact);
+        assertFalse(catalog.startCandidates(contact, callback));
+        assertEquals(1, answers.size());
+        assertArrayEquals(new int[]{3, 4, 5, 6, 7, 8, 9, 10}, answers.get(0).toArray());
+
+        // with a snapshot, it is restored instead
+        catalog.saveSnapshot(contact, bitmap(5, 6));
+        assertTrue(catalog.startCandidates(contact, callback));
+        assertEquals(2, answers.size());
+        assertArrayEquals(new int[]{5, 6}, answers.get(1).toArray());
+
+        // the catalog still loading, the candidates are given once it is loaded
+        catalog.stop();
+        catalog.start();
+        assertFalse(catalog.startCandidates(contact, callback));
+        assertEquals(2, answers.size());
+        List<PushStatus> statuses = new ArrayList<PushStatus>();
+        for(long dbid = 1; dbid <= 4; dbid++)
+            statuses.add(status(dbid, GROUP));
+        source.callback.onReadableQueryFinished(statuses);
+        assertEquals(3, answers.size());
+        assertArrayEquals(new int[]{3, 4}, answers.get(2).toArray());
+    }
+}
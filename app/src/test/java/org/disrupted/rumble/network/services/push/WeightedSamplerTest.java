@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ *
+ * This file is part of Rumble.
+ *
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.network.services.push;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the WeightedSampler follows its weights through the updates.
+ *
+ * @author Lucien Loiseau
+ */
+public class WeightedSamplerTest {
+
+    private static final int NB_SAMPLES = 200000;
+
+    /*
+     * every index is drawn with a frequency close to weight/total
+     */
+    private static void assertDistribution(WeightedSampler sampler, Random random) {
+        int[] drawn = new int[sampler.size()];
+        for(int i = 0; i < NB_SAMPLES; i++) {
+            int index = sampler.sample(random);
+            assertTrue(index >= 0 && index < sampler.size());
+            drawn[index]++;
+        }
+        double total = 0;
+        for(int i = 0; i < sampler.size(); i++)
+            total += sampler.get(i);
+        for(int i = 0; i < sampler.size(); i++) {
+            double expected = NB_SAMPLES * sampler.get(i) / total;
+            if(sampler.get(i) == 0)
+                assertEquals(0, drawn[i]);
+            else
+                assertEquals(expected, drawn[i], 5 * Math.sqrt(expected) + 1);
+        }
+    }
+
+    @Test
+    public void emptyOrNullWeights() {
+        WeightedSampler sampler = new WeightedSampler();
+        Random random = new Random(1);
+        assertEquals(-1, sampler.sample(random));
+        sampler.add(0);
+        sampler.add(0);
+        assertEquals(-1, sampler.sample(random));
+        sampler.set(1, 3);
+        for(int i = 0; i < 100; i++)
+            assertEquals(1, sampler.sample(random));
+        sampler.set(0, -5);
+        assertEquals(0, sampler.get(0), 0);
+    }
+
+    @Test
+    public void followsTheUpdates() {
+        WeightedSampler sampler = new WeightedSampler();
+        Random random = new Random(2);
+        for(int i = 0; i < 40; i++)   // more than the initial capacity
+            sampler.add(1 + i % 7);
+        assertEquals(40, sampler.size());
+        assertDistribution(sampler, random);
+
+        sampler.set(3, 0);
+        sampler.set(5, 30);
+        assertDistribution(sampler, random);
+
+        // the last weight takes the slot of the removed one
+        double last = sampler.get(39);
+        sampler.remove(10);
+        assertEquals(39, sampler.size());
+        assertEquals(last, sampler.get(10), 0);
+        sampler.remove(38);
+        assertEquals(38, sampler.size());
+        assertDistribution(sampler, random);
+
+        double total = sampler.total();
+        sampler.rebuild();
+        assertEquals(total, sampler.total(), 1e-9);
+        assertDistribution(sampler, random);
+
+        while(sampler.size() > 0)
+            sampler.remove(0);
+        assertEquals(0, sampler.total(), 0);
+        assertEquals(-1, sampler.sample(random));
+    }
+
+    @Test
+    public void assignReplacesEveryWeight() {
+        WeightedSampler sampler = new WeightedSampler();
+        Random random = new Random(3);
+        sampler.add(100);
+        float[] weights = new float[50];
+        for(int i = 0; i < weights.length; i++)
+            weights[i] = (i % 5 == 0) ? 0 : i;
+        sampler.assign(weights, 37);
+        assertEquals(37, sampler.size());
+        assertDistribution(sampler, random);
+
+        sampler.assign(weights, 3);
+        assertEquals(3, sampler.size());
+        assertDistribution(sampler, random);
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ *
+ * This file is part of Rumble.
+ *
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.util;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Lucien Loiseau
+ */
+public class BloomFilterTest {
+
+    @Test
+    public void noFalseNegative() {
+        BloomFilter filter = new BloomFilter(5000, 0.01, 64*1024);
+        for(int i = 0; i < 5000; i++)
+            filter.add("status-"+i);
+        for(int i = 0; i < 5000; i++)
+            assertTrue(filter.mightContain("status-"+i));
+    }
+
+    @Test
+    public void falsePositiveRate() {
+        BloomFilter filter = new BloomFilter(5000, 0.01, 64*1024);
+        for(int i = 0; i < 5000; i++)
+            filter.add(UUID.randomUUID().toString());
+        int falsePositives = 0;
+        for(int i = 0; i < 100000; i++) {
+            if(filter.mightContain(UUID.randomUUID().toString()))
+                falsePositives++;
+        }
+        assertTrue("false positive rate "+falsePositives/100000.0, falsePositives < 2000);
+    }
+
+    @Test
+    public void cappedSize() {
+        BloomFilter filter = new BloomFilter(1000000, 0.001, 1024);
+        assertEquals(1024, filter.getBits().length);
+        assertTrue(filter.getNbHashes() <= BloomFilter.MAX_HASHES);
+    }
+
+    /*
+     * the receiver must find the same elements in the filter it gets from the network
+     */
+    @Test
+    public void wireFormat() {
+        BloomFilter filter = new BloomFilter(100, 0.01, 1024);
+        for(int i = 0; i < 100; i++)
+            filter.add("status-"+i);
+        BloomFilter received = new BloomFilter(filter.getNbHashes(), filter.getBits().clone());
+        assertArrayEquals(filter.getBits(), received.getBits());
+        for(int i = 0; i < 100; i++)
+            assertTrue(received.mightContain("status-"+i));
+    }
+}
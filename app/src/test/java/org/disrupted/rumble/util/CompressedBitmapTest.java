@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ *
+ * This file is part of Rumble.
+ *
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.util;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Lucien Loiseau
+ */
+public class CompressedBitmapTest {
+
+    private static int[] toArray(TreeSet<Integer> set) {
+        int[] ret = new int[set.size()];
+        int i = 0;
+        for(Integer value : set)
+            ret[i++] = value;
+        return ret;
+    }
+
+    @Test
+    public void addRemoveContains() {
+        CompressedBitmap bitmap = new CompressedBitmap();
+        assertTrue(bitmap.isEmpty());
+        assertTrue(bitmap.add(3));
+        assertFalse(bitmap.add(3));
+        assertTrue(bitmap.add(70000));
+        assertFalse(bitmap.add(-1));
+        assertTrue(bitmap.contains(3));
+        assertTrue(bitmap.contains(70000));
+        assertFalse(bitmap.contains(4));
+        assertEquals(2, bitmap.cardinality());
+        assertTrue(bitmap.remove(3));
+        assertFalse(bitmap.remove(3));
+        assertFalse(bitmap.contains(3));
+        assertEquals(1, bitmap.cardinality());
+    }
+
+    /*
+     * a chunk holding more than 4096 values switches to a bitmap container and back
+     */
+    @Test
+    public void denseChunk() {
+        CompressedBitmap bitmap = new CompressedBitmap();
+        TreeSet<Integer> expected = new TreeSet<Integer>();
+        for(int i = 0; i < 10000; i++) {
+            bitmap.add(i*3);
+            expected.add(i*3);
+        }
+        assertArrayEquals(toArray(expected), bitmap.toArray());
+        for(int i = 0; i < 9000; i++) {
+            bitmap.remove(i*3);
+            expected.remove(i*3);
+        }
+        assertArrayEquals(toArray(expected), bitmap.toArray());
+    }
+
+    @Test
+    public void orAndNot() {
+        Random random = new Random(42);
+        CompressedBitmap a = new CompressedBitmap();
+        CompressedBitmap b = new CompressedBitmap();
+        TreeSet<Integer> union = new TreeSet<Integer>();
+        TreeSet<Integer> difference = new TreeSet<Integer>();
+        TreeSet<Integer> setB = new TreeSet<Integer>();
+        for(int i = 0; i < 20000; i++) {
+            int x = random.nextInt(200000);
+            int y = random.nextInt(200000);
+            a.add(x);
+            b.add(y);
+            union.add(x);
+            union.add(y);
+            difference.add(x);
+            setB.add(y);
+        }
+        difference.removeAll(setB);
+
+        CompressedBitmap or = new CompressedBitmap(a);
+        or.or(b);
+        assertArrayEquals(toArray(union), or.toArray());
+
+        CompressedBitmap andNot = new CompressedBitmap(a);
+        andNot.andNot(b);
+        assertArrayEquals(toArray(difference), andNot.toArray());
+    }
+
+    @Test
+    public void serialization() {
+        Random random = new Random(7);
+        CompressedBitmap bitmap = new CompressedBitmap();
+        for(int i = 0; i < 5000; i++)
+            bitmap.add(random.nextInt(1000000));
+        for(int i = 0; i < 5000; i++)
+            bitmap.add(i);
+
+        byte[] bytes = bitmap.toByteArray();
+        assertEquals(bitmap.serializedSize(), bytes.length);
+        CompressedBitmap copy = CompressedBitmap.fromByteArray(bytes);
+        assertArrayEquals(bitmap.toArray(), copy.toArray());
+
+        CompressedBitmap empty = CompressedBitmap.fromByteArray(new CompressedBitmap().toByteArray());
+        assertTrue(empty.isEmpty());
+    }
+}
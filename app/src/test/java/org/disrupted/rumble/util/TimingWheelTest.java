@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2014 Lucien Loiseau
+ *
+ * This file is part of Rumble.
+ *
+ * Rumble is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Rumble is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Rumble.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.disrupted.rumble.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Lucien Loiseau
+ */
+public class TimingWheelTest {
+
+    private static class Recorder implements TimingWheel.ExpiryListener {
+        List<Long> expired = new ArrayList<Long>();
+
+        @Override
+        public void onExpired(long id) {
+            expired.add(id);
+        }
+    }
+
+    @Test
+    public void alreadyExpired() {
+        TimingWheel wheel = new TimingWheel(1000, 10000);
+        assertFalse(wheel.add(1, 9000));
+        assertFalse(wheel.add(2, 10000));
+        assertTrue(wheel.add(3, 10001));
+        assertEquals(1, wheel.size());
+
+        Recorder recorder = new Recorder();
+        wheel.advance(10999, recorder);
+        assertTrue(recorder.expired.isEmpty());
+        wheel.advance(11000, recorder);
+        assertEquals(1, recorder.expired.size());
+        assertEquals(3L, (long)recorder.expired.get(0));
+        assertEquals(0, wheel.size());
+    }
+
+    /*
+     * timers spread over every level fire exactly once, never before their expiration
+     * and in the first advance that reaches the end of their tick
+     */
+    @Test
+    public void firesOnTimeAtEveryLevel() {
+        final long tickDuration = 10;
+        final long start = 123456789;
+        final int  nbTimers = 20000;
+        TimingWheel wheel = new TimingWheel(tickDuration, start);
+        Random random = new Random(42);
+
+        final long[] expirations = new long[nbTimers];
+        for(int i = 0; i < nbTimers; i++) {
+            // up to 2^25 ticks so that the last level is used as well
+            long delay = 1 + (long)(Math.pow(random.nextDouble(), 4) * (1L << 25) * tickDuration);
+            expirations[i] = start + delay;
+            assertTrue(wheel.add(i, expirations[i]));
+        }
+        assertEquals(nbTimers, wheel.size());
+
+        final boolean[] fired = new boolean[nbTimers];
+        final long[] now = new long[1];
+        TimingWheel.ExpiryListener listener = new TimingWheel.ExpiryListener() {
+            @Override
+            public void onExpired(long id) {
+                assertFalse(fired[(int)id]);
+                assertTrue(expirations[(int)id] <= now[0]);
+                fired[(int)id] = true;
+            }
+        };
+
+        int remaining = nbTimers;
+        now[0] = start;
+        while(remaining > 0) {
+            now[0] += 1 + random.nextInt(500000);
+            wheel.advance(now[0], listener);
+            remaining = 0;
+            for(int i = 0; i < nbTimers; i++) {
+                if(fired[i])
+                    continue;
+                remaining++;
+                // the end of its tick is not reached yet
+                long endOfTick = ((expirations[i] + tickDuration - 1) / tickDuration) * tickDuration;
+                assertTrue(now[0] < endOfTick);
+            }
+            assertEquals(remaining, wheel.size());
+        }
+    }
+
+    @Test
+    public void addWhileAdvancing() {
+        TimingWheel wheel = new TimingWheel(1, 0);
+        Recorder recorder = new Recorder();
+        for(long now = 1; now <= 100000; now++) {
+            wheel.add(now, now + 1 + (now * 7919) % 70000);
+            wheel.advance(now, recorder);
+        }
+        wheel.advance(200000, recorder);
+        assertEquals(100000, recorder.expired.size());
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void clear() {
+        TimingWheel wheel = new TimingWheel(1, 0);
+        for(int i = 0; i < 1000; i++)
+            wheel.add(i, 1 + i * 1000);
+        wheel.clear();
+        assertEquals(0, wheel.size());
+        Recorder recorder = new Recorder();
+        wheel.advance(10000000, recorder);
+        assertTrue(recorder.expired.isEmpty());
+    }
+}